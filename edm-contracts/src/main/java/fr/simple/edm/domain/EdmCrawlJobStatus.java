@@ -0,0 +1,55 @@
+package fr.simple.edm.domain;
+
+import java.util.Date;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * State and progress of a crawl running in background
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class EdmCrawlJobStatus {
+
+    public enum State {
+        QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED
+    }
+
+    private String id;
+
+    // what is crawled, for example "filesystem /media/documents"
+    private String description;
+
+    private State state;
+
+    private Date submissionDate;
+
+    private Date startDate;
+
+    private Date endDate;
+
+    private long filesSeen;
+
+    private long filesIndexed;
+
+    // unchanged since the previous crawl
+    private long filesSkipped;
+
+    private long filesFailed;
+
+    private long bytesProcessed;
+
+    // average since the start of the job
+    private double filesPerSecond;
+
+    // null when unknown
+    private Long etaSeconds;
+
+    // failure message, null unless the job failed
+    private String error;
+}
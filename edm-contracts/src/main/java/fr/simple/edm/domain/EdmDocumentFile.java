@@ -64,4 +64,13 @@ public class EdmDocumentFile implements Serializable {
     @NotNull
     @EdmSearchable
     private String nodePath = null;
+
+    // crawl which indexed this document, documents of older crawls are deleted at the end of a crawl
+    private Long crawlGeneration;
+
+    // id of the document this one is a passage of, its own id for a whole document (search results are collapsed on it)
+    private String parentId;
+
+    // position of the passage in its parent document, null for a whole document
+    private Integer chunkIndex;
 }
@@ -0,0 +1,26 @@
+package fr.simple.edm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Outcome of one document of a bulk indexing request, so the crawler can
+ * retry only the failed ones
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class EdmDocumentIndexingResult {
+
+    private String id;
+
+    private String nodePath;
+
+    private boolean success;
+
+    // failure message, null on success
+    private String error;
+}
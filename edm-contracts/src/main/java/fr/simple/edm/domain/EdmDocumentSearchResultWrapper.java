@@ -21,6 +21,9 @@ public class EdmDocumentSearchResultWrapper {
 
     private List<EdmDocumentSearchResult> searchResults = new ArrayList<>();
 
+    // opaque position of the next page, null on the last one
+    private String nextCursor;
+
     public void add(EdmDocumentSearchResult edmDocumentSearchResult) {
         searchResults.add(edmDocumentSearchResult);
     }
@@ -0,0 +1,25 @@
+package fr.simple.edm.domain;
+
+import java.util.Map;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Search results and every aggregation of the search page, computed by a single query
+ */
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class EdmSearchWithAggregationsWrapper {
+
+    private EdmDocumentSearchResultWrapper searchResult;
+
+    // same content as /document/aggregations
+    private Map<String, EdmAggregationsWrapper> aggregations;
+
+    private EdmAggregationsWrapper topTerms;
+}
@@ -1,24 +1,55 @@
 package fr.simple.edm.crawler.bridge;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URLEncoder;
-import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.Getter;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.entity.mime.content.StringBody;
+import org.apache.http.util.EntityUtils;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.client.RestTemplate;
 
 import fr.simple.edm.domain.EdmCategory;
 import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmDocumentIndexingResult;
 import fr.simple.edm.domain.EdmSource;
 
 public class EdmConnector {
@@ -50,28 +81,266 @@ public class EdmConnector {
         edmCategoryColor.add(new EdmCategoryColor("#FFF", "#795548")); // Brown
     }
 
+    @Data
+    @AllArgsConstructor
+    private static class CachedId {
+        // completed by the thread which resolves it, the others wait for it
+        private CompletableFuture<String> id;
+        private long resolutionTime;
+
+        boolean isExpired(long now, long ttlMillis) {
+            return id.isDone() && now - resolutionTime >= ttlMillis;
+        }
+    }
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // the batch body is flushed by the http client, not after each field
+    private static final ObjectWriter batchWriter = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    private static final long DEFAULT_ID_CACHE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    // resolved ids, by server and name
+    private final ConcurrentMap<String, CachedId> sourceIds = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, CachedId> categoryIds = new ConcurrentHashMap<>();
+
+    private volatile long idCacheTtlMillis = DEFAULT_ID_CACHE_TTL_MILLIS;
+
+    @Getter
+    private final EdmHttpTransport transport;
+
+    public EdmConnector() {
+        this(new EdmHttpTransport());
+    }
+
+    public EdmConnector(EdmHttpTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Send the document metadata and stream the file content as a multipart request, so the file is never
+     * loaded in memory. When the server ingestion queue is full, the request is sent again after the delay it
+     * asked for. The server answers once the document is indexed, a failed indexing is thrown as an
+     * {@link IOException}, as well as an indexing the server did not confirm in time.
+     */
     public void saveEdmDocument(String server, EdmDocumentFile doc, File file) throws IOException {
-        doc.setBinaryFileContent(Files.readAllBytes(file.toPath()));
+        HttpEntity entity = MultipartEntityBuilder.create()
+            .addPart("document", new StringBody(objectMapper.writeValueAsString(doc), ContentType.APPLICATION_JSON))
+            .addPart("file", new FileBody(file, ContentType.DEFAULT_BINARY, file.getName()))
+            .build();
+
+        HttpPost request = new HttpPost(server + "/crawl/document/stream");
+        request.setEntity(entity);
+        executeUpload(request, doc);
+    }
 
-        RestTemplate restTemplate = new RestTemplate();
-        restTemplate.postForEntity(server + "/crawl/document", doc, EdmDocumentFile.class);
+    /**
+     * Same as {@link #saveEdmDocument(String, EdmDocumentFile, File)}, the content is sent from memory
+     */
+    public void saveEdmDocument(String server, EdmDocumentFile doc, byte[] content) throws IOException {
+        HttpEntity entity = MultipartEntityBuilder.create()
+            .addPart("document", new StringBody(objectMapper.writeValueAsString(doc), ContentType.APPLICATION_JSON))
+            .addPart("file", new ByteArrayBody(content, ContentType.DEFAULT_BINARY, doc.getName() + "." + doc.getFileExtension()))
+            .build();
+
+        HttpPost request = new HttpPost(server + "/crawl/document/stream");
+        request.setEntity(entity);
+        executeUpload(request, doc);
+    }
+
+    /**
+     * Background version of {@link #saveEdmDocument(String, EdmDocumentFile, File)}, so many uploads are on the
+     * wire at the same time. Blocks while {@link EdmHttpTransport#getMaxInFlightRequests()} uploads are pending.
+     */
+    public CompletableFuture<Void> saveEdmDocumentAsync(String server, EdmDocumentFile doc, File file) throws IOException {
+        return transport.submit(() -> {
+            saveEdmDocument(server, doc, file);
+            return null;
+        });
+    }
+
+    /**
+     * Send many documents in one request, the file content has to be set in {@link EdmDocumentFile#getBinaryFileContent()}
+     *
+     * @return The indexing result of each document, in the same order
+     */
+    public List<EdmDocumentIndexingResult> saveEdmDocuments(String server, List<EdmDocumentFile> docs) {
+        return transport.getRestTemplate().exchange(server + "/crawl/documents", HttpMethod.POST, new org.springframework.http.HttpEntity<>(docs),
+            new ParameterizedTypeReference<List<EdmDocumentIndexingResult>>() {}).getBody();
+    }
+
+    /**
+     * Client sending documents by batches, it has to be closed so the last batch is sent
+     *
+     * @see EdmDocumentBatcher#EdmDocumentBatcher(EdmConnector, String, int, long, long)
+     */
+    public EdmDocumentBatcher newDocumentBatcher(String server, int maxDocuments, long maxBytes, long flushIntervalMs) {
+        return new EdmDocumentBatcher(this, server, maxDocuments, maxBytes, flushIntervalMs);
+    }
+
+    /**
+     * Same as {@link #saveEdmDocuments(String, List)}, the content of each document is read from its file while the
+     * request is sent, so the batch is never loaded in memory
+     *
+     * @param files The file of each document, in the same order, null for a document without content
+     */
+    public List<EdmDocumentIndexingResult> saveEdmDocuments(String server, List<EdmDocumentFile> docs, List<File> files) throws IOException {
+        EntityTemplate entity = new EntityTemplate(outputStream -> writeEdmDocuments(outputStream, docs, files));
+        entity.setContentType(ContentType.APPLICATION_JSON.toString());
+
+        HttpPost request = new HttpPost(server + "/crawl/documents");
+        request.setEntity(entity);
+        try (CloseableHttpResponse response = transport.getHttpClient().execute(request)) {
+            if (response.getStatusLine().getStatusCode() >= 300) {
+                EntityUtils.consume(response.getEntity());
+                throw new IOException("Server failed to index a batch of " + docs.size() + " documents : " + response.getStatusLine());
+            }
+            try (InputStream body = response.getEntity().getContent()) {
+                return objectMapper.readValue(body, new TypeReference<List<EdmDocumentIndexingResult>>() {});
+            }
+        }
+    }
+
+    /**
+     * The metadata are written as usual, the file content is base64 encoded on the fly
+     */
+    private static void writeEdmDocuments(OutputStream outputStream, List<EdmDocumentFile> docs, List<File> files) throws IOException {
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+            // the http client closes the stream once the entity is written
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartArray();
+            for (int i = 0; i < docs.size(); i++) {
+                ObjectNode metadata = objectMapper.valueToTree(docs.get(i));
+                metadata.remove("binaryFileContent");
+
+                generator.writeStartObject();
+                Iterator<Map.Entry<String, JsonNode>> fields = metadata.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    generator.writeFieldName(field.getKey());
+                    batchWriter.writeValue(generator, field.getValue());
+                }
+                File file = files.get(i);
+                if (file != null) {
+                    generator.writeFieldName("binaryFileContent");
+                    try (InputStream content = new FileInputStream(file)) {
+                        generator.writeBinary(content, (int) file.length());
+                    }
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    public void deleteEdmDocuments(String server, String sourceId, List<String> nodePaths) {
+        transport.getRestTemplate().postForEntity(server + "/crawl/document/delete?sourceId={sourceId}", nodePaths, Void.class, sourceId);
     }
 
     public void notifyStartCrawling(String server, String source) throws ClientProtocolException, IOException {
         HttpGet request = new HttpGet(server + "/crawl/start?source=" + URLEncoder.encode(source, "UTF-8"));
-        HttpClient client = HttpClientBuilder.create().build();
-        client.execute(request);
+        execute(request, "Failed to notify start of crawling");
     }
 
     public void notifyEndOfCrawling(String server, String source) throws ClientProtocolException, IOException {
         HttpGet request = new HttpGet(server + "/crawl/stop?source=" + URLEncoder.encode(source, "UTF-8"));
-        HttpClient client = HttpClientBuilder.create().build();
-        client.execute(request);
+        execute(request, "Failed to notify end of crawling");
     }
 
+    /**
+     * The response is always consumed, so the connection goes back to the pool
+     *
+     * @return The status code of the response
+     */
+    private int execute(HttpUriRequest request, String errorMessage) throws IOException {
+        try (CloseableHttpResponse response = transport.getHttpClient().execute(request)) {
+            EntityUtils.consume(response.getEntity());
+            if (response.getStatusLine().getStatusCode() >= 300) {
+                throw new IOException(errorMessage + " : " + response.getStatusLine());
+            }
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    /**
+     * 202 means the document is still in the ingestion pipeline of the server, it is not known whether it will be
+     * indexed, so the crawler has to send it again
+     */
+    private void executeUpload(HttpUriRequest request, EdmDocumentFile doc) throws IOException {
+        if (execute(request, "Server failed to index document " + doc.getNodePath()) == HttpStatus.SC_ACCEPTED) {
+            throw new IOException("Server did not confirm the indexing of " + doc.getNodePath() + " in time");
+        }
+    }
+
+    /**
+     * Resolved ids are cached, a source is created only once even when many threads ask for it
+     */
     public String getIdFromSourceBySourceName(String server, String sourceName, String categoryId) {
+        return resolveId(sourceIds, server, sourceName, () -> fetchOrCreateSourceId(server, sourceName));
+    }
+
+    /**
+     * Resolved ids are cached, a category is created only once even when many threads ask for it
+     */
+    public String getIdFromCategoryByCategoryName(String server, String categoryName) {
+        return resolveId(categoryIds, server, categoryName, () -> fetchOrCreateCategoryId(server, categoryName));
+    }
+
+    /**
+     * Forget every resolved source and category id, for example if they were deleted on the server
+     */
+    public void invalidateIdCache() {
+        sourceIds.clear();
+        categoryIds.clear();
+    }
+
+    public void setIdCacheTtlMillis(long idCacheTtlMillis) {
+        this.idCacheTtlMillis = idCacheTtlMillis;
+    }
+
+    private String resolveId(ConcurrentMap<String, CachedId> cache, String server, String name, Supplier<String> resolver) {
+        String key = server + "|" + name;
+        while (true) {
+            long now = System.currentTimeMillis();
+            CachedId cached = cache.get(key);
+            if (cached != null && !cached.isExpired(now, idCacheTtlMillis)) {
+                return await(cached.getId());
+            }
+
+            // the server is called outside of the map, only the thread which registered the pending id resolves it
+            CachedId pending = new CachedId(new CompletableFuture<>(), now);
+            boolean registered = cached == null ? cache.putIfAbsent(key, pending) == null : cache.replace(key, cached, pending);
+            if (!registered) {
+                continue;
+            }
+            try {
+                String id = resolver.get();
+                pending.getId().complete(id);
+                return id;
+            } catch (RuntimeException e) {
+                // a failure is not cached, the next call tries again
+                cache.remove(key, pending);
+                pending.getId().completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    private static String await(CompletableFuture<String> id) {
+        try {
+            return id.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private String fetchOrCreateSourceId(String server, String sourceName) {
         // get Node
-        RestTemplate restTemplate = new RestTemplate();
+        RestTemplate restTemplate = transport.getRestTemplate();
         EdmSource result = restTemplate.getForObject(server + "/source/name/{sourceName}", EdmSource.class, sourceName);
 
         // if exits, nothing to do !
@@ -87,9 +356,9 @@ public class EdmConnector {
         return createdSource.getBody().getId();
     }
 
-    public String getIdFromCategoryByCategoryName(String server, String categoryName) {
+    private String fetchOrCreateCategoryId(String server, String categoryName) {
         // get Node
-        RestTemplate restTemplate = new RestTemplate();
+        RestTemplate restTemplate = transport.getRestTemplate();
         EdmCategory result = restTemplate.getForObject(server + "/category/name/{categoryName}", EdmCategory.class, categoryName);
 
         // if exits, nothing to do !
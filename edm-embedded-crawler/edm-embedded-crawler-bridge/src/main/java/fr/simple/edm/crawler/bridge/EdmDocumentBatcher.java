@@ -0,0 +1,222 @@
+package fr.simple.edm.crawler.bridge;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmDocumentIndexingResult;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Buffer documents and send them to the server by batches ({@code /crawl/documents}).
+ *
+ * A batch is sent as soon as it reaches the max number of documents or the max size of file content,
+ * or when the flush interval is elapsed. Documents refused by the server are sent again once in the
+ * next batch, and reported by {@link #getFailures()} if they fail again.
+ *
+ * The content of a buffered document is kept in a temporary file, not in memory, and is streamed to
+ * the server when the batch is sent. The temporary file is deleted once the document is indexed or
+ * has failed for good.
+ *
+ * Remaining documents are sent by {@link #close()}.
+ */
+@Slf4j
+public class EdmDocumentBatcher implements Closeable {
+
+    private static final int MAX_ATTEMPTS = 2;
+
+    @AllArgsConstructor
+    private static class BufferedDocument {
+        private final EdmDocumentFile doc;
+        // copy of the content, null for a document without content
+        private final File content;
+        private int failedAttempts;
+
+        long size() {
+            return content == null ? 0 : content.length();
+        }
+
+        void release() {
+            if (content != null && !content.delete()) {
+                log.warn("Failed to delete temporary file {}", content);
+            }
+        }
+    }
+
+    private final EdmConnector edmConnector;
+
+    private final String server;
+
+    private final int maxDocuments;
+
+    private final long maxBytes;
+
+    private final ScheduledExecutorService flushScheduler;
+
+    private List<BufferedDocument> batch = new ArrayList<>();
+
+    private long batchBytes = 0;
+
+    private boolean closed = false;
+
+    private final List<EdmDocumentIndexingResult> failures = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param maxDocuments    Max number of documents in a batch
+     * @param maxBytes        Max size of the file contents of a batch
+     * @param flushIntervalMs Max time a document waits in the buffer, 0 to disable
+     */
+    public EdmDocumentBatcher(EdmConnector edmConnector, String server, int maxDocuments, long maxBytes, long flushIntervalMs) {
+        this.edmConnector = edmConnector;
+        this.server = server;
+        this.maxDocuments = maxDocuments;
+        this.maxBytes = maxBytes;
+
+        if (flushIntervalMs > 0) {
+            // does not keep the crawler alive when it forgets to close the batcher
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "edm-batch-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flushScheduler.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            flushScheduler = null;
+        }
+    }
+
+    /**
+     * The file is copied, so it can change or be deleted before the batch is sent
+     */
+    public void add(EdmDocumentFile doc, File file) throws IOException {
+        Path content = Files.createTempFile("edm-batch-", ".tmp");
+        try {
+            Files.copy(file.toPath(), content, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(content);
+            throw e;
+        }
+        add(new BufferedDocument(doc, content.toFile(), 0));
+    }
+
+    /**
+     * The content set in {@link EdmDocumentFile#getBinaryFileContent()} is moved to a temporary file
+     */
+    public void add(EdmDocumentFile doc) throws IOException {
+        Path content = null;
+        if (doc.getBinaryFileContent() != null) {
+            content = Files.createTempFile("edm-batch-", ".tmp");
+            try {
+                Files.write(content, doc.getBinaryFileContent());
+            } catch (IOException e) {
+                Files.deleteIfExists(content);
+                throw e;
+            }
+            doc.setBinaryFileContent(null);
+        }
+        add(new BufferedDocument(doc, content == null ? null : content.toFile(), 0));
+    }
+
+    private synchronized void add(BufferedDocument document) {
+        if (closed) {
+            document.release();
+            throw new IllegalStateException("The batcher is closed");
+        }
+        batch.add(document);
+        batchBytes += document.size();
+
+        if (batch.size() >= maxDocuments || batchBytes >= maxBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Send the buffered documents now
+     */
+    public synchronized void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<BufferedDocument> documents = batch;
+        batch = new ArrayList<>();
+        batchBytes = 0;
+
+        List<EdmDocumentFile> docs = new ArrayList<>();
+        List<File> contents = new ArrayList<>();
+        for (BufferedDocument document : documents) {
+            docs.add(document.doc);
+            contents.add(document.content);
+        }
+
+        List<EdmDocumentIndexingResult> results;
+        try {
+            results = edmConnector.saveEdmDocuments(server, docs, contents);
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to send a batch of {} documents", docs.size(), e);
+            results = new ArrayList<>();
+            for (EdmDocumentFile doc : docs) {
+                results.add(new EdmDocumentIndexingResult(null, doc.getNodePath(), false, e.getMessage()));
+            }
+        }
+
+        for (int i = 0; i < documents.size(); i++) {
+            BufferedDocument document = documents.get(i);
+            EdmDocumentIndexingResult result = i < results.size() ? results.get(i)
+                : new EdmDocumentIndexingResult(null, document.doc.getNodePath(), false, "No result from the server");
+            if (result.isSuccess()) {
+                document.release();
+                continue;
+            }
+            document.failedAttempts++;
+            if (document.failedAttempts >= MAX_ATTEMPTS) {
+                log.warn("Failed to index '{}' : {}", document.doc.getNodePath(), result.getError());
+                failures.add(result);
+                document.release();
+            } else {
+                log.debug("Will retry '{}' in the next batch : {}", document.doc.getNodePath(), result.getError());
+                batch.add(document);
+                batchBytes += document.size();
+            }
+        }
+    }
+
+    /**
+     * @return The documents which could not be indexed, even after a retry
+     */
+    public List<EdmDocumentIndexingResult> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    /**
+     * Stop the flush thread and send the remaining documents, including the ones to retry
+     */
+    @Override
+    public void close() {
+        if (flushScheduler != null) {
+            flushScheduler.shutdown();
+            try {
+                // a flush in progress holds the lock anyway
+                flushScheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            closed = true;
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package fr.simple.edm.crawler.bridge;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import fr.simple.edm.domain.EdmDocumentFile;
+
+/**
+ * Where crawlers send the documents they find : a remote EDM server ({@link EdmHttpSink}), or the ingestion
+ * service itself when the crawler runs inside the webapp
+ */
+public interface EdmDocumentSink {
+
+    /**
+     * Streamed documents up to this size are kept in memory by the sinks, see
+     * {@link #saveEdmDocumentStream(EdmDocumentFile, InputStream, long)}
+     */
+    long DEFAULT_MAX_BUFFERED_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * The category is created if it does not exist
+     */
+    String getIdFromCategoryByCategoryName(String categoryName);
+
+    /**
+     * The source is created if it does not exist
+     */
+    String getIdFromSourceBySourceName(String sourceName, String categoryId);
+
+    void notifyStartCrawling(String sourceName) throws IOException;
+
+    void notifyEndOfCrawling(String sourceName) throws IOException;
+
+    /**
+     * The file can be deleted once this method returns
+     */
+    void saveEdmDocument(EdmDocumentFile doc, File file) throws IOException;
+
+    /**
+     * Background version of {@link #saveEdmDocument(EdmDocumentFile, File)}, the file can be deleted once the
+     * future is complete
+     */
+    CompletableFuture<Void> saveEdmDocumentAsync(EdmDocumentFile doc, File file) throws IOException;
+
+    /**
+     * Same as {@link #saveEdmDocument(EdmDocumentFile, File)}, the content is read once from the stream, for example
+     * the body of an HTTP response, the caller closes it. By default the content is copied to a temporary file,
+     * sinks override this to keep small documents in memory.
+     *
+     * @param contentLength In bytes, negative if unknown
+     */
+    default void saveEdmDocumentStream(EdmDocumentFile doc, InputStream content, long contentLength) throws IOException {
+        File file = File.createTempFile("edm-stream-", "." + doc.getFileExtension());
+        try {
+            Files.copy(content, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            saveEdmDocument(doc, file);
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /**
+     * @return The {@code contentLength} bytes of the stream
+     */
+    static byte[] readContent(InputStream content, long contentLength) throws IOException {
+        byte[] bytes = new byte[(int) contentLength];
+        new DataInputStream(content).readFully(bytes);
+        return bytes;
+    }
+
+    void deleteEdmDocuments(String sourceId, List<String> nodePaths);
+
+    /**
+     * Called for every file found by the crawler, before it is sent or skipped
+     */
+    default void onFileFound(String nodePath) {
+    }
+
+    /**
+     * Called for files which are not sent because they are unchanged since the previous crawl
+     */
+    default void onFileSkipped(String nodePath) {
+    }
+
+    /**
+     * Crawlers stop looking for files once cancelled, and do not delete the documents they did not see
+     */
+    default boolean isCancelled() {
+        return false;
+    }
+}
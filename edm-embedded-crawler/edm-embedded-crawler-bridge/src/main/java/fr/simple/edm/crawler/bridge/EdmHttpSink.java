@@ -0,0 +1,80 @@
+package fr.simple.edm.crawler.bridge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import fr.simple.edm.domain.EdmDocumentFile;
+
+/**
+ * Send documents to a remote EDM server
+ */
+public class EdmHttpSink implements EdmDocumentSink {
+
+    private final EdmConnector edmConnector;
+
+    // for example : http://127.0.0.1:8053
+    private final String server;
+
+    private final long maxBufferedBytes;
+
+    public EdmHttpSink(EdmConnector edmConnector, String server) {
+        this(edmConnector, server, Long.getLong("edm.http.max_buffered_bytes", DEFAULT_MAX_BUFFERED_BYTES));
+    }
+
+    /**
+     * @param maxBufferedBytes Streamed documents up to this size are sent from memory, bigger ones are copied to
+     *                         a temporary file first. Either way, the upload is sent again when the server is busy
+     */
+    public EdmHttpSink(EdmConnector edmConnector, String server, long maxBufferedBytes) {
+        this.edmConnector = edmConnector;
+        this.server = server;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    @Override
+    public String getIdFromCategoryByCategoryName(String categoryName) {
+        return edmConnector.getIdFromCategoryByCategoryName(server, categoryName);
+    }
+
+    @Override
+    public String getIdFromSourceBySourceName(String sourceName, String categoryId) {
+        return edmConnector.getIdFromSourceBySourceName(server, sourceName, categoryId);
+    }
+
+    @Override
+    public void notifyStartCrawling(String sourceName) throws IOException {
+        edmConnector.notifyStartCrawling(server, sourceName);
+    }
+
+    @Override
+    public void notifyEndOfCrawling(String sourceName) throws IOException {
+        edmConnector.notifyEndOfCrawling(server, sourceName);
+    }
+
+    @Override
+    public void saveEdmDocument(EdmDocumentFile doc, File file) throws IOException {
+        edmConnector.saveEdmDocument(server, doc, file);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveEdmDocumentAsync(EdmDocumentFile doc, File file) throws IOException {
+        return edmConnector.saveEdmDocumentAsync(server, doc, file);
+    }
+
+    @Override
+    public void saveEdmDocumentStream(EdmDocumentFile doc, InputStream content, long contentLength) throws IOException {
+        if (contentLength < 0 || contentLength > maxBufferedBytes) {
+            EdmDocumentSink.super.saveEdmDocumentStream(doc, content, contentLength);
+            return;
+        }
+        edmConnector.saveEdmDocument(server, doc, EdmDocumentSink.readContent(content, contentLength));
+    }
+
+    @Override
+    public void deleteEdmDocuments(String sourceId, List<String> nodePaths) {
+        edmConnector.deleteEdmDocuments(server, sourceId, nodePaths);
+    }
+}
@@ -0,0 +1,247 @@
+package fr.simple.edm.crawler.bridge;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLException;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ServiceUnavailableRetryStrategy;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * HTTP transport shared by every request of an {@link EdmConnector} : connections are pooled and kept
+ * alive between requests, failed requests are retried with an exponential backoff.
+ *
+ * Defaults can be overridden with system properties, for example
+ * {@code -Dedm.http.max_connections_per_route=50}.
+ */
+@Slf4j
+public class EdmHttpTransport implements Closeable {
+
+    // not defined by httpcore 4.3
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private static final int MAX_ATTEMPTS_WHEN_BUSY = 60;
+
+    private static final long DEFAULT_RETRY_AFTER_SECONDS = 5;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    @Getter
+    private final CloseableHttpClient httpClient;
+
+    @Getter
+    private final RestTemplate restTemplate;
+
+    private final ExecutorService executor;
+
+    // requests sent in background but not answered yet
+    private final Semaphore inFlightRequests;
+
+    @Getter
+    private final int maxInFlightRequests;
+
+    /**
+     * @param maxConnectionsPerRoute Max opened connections to one server
+     * @param maxConnections         Max opened connections, whatever the server
+     * @param connectTimeoutMs       Max time to open a connection
+     * @param socketTimeoutMs        Max time without receiving data once connected
+     * @param maxRetries             Retries of a request on network error or server unavailable (5xx)
+     * @param retryBackoffMs         Wait before the first retry, doubled after each retry
+     * @param maxInFlightRequests    Max requests sent in background with {@link #submit(Callable)}, 0 means
+     *                               as many as connections per route
+     */
+    @Builder
+    private EdmHttpTransport(Integer maxConnectionsPerRoute, Integer maxConnections, Integer connectTimeoutMs,
+            Integer socketTimeoutMs, Integer maxRetries, Long retryBackoffMs, Integer maxInFlightRequests) {
+        int perRoute = orDefault(maxConnectionsPerRoute, Integer.getInteger("edm.http.max_connections_per_route", 20));
+        int total = orDefault(maxConnections, Integer.getInteger("edm.http.max_connections", 100));
+        int connectTimeout = orDefault(connectTimeoutMs, Integer.getInteger("edm.http.connect_timeout_ms", 5000));
+        int socketTimeout = orDefault(socketTimeoutMs, Integer.getInteger("edm.http.socket_timeout_ms", 120000));
+        int retries = orDefault(maxRetries, Integer.getInteger("edm.http.max_retries", 3));
+        long backoff = orDefault(retryBackoffMs, Long.getLong("edm.http.retry_backoff_ms", 500L));
+        int inFlight = orDefault(maxInFlightRequests, Integer.getInteger("edm.http.max_in_flight_requests", 0));
+        this.maxInFlightRequests = inFlight > 0 ? inFlight : perRoute;
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(perRoute);
+        connectionManager.setMaxTotal(Math.max(total, perRoute));
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setSocketTimeout(socketTimeout)
+            // waiting for a free connection of the pool
+            .setConnectionRequestTimeout(socketTimeout)
+            .build();
+
+        // default keep alive strategy : connections are reused until the server closes them
+        httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setRetryHandler(new BackoffRetryHandler(retries, backoff))
+            .setServiceUnavailableRetryStrategy(new BackoffServiceUnavailableRetryStrategy(retries, backoff))
+            .build();
+
+        restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "edm-http-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        inFlightRequests = new Semaphore(this.maxInFlightRequests);
+    }
+
+    public EdmHttpTransport() {
+        this(null, null, null, null, null, null, null);
+    }
+
+    /**
+     * Send a request in background, so many requests are on the wire at the same time. Blocks while
+     * {@link #getMaxInFlightRequests()} requests are already pending.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> request) throws InterruptedIOException {
+        try {
+            inFlightRequests.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a pending request");
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return request.call();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                } finally {
+                    inFlightRequests.release();
+                }
+            }, executor);
+        } catch (RuntimeException e) {
+            inFlightRequests.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        httpClient.close();
+    }
+
+    private static <T> T orDefault(T value, T defaultValue) {
+        return value != null ? value : defaultValue;
+    }
+
+    private static void sleep(long delayMs) {
+        try {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Retry on network errors, only if the request was not fully sent, waiting longer after each attempt.
+     *
+     * Refused connections and timeouts are retried, as they are what a restarting or overloaded server
+     * looks like ; an unknown host or a TLS failure will not get better by waiting.
+     */
+    private static class BackoffRetryHandler extends DefaultHttpRequestRetryHandler {
+
+        private final long backoffMs;
+
+        BackoffRetryHandler(int maxRetries, long backoffMs) {
+            super(maxRetries, false, Arrays.asList(UnknownHostException.class, SSLException.class));
+            this.backoffMs = backoffMs;
+        }
+
+        @Override
+        public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+            if (Thread.currentThread().isInterrupted() || !super.retryRequest(exception, executionCount, context)) {
+                return false;
+            }
+            long delayMs = backoffMs << (executionCount - 1);
+            log.warn("Request failed ({}), retrying in {} ms", exception.getMessage(), delayMs);
+            sleep(delayMs);
+            return !Thread.currentThread().isInterrupted();
+        }
+    }
+
+    /**
+     * Retry when the server is unavailable (502, 503, 504) with an exponential backoff, or when its
+     * ingestion queue is full (429) after the delay it asked for
+     */
+    private static class BackoffServiceUnavailableRetryStrategy implements ServiceUnavailableRetryStrategy {
+
+        private final int maxRetries;
+
+        private final long backoffMs;
+
+        // getRetryInterval() is called right after retryRequest(), by the same thread
+        private final ThreadLocal<Long> retryInterval = new ThreadLocal<>();
+
+        BackoffServiceUnavailableRetryStrategy(int maxRetries, long backoffMs) {
+            this.maxRetries = maxRetries;
+            this.backoffMs = backoffMs;
+        }
+
+        @Override
+        public boolean retryRequest(HttpResponse response, int executionCount, HttpContext context) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == SC_TOO_MANY_REQUESTS && executionCount < MAX_ATTEMPTS_WHEN_BUSY) {
+                retryInterval.set(TimeUnit.SECONDS.toMillis(getRetryAfterSeconds(response.getFirstHeader(HttpHeaders.RETRY_AFTER))));
+                return true;
+            }
+            if (statusCode >= 502 && statusCode <= 504 && executionCount <= maxRetries) {
+                retryInterval.set(backoffMs << (executionCount - 1));
+                log.warn("Server unavailable ({}), retrying in {} ms", response.getStatusLine(), retryInterval.get());
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public long getRetryInterval() {
+            Long interval = retryInterval.get();
+            retryInterval.remove();
+            return interval != null ? interval : backoffMs;
+        }
+
+        private static long getRetryAfterSeconds(Header retryAfter) {
+            if (retryAfter != null) {
+                try {
+                    return Long.parseLong(retryAfter.getValue().trim());
+                } catch (NumberFormatException e) {
+                    // http date format is not used by the server
+                }
+            }
+            return DEFAULT_RETRY_AFTER_SECONDS;
+        }
+    }
+}
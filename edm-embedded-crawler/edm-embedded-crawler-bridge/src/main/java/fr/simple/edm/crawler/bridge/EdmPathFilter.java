@@ -0,0 +1,266 @@
+package fr.simple.edm.crawler.bridge;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Singular;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Decide which files a crawler sends, from their path first, then from their size and date, so nothing is read
+ * from rejected files. Rules are compiled once, build one filter per crawl.
+ *
+ * <ul>
+ * <li>a path matching one of the exclude regexes or globs is rejected, this applies to directories too, so they
+ * are not explored</li>
+ * <li>when include regexes or globs are given, a file has to match one of them</li>
+ * <li>extensions are compared without case, an empty allowed list allows every extension</li>
+ * <li>globs without '/' are matched against the file name, the others against the whole path</li>
+ * </ul>
+ *
+ * The number of files rejected by each rule is kept, see {@link #getHits()}.
+ */
+@Slf4j
+public class EdmPathFilter {
+
+    // the historical limit of the crawlers
+    public static final long DEFAULT_MAX_SIZE = 100L * 1024 * 1024;
+
+    public enum Rule {
+        ACCEPTED, EXCLUDE_REGEX, EXCLUDE_GLOB, INCLUDE, DENIED_EXTENSION, ALLOWED_EXTENSION, MIN_SIZE, MAX_SIZE,
+        MODIFIED_AFTER, MODIFIED_BEFORE
+    }
+
+    private final List<Pattern> includeRegexes;
+
+    private final List<Pattern> excludeRegexes;
+
+    private final List<PathMatcher> includeNameGlobs = new ArrayList<>();
+
+    private final List<PathMatcher> includePathGlobs = new ArrayList<>();
+
+    private final List<PathMatcher> excludeNameGlobs = new ArrayList<>();
+
+    private final List<PathMatcher> excludePathGlobs = new ArrayList<>();
+
+    private final Set<String> allowedExtensions;
+
+    private final Set<String> deniedExtensions;
+
+    private final long minSize;
+
+    @Getter
+    private final long maxSize;
+
+    private final long modifiedAfter;
+
+    private final long modifiedBefore;
+
+    private final Map<Rule, AtomicLong> hits = new EnumMap<>(Rule.class);
+
+    /**
+     * Blank regexes and globs are ignored
+     *
+     * @param minSize        In bytes, 0 by default
+     * @param maxSize        In bytes, {@link #DEFAULT_MAX_SIZE} by default
+     * @param modifiedAfter  Files modified before are rejected, may be null
+     * @param modifiedBefore Files modified after are rejected, may be null
+     */
+    @Builder
+    private EdmPathFilter(@Singular List<String> includeRegexes, @Singular List<String> excludeRegexes,
+            @Singular List<String> includeGlobs, @Singular List<String> excludeGlobs,
+            @Singular Set<String> allowedExtensions, @Singular Set<String> deniedExtensions, Long minSize,
+            Long maxSize, Date modifiedAfter, Date modifiedBefore) {
+        this.includeRegexes = compile(includeRegexes);
+        this.excludeRegexes = compile(excludeRegexes);
+        compileGlobs(includeGlobs, includeNameGlobs, includePathGlobs);
+        compileGlobs(excludeGlobs, excludeNameGlobs, excludePathGlobs);
+        this.allowedExtensions = toLowerCase(allowedExtensions);
+        this.deniedExtensions = toLowerCase(deniedExtensions);
+        this.minSize = minSize != null ? minSize : 0;
+        this.maxSize = maxSize != null ? maxSize : DEFAULT_MAX_SIZE;
+        this.modifiedAfter = modifiedAfter != null ? modifiedAfter.getTime() : Long.MIN_VALUE;
+        this.modifiedBefore = modifiedBefore != null ? modifiedBefore.getTime() : Long.MAX_VALUE;
+        for (Rule rule : Rule.values()) {
+            hits.put(rule, new AtomicLong());
+        }
+    }
+
+    /**
+     * Only the historical exclusion regex, may be empty
+     */
+    public static EdmPathFilter ofExclusionRegex(String exclusionRegex) {
+        return EdmPathFilter.builder().excludeRegex(exclusionRegex).build();
+    }
+
+    /**
+     * @return false if the directory should not be explored
+     */
+    public boolean acceptsDirectory(String path) {
+        Rule rejection = getExclusion(path);
+        if (rejection != null) {
+            return reject(path, rejection);
+        }
+        return true;
+    }
+
+    /**
+     * Rules which only need the path of the file : exclusions, inclusions and extensions
+     */
+    public boolean acceptsPath(String path) {
+        Rule rejection = getExclusion(path);
+        if (rejection == null && !isIncluded(path)) {
+            rejection = Rule.INCLUDE;
+        }
+        if (rejection == null) {
+            String extension = getExtension(path);
+            if (deniedExtensions.contains(extension)) {
+                rejection = Rule.DENIED_EXTENSION;
+            } else if (!allowedExtensions.isEmpty() && !allowedExtensions.contains(extension)) {
+                rejection = Rule.ALLOWED_EXTENSION;
+            }
+        }
+        if (rejection != null) {
+            return reject(path, rejection);
+        }
+        return true;
+    }
+
+    /**
+     * Rules on the attributes of the file, to call once {@link #acceptsPath(String)} accepted it
+     *
+     * @param size         In bytes, negative if unknown
+     * @param lastModified In milliseconds, 0 or negative if unknown
+     */
+    public boolean acceptsAttributes(String path, long size, long lastModified) {
+        Rule rejection = null;
+        if (size >= 0 && size < minSize) {
+            rejection = Rule.MIN_SIZE;
+        } else if (size > maxSize) {
+            rejection = Rule.MAX_SIZE;
+        } else if (lastModified > 0 && lastModified < modifiedAfter) {
+            rejection = Rule.MODIFIED_AFTER;
+        } else if (lastModified > 0 && lastModified > modifiedBefore) {
+            rejection = Rule.MODIFIED_BEFORE;
+        }
+        if (rejection != null) {
+            return reject(path, rejection);
+        }
+        hits.get(Rule.ACCEPTED).incrementAndGet();
+        return true;
+    }
+
+    public boolean accepts(String path, long size, long lastModified) {
+        return acceptsPath(path) && acceptsAttributes(path, size, lastModified);
+    }
+
+    /**
+     * @return The number of accepted files, and of paths rejected by each rule
+     */
+    public Map<Rule, Long> getHits() {
+        Map<Rule, Long> result = new LinkedHashMap<>();
+        hits.forEach((rule, count) -> result.put(rule, count.get()));
+        return result;
+    }
+
+    private Rule getExclusion(String path) {
+        for (Pattern regex : excludeRegexes) {
+            if (regex.matcher(path).find()) {
+                return Rule.EXCLUDE_REGEX;
+            }
+        }
+        if (!excludeNameGlobs.isEmpty() || !excludePathGlobs.isEmpty()) {
+            Path asPath = Paths.get(path);
+            if (matches(excludeNameGlobs, asPath.getFileName()) || matches(excludePathGlobs, asPath)) {
+                return Rule.EXCLUDE_GLOB;
+            }
+        }
+        return null;
+    }
+
+    private boolean isIncluded(String path) {
+        if (includeRegexes.isEmpty() && includeNameGlobs.isEmpty() && includePathGlobs.isEmpty()) {
+            return true;
+        }
+        for (Pattern regex : includeRegexes) {
+            if (regex.matcher(path).find()) {
+                return true;
+            }
+        }
+        if (!includeNameGlobs.isEmpty() || !includePathGlobs.isEmpty()) {
+            Path asPath = Paths.get(path);
+            return matches(includeNameGlobs, asPath.getFileName()) || matches(includePathGlobs, asPath);
+        }
+        return false;
+    }
+
+    private boolean reject(String path, Rule rule) {
+        hits.get(rule).incrementAndGet();
+        log.debug("'{}' rejected by rule {}", path, rule);
+        return false;
+    }
+
+    private static boolean matches(List<PathMatcher> matchers, Path path) {
+        if (path == null) {
+            return false;
+        }
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getExtension(String path) {
+        int lastSlash = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        int lastDot = path.lastIndexOf('.');
+        return lastDot > lastSlash ? path.substring(lastDot + 1).toLowerCase(Locale.ROOT) : "";
+    }
+
+    private static List<Pattern> compile(Collection<String> regexes) {
+        List<Pattern> patterns = new ArrayList<>();
+        for (String regex : regexes) {
+            if (regex != null && !regex.isEmpty()) {
+                patterns.add(Pattern.compile(regex));
+            }
+        }
+        return patterns;
+    }
+
+    private static void compileGlobs(Collection<String> globs, List<PathMatcher> nameGlobs, List<PathMatcher> pathGlobs) {
+        for (String glob : globs) {
+            if (glob == null || glob.trim().isEmpty()) {
+                continue;
+            }
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob.trim());
+            (glob.contains("/") ? pathGlobs : nameGlobs).add(matcher);
+        }
+    }
+
+    private static Set<String> toLowerCase(Collection<String> extensions) {
+        Set<String> result = new HashSet<>();
+        for (String extension : extensions) {
+            if (extension != null && !extension.trim().isEmpty()) {
+                result.add(extension.trim().toLowerCase(Locale.ROOT).replaceFirst("^\\.", ""));
+            }
+        }
+        return result;
+    }
+}
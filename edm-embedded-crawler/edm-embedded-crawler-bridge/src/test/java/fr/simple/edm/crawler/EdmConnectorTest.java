@@ -0,0 +1,154 @@
+package fr.simple.edm.crawler;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.HttpServerErrorException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import fr.simple.edm.crawler.bridge.EdmConnector;
+import fr.simple.edm.crawler.bridge.EdmHttpTransport;
+
+public class EdmConnectorTest {
+
+    private HttpServer server;
+
+    private String baseUrl;
+
+    private EdmHttpTransport transport;
+
+    private EdmConnector connector;
+
+    // path of the requests received
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    // status of the next answers, 200 once they are all sent
+    private final List<Integer> statuses = new CopyOnWriteArrayList<>();
+
+    private volatile long responseDelayMs = 0;
+
+    // answered after the delay, all paths when null
+    private volatile String slowPath;
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::serve);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        transport = EdmHttpTransport.builder().maxRetries(0).build();
+        connector = new EdmConnector(transport);
+    }
+
+    @After
+    public void stop() throws IOException {
+        transport.close();
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            requests.add(exchange.getRequestURI().getPath());
+            if (responseDelayMs > 0 && (slowPath == null || slowPath.equals(exchange.getRequestURI().getPath()))) {
+                Thread.sleep(responseDelayMs);
+            }
+            int status = statuses.isEmpty() ? 200 : statuses.remove(0);
+            // the name is the last path segment, its id is the name prefixed by "id_"
+            String path = exchange.getRequestURI().getPath();
+            byte[] body = ("{\"id\":\"id_" + path.substring(path.lastIndexOf('/') + 1) + "\"}").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Test
+    public void resolvedIdsShouldBeCached() {
+        assertThat(connector.getIdFromCategoryByCategoryName(baseUrl, "invoices")).isEqualTo("id_invoices");
+        assertThat(connector.getIdFromCategoryByCategoryName(baseUrl, "invoices")).isEqualTo("id_invoices");
+        assertThat(connector.getIdFromSourceBySourceName(baseUrl, "scans", "id_invoices")).isEqualTo("id_scans");
+        assertThat(connector.getIdFromSourceBySourceName(baseUrl, "scans", "id_invoices")).isEqualTo("id_scans");
+
+        assertThat(requests).containsExactly("/category/name/invoices", "/source/name/scans");
+    }
+
+    @Test
+    public void expiredIdsShouldBeResolvedAgain() {
+        connector.setIdCacheTtlMillis(0);
+
+        connector.getIdFromCategoryByCategoryName(baseUrl, "invoices");
+        connector.getIdFromCategoryByCategoryName(baseUrl, "invoices");
+
+        assertThat(requests).hasSize(2);
+    }
+
+    @Test
+    public void failedLookupShouldNotBeCached() {
+        statuses.add(500);
+
+        try {
+            connector.getIdFromCategoryByCategoryName(baseUrl, "invoices");
+            fail("the lookup should have failed");
+        } catch (HttpServerErrorException e) {
+            assertThat(e.getStatusCode().value()).isEqualTo(500);
+        }
+
+        assertThat(connector.getIdFromCategoryByCategoryName(baseUrl, "invoices")).isEqualTo("id_invoices");
+        assertThat(requests).hasSize(2);
+    }
+
+    @Test
+    public void concurrentLookupsShouldShareOneRequest() throws Exception {
+        responseDelayMs = 200;
+        List<CompletableFuture<String>> ids = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            ids.add(CompletableFuture.supplyAsync(() -> connector.getIdFromCategoryByCategoryName(baseUrl, "invoices")));
+        }
+        for (CompletableFuture<String> id : ids) {
+            assertThat(id.get(10, TimeUnit.SECONDS)).isEqualTo("id_invoices");
+        }
+
+        assertThat(requests).hasSize(1);
+    }
+
+    @Test
+    public void slowLookupShouldNotBlockTheOtherNames() throws Exception {
+        responseDelayMs = 2000;
+        slowPath = "/category/name/invoices";
+        CompletableFuture<String> slow = CompletableFuture.supplyAsync(() -> connector.getIdFromCategoryByCategoryName(baseUrl, "invoices"));
+        Thread.sleep(100);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(connector.getIdFromCategoryByCategoryName(baseUrl, "category" + i)).isEqualTo("id_category" + i);
+        }
+
+        // the other names were resolved while the server was still answering the slow lookup
+        assertThat(slow.isDone()).isFalse();
+        assertThat(slow.get(10, TimeUnit.SECONDS)).isEqualTo("id_invoices");
+    }
+}
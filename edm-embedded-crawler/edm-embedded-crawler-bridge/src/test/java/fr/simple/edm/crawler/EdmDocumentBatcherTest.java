@@ -0,0 +1,205 @@
+package fr.simple.edm.crawler;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import fr.simple.edm.crawler.bridge.EdmConnector;
+import fr.simple.edm.crawler.bridge.EdmDocumentBatcher;
+import fr.simple.edm.crawler.bridge.EdmHttpTransport;
+import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmDocumentIndexingResult;
+
+public class EdmDocumentBatcherTest {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+
+    private String baseUrl;
+
+    private EdmHttpTransport transport;
+
+    private EdmConnector connector;
+
+    // documents received, by batch
+    private final List<List<EdmDocumentFile>> batches = new CopyOnWriteArrayList<>();
+
+    // node paths the server refuses to index
+    private final Set<String> refused = new CopyOnWriteArraySet<>();
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/crawl/documents", this::serve);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        transport = EdmHttpTransport.builder().maxRetries(0).build();
+        connector = new EdmConnector(transport);
+    }
+
+    @After
+    public void stop() throws IOException {
+        transport.close();
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            List<EdmDocumentFile> docs = objectMapper.readValue(exchange.getRequestBody(), new TypeReference<List<EdmDocumentFile>>() {});
+            batches.add(docs);
+
+            List<EdmDocumentIndexingResult> results = new ArrayList<>();
+            for (EdmDocumentFile doc : docs) {
+                boolean success = !refused.contains(doc.getNodePath());
+                results.add(new EdmDocumentIndexingResult(success ? "id_" + doc.getName() : null, doc.getNodePath(), success, success ? null : "refused"));
+            }
+            byte[] body = objectMapper.writeValueAsBytes(results);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private EdmDocumentFile document(String name) {
+        EdmDocumentFile doc = new EdmDocumentFile();
+        doc.setName(name);
+        doc.setNodePath("/documents/" + name);
+        return doc;
+    }
+
+    private File file(String name, String content) throws IOException {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static List<String> temporaryFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list((dir, name) -> name.startsWith("edm-batch-"));
+        return names == null ? new ArrayList<>() : Arrays.asList(names);
+    }
+
+    @Test
+    public void fullBatchShouldBeSentWithTheFileContents() throws Exception {
+        try (EdmDocumentBatcher batcher = connector.newDocumentBatcher(baseUrl, 2, Long.MAX_VALUE, 0)) {
+            batcher.add(document("a"), file("a.txt", "content of a"));
+            assertThat(batches).isEmpty();
+
+            batcher.add(document("b"), file("b.txt", "content of b"));
+
+            assertThat(batches).hasSize(1);
+            List<EdmDocumentFile> batch = batches.get(0);
+            assertThat(batch).hasSize(2);
+            assertThat(batch.get(0).getNodePath()).isEqualTo("/documents/a");
+            assertThat(new String(batch.get(0).getBinaryFileContent(), StandardCharsets.UTF_8)).isEqualTo("content of a");
+            assertThat(new String(batch.get(1).getBinaryFileContent(), StandardCharsets.UTF_8)).isEqualTo("content of b");
+        }
+    }
+
+    @Test
+    public void contentInMemoryShouldBeSentAndDocumentWithoutContentAccepted() throws Exception {
+        EdmDocumentFile withContent = document("a");
+        withContent.setBinaryFileContent("content of a".getBytes(StandardCharsets.UTF_8));
+
+        try (EdmDocumentBatcher batcher = connector.newDocumentBatcher(baseUrl, 10, Long.MAX_VALUE, 0)) {
+            batcher.add(withContent);
+            batcher.add(document("b"));
+
+            // the content is not kept in memory while the document is buffered
+            assertThat(withContent.getBinaryFileContent()).isNull();
+        }
+
+        assertThat(batches).hasSize(1);
+        assertThat(new String(batches.get(0).get(0).getBinaryFileContent(), StandardCharsets.UTF_8)).isEqualTo("content of a");
+        assertThat(batches.get(0).get(1).getBinaryFileContent()).isNull();
+    }
+
+    @Test
+    public void batchShouldBeSentAfterTheFlushIntervalByADaemonThread() throws Exception {
+        try (EdmDocumentBatcher batcher = connector.newDocumentBatcher(baseUrl, 10, Long.MAX_VALUE, 100)) {
+            batcher.add(document("a"), file("a.txt", "content of a"));
+
+            for (int i = 0; i < 100 && batches.isEmpty(); i++) {
+                Thread.sleep(50);
+            }
+            assertThat(batches).hasSize(1);
+
+            Thread flushThread = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("edm-batch-flush"))
+                .findFirst().get();
+            assertThat(flushThread.isDaemon()).isTrue();
+        }
+    }
+
+    @Test
+    public void refusedDocumentShouldBeRetriedOnceThenReported() throws Exception {
+        refused.add("/documents/b");
+        List<String> temporaryFilesBefore = temporaryFiles();
+
+        EdmDocumentBatcher batcher = connector.newDocumentBatcher(baseUrl, 2, Long.MAX_VALUE, 0);
+        batcher.add(document("a"), file("a.txt", "content of a"));
+        batcher.add(document("b"), file("b.txt", "content of b"));
+        batcher.close();
+
+        assertThat(batches).hasSize(2);
+        assertThat(batches.get(1)).hasSize(1);
+        assertThat(batches.get(1).get(0).getNodePath()).isEqualTo("/documents/b");
+        assertThat(new String(batches.get(1).get(0).getBinaryFileContent(), StandardCharsets.UTF_8)).isEqualTo("content of b");
+        assertThat(batcher.getFailures()).hasSize(1);
+        assertThat(batcher.getFailures().get(0).getNodePath()).isEqualTo("/documents/b");
+        // contents are deleted once the documents are indexed or failed for good
+        assertThat(temporaryFiles()).isEqualTo(temporaryFilesBefore);
+    }
+
+    @Test
+    public void unreachableServerShouldFailTheDocuments() throws Exception {
+        server.stop(0);
+
+        EdmDocumentBatcher batcher = connector.newDocumentBatcher(baseUrl, 10, Long.MAX_VALUE, 0);
+        batcher.add(document("a"), file("a.txt", "content of a"));
+        batcher.close();
+
+        assertThat(batcher.getFailures()).hasSize(1);
+        assertThat(batcher.getFailures().get(0).getNodePath()).isEqualTo("/documents/a");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedBatcherShouldRefuseDocuments() throws Exception {
+        EdmDocumentBatcher batcher = connector.newDocumentBatcher(baseUrl, 10, Long.MAX_VALUE, 0);
+        batcher.close();
+
+        batcher.add(document("a"), file("a.txt", "content of a"));
+    }
+}
@@ -0,0 +1,182 @@
+package fr.simple.edm.crawler;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import fr.simple.edm.crawler.bridge.EdmHttpTransport;
+
+public class EdmHttpTransportTest {
+
+    private HttpServer server;
+
+    private String baseUrl;
+
+    // status of the next answers, 200 once they are all sent
+    private final List<Integer> statuses = new CopyOnWriteArrayList<>();
+
+    private final List<Long> requestTimes = new CopyOnWriteArrayList<>();
+
+    private volatile long responseDelayMs = 0;
+
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+
+    private final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::serve);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        int concurrent = concurrentRequests.incrementAndGet();
+        maxConcurrentRequests.accumulateAndGet(concurrent, Math::max);
+        try {
+            requestTimes.add(System.currentTimeMillis());
+            if (responseDelayMs > 0) {
+                Thread.sleep(responseDelayMs);
+            }
+            int status = statuses.isEmpty() ? 200 : statuses.remove(0);
+            if (status == 429) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+            }
+            byte[] body = ("status " + status).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            concurrentRequests.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private int get(EdmHttpTransport transport) throws IOException {
+        HttpResponse response = transport.getHttpClient().execute(new HttpGet(baseUrl + "/"));
+        EntityUtils.consume(response.getEntity());
+        return response.getStatusLine().getStatusCode();
+    }
+
+    @Test
+    public void busyServerShouldBeCalledAgainAfterItsRetryAfter() throws Exception {
+        statuses.add(429);
+
+        try (EdmHttpTransport transport = EdmHttpTransport.builder().maxRetries(0).build()) {
+            assertThat(get(transport)).isEqualTo(200);
+        }
+
+        assertThat(requestTimes).hasSize(2);
+        // Retry-After is 1 second, some margin for the clock
+        assertThat(requestTimes.get(1) - requestTimes.get(0)).isGreaterThanOrEqualTo(950L);
+    }
+
+    @Test
+    public void unavailableServerShouldBeCalledAgainWithBackoff() throws Exception {
+        statuses.add(503);
+        statuses.add(502);
+
+        try (EdmHttpTransport transport = EdmHttpTransport.builder().maxRetries(3).retryBackoffMs(100L).build()) {
+            assertThat(get(transport)).isEqualTo(200);
+        }
+
+        assertThat(requestTimes).hasSize(3);
+        assertThat(requestTimes.get(1) - requestTimes.get(0)).isGreaterThanOrEqualTo(90L);
+        // doubled after each retry
+        assertThat(requestTimes.get(2) - requestTimes.get(1)).isGreaterThanOrEqualTo(190L);
+    }
+
+    @Test
+    public void retriesShouldStopAtTheLimit() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            statuses.add(503);
+        }
+
+        try (EdmHttpTransport transport = EdmHttpTransport.builder().maxRetries(2).retryBackoffMs(10L).build()) {
+            assertThat(get(transport)).isEqualTo(503);
+        }
+
+        // the first attempt and 2 retries
+        assertThat(requestTimes).hasSize(3);
+    }
+
+    @Test
+    public void clientErrorsShouldNotBeRetried() throws Exception {
+        statuses.add(400);
+
+        try (EdmHttpTransport transport = EdmHttpTransport.builder().maxRetries(3).retryBackoffMs(10L).build()) {
+            assertThat(get(transport)).isEqualTo(400);
+        }
+
+        assertThat(requestTimes).hasSize(1);
+    }
+
+    @Test
+    public void refusedConnectionShouldBeRetriedWithBackoff() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+            closedPort = socket.getLocalPort();
+        }
+
+        long start = System.currentTimeMillis();
+        try (EdmHttpTransport transport = EdmHttpTransport.builder().maxRetries(2).retryBackoffMs(100L).build()) {
+            transport.getHttpClient().execute(new HttpGet("http://127.0.0.1:" + closedPort + "/"));
+            fail("the connection should have been refused");
+        } catch (ConnectException e) {
+            // waited 100 ms then 200 ms before giving up
+            assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(290L);
+        }
+    }
+
+    @Test
+    public void inFlightRequestsShouldNotExceedTheLimit() throws Exception {
+        responseDelayMs = 100;
+        List<CompletableFuture<Integer>> responses = new ArrayList<>();
+
+        try (EdmHttpTransport transport = EdmHttpTransport.builder().maxInFlightRequests(2).maxConnectionsPerRoute(10).build()) {
+            for (int i = 0; i < 8; i++) {
+                responses.add(transport.submit(() -> get(transport)));
+            }
+            for (CompletableFuture<Integer> response : responses) {
+                assertThat(response.get(10, TimeUnit.SECONDS)).isEqualTo(200);
+            }
+        }
+
+        assertThat(requestTimes).hasSize(8);
+        assertThat(maxConcurrentRequests.get()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,94 @@
+package fr.simple.edm.crawler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import fr.simple.edm.crawler.bridge.EdmDocumentSink;
+import fr.simple.edm.domain.EdmDocumentFile;
+
+/**
+ * Keeps the node paths of the documents sent by a crawler, shared by the tests of every crawler. The id of a
+ * source is its name prefixed by "id_".
+ */
+public class RecordingSink implements EdmDocumentSink {
+
+    public final List<String> savedNodePaths = new CopyOnWriteArrayList<>();
+
+    public final List<String> savedSourceIds = new CopyOnWriteArrayList<>();
+
+    public final List<String> deletedNodePaths = new CopyOnWriteArrayList<>();
+
+    public final List<String> deletedSourceIds = new CopyOnWriteArrayList<>();
+
+    public final List<String> skippedNodePaths = new CopyOnWriteArrayList<>();
+
+    public final List<String> notifications = new CopyOnWriteArrayList<>();
+
+    // content of the documents given as a stream, by node path
+    public final Map<String, byte[]> streamedContents = new ConcurrentHashMap<>();
+
+    // sent asynchronously, then failed as if the server could not index them
+    public final List<String> failedNodePaths = new CopyOnWriteArrayList<>();
+
+    @Override
+    public String getIdFromCategoryByCategoryName(String categoryName) {
+        return "category_id";
+    }
+
+    @Override
+    public String getIdFromSourceBySourceName(String sourceName, String categoryId) {
+        return "id_" + sourceName;
+    }
+
+    @Override
+    public void notifyStartCrawling(String sourceName) {
+        notifications.add("start " + sourceName);
+    }
+
+    @Override
+    public void notifyEndOfCrawling(String sourceName) {
+        notifications.add("end " + sourceName);
+    }
+
+    @Override
+    public void saveEdmDocument(EdmDocumentFile doc, File file) {
+        savedNodePaths.add(doc.getNodePath());
+        savedSourceIds.add(doc.getSourceId());
+    }
+
+    @Override
+    public void saveEdmDocumentStream(EdmDocumentFile doc, InputStream content, long contentLength) throws IOException {
+        streamedContents.put(doc.getNodePath(), EdmDocumentSink.readContent(content, contentLength));
+        savedNodePaths.add(doc.getNodePath());
+        savedSourceIds.add(doc.getSourceId());
+    }
+
+    @Override
+    public CompletableFuture<Void> saveEdmDocumentAsync(EdmDocumentFile doc, File file) {
+        saveEdmDocument(doc, file);
+        CompletableFuture<Void> saved = new CompletableFuture<>();
+        if (failedNodePaths.contains(doc.getNodePath())) {
+            saved.completeExceptionally(new IOException("Server failed to index document " + doc.getNodePath()));
+        } else {
+            saved.complete(null);
+        }
+        return saved;
+    }
+
+    @Override
+    public void deleteEdmDocuments(String sourceId, List<String> nodePaths) {
+        deletedNodePaths.addAll(nodePaths);
+        deletedSourceIds.add(sourceId);
+    }
+
+    @Override
+    public void onFileSkipped(String nodePath) {
+        skippedNodePaths.add(nodePath);
+    }
+}
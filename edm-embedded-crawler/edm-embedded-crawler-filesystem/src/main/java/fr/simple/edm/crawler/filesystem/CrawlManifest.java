@@ -0,0 +1,166 @@
+package fr.simple.edm.crawler.filesystem;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Remember what was sent to the server during the previous crawl of a source,
+ * so the next crawl only has to send new or modified files, and the list of
+ * the deleted ones.
+ *
+ * The manifest is stored as a text file, one line per document :
+ * size, last modified time, content hash (may be empty) and node path,
+ * separated by tabulations.
+ */
+@Slf4j
+public class CrawlManifest {
+
+    private static final String SEPARATOR = "\t";
+
+    @Getter
+    @AllArgsConstructor
+    public static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String contentHash;
+    }
+
+    private final File manifestFile;
+
+    private final boolean checkContentHash;
+
+    // entries of the previous crawl
+    private final Map<String, Entry> previousEntries = new ConcurrentHashMap<>();
+
+    // entries of the current crawl
+    private final Map<String, Entry> currentEntries = new ConcurrentHashMap<>();
+
+    private CrawlManifest(File manifestFile, boolean checkContentHash) {
+        this.manifestFile = manifestFile;
+        this.checkContentHash = checkContentHash;
+    }
+
+    /**
+     * @param manifestFile     Where the manifest is persisted, it's fine if it does
+     *                         not exists yet (first crawl)
+     * @param checkContentHash When size or date changed, compare the content hash
+     *                         before considering the file as modified
+     */
+    public static CrawlManifest load(File manifestFile, boolean checkContentHash) throws IOException {
+        CrawlManifest manifest = new CrawlManifest(manifestFile, checkContentHash);
+        if (!manifestFile.exists()) {
+            log.info("No manifest found at '{}', every file will be sent", manifestFile);
+            return manifest;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, 4);
+                if (fields.length != 4) {
+                    log.warn("Ignoring malformed manifest line : {}", line);
+                    continue;
+                }
+                manifest.previousEntries.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+            }
+        }
+        log.info("Loaded manifest '{}' with {} entries", manifestFile, manifest.previousEntries.size());
+        return manifest;
+    }
+
+    /**
+     * Check if the file was already sent in the same state. An unchanged file is
+     * kept in the manifest for the next crawl.
+     */
+    public boolean isUnchanged(String nodePath, File file, long size, long lastModified) throws IOException {
+        Entry previous = previousEntries.get(nodePath);
+        if (previous == null) {
+            return false;
+        }
+
+        if (previous.getSize() == size && previous.getLastModified() == lastModified) {
+            currentEntries.put(nodePath, previous);
+            return true;
+        }
+
+        if (checkContentHash && previous.getSize() == size && !previous.getContentHash().isEmpty()) {
+            String contentHash = hash(file);
+            if (contentHash.equals(previous.getContentHash())) {
+                log.debug("'{}' was touched but its content did not change", nodePath);
+                currentEntries.put(nodePath, new Entry(size, lastModified, contentHash));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record a file which was successfully sent to the server
+     */
+    public void record(String nodePath, File file, long size, long lastModified) throws IOException {
+        currentEntries.put(nodePath, new Entry(size, lastModified, checkContentHash ? hash(file) : ""));
+    }
+
+    /**
+     * Keep the state of the previous crawl for a file which failed to be sent
+     */
+    public void retainPrevious(String nodePath) {
+        Entry previous = previousEntries.get(nodePath);
+        if (previous != null) {
+            currentEntries.put(nodePath, previous);
+        }
+    }
+
+    /**
+     * @return The node paths which were sent previously but not seen during this crawl
+     */
+    public Set<String> getDeletedNodePaths() {
+        Set<String> deletedNodePaths = new HashSet<>(previousEntries.keySet());
+        deletedNodePaths.removeAll(currentEntries.keySet());
+        return deletedNodePaths;
+    }
+
+    /**
+     * Persist the current crawl, it will be the reference of the next one
+     */
+    public void save() throws IOException {
+        File parent = manifestFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        // write in a temporary file first, an interrupted crawl must not corrupt the manifest
+        File tmpFile = new File(manifestFile.getPath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : currentEntries.entrySet()) {
+                writer.write(entry.getValue().getSize() + SEPARATOR + entry.getValue().getLastModified() + SEPARATOR
+                        + entry.getValue().getContentHash() + SEPARATOR + entry.getKey());
+                writer.newLine();
+            }
+        }
+        Files.move(tmpFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        log.info("Saved manifest '{}' with {} entries", manifestFile, currentEntries.size());
+    }
+
+    private static String hash(File file) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+            return DigestUtils.sha256Hex(inputStream);
+        }
+    }
+}
@@ -3,14 +3,27 @@ package fr.simple.edm.crawler.filesystem;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.regex.Pattern;
 
@@ -22,6 +35,9 @@ import org.apache.poi.hwpf.usermodel.Section;
 import org.apache.poi.poifs.filesystem.POIFSFileSystem;
 
 import fr.simple.edm.crawler.bridge.EdmConnector;
+import fr.simple.edm.crawler.bridge.EdmDocumentSink;
+import fr.simple.edm.crawler.bridge.EdmHttpSink;
+import fr.simple.edm.crawler.bridge.EdmPathFilter;
 import fr.simple.edm.domain.EdmDocumentFile;
 import lombok.extern.slf4j.Slf4j;
 
@@ -41,18 +57,190 @@ public class FilesystemCrawler {
      *                              be ignored
      * @param exploreSubdirectories Means the crawler should explore directories
      *                              recursively
+     * @param parallelism           Number of workers listing directories and
+     *                              uploading files concurrently, 1 means the
+     *                              historical single threaded crawl
      * @throws IOException
      */
+    public static void importFilesInDir(String filePath, final String edmServerHttpAddress, final String sourceName,
+            final String categoryName, final String exclusionRegex, final boolean exploreSubdirectories,
+            final int parallelism) throws IOException {
+        importFilesInDir(filePath, new EdmHttpSink(edmConnector, edmServerHttpAddress), sourceName, categoryName,
+                exclusionRegex, exploreSubdirectories, parallelism);
+    }
+
+    /**
+     * Same as
+     * {@link #importFilesInDir(String, String, String, String, String, boolean, int)},
+     * documents are sent to the given sink instead of an EDM server
+     */
+    public static void importFilesInDir(String filePath, final EdmDocumentSink sink, final String sourceName,
+            final String categoryName, final String exclusionRegex, final boolean exploreSubdirectories,
+            final int parallelism) throws IOException {
+        importFilesInDir(filePath, sink, sourceName, categoryName, EdmPathFilter.ofExclusionRegex(exclusionRegex),
+                exploreSubdirectories, parallelism);
+    }
+
+    /**
+     * Same as
+     * {@link #importFilesInDir(String, EdmDocumentSink, String, String, String, boolean, int)},
+     * files are selected by the given filter instead of an exclusion regex
+     */
+    public static void importFilesInDir(String filePath, final EdmDocumentSink sink, final String sourceName,
+            final String categoryName, final EdmPathFilter filter, final boolean exploreSubdirectories,
+            final int parallelism) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism : " + parallelism);
+        }
+
+        // create parents
+        String categoryId = sink.getIdFromCategoryByCategoryName(categoryName);
+        String sourceId = sink.getIdFromSourceBySourceName(sourceName, categoryId);
+        sink.notifyStartCrawling(sourceName);
+        crawl(filePath, sink, sourceId, categoryId, filter, exploreSubdirectories,
+                parallelism, null);
+        if (sink.isCancelled()) {
+            // documents which were not seen yet would be considered as unused
+            log.info("Crawl of '{}' cancelled", filePath);
+            return;
+        }
+        sink.notifyEndOfCrawling(sourceName);
+    }
+
+    /**
+     * Incremental version of
+     * {@link #importFilesInDir(String, String, String, String, String, boolean, int)}
+     * : only new or modified files since the previous crawl are sent, and
+     * documents of deleted files are removed from the server.
+     *
+     * @param manifestFile     The file where the state of the crawled files is kept
+     *                         between two crawls, one per source
+     * @param checkContentHash Compare content hash of files which size or date
+     *                         changed before sending them again
+     * @throws IOException
+     */
+    public static void importModifiedFilesInDir(String filePath, final String edmServerHttpAddress,
+            final String sourceName, final String categoryName, final String exclusionRegex,
+            final boolean exploreSubdirectories, final int parallelism, final File manifestFile,
+            final boolean checkContentHash) throws IOException {
+        importModifiedFilesInDir(filePath, new EdmHttpSink(edmConnector, edmServerHttpAddress), sourceName,
+                categoryName, exclusionRegex, exploreSubdirectories, parallelism, manifestFile, checkContentHash);
+    }
+
+    /**
+     * Same as
+     * {@link #importModifiedFilesInDir(String, String, String, String, String, boolean, int, File, boolean)},
+     * documents are sent to the given sink instead of an EDM server
+     */
+    public static void importModifiedFilesInDir(String filePath, final EdmDocumentSink sink,
+            final String sourceName, final String categoryName, final String exclusionRegex,
+            final boolean exploreSubdirectories, final int parallelism, final File manifestFile,
+            final boolean checkContentHash) throws IOException {
+        importModifiedFilesInDir(filePath, sink, sourceName, categoryName,
+                EdmPathFilter.ofExclusionRegex(exclusionRegex), exploreSubdirectories, parallelism, manifestFile,
+                checkContentHash);
+    }
+
+    /**
+     * Same as
+     * {@link #importModifiedFilesInDir(String, EdmDocumentSink, String, String, String, boolean, int, File, boolean)},
+     * files are selected by the given filter instead of an exclusion regex. Documents of files rejected by the
+     * filter are removed from the server, as deleted files.
+     */
+    public static void importModifiedFilesInDir(String filePath, final EdmDocumentSink sink,
+            final String sourceName, final String categoryName, final EdmPathFilter filter,
+            final boolean exploreSubdirectories, final int parallelism, final File manifestFile,
+            final boolean checkContentHash) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism : " + parallelism);
+        }
+
+        CrawlManifest manifest = CrawlManifest.load(manifestFile, checkContentHash);
+
+        // create parents
+        String categoryId = sink.getIdFromCategoryByCategoryName(categoryName);
+        String sourceId = sink.getIdFromSourceBySourceName(sourceName, categoryId);
+
+        // no start/stop notification : unchanged documents are not sent, so they
+        // must not be considered as unused at the end of the crawl
+        crawl(filePath, sink, sourceId, categoryId, filter, exploreSubdirectories,
+                parallelism, manifest);
+        if (sink.isCancelled()) {
+            // files which were not seen yet would be considered as deleted
+            log.info("Crawl of '{}' cancelled, manifest is not updated", filePath);
+            return;
+        }
+
+        List<String> deletedNodePaths = new ArrayList<>(manifest.getDeletedNodePaths());
+        if (!deletedNodePaths.isEmpty()) {
+            log.info("{} document(s) were deleted since last crawl of '{}'", deletedNodePaths.size(), filePath);
+            sink.deleteEdmDocuments(sourceId, deletedNodePaths);
+        }
+        manifest.save();
+    }
+
+    /**
+     * Continuous version of
+     * {@link #importFilesInDir(String, EdmDocumentSink, String, String, String, boolean, int)}
+     * : files created, modified or deleted under the directory are sent as soon
+     * as they are stable, until the sink is cancelled. Existing files are not
+     * sent.
+     *
+     * @param debounceMs Quiet delay after the last change of a file before it is
+     *                   sent
+     * @throws IOException
+     */
+    public static void watchFilesInDir(String filePath, final EdmDocumentSink sink, final String sourceName,
+            final String categoryName, final String exclusionRegex, final long debounceMs) throws IOException {
+        watchFilesInDir(filePath, sink, sourceName, categoryName, EdmPathFilter.ofExclusionRegex(exclusionRegex),
+                debounceMs);
+    }
+
+    /**
+     * Same as
+     * {@link #watchFilesInDir(String, EdmDocumentSink, String, String, String, long)},
+     * files are selected by the given filter instead of an exclusion regex
+     */
+    public static void watchFilesInDir(String filePath, final EdmDocumentSink sink, final String sourceName,
+            final String categoryName, final EdmPathFilter filter, final long debounceMs) throws IOException {
+        try (FilesystemWatcher watcher = new FilesystemWatcher(filePath, sink, sourceName, categoryName,
+                filter, debounceMs)) {
+            watcher.run();
+        }
+    }
+
+    private static void crawl(String filePath, final EdmDocumentSink sink, final String sourceId,
+            final String categoryId, final EdmPathFilter filter, final boolean exploreSubdirectories,
+            final int parallelism, final CrawlManifest manifest) throws IOException {
+        // the crawl is a party of its own, so uploads can complete before the end of the listing
+        Phaser uploads = new Phaser(1);
+        Path root = Paths.get(filePath);
+        try {
+            if (parallelism == 1) {
+                _importFilesInDir(root, sink, sourceId, categoryId, filter, exploreSubdirectories, manifest, uploads);
+            } else {
+                log.info("Crawling '{}' with {} workers", filePath, parallelism);
+                BasicFileAttributes attributes = Files.readAttributes(root, BasicFileAttributes.class);
+                ForkJoinPool pool = new ForkJoinPool(parallelism);
+                try {
+                    pool.invoke(new ImportFilesInDirTask(root, attributes, sink, sourceId, categoryId,
+                            filter, exploreSubdirectories, true, manifest, uploads, Collections.emptyList()));
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        } finally {
+            // wait for pending uploads
+            uploads.arriveAndAwaitAdvance();
+            log.info("Filter of '{}' : {}", filePath, filter.getHits());
+        }
+    }
+
     public static void importFilesInDir(String filePath, final String edmServerHttpAddress, final String sourceName,
             final String categoryName, final String exclusionRegex, final boolean exploreSubdirectories)
             throws IOException {
-        // create parents
-        String categoryId = edmConnector.getIdFromCategoryByCategoryName(edmServerHttpAddress, categoryName);
-        String sourceId = edmConnector.getIdFromSourceBySourceName(edmServerHttpAddress, sourceName, categoryId);
-        edmConnector.notifyStartCrawling(edmServerHttpAddress, sourceName);
-        _importFilesInDir(filePath, edmServerHttpAddress, sourceId, categoryId, exclusionRegex, exploreSubdirectories,
-                true);
-        edmConnector.notifyEndOfCrawling(edmServerHttpAddress, sourceName);
+        importFilesInDir(filePath, edmServerHttpAddress, sourceName, categoryName, exclusionRegex,
+                exploreSubdirectories, 1);
     }
 
     public static void importFilesInDir(String filePath, final String edmServerHttpAddress, final String sourceName,
@@ -60,6 +248,9 @@ public class FilesystemCrawler {
         importFilesInDir(filePath, edmServerHttpAddress, sourceName, categoryName, exclusionRegex, true);
     }
 
+    /**
+     * Compiles the pattern on each call, crawls use {@link EdmPathFilter}
+     */
     public static boolean isExcluded(String filePath, String exclusionPattern) {
         boolean toExclude = !exclusionPattern.isEmpty() && Pattern.compile(exclusionPattern).matcher(filePath).find();
         log.debug("Check if '{}' match with '{}' : {}", filePath, exclusionPattern, toExclude);
@@ -192,88 +383,252 @@ public class FilesystemCrawler {
     }
 
 
-    private static void _importFilesInDir(String filePath, final String edmServerHttpAddress, final String sourceId,
-            final String categoryId, final String exclusionRegex, final boolean exploreSubdirectories,
-            final boolean isRoot) {
+    /**
+     * Attributes of each entry are read once, excluded directories are not
+     * explored
+     */
+    private static void _importFilesInDir(Path root, final EdmDocumentSink sink, final String sourceId,
+            final String categoryId, final EdmPathFilter filter, final boolean exploreSubdirectories,
+            final CrawlManifest manifest, final Phaser uploads) throws IOException {
+        // without sub directories, only the entries of the root are visited
+        int maxDepth = exploreSubdirectories ? Integer.MAX_VALUE : 1;
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), maxDepth, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                if (sink.isCancelled()) {
+                    return FileVisitResult.TERMINATE;
+                }
+                log.info("Embedded crawler looks for : " + dir);
+                if (!filter.acceptsDirectory(dir.toString())) {
+                    log.info("Directory excluded by filter");
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
 
-        log.info("Embedded crawler looks for : " + filePath);
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (sink.isCancelled()) {
+                    return FileVisitResult.TERMINATE;
+                }
+                // directories deeper than maxDepth are visited as files
+                if (!attributes.isRegularFile()) {
+                    log.debug("I won't explore '{}'", file);
+                    return FileVisitResult.CONTINUE;
+                }
+                log.info("Embedded crawler looks for : " + file);
+                if (!filter.accepts(file.toString(), attributes.size(), attributes.lastModifiedTime().toMillis())) {
+                    log.info("File excluded by filter");
+                    return FileVisitResult.CONTINUE;
+                }
+                importFile(file, attributes, sink, sourceId, categoryId, manifest, uploads);
+                return FileVisitResult.CONTINUE;
+            }
 
-        // exclusion pattern
-        if (isExcluded(filePath, exclusionRegex)) {
-            log.info("File excluded because it matches with exclusion regex");
-            return;
-        }
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                log.warn("Failed to read '{}'", file, e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
 
-        File file = new File(filePath);
+    private static void importFile(Path path, BasicFileAttributes attributes, final EdmDocumentSink sink,
+            final String sourceId, final String categoryId, final CrawlManifest manifest, final Phaser uploads) {
+        File file = path.toFile();
+        String filePath = path.toString();
+        String nodePath = filePath.replaceAll("\\\\", "/");
+        long fileLength = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        sink.onFileFound(nodePath);
 
-        // recursive crawling
-        if (file != null && file.isDirectory()) {
-            log.debug("... is a directory !");
-            if (isRoot || exploreSubdirectories) {
-                for (File subFile : file.listFiles()) {
-                    _importFilesInDir(filePath + "/" + subFile.getName(), edmServerHttpAddress, sourceId, categoryId,
-                            exclusionRegex, exploreSubdirectories, false);
+        if (manifest != null) {
+            try {
+                if (manifest.isUnchanged(nodePath, file, fileLength, lastModified)) {
+                    log.debug("Skipping unchanged file ({})", filePath);
+                    sink.onFileSkipped(nodePath);
+                    return;
                 }
-            } else {
-                log.debug("I won't explore this directory");
+            } catch (IOException e) {
+                log.warn("Failed to compare '{}' with manifest, will send it", filePath, e);
             }
-
-            // release memory
-            file = null;
         }
 
-        // add files
-        if (file != null && file.isFile()) {
-            log.debug("... is a file !");
-            String fName = FilenameUtils.removeExtension(file.getName());
-            String sourceName = sourceId;
- 
-            String mySourceId = edmConnector.getIdFromSourceBySourceName(edmServerHttpAddress, sourceName, categoryId);
-            // index
-            log.debug("The source ID is {}", mySourceId);
-            double bytes = file.length();
-            double kilobytes = bytes / 1024;
-            double megabytes = kilobytes / 1024;
+        EdmDocumentFile document = createDocument(file, nodePath, lastModified, sourceId, categoryId);
 
-            if (megabytes > 100) {
-                log.warn("Skipping too big file ({})", filePath);
-            } else {
-                Date fileDate = new Date(file.lastModified()); 
-                int idx = fName.indexOf("_Bordereaux Analytiques.pdf");
-                if(idx > 0){
-                    String year = fName.substring(idx-4, idx);
-                    Calendar cal2 = new GregorianCalendar(Integer.parseInt(year) , Calendar.JULY, 15);
-                    log.warn("Got year" + year + " from file{}", fName);
-                    int days = rand(0, 30);
-                    cal2.add(Calendar.DAY_OF_MONTH, days);
-                    fileDate = cal2.getTime();
-                }
-                // construct DTO
-                EdmDocumentFile document = new EdmDocumentFile();
-                document.setFileDate(fileDate);
-                String nodePath = filePath.replaceAll("\\\\", "/");
-                document.setNodePath(nodePath);
-                document.setSourceId(mySourceId);
-                document.setCategoryId(categoryId);
-                document.setName(fName);
-                document.setFileExtension(FilenameUtils.getExtension(filePath).toLowerCase());
-
-                // save DTO
+        // save DTO, in background so the next files are read while this one is uploaded
+        uploads.register();
+        try {
+            document.setFileContentType(Files.probeContentType(file.toPath()));
+            sink.saveEdmDocumentAsync(document, file).whenComplete((result, e) -> {
                 try {
-                    document.setFileContentType(Files.probeContentType(file.toPath()));
-                    edmConnector.saveEdmDocument(edmServerHttpAddress, document, file);
-                } catch (IOException e) {
-                    log.error("failed to save edm document '{}'", filePath, e);
+                    if (e != null) {
+                        onSaveFailure(filePath, nodePath, manifest, e instanceof CompletionException ? e.getCause() : e);
+                    } else if (manifest != null) {
+                        manifest.record(nodePath, file, fileLength, lastModified);
+                    }
+                } catch (IOException recordException) {
+                    onSaveFailure(filePath, nodePath, manifest, recordException);
+                } finally {
+                    uploads.arriveAndDeregister();
                 }
+            });
+        } catch (IOException e) {
+            onSaveFailure(filePath, nodePath, manifest, e);
+            uploads.arriveAndDeregister();
+        }
+    }
+
+    /**
+     * Document of a file, without content
+     */
+    static EdmDocumentFile createDocument(File file, String nodePath, long lastModified, String sourceId,
+            String categoryId) {
+        String fName = FilenameUtils.removeExtension(file.getName());
+        Date fileDate = new Date(lastModified);
+        int idx = fName.indexOf("_Bordereaux Analytiques.pdf");
+        if(idx > 0){
+            String year = fName.substring(idx-4, idx);
+            Calendar cal2 = new GregorianCalendar(Integer.parseInt(year) , Calendar.JULY, 15);
+            log.warn("Got year" + year + " from file{}", fName);
+            int days = rand(0, 30);
+            cal2.add(Calendar.DAY_OF_MONTH, days);
+            fileDate = cal2.getTime();
+        }
+        // construct DTO
+        EdmDocumentFile document = new EdmDocumentFile();
+        document.setFileDate(fileDate);
+        document.setNodePath(nodePath);
+        document.setSourceId(sourceId);
+        document.setCategoryId(categoryId);
+        document.setName(fName);
+        document.setFileExtension(FilenameUtils.getExtension(file.getName()).toLowerCase());
+        return document;
+    }
+
+    private static void onSaveFailure(String filePath, String nodePath, CrawlManifest manifest, Throwable e) {
+        log.error("failed to save edm document '{}'", filePath, e);
+        if (manifest != null) {
+            // the server still has the previous version, it will be sent again next time
+            manifest.retainPrevious(nodePath);
+        }
+    }
+
+    /**
+     * Fork/join version of {@link #_importFilesInDir}. Each directory is a task
+     * which forks one task per sub directory and one per file, so idle workers
+     * steal pending listings and uploads from busy ones. The attributes of an
+     * entry are read once, by the task of its parent directory.
+     *
+     * Like the sequential crawl, symbolic links are followed, and a directory
+     * which is one of its own parents (a link to a parent directory) is not
+     * explored again.
+     */
+    private static class ImportFilesInDirTask extends RecursiveAction {
+
+        private final Path path;
+        private final BasicFileAttributes attributes;
+        private final EdmDocumentSink sink;
+        private final String sourceId;
+        private final String categoryId;
+        private final EdmPathFilter filter;
+        private final boolean exploreSubdirectories;
+        private final boolean isRoot;
+        private final CrawlManifest manifest;
+        private final Phaser uploads;
+        // keys of the parent directories, from the root
+        private final List<Object> parentKeys;
+
+        ImportFilesInDirTask(Path path, BasicFileAttributes attributes, EdmDocumentSink sink, String sourceId,
+                String categoryId, EdmPathFilter filter, boolean exploreSubdirectories, boolean isRoot,
+                CrawlManifest manifest, Phaser uploads, List<Object> parentKeys) {
+            this.path = path;
+            this.attributes = attributes;
+            this.sink = sink;
+            this.sourceId = sourceId;
+            this.categoryId = categoryId;
+            this.filter = filter;
+            this.exploreSubdirectories = exploreSubdirectories;
+            this.isRoot = isRoot;
+            this.manifest = manifest;
+            this.uploads = uploads;
+            this.parentKeys = parentKeys;
+        }
+
+        @Override
+        protected void compute() {
+            if (sink.isCancelled()) {
+                return;
             }
 
-            // release memory
-            file = null;
+            log.info("Embedded crawler looks for : " + path);
+
+            if (attributes.isRegularFile()) {
+                log.debug("... is a file !");
+                if (!filter.accepts(path.toString(), attributes.size(), attributes.lastModifiedTime().toMillis())) {
+                    log.info("File excluded by filter");
+                    return;
+                }
+                importFile(path, attributes, sink, sourceId, categoryId, manifest, uploads);
+                return;
+            }
+
+            if (!attributes.isDirectory()) {
+                log.debug("... is nothing !");
+                return;
+            }
+
+            log.debug("... is a directory !");
+            // checked before exploring directories
+            if (!filter.acceptsDirectory(path.toString())) {
+                log.info("Directory excluded by filter");
+                return;
+            }
+            if (!isRoot && !exploreSubdirectories) {
+                log.debug("I won't explore this directory");
+                return;
+            }
+            Object key = directoryKey(path, attributes);
+            if (parentKeys.contains(key)) {
+                log.warn("Failed to read '{}' : file system loop, it is one of its parent directories", path);
+                return;
+            }
+            List<Object> childParentKeys = new ArrayList<>(parentKeys);
+            childParentKeys.add(key);
+
+            List<ImportFilesInDirTask> subTasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes entryAttributes;
+                    try {
+                        entryAttributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        log.warn("Failed to read '{}'", entry, e);
+                        continue;
+                    }
+                    subTasks.add(new ImportFilesInDirTask(entry, entryAttributes, sink, sourceId, categoryId,
+                            filter, exploreSubdirectories, false, manifest, uploads, childParentKeys));
+                }
+            } catch (IOException e) {
+                log.warn("Failed to list directory content ({})", path, e);
+                return;
+            }
+            invokeAll(subTasks);
         }
 
-        // other type
-        if (file != null) {
-            log.debug("... is nothing !");
+        /**
+         * Same directory whatever the links it was reached by, the real path is used when the file system has
+         * no file keys
+         */
+        private static Object directoryKey(Path dir, BasicFileAttributes attributes) {
+            if (attributes.fileKey() != null) {
+                return attributes.fileKey();
+            }
+            try {
+                return dir.toRealPath();
+            } catch (IOException e) {
+                return dir.toAbsolutePath().normalize();
+            }
         }
     }
 }
@@ -0,0 +1,327 @@
+package fr.simple.edm.crawler.filesystem;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import fr.simple.edm.crawler.bridge.EdmDocumentSink;
+import fr.simple.edm.crawler.bridge.EdmPathFilter;
+import fr.simple.edm.domain.EdmDocumentFile;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Continuous indexing of a directory : every sub directory is registered in a
+ * {@link WatchService}, and created, modified or deleted files are sent to the
+ * sink as soon as they are stable.
+ *
+ * Events of a file are coalesced until no event was received for this file
+ * during the debounce delay, so a file being copied is sent once. When events
+ * are lost (overflow), the affected directory is scanned again : only the
+ * files whose size or date differ from the ones known are sent.
+ *
+ * Existing files are not sent when the watch starts, run a crawl first.
+ */
+@Slf4j
+public class FilesystemWatcher implements Closeable {
+
+    private final Path root;
+
+    private final EdmDocumentSink sink;
+
+    private final String categoryId;
+
+    private final String sourceId;
+
+    private final EdmPathFilter filter;
+
+    private final long debounceMs;
+
+    private final WatchService watchService;
+
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+
+    // state of the files known by the server, by node path (without content hash)
+    private final Map<String, CrawlManifest.Entry> knownFiles = new HashMap<>();
+
+    // pending operations, by node path, the latest event wins
+    private final Map<String, PendingOperation> pendingOperations = new LinkedHashMap<>();
+
+    private volatile boolean closed = false;
+
+    private static class PendingOperation {
+        private boolean delete;
+        private long lastEventTime;
+    }
+
+    /**
+     * @param debounceMs Quiet delay after the last event of a file before it is sent
+     */
+    public FilesystemWatcher(String rootPath, EdmDocumentSink sink, String sourceName, String categoryName,
+            EdmPathFilter filter, long debounceMs) throws IOException {
+        this.root = Paths.get(rootPath);
+        this.sink = sink;
+        this.filter = filter;
+        this.debounceMs = debounceMs;
+
+        this.categoryId = sink.getIdFromCategoryByCategoryName(categoryName);
+        this.sourceId = sink.getIdFromSourceBySourceName(sourceName, categoryId);
+
+        this.watchService = root.getFileSystem().newWatchService();
+        register(root, false);
+        log.info("Watching {} directories under '{}'", watchedDirectories.size(), root);
+    }
+
+    /**
+     * Send changes until the watcher is closed or the sink is cancelled
+     */
+    public void run() {
+        long pollMs = Math.max(50, debounceMs / 4);
+        while (!closed && !sink.isCancelled()) {
+            try {
+                WatchKey key = watchService.poll(pollMs, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handleEvents(key);
+                    key = watchService.poll();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+            flush(false);
+        }
+        flush(true);
+        log.info("Stopped watching '{}'", root);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        watchService.close();
+    }
+
+    private void handleEvents(WatchKey key) {
+        Path directory = watchedDirectories.get(key);
+        if (directory == null) {
+            key.cancel();
+            return;
+        }
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                log.warn("Events lost under '{}', scanning it again", directory);
+                rescan(directory);
+                continue;
+            }
+
+            Path child = directory.resolve((Path) event.context());
+            if (event.kind() == ENTRY_DELETE) {
+                // only known files, which were accepted, are deleted
+                onDeleted(child);
+            } else if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
+                if (event.kind() == ENTRY_CREATE && filter.acceptsDirectory(child.toString())) {
+                    // files may have been created before the registration of the directory
+                    rescan(child);
+                }
+            } else if (filter.acceptsPath(child.toString())) {
+                // size and date are checked once the file is stable
+                schedule(getNodePath(child), false);
+            }
+        }
+
+        if (!key.reset()) {
+            // the directory was deleted
+            watchedDirectories.remove(key);
+        }
+    }
+
+    private void onDeleted(Path path) {
+        String nodePath = getNodePath(path);
+        if (knownFiles.containsKey(nodePath)) {
+            schedule(nodePath, true);
+            return;
+        }
+        // a directory, its files are deleted too
+        String prefix = nodePath + "/";
+        for (String knownFile : knownFiles.keySet()) {
+            if (knownFile.startsWith(prefix)) {
+                schedule(knownFile, true);
+            }
+        }
+    }
+
+    /**
+     * Send the files of the directory which are new or changed, and delete the
+     * known ones which disappeared
+     */
+    private void rescan(Path directory) {
+        Set<String> existingFiles;
+        try {
+            existingFiles = register(directory, true);
+        } catch (IOException e) {
+            log.error("Failed to scan '{}'", directory, e);
+            return;
+        }
+
+        String prefix = getNodePath(directory) + "/";
+        for (String knownFile : knownFiles.keySet()) {
+            if (knownFile.startsWith(prefix) && !existingFiles.contains(knownFile)) {
+                schedule(knownFile, true);
+            }
+        }
+    }
+
+    /**
+     * Watch the directory and its sub directories
+     *
+     * @param scheduleFiles Send the files found which are not known in the same
+     *                      state, instead of recording them as known
+     * @return The node path of the files found
+     */
+    private Set<String> register(Path directory, boolean scheduleFiles) throws IOException {
+        Set<String> files = new HashSet<>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(root) && !filter.acceptsDirectory(dir.toString())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                try {
+                    // the same key is returned if the directory is already registered
+                    watchedDirectories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                } catch (IOException e) {
+                    // for example when the max number of inotify watches is reached
+                    log.error("Failed to watch '{}', its changes will be ignored", dir, e);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()
+                        && filter.accepts(file.toString(), attrs.size(), attrs.lastModifiedTime().toMillis())) {
+                    String nodePath = getNodePath(file);
+                    files.add(nodePath);
+                    CrawlManifest.Entry known = knownFiles.get(nodePath);
+                    if (!scheduleFiles) {
+                        knownFiles.put(nodePath, new CrawlManifest.Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), ""));
+                    } else if (known == null || known.getSize() != attrs.size()
+                            || known.getLastModified() != attrs.lastModifiedTime().toMillis()) {
+                        schedule(nodePath, false);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                log.warn("Failed to visit '{}'", file, e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    private void schedule(String nodePath, boolean delete) {
+        PendingOperation operation = pendingOperations.remove(nodePath);
+        if (operation == null) {
+            operation = new PendingOperation();
+        }
+        operation.delete = delete;
+        operation.lastEventTime = System.currentTimeMillis();
+        // moved at the end, so operations stay sorted by last event time
+        pendingOperations.put(nodePath, operation);
+    }
+
+    /**
+     * Send the operations which did not change during the debounce delay
+     *
+     * @param all Send every pending operation
+     */
+    private void flush(boolean all) {
+        long now = System.currentTimeMillis();
+        List<String> deletedNodePaths = new ArrayList<>();
+
+        Iterator<Map.Entry<String, PendingOperation>> iterator = pendingOperations.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, PendingOperation> entry = iterator.next();
+            if (!all && now - entry.getValue().lastEventTime < debounceMs) {
+                break;
+            }
+            iterator.remove();
+
+            String nodePath = entry.getKey();
+            if (entry.getValue().delete) {
+                if (knownFiles.remove(nodePath) != null) {
+                    deletedNodePaths.add(nodePath);
+                }
+            } else {
+                index(nodePath);
+            }
+        }
+
+        if (!deletedNodePaths.isEmpty()) {
+            log.info("{} document(s) deleted under '{}'", deletedNodePaths.size(), root);
+            sink.deleteEdmDocuments(sourceId, deletedNodePaths);
+        }
+    }
+
+    private void index(String nodePath) {
+        File file = new File(nodePath);
+        if (!file.isFile()) {
+            return;
+        }
+        long size = file.length();
+        long lastModified = file.lastModified();
+        if (!filter.acceptsAttributes(nodePath, size, lastModified)) {
+            if (knownFiles.remove(nodePath) != null) {
+                // the file does not match the filter anymore
+                sink.deleteEdmDocuments(sourceId, Collections.singletonList(nodePath));
+            }
+            return;
+        }
+        sink.onFileFound(nodePath);
+
+        EdmDocumentFile document = FilesystemCrawler.createDocument(file, nodePath, lastModified,
+                sourceId, categoryId);
+        try {
+            document.setFileContentType(Files.probeContentType(file.toPath()));
+            sink.saveEdmDocument(document, file);
+            knownFiles.put(nodePath, new CrawlManifest.Entry(size, lastModified, ""));
+            log.debug("Sent modified file '{}'", nodePath);
+        } catch (IOException e) {
+            log.error("failed to save edm document '{}'", nodePath, e);
+        }
+    }
+
+    private static String getNodePath(Path path) {
+        return path.toString().replaceAll("\\\\", "/");
+    }
+}
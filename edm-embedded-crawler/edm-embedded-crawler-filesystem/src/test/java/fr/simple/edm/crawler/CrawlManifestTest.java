@@ -0,0 +1,83 @@
+package fr.simple.edm.crawler;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.simple.edm.crawler.filesystem.CrawlManifest;
+
+public class CrawlManifestTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File writeFile(String name, String content) throws Exception {
+        File file = temporaryFolder.newFile(name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void fileShouldBeConsideredAsNewWithoutPreviousManifest() throws Exception {
+        final File manifestFile = new File(temporaryFolder.getRoot(), "source.manifest");
+        final File file = writeFile("doc.txt", "some content");
+
+        final CrawlManifest manifest = CrawlManifest.load(manifestFile, false);
+
+        assertThat(manifest.isUnchanged("/doc.txt", file, file.length(), file.lastModified())).isFalse();
+    }
+
+    @Test
+    public void recordedFileShouldBeUnchangedOnNextCrawl() throws Exception {
+        final File manifestFile = new File(temporaryFolder.getRoot(), "source.manifest");
+        final File file = writeFile("doc.txt", "some content");
+
+        final CrawlManifest firstCrawl = CrawlManifest.load(manifestFile, false);
+        firstCrawl.record("/doc.txt", file, file.length(), file.lastModified());
+        firstCrawl.save();
+
+        final CrawlManifest secondCrawl = CrawlManifest.load(manifestFile, false);
+
+        assertThat(secondCrawl.isUnchanged("/doc.txt", file, file.length(), file.lastModified())).isTrue();
+        assertThat(secondCrawl.isUnchanged("/doc.txt", file, file.length(), file.lastModified() + 1000)).isFalse();
+        assertThat(secondCrawl.getDeletedNodePaths()).isEmpty();
+    }
+
+    @Test
+    public void touchedFileShouldBeUnchangedWhenContentHashIsChecked() throws Exception {
+        final File manifestFile = new File(temporaryFolder.getRoot(), "source.manifest");
+        final File file = writeFile("doc.txt", "some content");
+
+        final CrawlManifest firstCrawl = CrawlManifest.load(manifestFile, true);
+        firstCrawl.record("/doc.txt", file, file.length(), file.lastModified());
+        firstCrawl.save();
+
+        final CrawlManifest secondCrawl = CrawlManifest.load(manifestFile, true);
+
+        assertThat(secondCrawl.isUnchanged("/doc.txt", file, file.length(), file.lastModified() + 1000)).isTrue();
+    }
+
+    @Test
+    public void notSeenFileShouldBeDeleted() throws Exception {
+        final File manifestFile = new File(temporaryFolder.getRoot(), "source.manifest");
+        final File keptFile = writeFile("kept.txt", "kept");
+        final File deletedFile = writeFile("deleted.txt", "deleted");
+
+        final CrawlManifest firstCrawl = CrawlManifest.load(manifestFile, false);
+        firstCrawl.record("/kept.txt", keptFile, keptFile.length(), keptFile.lastModified());
+        firstCrawl.record("/deleted.txt", deletedFile, deletedFile.length(), deletedFile.lastModified());
+        firstCrawl.save();
+
+        final CrawlManifest secondCrawl = CrawlManifest.load(manifestFile, false);
+        secondCrawl.isUnchanged("/kept.txt", keptFile, keptFile.length(), keptFile.lastModified());
+
+        assertThat(secondCrawl.getDeletedNodePaths()).containsOnly("/deleted.txt");
+    }
+
+}
@@ -0,0 +1,64 @@
+package fr.simple.edm.crawler;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import fr.simple.edm.crawler.bridge.EdmPathFilter;
+import fr.simple.edm.crawler.bridge.EdmPathFilter.Rule;
+
+public class EdmPathFilterTest {
+
+    @Test
+    public void emptyFilterShouldAcceptEverythingButTooBigFiles() throws Exception {
+        EdmPathFilter filter = EdmPathFilter.ofExclusionRegex("");
+
+        assertThat(filter.accepts("/data/project/.git/config", 10, 0)).isTrue();
+        assertThat(filter.accepts("/data/movie.avi", EdmPathFilter.DEFAULT_MAX_SIZE + 1, 0)).isFalse();
+        assertThat(filter.getHits().get(Rule.MAX_SIZE)).isEqualTo(1);
+    }
+
+    @Test
+    public void excludeGlobWithoutSlashShouldMatchFileName() throws Exception {
+        EdmPathFilter filter = EdmPathFilter.builder().excludeGlob("*.tmp").excludeGlob("**/.git").build();
+
+        assertThat(filter.acceptsPath("/data/project/draft.tmp")).isFalse();
+        assertThat(filter.acceptsPath("/data/project/draft.txt")).isTrue();
+        assertThat(filter.acceptsDirectory("/data/project/.git")).isFalse();
+        assertThat(filter.getHits().get(Rule.EXCLUDE_GLOB)).isEqualTo(2);
+    }
+
+    @Test
+    public void includeRulesShouldNotPreventExploringDirectories() throws Exception {
+        EdmPathFilter filter = EdmPathFilter.builder().includeGlob("*.pdf").build();
+
+        assertThat(filter.acceptsDirectory("/data/invoices")).isTrue();
+        assertThat(filter.acceptsPath("/data/invoices/2019.pdf")).isTrue();
+        assertThat(filter.acceptsPath("/data/invoices/2019.odt")).isFalse();
+        assertThat(filter.getHits().get(Rule.INCLUDE)).isEqualTo(1);
+    }
+
+    @Test
+    public void extensionsShouldBeComparedWithoutCase() throws Exception {
+        EdmPathFilter filter = EdmPathFilter.builder().allowedExtension(".PDF").allowedExtension("doc").deniedExtension("exe").build();
+
+        assertThat(filter.acceptsPath("/data/report.pdf")).isTrue();
+        assertThat(filter.acceptsPath("/data/report.Doc")).isTrue();
+        assertThat(filter.acceptsPath("/data/setup.exe")).isFalse();
+        assertThat(filter.acceptsPath("/data/README")).isFalse();
+        assertThat(filter.getHits().get(Rule.DENIED_EXTENSION)).isEqualTo(1);
+        assertThat(filter.getHits().get(Rule.ALLOWED_EXTENSION)).isEqualTo(1);
+    }
+
+    @Test
+    public void unknownAttributesShouldNotRejectFiles() throws Exception {
+        EdmPathFilter filter = EdmPathFilter.builder().minSize(10L).modifiedAfter(new Date(1000)).build();
+
+        assertThat(filter.acceptsAttributes("/data/a.txt", -1, 0)).isTrue();
+        assertThat(filter.acceptsAttributes("/data/a.txt", 5, 2000)).isFalse();
+        assertThat(filter.acceptsAttributes("/data/a.txt", 50, 500)).isFalse();
+        assertThat(filter.getHits().get(Rule.ACCEPTED)).isEqualTo(1);
+    }
+}
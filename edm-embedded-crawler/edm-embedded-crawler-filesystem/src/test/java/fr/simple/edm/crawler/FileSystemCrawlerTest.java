@@ -2,12 +2,34 @@ package fr.simple.edm.crawler;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import fr.simple.edm.crawler.bridge.EdmPathFilter;
 import fr.simple.edm.crawler.filesystem.FilesystemCrawler;
 
 public class FileSystemCrawlerTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private String root;
+
+    @Before
+    public void setup() throws Exception {
+        temporaryFolder.newFolder(".git");
+        temporaryFolder.newFolder("sub");
+        for (String file : new String[] { "a.txt", ".git/config", "sub/b.txt" }) {
+            Files.write(new File(temporaryFolder.getRoot(), file).toPath(), file.getBytes());
+        }
+        root = temporaryFolder.getRoot().getPath().replaceAll("\\\\", "/");
+    }
+
     @Test
     public void emptyPatternShouldNotExcludeDoc() throws Exception {
         final String exclusionRegex = "";
@@ -47,4 +69,105 @@ public class FileSystemCrawlerTest {
         assertThat(filePath).isNotEmpty();
     }
 
+    @Test
+    public void excludedDirectoryShouldNotBeCrawled() throws Exception {
+        RecordingSink sink = new RecordingSink();
+
+        FilesystemCrawler.importFilesInDir(root, sink, "source", "category", "\\.git", true, 1);
+
+        assertThat(sink.savedNodePaths).containsOnly(root + "/a.txt", root + "/sub/b.txt");
+    }
+
+    @Test
+    public void excludedDirectoryShouldNotBeCrawledInParallel() throws Exception {
+        RecordingSink sink = new RecordingSink();
+
+        FilesystemCrawler.importFilesInDir(root, sink, "source", "category", "\\.git", true, 4);
+
+        assertThat(sink.savedNodePaths).containsOnly(root + "/a.txt", root + "/sub/b.txt");
+    }
+
+    @Test
+    public void subdirectoriesShouldNotBeCrawledWhenNotExplored() throws Exception {
+        RecordingSink sink = new RecordingSink();
+
+        FilesystemCrawler.importFilesInDir(root, sink, "source", "category", "", false, 1);
+
+        assertThat(sink.savedNodePaths).containsOnly(root + "/a.txt");
+    }
+
+    @Test
+    public void filesRejectedByFilterShouldNotBeCrawled() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        Files.write(new File(temporaryFolder.getRoot(), "sub/c.pdf").toPath(), "c".getBytes());
+        EdmPathFilter filter = EdmPathFilter.builder().excludeGlob("**/.git").excludeGlob("b.*").build();
+
+        FilesystemCrawler.importFilesInDir(root, sink, "source", "category", filter, true, 4);
+
+        assertThat(sink.savedNodePaths).containsOnly(root + "/a.txt", root + "/sub/c.pdf");
+        assertThat(filter.getHits().get(EdmPathFilter.Rule.EXCLUDE_GLOB)).isEqualTo(2);
+    }
+
+    @Test
+    public void linkToAParentDirectoryShouldNotBeCrawledAgain() throws Exception {
+        Files.createSymbolicLink(new File(temporaryFolder.getRoot(), "sub/loop").toPath(), temporaryFolder.getRoot().toPath());
+        RecordingSink sink = new RecordingSink();
+
+        FilesystemCrawler.importFilesInDir(root, sink, "source", "category", "\\.git", true, 1);
+
+        assertThat(sink.savedNodePaths).hasSize(2).containsOnly(root + "/a.txt", root + "/sub/b.txt");
+    }
+
+    @Test
+    public void linkToAParentDirectoryShouldNotBeCrawledAgainInParallel() throws Exception {
+        Files.createSymbolicLink(new File(temporaryFolder.getRoot(), "sub/loop").toPath(), temporaryFolder.getRoot().toPath());
+        RecordingSink sink = new RecordingSink();
+
+        FilesystemCrawler.importFilesInDir(root, sink, "source", "category", "\\.git", true, 4);
+
+        assertThat(sink.savedNodePaths).hasSize(2).containsOnly(root + "/a.txt", root + "/sub/b.txt");
+    }
+
+    @Test
+    public void linkedDirectoryShouldBeCrawledInParallel() throws Exception {
+        File shared = temporaryFolder.newFolder("shared");
+        Files.write(new File(shared, "c.txt").toPath(), "c".getBytes());
+        Files.createSymbolicLink(new File(temporaryFolder.getRoot(), "sub/link").toPath(), shared.toPath());
+        RecordingSink sink = new RecordingSink();
+
+        FilesystemCrawler.importFilesInDir(root, sink, "source", "category", "\\.git", true, 4);
+
+        // reached by its own path and by the link, as the sequential crawl does
+        assertThat(sink.savedNodePaths).containsOnly(root + "/a.txt", root + "/sub/b.txt", root + "/shared/c.txt",
+                root + "/sub/link/c.txt");
+    }
+
+    @Test
+    public void fileWhichFailedToBeIndexedShouldBeSentAgainByNextIncrementalCrawl() throws Exception {
+        File manifestFile = new File(temporaryFolder.getRoot(), ".git/source.manifest");
+        RecordingSink firstCrawl = new RecordingSink();
+        firstCrawl.failedNodePaths.add(root + "/a.txt");
+        FilesystemCrawler.importModifiedFilesInDir(root, firstCrawl, "source", "category", "\\.git", true, 1, manifestFile, false);
+
+        RecordingSink secondCrawl = new RecordingSink();
+        FilesystemCrawler.importModifiedFilesInDir(root, secondCrawl, "source", "category", "\\.git", true, 1, manifestFile, false);
+
+        assertThat(firstCrawl.savedNodePaths).containsOnly(root + "/a.txt", root + "/sub/b.txt");
+        assertThat(secondCrawl.savedNodePaths).containsOnly(root + "/a.txt");
+    }
+
+    @Test
+    public void documentsShouldBelongToTheCrawledSource() throws Exception {
+        File manifestFile = new File(temporaryFolder.getRoot(), ".git/source.manifest");
+        FilesystemCrawler.importModifiedFilesInDir(root, new RecordingSink(), "source", "category", "\\.git", true, 1, manifestFile, false);
+        Files.delete(new File(temporaryFolder.getRoot(), "a.txt").toPath());
+        Files.write(new File(temporaryFolder.getRoot(), "sub/b.txt").toPath(), "modified".getBytes());
+        RecordingSink sink = new RecordingSink();
+
+        FilesystemCrawler.importModifiedFilesInDir(root, sink, "source", "category", "\\.git", true, 1, manifestFile, false);
+
+        assertThat(sink.savedSourceIds).containsOnly("id_source");
+        assertThat(sink.deletedNodePaths).containsOnly(root + "/a.txt");
+        assertThat(sink.deletedSourceIds).containsOnly("id_source");
+    }
 }
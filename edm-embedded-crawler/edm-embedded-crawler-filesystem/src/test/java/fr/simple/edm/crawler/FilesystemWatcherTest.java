@@ -0,0 +1,134 @@
+package fr.simple.edm.crawler;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.simple.edm.crawler.bridge.EdmPathFilter;
+import fr.simple.edm.crawler.filesystem.FilesystemWatcher;
+
+public class FilesystemWatcherTest {
+
+    private static final long DEBOUNCE_MS = 300;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private RecordingSink sink;
+
+    private FilesystemWatcher watcher;
+
+    private Thread watcherThread;
+
+    @Before
+    public void setup() throws Exception {
+        temporaryFolder.newFile("existing.txt");
+        temporaryFolder.newFolder("sub");
+
+        sink = new RecordingSink();
+        watcher = new FilesystemWatcher(temporaryFolder.getRoot().getPath(), sink, "source",
+                "category", EdmPathFilter.ofExclusionRegex("\\.tmp$"), DEBOUNCE_MS);
+        watcherThread = new Thread(watcher::run);
+        watcherThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        watcher.close();
+        watcherThread.join(5000);
+    }
+
+    private static void waitFor(List<String> nodePaths, int size) throws InterruptedException {
+        for (int i = 0; i < 100 && nodePaths.size() < size; i++) {
+            Thread.sleep(100);
+        }
+    }
+
+    private String nodePath(String relativePath) {
+        return new File(temporaryFolder.getRoot(), relativePath).getPath().replaceAll("\\\\", "/");
+    }
+
+    @Test
+    public void createdFileShouldBeSentOnceStable() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "sub/new.txt");
+        for (int i = 0; i < 5; i++) {
+            Files.write(file.toPath(), ("version " + i).getBytes());
+        }
+
+        waitFor(sink.savedNodePaths, 1);
+        Thread.sleep(DEBOUNCE_MS * 2);
+
+        assertThat(sink.savedNodePaths).containsExactly(nodePath("sub/new.txt"));
+        assertThat(sink.savedSourceIds).containsExactly("id_source");
+    }
+
+    @Test
+    public void deletedFileShouldBeDeleted() throws Exception {
+        Files.delete(new File(temporaryFolder.getRoot(), "existing.txt").toPath());
+
+        waitFor(sink.deletedNodePaths, 1);
+
+        assertThat(sink.deletedNodePaths).containsExactly(nodePath("existing.txt"));
+        assertThat(sink.deletedSourceIds).containsExactly("id_source");
+        assertThat(sink.savedNodePaths).isEmpty();
+    }
+
+    @Test
+    public void filesOfCreatedDirectoryShouldBeSent() throws Exception {
+        File directory = new File(temporaryFolder.getRoot(), "sub/scans");
+        directory.mkdir();
+        Files.write(new File(directory, "scan.pdf").toPath(), "scan".getBytes());
+
+        waitFor(sink.savedNodePaths, 1);
+
+        assertThat(sink.savedNodePaths).containsExactly(nodePath("sub/scans/scan.pdf"));
+    }
+
+    @Test
+    public void lostEventsShouldOnlySendChangedFiles() throws Exception {
+        // given : a watcher which does not poll yet
+        Files.write(new File(temporaryFolder.getRoot(), "sub/known.txt").toPath(), "known".getBytes());
+        RecordingSink overflowSink = new RecordingSink();
+        try (FilesystemWatcher overflowWatcher = new FilesystemWatcher(temporaryFolder.getRoot().getPath(), overflowSink,
+                "source", "category", EdmPathFilter.ofExclusionRegex("\\.tmp$"), DEBOUNCE_MS)) {
+            // more events than a watch key keeps, the next ones are lost
+            Files.write(new File(temporaryFolder.getRoot(), "existing.txt").toPath(), "modified".getBytes());
+            for (int i = 0; i < 600; i++) {
+                Files.write(new File(temporaryFolder.getRoot(), "new" + i + ".txt").toPath(), "new".getBytes());
+            }
+
+            // when
+            Thread overflowThread = new Thread(overflowWatcher::run);
+            overflowThread.start();
+            waitFor(overflowSink.savedNodePaths, 601);
+            Thread.sleep(DEBOUNCE_MS * 2);
+            overflowWatcher.close();
+            overflowThread.join(5000);
+        }
+
+        // then
+        assertThat(overflowSink.savedNodePaths).hasSize(601);
+        assertThat(overflowSink.savedNodePaths).contains(nodePath("existing.txt"), nodePath("new0.txt"), nodePath("new599.txt"));
+        assertThat(overflowSink.savedNodePaths).doesNotContain(nodePath("sub/known.txt"));
+    }
+
+    @Test
+    public void excludedFileShouldBeIgnored() throws IOException, InterruptedException {
+        Files.write(new File(temporaryFolder.getRoot(), "upload.tmp").toPath(), "partial".getBytes());
+        Files.write(new File(temporaryFolder.getRoot(), "done.txt").toPath(), "done".getBytes());
+
+        waitFor(sink.savedNodePaths, 1);
+        Thread.sleep(DEBOUNCE_MS * 2);
+
+        assertThat(sink.savedNodePaths).containsExactly(nodePath("done.txt"));
+    }
+}
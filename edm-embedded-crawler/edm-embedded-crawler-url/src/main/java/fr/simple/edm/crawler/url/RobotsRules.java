@@ -0,0 +1,152 @@
+package fr.simple.edm.crawler.url;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The rules of a robots.txt file for a crawler : the group of its user agent if any, the {@code *} group otherwise.
+ *
+ * As most crawlers do, {@code Allow} and {@code Disallow} are path prefixes which may contain {@code *} wildcards and
+ * end with {@code $}, the longest matching rule wins, an {@code Allow} rule wins a tie. {@code Crawl-delay} is read
+ * in seconds.
+ */
+public class RobotsRules {
+
+    /**
+     * Rules of a site without robots.txt : everything is allowed
+     */
+    public static final RobotsRules ALLOW_ALL = new RobotsRules(new ArrayList<>(), 0);
+
+    @AllArgsConstructor
+    private static class Rule {
+        private final boolean allow;
+        private final int length;
+        private final Pattern pattern;
+    }
+
+    private final List<Rule> rules;
+
+    @Getter
+    private final long crawlDelayMillis;
+
+    private RobotsRules(List<Rule> rules, long crawlDelayMillis) {
+        this.rules = rules;
+        this.crawlDelayMillis = crawlDelayMillis;
+    }
+
+    /**
+     * @param content   The robots.txt file
+     * @param userAgent The name of the crawler, matched case insensitively against the User-agent lines
+     */
+    public static RobotsRules parse(String content, String userAgent) {
+        String agent = userAgent.toLowerCase(Locale.ROOT);
+
+        // the group of the crawler wins the * group
+        List<Rule> agentRules = new ArrayList<>();
+        List<Rule> defaultRules = new ArrayList<>();
+        long agentDelay = 0;
+        long defaultDelay = 0;
+        boolean agentGroupFound = false;
+
+        boolean inAgentGroup = false;
+        boolean inDefaultGroup = false;
+        boolean groupHasRules = false;
+        for (String rawLine : content.split("\r\n|\r|\n")) {
+            String line = rawLine.replaceFirst("#.*", "").trim();
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String field = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+
+            if (field.equals("user-agent")) {
+                if (groupHasRules) {
+                    // a new group starts
+                    inAgentGroup = false;
+                    inDefaultGroup = false;
+                    groupHasRules = false;
+                }
+                String groupAgent = value.toLowerCase(Locale.ROOT);
+                if (groupAgent.equals("*")) {
+                    inDefaultGroup = true;
+                } else if (!groupAgent.isEmpty() && agent.contains(groupAgent)) {
+                    inAgentGroup = true;
+                    agentGroupFound = true;
+                }
+                continue;
+            }
+
+            groupHasRules = true;
+            if (!inAgentGroup && !inDefaultGroup) {
+                continue;
+            }
+            if (field.equals("allow") || field.equals("disallow")) {
+                if (value.isEmpty()) {
+                    // "Disallow:" allows everything
+                    continue;
+                }
+                Rule rule = new Rule(field.equals("allow"), value.length(), toPattern(value));
+                if (inAgentGroup) {
+                    agentRules.add(rule);
+                }
+                if (inDefaultGroup) {
+                    defaultRules.add(rule);
+                }
+            } else if (field.equals("crawl-delay")) {
+                long delay = parseDelayMillis(value);
+                if (inAgentGroup) {
+                    agentDelay = delay;
+                }
+                if (inDefaultGroup) {
+                    defaultDelay = delay;
+                }
+            }
+        }
+        return agentGroupFound ? new RobotsRules(agentRules, agentDelay) : new RobotsRules(defaultRules, defaultDelay);
+    }
+
+    /**
+     * @param path The path of the url, with its query string
+     */
+    public boolean isAllowed(String path) {
+        Rule bestRule = null;
+        for (Rule rule : rules) {
+            if (rule.pattern.matcher(path).lookingAt()
+                && (bestRule == null || rule.length > bestRule.length || (rule.length == bestRule.length && rule.allow))) {
+                bestRule = rule;
+            }
+        }
+        return bestRule == null || bestRule.allow;
+    }
+
+    private static Pattern toPattern(String value) {
+        boolean anchored = value.endsWith("$");
+        String path = anchored ? value.substring(0, value.length() - 1) : value;
+        StringBuilder regex = new StringBuilder();
+        String[] parts = path.split("\\*", -1);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                regex.append(".*");
+            }
+            regex.append(Pattern.quote(parts[i]));
+        }
+        if (anchored) {
+            regex.append("$");
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static long parseDelayMillis(String value) {
+        try {
+            return (long) (Double.parseDouble(value) * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package fr.simple.edm.crawler.url;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Singular;
+
+/**
+ * How far a site crawl follows links, and how hard it hits the servers, see {@link UrlCrawler#crawlSite}
+ */
+@Getter
+public class SiteCrawlOptions {
+
+    private final int maxDepth;
+
+    private final Set<String> hosts;
+
+    private final boolean includeSubdomains;
+
+    private final long politenessDelayMs;
+
+    private final boolean respectRobots;
+
+    private final int maxConnections;
+
+    private final int maxInMemoryUrls;
+
+    private final long expectedUrls;
+
+    private final File spillDirectory;
+
+    private final long maxPageSize;
+
+    /**
+     * @param maxDepth          Links followed from a seed url, 3 by default. Documents linked from a page at this
+     *                          depth are not downloaded
+     * @param hosts             Hosts the crawl stays on, the hosts of the seed urls by default
+     * @param includeSubdomains Whether subdomains of these hosts are crawled too, false by default
+     * @param politenessDelayMs Min time between two requests to a host, 1000 by default. The Crawl-delay of the
+     *                          robots.txt of the host is used when it is longer
+     * @param respectRobots     Whether robots.txt files are read and respected, true by default
+     * @param maxConnections    Number of urls downloaded at the same time, 4 by default
+     * @param maxInMemoryUrls   Urls to visit kept in memory, the next ones are spilled to disk, 10000 by default
+     * @param expectedUrls      Number of urls of the site the visited set is sized for, 1000000 by default
+     * @param spillDirectory    Where urls to visit are spilled, the temporary directory by default
+     * @param maxPageSize       In bytes, links are looked for in the beginning of bigger pages, 5 MB by default
+     */
+    @Builder
+    private SiteCrawlOptions(Integer maxDepth, @Singular Set<String> hosts, Boolean includeSubdomains, Long politenessDelayMs,
+            Boolean respectRobots, Integer maxConnections, Integer maxInMemoryUrls, Long expectedUrls, File spillDirectory,
+            Long maxPageSize) {
+        this.maxDepth = maxDepth != null ? maxDepth : 3;
+        this.hosts = hosts.stream().map(host -> host.toLowerCase(Locale.ROOT)).collect(Collectors.toSet());
+        this.includeSubdomains = includeSubdomains != null && includeSubdomains;
+        this.politenessDelayMs = politenessDelayMs != null ? politenessDelayMs : 1000;
+        this.respectRobots = respectRobots == null || respectRobots;
+        this.maxConnections = maxConnections != null ? maxConnections : 4;
+        this.maxInMemoryUrls = maxInMemoryUrls != null ? maxInMemoryUrls : 10000;
+        this.expectedUrls = expectedUrls != null ? expectedUrls : 1000000;
+        this.spillDirectory = spillDirectory;
+        this.maxPageSize = maxPageSize != null ? maxPageSize : 5L * 1024 * 1024;
+        if (this.maxDepth < 0 || this.maxConnections < 1) {
+            throw new IllegalArgumentException("Invalid site crawl options : max depth " + this.maxDepth + ", max connections " + this.maxConnections);
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package fr.simple.edm.crawler.url;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import fr.simple.edm.crawler.bridge.EdmDocumentSink;
+import fr.simple.edm.crawler.bridge.EdmPathFilter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Crawl sites from seed urls : HTML pages are read for links, which are followed up to a max depth, other resources
+ * are documents sent to the sink. See {@link UrlCrawler#crawlSite}.
+ *
+ * Workers take the urls to visit from a {@link UrlFrontier}. Requests to a host are spaced by the politeness delay,
+ * whatever the worker sending them.
+ */
+@Slf4j
+class SiteCrawler {
+
+    // href, src and data attributes of the elements which link to another resource
+    private static final Pattern LINK = Pattern.compile(
+        "<(?:a|area|frame|iframe|embed|object)\\b[^>]*?\\s(?:href|src|data)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))",
+        Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern BASE = Pattern.compile(
+        "<base\\b[^>]*?\\shref\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))",
+        Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern CHARSET = Pattern.compile("charset=\"?([^\";\\s]+)", Pattern.CASE_INSENSITIVE);
+
+    private static final int ROBOTS_TIMEOUT_MS = 10000;
+
+    private final EdmDocumentSink sink;
+
+    private final String sourceId;
+
+    private final String categoryId;
+
+    private final EdmPathFilter filter;
+
+    private final UrlManifest manifest;
+
+    private final SiteCrawlOptions options;
+
+    private final Set<String> hosts = new LinkedHashSet<>();
+
+    private final Map<String, RobotsRules> robotsRules = new ConcurrentHashMap<>();
+
+    // by host, when the next request may be sent
+    private final Map<String, Long> nextRequestTimes = new HashMap<>();
+
+    private final Object lock = new Object();
+
+    // urls being visited, the crawl is over when there are none and the frontier is empty
+    private int visiting = 0;
+
+    private final AtomicLong pages = new AtomicLong();
+
+    private final AtomicLong documents = new AtomicLong();
+
+    private final AtomicLong disallowed = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    SiteCrawler(EdmDocumentSink sink, String sourceId, String categoryId, EdmPathFilter filter, UrlManifest manifest, SiteCrawlOptions options) {
+        this.sink = sink;
+        this.sourceId = sourceId;
+        this.categoryId = categoryId;
+        this.filter = filter;
+        this.manifest = manifest;
+        this.options = options;
+    }
+
+    /**
+     * @throws IOException If no url could be visited
+     */
+    void crawl(List<String> seeds) throws IOException {
+        List<String> normalizedSeeds = new ArrayList<>();
+        for (String seed : seeds) {
+            String normalizedSeed = normalize(seed);
+            if (normalizedSeed == null) {
+                throw new IllegalArgumentException("Invalid seed url : " + seed);
+            }
+            normalizedSeeds.add(normalizedSeed);
+        }
+        hosts.addAll(options.getHosts());
+        if (hosts.isEmpty()) {
+            normalizedSeeds.forEach(seed -> hosts.add(URI.create(seed).getHost()));
+        }
+        log.info("Crawling {} from {} seed url(s), up to depth {}", hosts, normalizedSeeds.size(), options.getMaxDepth());
+
+        try (UrlFrontier frontier = new UrlFrontier(options.getMaxInMemoryUrls(), options.getSpillDirectory(), options.getExpectedUrls())) {
+            for (String seed : normalizedSeeds) {
+                frontier.offer(seed, 0);
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(options.getMaxConnections());
+            try {
+                List<Future<?>> workers = new ArrayList<>();
+                for (int i = 0; i < options.getMaxConnections(); i++) {
+                    workers.add(executor.submit(() -> {
+                        work(frontier);
+                        return null;
+                    }));
+                }
+                for (Future<?> worker : workers) {
+                    worker.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while crawling " + hosts);
+            } catch (ExecutionException e) {
+                throw new IOException("Crawl of " + hosts + " failed", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        log.info("Crawled {} : {} page(s), {} document(s), {} url(s) disallowed by robots.txt, {} failure(s)", hosts, pages.get(), documents.get(),
+            disallowed.get(), failures.get());
+        if (failures.get() > 0 && pages.get() == 0 && documents.get() == 0) {
+            throw new IOException("Failed to crawl the " + failures.get() + " url(s) of " + hosts);
+        }
+    }
+
+    private void work(UrlFrontier frontier) throws IOException, InterruptedException {
+        while (true) {
+            UrlFrontier.Entry entry;
+            synchronized (lock) {
+                while ((entry = frontier.poll()) == null) {
+                    if (visiting == 0 || sink.isCancelled()) {
+                        lock.notifyAll();
+                        return;
+                    }
+                    // another worker may find links
+                    lock.wait(1000);
+                }
+                if (sink.isCancelled()) {
+                    lock.notifyAll();
+                    return;
+                }
+                visiting++;
+            }
+
+            try {
+                List<String> links = visit(entry);
+                synchronized (lock) {
+                    for (String link : links) {
+                        frontier.offer(link, entry.getDepth() + 1);
+                    }
+                }
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                log.error("Failed to crawl '{}'", entry.getUrl(), e);
+                if (manifest != null) {
+                    manifest.retainPrevious(entry.getUrl());
+                }
+            } finally {
+                synchronized (lock) {
+                    visiting--;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The links to follow, found on the page
+     */
+    private List<String> visit(UrlFrontier.Entry entry) throws IOException, InterruptedException {
+        String url = entry.getUrl();
+        if (!filter.acceptsDirectory(url)) {
+            return new ArrayList<>();
+        }
+
+        URL parsedUrl = new URL(url);
+        RobotsRules rules = options.isRespectRobots() ? getRobotsRules(parsedUrl) : RobotsRules.ALLOW_ALL;
+        String pathAndQuery = parsedUrl.getFile().isEmpty() ? "/" : parsedUrl.getFile();
+        if (!rules.isAllowed(pathAndQuery)) {
+            log.debug("'{}' is disallowed by robots.txt", url);
+            disallowed.incrementAndGet();
+            return new ArrayList<>();
+        }
+        waitForHost(parsedUrl.getHost().toLowerCase(Locale.ROOT), Math.max(options.getPolitenessDelayMs(), rules.getCrawlDelayMillis()));
+
+        log.info("Embedded crawler looks for : {} (depth {})", url, entry.getDepth());
+        URLConnection connection = UrlCrawler.openConnection(url, sink, manifest);
+        if (connection == null) {
+            // not modified document
+            documents.incrementAndGet();
+            return new ArrayList<>();
+        }
+
+        if (isHtml(connection.getContentType())) {
+            pages.incrementAndGet();
+            String page = readPage(connection);
+            if (entry.getDepth() >= options.getMaxDepth()) {
+                return new ArrayList<>();
+            }
+            // relative links are resolved against the page after redirects
+            return extractLinks(connection.getURL(), page);
+        }
+
+        if (!filter.acceptsPath(url)) {
+            log.debug("File excluded by filter : {}", url);
+            IOUtils.closeQuietly(connection.getInputStream());
+            return new ArrayList<>();
+        }
+        documents.incrementAndGet();
+        UrlCrawler.importDocument(url, connection, sink, sourceId, categoryId, filter, manifest);
+        return new ArrayList<>();
+    }
+
+    /**
+     * Reserve the next request slot of the host, then wait for it
+     */
+    private void waitForHost(String host, long delayMs) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long slot;
+        synchronized (nextRequestTimes) {
+            slot = Math.max(now, nextRequestTimes.getOrDefault(host, 0L));
+            nextRequestTimes.put(host, slot + delayMs);
+        }
+        if (slot > now) {
+            Thread.sleep(slot - now);
+        }
+    }
+
+    private RobotsRules getRobotsRules(URL url) {
+        String hostKey = url.getProtocol() + "://" + url.getAuthority().toLowerCase(Locale.ROOT);
+        return robotsRules.computeIfAbsent(hostKey, key -> fetchRobotsRules(key + "/robots.txt"));
+    }
+
+    /**
+     * A missing robots.txt allows everything. So does an unreachable one, with a warning : an intranet server without
+     * robots.txt often answers it with an error page
+     */
+    private RobotsRules fetchRobotsRules(String robotsUrl) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(robotsUrl).openConnection();
+            connection.setConnectTimeout(ROBOTS_TIMEOUT_MS);
+            connection.setReadTimeout(ROBOTS_TIMEOUT_MS);
+            connection.setRequestProperty("User-Agent", UrlCrawler.USER_AGENT);
+            int status = connection.getResponseCode();
+            if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                IOUtils.closeQuietly(connection.getErrorStream());
+                if (status >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    log.warn("Server answered {} for '{}', crawling as if there was no robots.txt", status, robotsUrl);
+                }
+                return RobotsRules.ALLOW_ALL;
+            }
+            RobotsRules rules = RobotsRules.parse(readPage(connection), UrlCrawler.USER_AGENT);
+            log.info("Read '{}'{}", robotsUrl, rules.getCrawlDelayMillis() > 0 ? ", crawl delay " + rules.getCrawlDelayMillis() + " ms" : "");
+            return rules;
+        } catch (IOException e) {
+            log.warn("Failed to read '{}', crawling as if there was no robots.txt", robotsUrl, e);
+            return RobotsRules.ALLOW_ALL;
+        }
+    }
+
+    private String readPage(URLConnection connection) throws IOException {
+        Charset charset = StandardCharsets.UTF_8;
+        if (connection.getContentType() != null) {
+            Matcher matcher = CHARSET.matcher(connection.getContentType());
+            if (matcher.find() && Charset.isSupported(matcher.group(1))) {
+                charset = Charset.forName(matcher.group(1));
+            }
+        }
+        // the end of a big page is not read
+        try (InputStream inputStream = connection.getInputStream()) {
+            return IOUtils.toString(new BoundedInputStream(inputStream, options.getMaxPageSize()), charset);
+        }
+    }
+
+    private List<String> extractLinks(URL pageUrl, String page) {
+        URL baseUrl = pageUrl;
+        Matcher baseMatcher = BASE.matcher(page);
+        if (baseMatcher.find()) {
+            try {
+                baseUrl = new URL(pageUrl, unescape(attributeValue(baseMatcher)));
+            } catch (MalformedURLException e) {
+                log.debug("Ignoring invalid base of '{}'", pageUrl);
+            }
+        }
+
+        Set<String> links = new LinkedHashSet<>();
+        Matcher matcher = LINK.matcher(page);
+        while (matcher.find()) {
+            String href = unescape(attributeValue(matcher)).trim();
+            if (href.isEmpty() || href.startsWith("#")) {
+                continue;
+            }
+            try {
+                String link = normalize(new URL(baseUrl, href).toString());
+                if (link != null && isInScope(link)) {
+                    links.add(link);
+                }
+            } catch (MalformedURLException e) {
+                // javascript:, mailto:...
+                log.trace("Ignoring link '{}' of '{}'", href, pageUrl);
+            }
+        }
+        return new ArrayList<>(links);
+    }
+
+    private boolean isInScope(String url) {
+        String host = URI.create(url).getHost();
+        for (String scopeHost : hosts) {
+            if (host.equals(scopeHost) || (options.isIncludeSubdomains() && host.endsWith("." + scopeHost))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String attributeValue(Matcher matcher) {
+        for (int group = 1; group <= matcher.groupCount(); group++) {
+            if (matcher.group(group) != null) {
+                return matcher.group(group);
+            }
+        }
+        return "";
+    }
+
+    private static String unescape(String attribute) {
+        return attribute.replace("&amp;", "&").replace("&#38;", "&");
+    }
+
+    private static boolean isHtml(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/html") || type.startsWith("application/xhtml+xml");
+    }
+
+    /**
+     * The form of an url which is queued once : lower case scheme and host, no default port, no fragment
+     *
+     * @return Null if this is not an http(s) url
+     */
+    static String normalize(String url) {
+        try {
+            URI uri = new URI(url.trim().replace(" ", "%20")).normalize();
+            String scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase(Locale.ROOT);
+            if (!"http".equals(scheme) && !"https".equals(scheme) || uri.getHost() == null) {
+                return null;
+            }
+            int port = uri.getPort();
+            if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+                port = -1;
+            }
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            return new URI(scheme, null, uri.getHost().toLowerCase(Locale.ROOT), port, null, null, null)
+                + path + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+}
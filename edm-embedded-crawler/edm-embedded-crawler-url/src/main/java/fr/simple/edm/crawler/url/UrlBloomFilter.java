@@ -0,0 +1,65 @@
+package fr.simple.edm.crawler.url;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The urls already seen by a crawl, in a fixed amount of memory whatever the size of the site : about 29 bits per
+ * url for a false positive probability of one in a million. A false positive is an url considered as seen while it
+ * was not, it is not crawled.
+ */
+class UrlBloomFilter {
+
+    private final long[] bits;
+
+    private final long bitCount;
+
+    private final int hashCount;
+
+    /**
+     * @param expectedUrls              Number of urls the filter is sized for, above it false positives get more likely
+     * @param falsePositiveProbability  Probability for an url to be considered as seen while it was not
+     */
+    UrlBloomFilter(long expectedUrls, double falsePositiveProbability) {
+        if (expectedUrls < 1 || falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+            throw new IllegalArgumentException("Invalid bloom filter size : " + expectedUrls + " urls, " + falsePositiveProbability);
+        }
+        long optimalBits = (long) Math.ceil(-expectedUrls * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (optimalBits + 63) / 64)];
+        bitCount = bits.length * 64L;
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedUrls * Math.log(2)));
+    }
+
+    /**
+     * @return True if the url was not seen yet, it is now
+     */
+    boolean add(String url) {
+        ByteBuffer digest = ByteBuffer.wrap(md5(url));
+        long hash1 = digest.getLong();
+        long hash2 = digest.getLong();
+
+        boolean added = false;
+        for (int i = 0; i < hashCount; i++) {
+            // double hashing : the k positions are derived from two independent hashes
+            long position = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+            int word = (int) (position >>> 6);
+            long mask = 1L << position;
+            if ((bits[word] & mask) == 0) {
+                bits[word] |= mask;
+                added = true;
+            }
+        }
+        return added;
+    }
+
+    private static byte[] md5(String url) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(url.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
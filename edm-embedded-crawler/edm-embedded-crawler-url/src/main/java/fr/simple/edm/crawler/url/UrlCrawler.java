@@ -1,19 +1,38 @@
 package fr.simple.edm.crawler.url;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import fr.simple.edm.crawler.bridge.EdmConnector;
+import fr.simple.edm.crawler.bridge.EdmDocumentSink;
+import fr.simple.edm.crawler.bridge.EdmHttpSink;
+import fr.simple.edm.crawler.bridge.EdmPathFilter;
 import fr.simple.edm.domain.EdmDocumentFile;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 
@@ -29,6 +48,11 @@ public class UrlCrawler {
 
     private static final EdmConnector edmConnector = new EdmConnector();
 
+    /**
+     * Sent with each request, and matched against the groups of robots.txt files
+     */
+    public static final String USER_AGENT = "edm-crawler";
+
     /**
      * @param url                  The path of the directory to crawl
      *                             For example : https://raw.githubusercontent.com/xaviermichel/paperless-documents-search/master/edm-webapp/src/test/resources/documents/demo_1/demo_pdf.pdf
@@ -40,67 +64,371 @@ public class UrlCrawler {
      * @throws IOException
      */
     public static void importFilesAtUrl(String url, final String edmServerHttpAddress, final String sourceName, final String categoryName, final String exclusionRegex) throws IOException {
+        importFilesAtUrl(url, new EdmHttpSink(edmConnector, edmServerHttpAddress), sourceName, categoryName, exclusionRegex);
+    }
+
+    /**
+     * Same as {@link #importFilesAtUrl(String, String, String, String, String)}, documents are sent to the given sink
+     * instead of an EDM server
+     */
+    public static void importFilesAtUrl(String url, final EdmDocumentSink sink, final String sourceName, final String categoryName, final String exclusionRegex) throws IOException {
+        importFilesAtUrl(url, sink, sourceName, categoryName, EdmPathFilter.ofExclusionRegex(exclusionRegex));
+    }
+
+    /**
+     * Same as {@link #importFilesAtUrl(String, EdmDocumentSink, String, String, String)}, the resource is selected by
+     * the given filter instead of an exclusion regex. Size and date are checked from the response headers, before
+     * downloading it.
+     */
+    public static void importFilesAtUrl(String url, final EdmDocumentSink sink, final String sourceName, final String categoryName, final EdmPathFilter filter) throws IOException {
+        importFilesAtUrls(Collections.singletonList(url), sink, sourceName, categoryName, filter, 1, null);
+    }
+
+    /**
+     * Crawl many urls, with at most {@code maxConnections} downloads at once. A failed url does not stop the crawl,
+     * which fails only if every url failed.
+     *
+     * With a manifest, the ETag and Last-Modified of each url are kept for the next crawl, which sends them back
+     * (If-None-Match, If-Modified-Since) : an url the server answers as not modified (304) is neither downloaded nor
+     * sent again. As for the incremental crawl of a filesystem, the server is then not notified of the start and end
+     * of the crawl, so documents of unmodified urls are not considered as unused.
+     *
+     * @param maxConnections Number of urls downloaded at the same time
+     * @param manifestFile   Where the validators of the previous crawl are kept, null to download every url
+     */
+    public static void importFilesAtUrls(List<String> urls, final EdmDocumentSink sink, final String sourceName, final String categoryName, final EdmPathFilter filter,
+                                         final int maxConnections, final File manifestFile) throws IOException {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Invalid max connections : " + maxConnections);
+        }
+        UrlManifest manifest = manifestFile == null ? null : UrlManifest.load(manifestFile);
+
         // create parents
-        String categoryId = edmConnector.getIdFromCategoryByCategoryName(edmServerHttpAddress, categoryName);
-        String sourceId = edmConnector.getIdFromSourceBySourceName(edmServerHttpAddress, sourceName, categoryId);
+        String categoryId = sink.getIdFromCategoryByCategoryName(categoryName);
+        String sourceId = sink.getIdFromSourceBySourceName(sourceName, categoryId);
 
         // index
         LOGGER.debug("The source ID is {}", sourceId);
-        edmConnector.notifyStartCrawling(edmServerHttpAddress, sourceName);
-        _importFilesAtUrl(url, edmServerHttpAddress, sourceId, categoryId, exclusionRegex);
-        edmConnector.notifyEndOfCrawling(edmServerHttpAddress, sourceName);
+        if (manifest == null) {
+            sink.notifyStartCrawling(sourceName);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(maxConnections);
+        List<Future<?>> downloads = new ArrayList<>();
+        try {
+            for (String url : urls) {
+                downloads.add(executor.submit(() -> {
+                    if (!sink.isCancelled()) {
+                        _importFilesAtUrl(url, sink, sourceId, categoryId, filter, manifest);
+                    }
+                    return null;
+                }));
+            }
+
+            int failures = 0;
+            for (int i = 0; i < downloads.size(); i++) {
+                try {
+                    downloads.get(i).get();
+                } catch (ExecutionException e) {
+                    failures++;
+                    LOGGER.error("Failed to crawl '{}'", urls.get(i), e.getCause());
+                    if (manifest != null) {
+                        manifest.retainPrevious(urls.get(i));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while crawling urls");
+                }
+            }
+            if (failures > 0 && failures == urls.size()) {
+                throw new IOException("Failed to crawl the " + failures + " url(s)");
+            }
+        } finally {
+            executor.shutdownNow();
+            LOGGER.info("Filter of urls : {}", filter.getHits());
+        }
+
+        if (sink.isCancelled()) {
+            LOGGER.info("Crawl of {} url(s) cancelled", urls.size());
+            return;
+        }
+        if (manifest == null) {
+            sink.notifyEndOfCrawling(sourceName);
+        } else {
+            manifest.save();
+        }
     }
 
+    /**
+     * Crawl sites from seed urls : HTML pages are read for links, which are followed up to {@code maxDepth}, other
+     * resources linked from them (PDF, office files...) are documents, selected by the filter. The crawl stays on the
+     * hosts of the options, respects robots.txt files, and spaces requests to a host by the politeness delay.
+     * Exclusions of the filter apply to pages too : links of an excluded page are not followed.
+     *
+     * As with {@link #importFilesAtUrls}, a manifest makes the crawl incremental for documents, pages are always read.
+     *
+     * @param manifestFile Where the validators of the previous crawl are kept, null to download every document
+     */
+    public static void crawlSite(List<String> seeds, final EdmDocumentSink sink, final String sourceName, final String categoryName, final EdmPathFilter filter,
+                                 final SiteCrawlOptions options, final File manifestFile) throws IOException {
+        UrlManifest manifest = manifestFile == null ? null : UrlManifest.load(manifestFile);
+
+        // create parents
+        String categoryId = sink.getIdFromCategoryByCategoryName(categoryName);
+        String sourceId = sink.getIdFromSourceBySourceName(sourceName, categoryId);
+
+        // index
+        LOGGER.debug("The source ID is {}", sourceId);
+        if (manifest == null) {
+            sink.notifyStartCrawling(sourceName);
+        }
+
+        try {
+            new SiteCrawler(sink, sourceId, categoryId, filter, manifest, options).crawl(seeds);
+        } finally {
+            LOGGER.info("Filter of urls : {}", filter.getHits());
+        }
+
+        if (sink.isCancelled()) {
+            LOGGER.info("Crawl of {} cancelled", seeds);
+            return;
+        }
+        if (manifest == null) {
+            sink.notifyEndOfCrawling(sourceName);
+        } else {
+            manifest.save();
+        }
+    }
+
+    /**
+     * @return The urls of a seed file : one url per line, blank lines and lines starting with # are ignored
+     */
+    public static List<String> readSeedFile(File seedFile) throws IOException {
+        return Files.readAllLines(seedFile.toPath(), StandardCharsets.UTF_8).stream()
+            .map(String::trim)
+            .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Compiles the pattern on each call, crawls use {@link EdmPathFilter}
+     */
     public static boolean isExcluded(String filePath, String exclusionPattern) {
         boolean toExclude = !exclusionPattern.isEmpty() && Pattern.compile(exclusionPattern).matcher(filePath).find();
         LOGGER.debug("Check if '{}' match with '{}' : {}", filePath, exclusionPattern, toExclude);
         return toExclude;
     }
 
-    private static void _importFilesAtUrl(String url, final String edmServerHttpAddress, final String sourceId, final String categoryId, final String exclusionRegex) throws IOException {
+    private static void _importFilesAtUrl(String url, final EdmDocumentSink sink, final String sourceId, final String categoryId, final EdmPathFilter filter,
+                                          final UrlManifest manifest) throws IOException {
 
         LOGGER.info("Embedded crawler looks for : " + url);
 
-        // exclusion pattern
-        if (isExcluded(url, exclusionRegex)) {
-            LOGGER.info("File excluded because it matches with exclusion regex");
+        if (!filter.acceptsPath(url)) {
+            LOGGER.info("File excluded by filter");
             return;
         }
 
-        // Download the file
-        File file = File.createTempFile(url.replaceFirst("[.][^.]+$", ""), "." + FilenameUtils.getExtension(url));
-        FileUtils.copyURLToFile(new URL(url), file);
+        URLConnection connection = openConnection(url, sink, manifest);
+        if (connection != null) {
+            importDocument(url, connection, sink, sourceId, categoryId, filter, manifest);
+        }
+    }
+
+    /**
+     * Open a conditional request, the server answers 304 if the resource did not change since the previous crawl
+     *
+     * @return Null if the resource was not modified, the sink was then told it was found and skipped
+     * @throws IOException If the server answered an error
+     */
+    static URLConnection openConnection(String url, final EdmDocumentSink sink, final UrlManifest manifest) throws IOException {
+        URLConnection connection = new URL(url).openConnection();
+        connection.setRequestProperty("User-Agent", USER_AGENT);
+        UrlManifest.Entry previous = manifest == null ? null : manifest.getPrevious(url);
+        if (previous != null) {
+            if (!previous.getEtag().isEmpty()) {
+                connection.setRequestProperty("If-None-Match", previous.getEtag());
+            }
+            if (previous.getLastModified() > 0) {
+                connection.setIfModifiedSince(previous.getLastModified());
+            }
+        }
 
-        // add files
-        double bytes = file.length();
-        double kilobytes = bytes / 1024;
-        double megabytes = kilobytes / 1024;
+        if (connection instanceof HttpURLConnection) {
+            HttpURLConnection httpConnection = (HttpURLConnection) connection;
+            int status = httpConnection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                LOGGER.debug("'{}' was not modified since last crawl", url);
+                sink.onFileFound(url);
+                sink.onFileSkipped(url);
+                if (manifest != null) {
+                    manifest.retainPrevious(url);
+                }
+                return null;
+            }
+            if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                // reading the error body lets the connection be reused
+                IOUtils.closeQuietly(httpConnection.getErrorStream());
+                throw new IOException("Server answered " + status + " for '" + url + "'");
+            }
+        }
+        return connection;
+    }
 
-        if (megabytes > 100) {
-            LOGGER.warn("Skipping too big file ({})", url);
-            Files.delete(file.toPath());
+    /**
+     * Send the resource of an open connection to the sink. When the server gives its size, the response body is
+     * streamed to the sink, which keeps small documents in memory : no temporary file. Otherwise it is downloaded to
+     * a temporary file first, the download is stopped as soon as it is bigger than the max size of the filter.
+     */
+    static void importDocument(String url, URLConnection connection, final EdmDocumentSink sink, final String sourceId, final String categoryId,
+                               final EdmPathFilter filter, final UrlManifest manifest) throws IOException {
+        // size and date from headers, when the server gives them
+        long contentLength = connection.getContentLengthLong();
+        if (contentLength >= 0 && !filter.acceptsAttributes(url, contentLength, connection.getLastModified())) {
+            LOGGER.info("File excluded by filter");
+            IOUtils.closeQuietly(connection.getInputStream());
+            return;
+        }
+        if (contentLength < 0) {
+            downloadDocument(url, connection, sink, sourceId, categoryId, filter, manifest);
             return;
         }
 
-        // construct DTO
+        // add files
+        sink.onFileFound(url);
+
+        EdmDocumentFile document = newDocument(url, sourceId, categoryId, connection.getLastModified() > 0 ? connection.getLastModified() : System.currentTimeMillis());
+        document.setFileContentType(getContentType(url, connection));
+
+        // save DTO, the body is read by the sink
+        try (InputStream inputStream = connection.getInputStream()) {
+            sink.saveEdmDocumentStream(document, inputStream, contentLength);
+            if (manifest != null) {
+                manifest.record(url, connection.getLastModified(), connection.getHeaderField("ETag"));
+            }
+        } catch (IOException e) {
+            log.error("failed to save edm docuement : {}", url, e);
+            if (manifest != null) {
+                manifest.retainPrevious(url);
+            }
+        }
+    }
+
+    /**
+     * The server did not give the size of the resource, it is downloaded before being filtered and sent
+     */
+    private static void downloadDocument(String url, URLConnection connection, final EdmDocumentSink sink, final String sourceId, final String categoryId,
+                                         final EdmPathFilter filter, final UrlManifest manifest) throws IOException {
+        File file = File.createTempFile("edm-url-", "." + FilenameUtils.getExtension(url));
+        try {
+            try (InputStream inputStream = new MaxSizeInputStream(connection.getInputStream(), filter.getMaxSize())) {
+                FileUtils.copyInputStreamToFile(inputStream, file);
+            } catch (MaxSizeExceededException e) {
+                filter.acceptsAttributes(url, e.getSize(), connection.getLastModified());
+                LOGGER.info("File excluded by filter, download stopped after {} bytes", e.getSize());
+                return;
+            }
+
+            if (!filter.acceptsAttributes(url, file.length(), connection.getLastModified())) {
+                LOGGER.info("File excluded by filter");
+                return;
+            }
+
+            // add files
+            sink.onFileFound(url);
+
+            EdmDocumentFile document = newDocument(url, sourceId, categoryId, connection.getLastModified() > 0 ? connection.getLastModified() : file.lastModified());
+
+            // save DTO
+            try {
+                document.setFileContentType(Files.probeContentType(file.toPath()));
+                sink.saveEdmDocument(document, file);
+                if (manifest != null) {
+                    manifest.record(url, connection.getLastModified(), connection.getHeaderField("ETag"));
+                }
+            } catch (IOException e) {
+                log.error("failed to save edm docuement : {}", url);
+                if (manifest != null) {
+                    manifest.retainPrevious(url);
+                }
+            }
+        } finally {
+            // cleaning
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    private static EdmDocumentFile newDocument(String url, String sourceId, String categoryId, long fileDate) {
         EdmDocumentFile document = new EdmDocumentFile();
-        document.setFileDate(new Date(file.lastModified()));
+        document.setFileDate(new Date(fileDate));
         document.setNodePath(url);
         document.setName(url.replaceFirst("[.][^.]+$", ""));
         document.setSourceId(sourceId);
         document.setCategoryId(categoryId);
         document.setFileExtension(FilenameUtils.getExtension(url).toLowerCase());
+        return document;
+    }
 
-        // save DTO
-        try {
-            document.setFileContentType(Files.probeContentType(file.toPath()));
-            edmConnector.saveEdmDocument(edmServerHttpAddress, document, file);
-        } catch (IOException e) {
-            log.error("failed to save edm docuement : {}", url);
+    /**
+     * The type given by the server, without its parameters, guessed from the url otherwise
+     */
+    private static String getContentType(String url, URLConnection connection) {
+        String contentType = connection.getContentType();
+        if (contentType == null || contentType.isEmpty()) {
+            return URLConnection.guessContentTypeFromName(url);
         }
+        return contentType.split(";")[0].trim();
+    }
+
+    private static class MaxSizeExceededException extends IOException {
+
+        @Getter
+        private final long size;
+
+        MaxSizeExceededException(long size) {
+            super("Max size exceeded : " + size + " bytes");
+            this.size = size;
+        }
+    }
 
-        // cleaning
-        Files.delete(file.toPath());
+    /**
+     * Fails as soon as more than {@code maxSize} bytes were read
+     */
+    private static class MaxSizeInputStream extends FilterInputStream {
+
+        private final long maxSize;
+
+        private long size = 0;
+
+        MaxSizeInputStream(InputStream inputStream, long maxSize) {
+            super(inputStream);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        private void count(int read) throws MaxSizeExceededException {
+            size += read;
+            if (size > maxSize) {
+                throw new MaxSizeExceededException(size);
+            }
+        }
     }
 
 }
@@ -0,0 +1,131 @@
+package fr.simple.edm.crawler.url;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The urls a site crawl has still to visit, in discovery order (breadth first). An url is queued once, see
+ * {@link UrlBloomFilter}.
+ *
+ * At most {@code maxInMemory} urls are kept in memory, the next ones are appended to a spill file, read back when
+ * the in memory queue is empty : the order is kept, and the memory bounded, whatever the size of the site.
+ */
+@Slf4j
+public class UrlFrontier implements Closeable {
+
+    private static final String SEPARATOR = "\t";
+
+    @Getter
+    @AllArgsConstructor
+    public static class Entry {
+        private final String url;
+
+        // number of links followed from a seed url
+        private final int depth;
+    }
+
+    private final int maxInMemory;
+
+    private final File spillDirectory;
+
+    private final UrlBloomFilter visited;
+
+    private final Deque<Entry> inMemory = new ArrayDeque<>();
+
+    private File spillFile;
+
+    private BufferedWriter spillWriter;
+
+    private BufferedReader spillReader;
+
+    // urls written in the spill file and not read back yet
+    private long spilled = 0;
+
+    /**
+     * @param maxInMemory    Number of urls kept in memory, the next ones are spilled to disk
+     * @param spillDirectory Where the spill file is created, null for the temporary directory
+     * @param expectedUrls   Number of urls of the site the visited set is sized for
+     */
+    public UrlFrontier(int maxInMemory, File spillDirectory, long expectedUrls) {
+        if (maxInMemory < 1) {
+            throw new IllegalArgumentException("Invalid max urls in memory : " + maxInMemory);
+        }
+        this.maxInMemory = maxInMemory;
+        this.spillDirectory = spillDirectory;
+        this.visited = new UrlBloomFilter(expectedUrls, 1e-6);
+    }
+
+    /**
+     * Queue an url, unless it was already queued
+     *
+     * @return False if the url was already queued
+     */
+    public synchronized boolean offer(String url, int depth) throws IOException {
+        if (!visited.add(url)) {
+            return false;
+        }
+        if (spilled == 0 && inMemory.size() < maxInMemory) {
+            inMemory.add(new Entry(url, depth));
+            return true;
+        }
+
+        // once something is spilled, urls go after it to keep the order
+        if (spillWriter == null) {
+            spillFile = File.createTempFile("edm-frontier-", ".tsv", spillDirectory);
+            spillWriter = Files.newBufferedWriter(spillFile.toPath(), StandardCharsets.UTF_8);
+            spillReader = Files.newBufferedReader(spillFile.toPath(), StandardCharsets.UTF_8);
+            log.info("More than {} urls to crawl, spilling the next ones to '{}'", maxInMemory, spillFile);
+        }
+        spillWriter.write(depth + SEPARATOR + url);
+        spillWriter.newLine();
+        spilled++;
+        return true;
+    }
+
+    /**
+     * @return The next url to visit, null if there is none
+     */
+    public synchronized Entry poll() throws IOException {
+        if (inMemory.isEmpty() && spilled > 0) {
+            // whole lines only : everything written is flushed before reading
+            spillWriter.flush();
+            while (spilled > 0 && inMemory.size() < maxInMemory) {
+                String[] fields = spillReader.readLine().split(SEPARATOR, 2);
+                inMemory.add(new Entry(fields[1], Integer.parseInt(fields[0])));
+                spilled--;
+            }
+        }
+        return inMemory.poll();
+    }
+
+    /**
+     * @return The number of urls to visit, in memory and spilled
+     */
+    public synchronized long size() {
+        return inMemory.size() + spilled;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (spillFile == null) {
+            return;
+        }
+        try {
+            spillWriter.close();
+            spillReader.close();
+        } finally {
+            Files.deleteIfExists(spillFile.toPath());
+        }
+    }
+}
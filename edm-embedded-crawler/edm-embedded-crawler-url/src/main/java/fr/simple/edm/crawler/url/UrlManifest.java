@@ -0,0 +1,124 @@
+package fr.simple.edm.crawler.url;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Remember the HTTP validators (ETag and Last-Modified) of the urls sent to the server during the previous crawl,
+ * so the next crawl asks the server whether they changed (conditional GET) instead of downloading them again.
+ *
+ * The manifest is stored as a text file, one line per url : last modified time (0 if unknown), ETag (may be empty)
+ * and url, separated by tabulations.
+ */
+@Slf4j
+public class UrlManifest {
+
+    private static final String SEPARATOR = "\t";
+
+    @Getter
+    @AllArgsConstructor
+    public static class Entry {
+        private final long lastModified;
+        private final String etag;
+    }
+
+    private final File manifestFile;
+
+    // entries of the previous crawl
+    private final Map<String, Entry> previousEntries = new ConcurrentHashMap<>();
+
+    // entries of the current crawl
+    private final Map<String, Entry> currentEntries = new ConcurrentHashMap<>();
+
+    private UrlManifest(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * @param manifestFile Where the manifest is persisted, it's fine if it does not exists yet (first crawl)
+     */
+    public static UrlManifest load(File manifestFile) throws IOException {
+        UrlManifest manifest = new UrlManifest(manifestFile);
+        if (!manifestFile.exists()) {
+            log.info("No manifest found at '{}', every url will be downloaded", manifestFile);
+            return manifest;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, 3);
+                if (fields.length != 3) {
+                    log.warn("Ignoring malformed manifest line : {}", line);
+                    continue;
+                }
+                manifest.previousEntries.put(fields[2], new Entry(Long.parseLong(fields[0]), fields[1]));
+            }
+        }
+        log.info("Loaded manifest '{}' with {} entries", manifestFile, manifest.previousEntries.size());
+        return manifest;
+    }
+
+    /**
+     * @return The validators of the previous crawl, null if the url was not sent
+     */
+    public Entry getPrevious(String url) {
+        return previousEntries.get(url);
+    }
+
+    /**
+     * Record the validators of an url which was successfully sent to the server
+     *
+     * @param lastModified 0 if the server did not give it
+     * @param etag         Null if the server did not give it
+     */
+    public void record(String url, long lastModified, String etag) {
+        if (lastModified <= 0 && etag == null) {
+            // nothing to validate the next crawl with
+            return;
+        }
+        currentEntries.put(url, new Entry(Math.max(0, lastModified), etag == null ? "" : etag));
+    }
+
+    /**
+     * Keep the validators of the previous crawl for an url which was not modified, or which failed to be sent
+     */
+    public void retainPrevious(String url) {
+        Entry previous = previousEntries.get(url);
+        if (previous != null) {
+            currentEntries.put(url, previous);
+        }
+    }
+
+    /**
+     * Persist the current crawl, it will be the reference of the next one
+     */
+    public void save() throws IOException {
+        File parent = manifestFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        // write in a temporary file first, an interrupted crawl must not corrupt the manifest
+        File tmpFile = new File(manifestFile.getPath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : currentEntries.entrySet()) {
+                writer.write(entry.getValue().getLastModified() + SEPARATOR + entry.getValue().getEtag() + SEPARATOR + entry.getKey());
+                writer.newLine();
+            }
+        }
+        Files.move(tmpFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        log.info("Saved manifest '{}' with {} entries", manifestFile, currentEntries.size());
+    }
+}
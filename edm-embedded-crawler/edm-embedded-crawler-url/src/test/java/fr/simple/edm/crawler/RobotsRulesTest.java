@@ -0,0 +1,33 @@
+package fr.simple.edm.crawler;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import fr.simple.edm.crawler.url.RobotsRules;
+
+public class RobotsRulesTest {
+
+    @Test
+    public void groupOfTheCrawlerShouldWinTheDefaultGroup() {
+        RobotsRules rules = RobotsRules.parse("User-agent: *\nDisallow: /\n\nUser-agent: other-bot\nUser-agent: EDM-Crawler\nDisallow: /private/\n"
+            + "Allow: /private/public*.pdf$\nCrawl-delay: 2\n", "edm-crawler");
+
+        assertThat(rules.isAllowed("/docs/a.pdf")).isTrue();
+        assertThat(rules.isAllowed("/private/b.pdf")).isFalse();
+        // the longest rule wins
+        assertThat(rules.isAllowed("/private/public-c.pdf")).isTrue();
+        assertThat(rules.isAllowed("/private/public-c.pdf.bak")).isFalse();
+        assertThat(rules.getCrawlDelayMillis()).isEqualTo(2000L);
+    }
+
+    @Test
+    public void defaultGroupShouldApplyToOtherCrawlers() {
+        RobotsRules rules = RobotsRules.parse("# comment\nUser-agent: other-bot\nDisallow: /\n\nUser-agent: *\nDisallow: /tmp # not indexed\nDisallow:\n",
+            "edm-crawler");
+
+        assertThat(rules.isAllowed("/tmp/a.pdf")).isFalse();
+        assertThat(rules.isAllowed("/docs/a.pdf")).isTrue();
+        assertThat(rules.getCrawlDelayMillis()).isEqualTo(0L);
+    }
+}
@@ -0,0 +1,162 @@
+package fr.simple.edm.crawler;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import fr.simple.edm.crawler.bridge.EdmPathFilter;
+import fr.simple.edm.crawler.url.SiteCrawlOptions;
+import fr.simple.edm.crawler.url.UrlCrawler;
+
+public class SiteCrawlerTest {
+
+    private HttpServer server;
+
+    private String baseUrl;
+
+    // content type and body, by path
+    private final Map<String, String[]> resources = new ConcurrentHashMap<>();
+
+    private final List<String> requestedPaths = new CopyOnWriteArrayList<>();
+
+    private final List<Long> documentRequestTimes = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::serve);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        resources.put("/robots.txt", new String[] { "text/plain", "User-agent: *\nDisallow: /private/\n" });
+        resources.put("/", html("<a href=\"docs/a.pdf\">a</a> <A HREF='/page2.html'>2</A> <a href=http://other.example/x.pdf>x</a>"
+            + " <a href=\"/private/b.pdf\">b</a> <a href=\"mailto:someone@example.org\">mail</a> <a href=\"#top\">top</a>"));
+        resources.put("/page2.html", html("<a href=\"/docs/c.pdf\">c</a> <a href=\"/\">home</a> <a href=\"page3.html\">3</a>"));
+        resources.put("/page3.html", html("<a href=\"/docs/d.pdf\">d</a> <a href=\"/page2.html#top\">2</a>"));
+        for (String document : new String[] { "/docs/a.pdf", "/docs/c.pdf", "/docs/d.pdf", "/private/b.pdf" }) {
+            resources.put(document, new String[] { "application/pdf", "content of " + document });
+        }
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private static String[] html(String body) {
+        return new String[] { "text/html; charset=UTF-8", "<html><body>" + body + "</body></html>" };
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            requestedPaths.add(path);
+            String[] resource = resources.get(path);
+            if (resource == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (resource[0].equals("application/pdf")) {
+                documentRequestTimes.add(System.currentTimeMillis());
+            }
+            byte[] body = resource[1].getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", resource[0]);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private RecordingSink crawl(SiteCrawlOptions options) throws IOException {
+        RecordingSink sink = new RecordingSink();
+        UrlCrawler.crawlSite(Collections.singletonList(baseUrl + "/"), sink, "source", "category", EdmPathFilter.builder().build(), options, null);
+        return sink;
+    }
+
+    @Test
+    public void linkedDocumentsShouldBeCrawledUpToMaxDepth() throws Exception {
+        RecordingSink sink = crawl(SiteCrawlOptions.builder().maxDepth(2).politenessDelayMs(0L).build());
+
+        // d.pdf is linked from page 3, at depth 2
+        assertThat(sink.savedNodePaths).containsOnly(baseUrl + "/docs/a.pdf", baseUrl + "/docs/c.pdf");
+        assertThat(requestedPaths).doesNotContain("/docs/d.pdf");
+        assertThat(sink.notifications).containsExactly("start source", "end source");
+    }
+
+    @Test
+    public void eachUrlShouldBeRequestedOnce() throws Exception {
+        crawl(SiteCrawlOptions.builder().maxDepth(5).politenessDelayMs(0L).build());
+
+        assertThat(requestedPaths).containsOnly("/robots.txt", "/", "/page2.html", "/page3.html", "/docs/a.pdf", "/docs/c.pdf", "/docs/d.pdf");
+        assertThat(requestedPaths).hasSize(7);
+    }
+
+    @Test
+    public void urlsDisallowedByRobotsShouldNotBeRequested() throws Exception {
+        RecordingSink sink = crawl(SiteCrawlOptions.builder().maxDepth(1).politenessDelayMs(0L).build());
+
+        assertThat(requestedPaths).doesNotContain("/private/b.pdf");
+        assertThat(sink.savedNodePaths).containsOnly(baseUrl + "/docs/a.pdf");
+    }
+
+    @Test
+    public void robotsShouldBeIgnoredWhenAsked() throws Exception {
+        RecordingSink sink = crawl(SiteCrawlOptions.builder().maxDepth(1).politenessDelayMs(0L).respectRobots(false).build());
+
+        assertThat(requestedPaths).doesNotContain("/robots.txt");
+        assertThat(sink.savedNodePaths).containsOnly(baseUrl + "/docs/a.pdf", baseUrl + "/private/b.pdf");
+    }
+
+    @Test
+    public void excludedPagesShouldNotBeFollowed() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        UrlCrawler.crawlSite(Collections.singletonList(baseUrl + "/"), sink, "source", "category", EdmPathFilter.builder().excludeRegex("page2").build(),
+            SiteCrawlOptions.builder().maxDepth(5).politenessDelayMs(0L).build(), null);
+
+        assertThat(requestedPaths).doesNotContain("/page2.html");
+        assertThat(sink.savedNodePaths).containsOnly(baseUrl + "/docs/a.pdf");
+    }
+
+    @Test
+    public void requestsToAHostShouldBeSpacedByThePolitenessDelay() throws Exception {
+        crawl(SiteCrawlOptions.builder().maxDepth(5).politenessDelayMs(150L).maxConnections(4).build());
+
+        assertThat(documentRequestTimes).hasSize(3);
+        for (int i = 1; i < documentRequestTimes.size(); i++) {
+            // some margin for the clock
+            assertThat(documentRequestTimes.get(i) - documentRequestTimes.get(i - 1)).isGreaterThanOrEqualTo(140L);
+        }
+    }
+
+    @Test
+    public void crawlShouldFailWhenTheSeedCannotBeCrawled() throws Exception {
+        resources.remove("/");
+        try {
+            crawl(SiteCrawlOptions.builder().politenessDelayMs(0L).build());
+            fail("the crawl should have failed");
+        } catch (IOException e) {
+            assertThat(e.getMessage()).contains("Failed to crawl");
+        }
+    }
+}
@@ -1,13 +1,213 @@
 package fr.simple.edm.crawler;
 
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 
+import fr.simple.edm.crawler.bridge.EdmPathFilter;
 import fr.simple.edm.crawler.url.UrlCrawler;
 
 public class UrlCrawlerTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HttpServer server;
+
+    private String baseUrl;
+
+    // ETag of each served document, by path
+    private final Map<String, String> etags = new ConcurrentHashMap<>();
+
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    private final AtomicLong chunkedBytesSent = new AtomicLong();
+
+    private final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::serve);
+        server.createContext("/chunked/", this::serveChunked);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    /**
+     * Serve documents with an ETag, and answer 304 when the client already has the current version
+     */
+    private void serve(HttpExchange exchange) throws IOException {
+        maxConcurrentRequests.accumulateAndGet(concurrentRequests.incrementAndGet(), Math::max);
+        try {
+            String etag = etags.get(exchange.getRequestURI().getPath());
+            if (etag == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            // slow enough for requests to overlap
+            Thread.sleep(100);
+            byte[] body = ("content of " + exchange.getRequestURI().getPath()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("ETag", etag);
+            // counted before answering, the client may be done once the body is written
+            downloads.incrementAndGet();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            concurrentRequests.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    /**
+     * Serve 32 MB documents without Content-Length
+     */
+    private void serveChunked(HttpExchange exchange) throws IOException {
+        try {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                byte[] block = new byte[64 * 1024];
+                for (int i = 0; i < 512; i++) {
+                    outputStream.write(block);
+                    chunkedBytesSent.addAndGet(block.length);
+                }
+            }
+        } catch (IOException e) {
+            // the client stopped reading
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Test
+    public void documentWithContentLengthShouldBeStreamedToTheSink() throws Exception {
+        etags.put("/a.txt", "\"v1\"");
+        RecordingSink sink = new RecordingSink();
+
+        UrlCrawler.importFilesAtUrls(Collections.singletonList(baseUrl + "/a.txt"), sink, "source", "category", EdmPathFilter.builder().build(), 1, null);
+
+        assertThat(new String(sink.streamedContents.get(baseUrl + "/a.txt"), StandardCharsets.UTF_8)).isEqualTo("content of /a.txt");
+    }
+
+    @Test
+    public void documentWithoutContentLengthShouldBeStoppedOnceTooBig() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        EdmPathFilter filter = EdmPathFilter.builder().maxSize(10000L).build();
+
+        UrlCrawler.importFilesAtUrls(Collections.singletonList(baseUrl + "/chunked/big.pdf"), sink, "source", "category", filter, 1, null);
+
+        assertThat(sink.savedNodePaths).isEmpty();
+        assertThat(filter.getHits().get(EdmPathFilter.Rule.MAX_SIZE)).isEqualTo(1L);
+        // the download was stopped long before the end, what was sent is in the socket buffers
+        assertThat(chunkedBytesSent.get()).isLessThan(32L * 1024 * 1024);
+    }
+
+    @Test
+    public void urlsShouldBeDownloadedConcurrently() throws Exception {
+        List<String> urls = Arrays.asList(baseUrl + "/a.txt", baseUrl + "/b.txt", baseUrl + "/c.txt", baseUrl + "/d.txt");
+        for (String path : new String[] { "/a.txt", "/b.txt", "/c.txt", "/d.txt" }) {
+            etags.put(path, "\"v1\"");
+        }
+        RecordingSink sink = new RecordingSink();
+
+        UrlCrawler.importFilesAtUrls(urls, sink, "source", "category", EdmPathFilter.builder().build(), 2, null);
+
+        assertThat(sink.savedNodePaths).containsOnly(urls.toArray(new String[0]));
+        assertThat(maxConcurrentRequests.get()).isEqualTo(2);
+        assertThat(sink.notifications).containsExactly("start source", "end source");
+    }
+
+    @Test
+    public void unmodifiedUrlShouldNotBeDownloadedAgain() throws Exception {
+        etags.put("/a.txt", "\"v1\"");
+        etags.put("/b.txt", "\"v1\"");
+        List<String> urls = Arrays.asList(baseUrl + "/a.txt", baseUrl + "/b.txt");
+        File manifest = new File(temporaryFolder.getRoot(), "urls.manifest");
+        UrlCrawler.importFilesAtUrls(urls, new RecordingSink(), "source", "category", EdmPathFilter.builder().build(), 2, manifest);
+        assertThat(downloads.get()).isEqualTo(2);
+
+        // when : only b changed
+        etags.put("/b.txt", "\"v2\"");
+        RecordingSink sink = new RecordingSink();
+        UrlCrawler.importFilesAtUrls(urls, sink, "source", "category", EdmPathFilter.builder().build(), 2, manifest);
+
+        // then
+        assertThat(downloads.get()).isEqualTo(3);
+        assertThat(sink.savedNodePaths).containsOnly(baseUrl + "/b.txt");
+        assertThat(sink.skippedNodePaths).containsOnly(baseUrl + "/a.txt");
+        // unmodified documents must not be deleted at the end of the crawl
+        assertThat(sink.notifications).isEmpty();
+    }
+
+    @Test
+    public void failedUrlShouldNotStopTheCrawl() throws Exception {
+        etags.put("/a.txt", "\"v1\"");
+        RecordingSink sink = new RecordingSink();
+
+        UrlCrawler.importFilesAtUrls(Arrays.asList(baseUrl + "/missing.txt", baseUrl + "/a.txt"), sink, "source", "category",
+                EdmPathFilter.builder().build(), 1, null);
+
+        assertThat(sink.savedNodePaths).containsOnly(baseUrl + "/a.txt");
+    }
+
+    @Test
+    public void crawlShouldFailWhenEveryUrlFailed() throws Exception {
+        try {
+            UrlCrawler.importFilesAtUrls(Collections.singletonList(baseUrl + "/missing.txt"), new RecordingSink(), "source", "category",
+                    EdmPathFilter.builder().build(), 1, null);
+            fail("the crawl should have failed");
+        } catch (IOException e) {
+            assertThat(e.getMessage()).contains("1 url");
+        }
+    }
+
+    @Test
+    public void seedFileShouldIgnoreCommentsAndBlankLines() throws Exception {
+        File seedFile = temporaryFolder.newFile("seed.txt");
+        Files.write(seedFile.toPath(), Arrays.asList("# documents", "http://data.io/a.pdf", "", "  http://data.io/b.pdf  "));
+
+        assertThat(UrlCrawler.readSeedFile(seedFile)).containsExactly("http://data.io/a.pdf", "http://data.io/b.pdf");
+    }
+
     @Test
     public void emptyPatternShouldNotExcludeDoc() throws Exception {
         String exclusionRegex = "";
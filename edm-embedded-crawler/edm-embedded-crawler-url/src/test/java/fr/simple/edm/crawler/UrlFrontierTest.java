@@ -0,0 +1,58 @@
+package fr.simple.edm.crawler;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.simple.edm.crawler.url.UrlFrontier;
+
+public class UrlFrontierTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void urlShouldBeQueuedOnce() throws Exception {
+        try (UrlFrontier frontier = new UrlFrontier(10, temporaryFolder.getRoot(), 1000)) {
+            assertThat(frontier.offer("http://data.io/a.pdf", 0)).isTrue();
+            assertThat(frontier.offer("http://data.io/a.pdf", 1)).isFalse();
+
+            assertThat(frontier.poll().getUrl()).isEqualTo("http://data.io/a.pdf");
+            // visited urls are not queued again
+            assertThat(frontier.offer("http://data.io/a.pdf", 2)).isFalse();
+            assertThat(frontier.poll()).isNull();
+        }
+    }
+
+    @Test
+    public void spilledUrlsShouldBeReadBackInOrder() throws Exception {
+        List<String> polled = new ArrayList<>();
+        try (UrlFrontier frontier = new UrlFrontier(2, temporaryFolder.getRoot(), 1000)) {
+            for (int i = 0; i < 5; i++) {
+                frontier.offer("http://data.io/" + i + ".pdf", i);
+            }
+            assertThat(frontier.size()).isEqualTo(5);
+            assertThat(temporaryFolder.getRoot().list()).hasSize(1);
+
+            polled.add(frontier.poll().getUrl());
+            polled.add(frontier.poll().getUrl());
+            polled.add(frontier.poll().getUrl());
+            // queued while others are spilled
+            frontier.offer("http://data.io/5.pdf", 5);
+            UrlFrontier.Entry entry;
+            while ((entry = frontier.poll()) != null) {
+                polled.add(entry.getUrl() + "@" + entry.getDepth());
+            }
+        }
+
+        assertThat(polled).containsExactly("http://data.io/0.pdf", "http://data.io/1.pdf", "http://data.io/2.pdf", "http://data.io/3.pdf@3",
+            "http://data.io/4.pdf@4", "http://data.io/5.pdf@5");
+        // the spill file is deleted
+        assertThat(temporaryFolder.getRoot().list()).isEmpty();
+    }
+}
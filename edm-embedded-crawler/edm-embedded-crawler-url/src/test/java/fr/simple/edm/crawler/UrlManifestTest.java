@@ -0,0 +1,59 @@
+package fr.simple.edm.crawler;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.simple.edm.crawler.url.UrlManifest;
+
+public class UrlManifestTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void urlShouldHaveNoValidatorsWithoutPreviousManifest() throws Exception {
+        final File manifestFile = new File(temporaryFolder.getRoot(), "source.manifest");
+
+        final UrlManifest manifest = UrlManifest.load(manifestFile);
+
+        assertThat(manifest.getPrevious("http://data.io/a.pdf")).isNull();
+    }
+
+    @Test
+    public void recordedValidatorsShouldBeReadOnNextCrawl() throws Exception {
+        final File manifestFile = new File(temporaryFolder.getRoot(), "source.manifest");
+
+        final UrlManifest firstCrawl = UrlManifest.load(manifestFile);
+        firstCrawl.record("http://data.io/a.pdf", 1000L, "\"v1\"");
+        firstCrawl.record("http://data.io/b.pdf", 2000L, null);
+        // nothing to validate it with, it will be downloaded again
+        firstCrawl.record("http://data.io/c.pdf", 0L, null);
+        firstCrawl.save();
+
+        final UrlManifest secondCrawl = UrlManifest.load(manifestFile);
+
+        assertThat(secondCrawl.getPrevious("http://data.io/a.pdf").getEtag()).isEqualTo("\"v1\"");
+        assertThat(secondCrawl.getPrevious("http://data.io/a.pdf").getLastModified()).isEqualTo(1000L);
+        assertThat(secondCrawl.getPrevious("http://data.io/b.pdf").getEtag()).isEmpty();
+        assertThat(secondCrawl.getPrevious("http://data.io/c.pdf")).isNull();
+    }
+
+    @Test
+    public void retainedUrlShouldKeepItsPreviousValidators() throws Exception {
+        final File manifestFile = new File(temporaryFolder.getRoot(), "source.manifest");
+        final UrlManifest firstCrawl = UrlManifest.load(manifestFile);
+        firstCrawl.record("http://data.io/a.pdf", 1000L, "\"v1\"");
+        firstCrawl.save();
+
+        final UrlManifest secondCrawl = UrlManifest.load(manifestFile);
+        secondCrawl.retainPrevious("http://data.io/a.pdf");
+        secondCrawl.save();
+
+        assertThat(UrlManifest.load(manifestFile).getPrevious("http://data.io/a.pdf").getEtag()).isEqualTo("\"v1\"");
+    }
+}
@@ -1,17 +1,44 @@
 package fr.simple.edm.controller;
 
+import fr.simple.edm.crawler.bridge.EdmConnector;
+import fr.simple.edm.crawler.bridge.EdmDocumentSink;
+import fr.simple.edm.crawler.bridge.EdmHttpSink;
+import fr.simple.edm.crawler.bridge.EdmPathFilter;
 import fr.simple.edm.crawler.filesystem.FilesystemCrawler;
+import fr.simple.edm.crawler.url.SiteCrawlOptions;
 import fr.simple.edm.crawler.url.UrlCrawler;
+import fr.simple.edm.domain.EdmCrawlJobStatus;
 import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmDocumentIndexingResult;
+import fr.simple.edm.service.EdmCrawlJobManager;
 import fr.simple.edm.service.EdmCrawlingService;
+import fr.simple.edm.service.EdmInProcessSink;
+import fr.simple.edm.service.EdmIndexingException;
+import fr.simple.edm.service.EdmIngestionPipeline;
+import fr.simple.edm.service.EdmIngestionQueueFullException;
+import fr.simple.edm.service.EdmOcrEnrichmentService;
+import fr.simple.edm.tika.EdmExtractionExecutor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
 
 import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 @Controller
 @RequestMapping("/crawl")
@@ -21,37 +48,92 @@ public class EdmCrawlingController {
     @Inject
     private EdmCrawlingService edmCrawlingService;
 
+    @Inject
+    private EdmIngestionPipeline edmIngestionPipeline;
+
+    @Inject
+    private EdmInProcessSink edmInProcessSink;
+
+    @Inject
+    private EdmOcrEnrichmentService edmOcrEnrichmentService;
+
+    @Inject
+    private EdmExtractionExecutor edmExtractionExecutor;
+
+    @Inject
+    private EdmCrawlJobManager edmCrawlJobManager;
+
+    private final EdmConnector edmConnector = new EdmConnector();
+
+    @Value("${edm.crawler.manifest_directory:crawl_manifests}")
+    private String edmCrawlerManifestDirectory;
+
+    @Value("${edm.pipeline.reply_timeout_seconds:100}")
+    private long replyTimeoutSeconds = 100;
+
     @RequestMapping(value = "/start", params = {"source"})
     @ResponseStatus(value = HttpStatus.OK)
     public void startCrawling(@RequestParam(value = "source") String source) {
         log.info("Begin crawling for source : {}", source);
-        edmCrawlingService.snapshotCurrentDocumentsForSource(source);
+        edmCrawlingService.startCrawlGeneration(source);
     }
 
+    /**
+     * Documents not seen by the crawl are deleted in background, once the documents it sent are indexed
+     */
     @RequestMapping(value = "/stop", params = {"source"})
     @ResponseStatus(value = HttpStatus.OK)
     public void stopCrawling(@RequestParam(value = "source") String source) {
         log.info("End of crawling for source : {}", source);
-        edmCrawlingService.deleteUnusedDocumentsBeforeSnapshotForSource(source);
+        edmCrawlingService.deleteDocumentsOfPreviousCrawlGenerations(source);
     }
 
+    /**
+     * The crawl runs in background, follow it with the returned job. Crawled files can be selected with
+     * {@link EdmPathFilterParameters}.
+     */
     @RequestMapping(value = "/filesystem", params = {"path"})
+    @ResponseStatus(value = HttpStatus.ACCEPTED)
     @ResponseBody
-    public String crawlFilesystem(
+    public EdmCrawlJobStatus crawlFilesystem(
         @RequestParam(value = "path") String path,
-        @RequestParam(value = "edmServerHttpAddress", defaultValue = "http://194.146.38.32:8080") String edmServerHttpAddress,
+        @RequestParam(value = "edmServerHttpAddress", required = false) String edmServerHttpAddress,
         @RequestParam(value = "sourceName", defaultValue = "unmanned source") String sourceName,
         @RequestParam(value = "categoryName", defaultValue = "unmanned category") String categoryName,
-        @RequestParam(value = "exclusionRegex", defaultValue = "") String exclusionRegex
+        EdmPathFilterParameters filterParameters,
+        @RequestParam(value = "parallelism", defaultValue = "1") int parallelism,
+        @RequestParam(value = "incremental", defaultValue = "false") boolean incremental,
+        @RequestParam(value = "checkContentHash", defaultValue = "false") boolean checkContentHash
     ) {
-        log.info("[crawlFilesystem] Starting crawling on path : '{}'  (exclusion = '{}')", path, exclusionRegex);
-        try {
-            FilesystemCrawler.importFilesInDir(path, edmServerHttpAddress, sourceName, categoryName, exclusionRegex);
-        } catch (IOException e) {
-            log.error("[crawlFilesystem] Failed to crawl '{}' with embedded crawler", path, e);
-        }
+        log.info("[crawlFilesystem] Starting crawling on path : '{}'  (filter = {})", path, filterParameters);
+        EdmPathFilter filter = filterParameters.toPathFilter();
+        return edmCrawlJobManager.submit("filesystem " + path, getSink(edmServerHttpAddress), sink -> {
+            if (incremental) {
+                FilesystemCrawler.importModifiedFilesInDir(path, sink, sourceName, categoryName, filter, true, parallelism, getManifestFile(sourceName), checkContentHash);
+                return;
+            }
+            FilesystemCrawler.importFilesInDir(path, sink, sourceName, categoryName, filter, true, parallelism);
+        });
+    }
 
-        return "OK";
+    /**
+     * Changes under the directory are indexed continuously, until the returned job is cancelled
+     */
+    @RequestMapping(value = "/filesystem/watch", params = {"path"})
+    @ResponseStatus(value = HttpStatus.ACCEPTED)
+    @ResponseBody
+    public EdmCrawlJobStatus watchFilesystem(
+        @RequestParam(value = "path") String path,
+        @RequestParam(value = "edmServerHttpAddress", required = false) String edmServerHttpAddress,
+        @RequestParam(value = "sourceName", defaultValue = "unmanned source") String sourceName,
+        @RequestParam(value = "categoryName", defaultValue = "unmanned category") String categoryName,
+        EdmPathFilterParameters filterParameters,
+        @RequestParam(value = "debounceMs", defaultValue = "2000") long debounceMs
+    ) {
+        log.info("[watchFilesystem] Starting watching path : '{}'  (filter = {})", path, filterParameters);
+        EdmPathFilter filter = filterParameters.toPathFilter();
+        return edmCrawlJobManager.submit("watch " + path, getSink(edmServerHttpAddress),
+            sink -> FilesystemCrawler.watchFilesInDir(path, sink, sourceName, categoryName, filter, debounceMs));
     }
 
     /*
@@ -59,14 +141,16 @@ public class EdmCrawlingController {
      * @warning This will auto-create categories !
      */
     @RequestMapping(value = "/filesystem/subdirectories", params = {"path"})
+    @ResponseStatus(value = HttpStatus.ACCEPTED)
     @ResponseBody
-    public String crawlFilesystemSubdirectories(
+    public EdmCrawlJobStatus crawlFilesystemSubdirectories(
         @RequestParam(value = "path") String path,
-        @RequestParam(value = "edmServerHttpAddress", defaultValue = "http://194.146.38.32:8080") String edmServerHttpAddress,
-        @RequestParam(value = "exclusionRegex", defaultValue = "") String exclusionRegex
+        @RequestParam(value = "edmServerHttpAddress", required = false) String edmServerHttpAddress,
+        @RequestParam(value = "exclusionRegex", defaultValue = "") String exclusionRegex,
+        @RequestParam(value = "parallelism", defaultValue = "1") int parallelism
     ) {
         log.info("[crawlFilesystem] Starting crawling on path : '{}'  (exclusion = '{}')", path, exclusionRegex);
-        try {
+        return edmCrawlJobManager.submit("filesystem subdirectories " + path, getSink(edmServerHttpAddress), sink -> {
             String[] directories = new File(path).list((current, name) -> new File(current, name).isDirectory());
             if(directories.length>0){ // If has subdirs then, do clean index
                 edmCrawlingService.deleteAllDocuments();
@@ -74,46 +158,213 @@ public class EdmCrawlingController {
             // crawl root files
             String rootSanitizedSourceName = "Niamey"; //path.replaceAll(" ", "_").replaceAll("/", "_");
             String rootCategoryName = "Niamey";//FilenameUtils.getBaseName(path);
-            FilesystemCrawler.importFilesInDir(path, edmServerHttpAddress, rootSanitizedSourceName, rootCategoryName, exclusionRegex, false);
+            FilesystemCrawler.importFilesInDir(path, sink, rootSanitizedSourceName, rootCategoryName, exclusionRegex, false, parallelism);
 
             // crawl each subdirectory
             for (String directory : directories) {
+                if (sink.isCancelled()) {
+                    return;
+                }
                 log.debug("crawling directory {}", directory);
                 String sanitizedSourceName = (path + "/" + directory).replaceAll(" ", "_").replaceAll("/", "_");
                 String categoryName = directory; //FilenameUtils.getBaseName(directory);
-                FilesystemCrawler.importFilesInDir(path + "/" + directory, edmServerHttpAddress, sanitizedSourceName, categoryName, exclusionRegex);
+                FilesystemCrawler.importFilesInDir(path + "/" + directory, sink, sanitizedSourceName, categoryName, exclusionRegex, true, parallelism);
             }
+        });
+    }
 
-        } catch (IOException e) {
-            log.error("[crawlFilesystem] Failed to crawl '{}' with embedded crawler", path, e);
+    /**
+     * The crawl runs in background, follow it with the returned job. Urls are given by one or many {@code url}
+     * parameters, or by a seed file on the server (one url per line). With {@code incremental}, urls which were not
+     * modified since the previous crawl (conditional GET) are not downloaded again.
+     */
+    @RequestMapping(value = "/url")
+    @ResponseStatus(value = HttpStatus.ACCEPTED)
+    @ResponseBody
+    public EdmCrawlJobStatus crawlUrl(
+        @RequestParam(value = "url", required = false) List<String> urls,
+        @RequestParam(value = "seedFile", required = false) String seedFile,
+        @RequestParam(value = "edmServerHttpAddress", required = false) String edmServerHttpAddress,
+        @RequestParam(value = "sourceName", defaultValue = "unmanned source") String sourceName,
+        @RequestParam(value = "categoryName", defaultValue = "unmanned category") String categoryName,
+        EdmPathFilterParameters filterParameters,
+        @RequestParam(value = "maxConnections", defaultValue = "4") int maxConnections,
+        @RequestParam(value = "incremental", defaultValue = "false") boolean incremental
+    ) {
+        if ((urls == null || urls.isEmpty()) && seedFile == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "url or seedFile is required");
         }
-
-        return "OK";
+        String description = seedFile != null ? seedFile : urls.size() == 1 ? urls.get(0) : urls.size() + " urls";
+        log.info("[crawlUrl] Starting crawling on : '{}'  (filter = {})", description, filterParameters);
+        EdmPathFilter filter = filterParameters.toPathFilter();
+        return edmCrawlJobManager.submit("url " + description, getSink(edmServerHttpAddress), sink -> {
+            List<String> crawledUrls = seedFile != null ? UrlCrawler.readSeedFile(new File(seedFile)) : urls;
+            UrlCrawler.importFilesAtUrls(crawledUrls, sink, sourceName, categoryName, filter, maxConnections,
+                incremental ? getManifestFile(sourceName + ".urls") : null);
+        });
     }
 
-    @RequestMapping(value = "/url", params = {"url"})
+    /**
+     * The crawl runs in background, follow it with the returned job. Links of the pages are followed from the seed
+     * urls, up to {@code maxDepth}, on the hosts of the seed urls unless {@code host} parameters are given. Requests to
+     * a host are spaced by {@code politenessDelayMs}, robots.txt files are respected unless {@code respectRobots=false}.
+     */
+    @RequestMapping(value = "/site")
+    @ResponseStatus(value = HttpStatus.ACCEPTED)
     @ResponseBody
-    public String crawlUrl(
-        @RequestParam(value = "url") String url,
-        @RequestParam(value = "edmServerHttpAddress", defaultValue = "http://194.146.38.32:8080") String edmServerHttpAddress,
+    public EdmCrawlJobStatus crawlSite(
+        @RequestParam(value = "url") List<String> seeds,
+        @RequestParam(value = "edmServerHttpAddress", required = false) String edmServerHttpAddress,
         @RequestParam(value = "sourceName", defaultValue = "unmanned source") String sourceName,
         @RequestParam(value = "categoryName", defaultValue = "unmanned category") String categoryName,
-        @RequestParam(value = "exclusionRegex", defaultValue = "") String exclusionRegex
+        EdmPathFilterParameters filterParameters,
+        @RequestParam(value = "maxDepth", defaultValue = "3") int maxDepth,
+        @RequestParam(value = "host", required = false) List<String> hosts,
+        @RequestParam(value = "includeSubdomains", defaultValue = "false") boolean includeSubdomains,
+        @RequestParam(value = "politenessDelayMs", defaultValue = "1000") long politenessDelayMs,
+        @RequestParam(value = "respectRobots", defaultValue = "true") boolean respectRobots,
+        @RequestParam(value = "maxConnections", defaultValue = "4") int maxConnections,
+        @RequestParam(value = "incremental", defaultValue = "false") boolean incremental
     ) {
-        log.info("[crawlUrl] Starting crawling on path : '{}'  (exclusion = '{}')", url, exclusionRegex);
-        try {
-            UrlCrawler.importFilesAtUrl(url, edmServerHttpAddress, sourceName, categoryName, exclusionRegex);
-        } catch (IOException e) {
-            log.error("[crawlUrl] Failed to crawl '{}' with embedded crawler", url, e);
+        log.info("[crawlSite] Starting crawling from : {}  (max depth = {}, filter = {})", seeds, maxDepth, filterParameters);
+        EdmPathFilter filter = filterParameters.toPathFilter();
+        SiteCrawlOptions.SiteCrawlOptionsBuilder options = SiteCrawlOptions.builder()
+            .maxDepth(maxDepth)
+            .includeSubdomains(includeSubdomains)
+            .politenessDelayMs(politenessDelayMs)
+            .respectRobots(respectRobots)
+            .maxConnections(maxConnections);
+        if (hosts != null) {
+            options.hosts(hosts);
         }
+        return edmCrawlJobManager.submit("site " + seeds.get(0), getSink(edmServerHttpAddress), sink -> UrlCrawler.crawlSite(seeds, sink, sourceName,
+            categoryName, filter, options.build(), incremental ? getManifestFile(sourceName + ".site") : null));
+    }
+
+    @RequestMapping(value = "/jobs", method = RequestMethod.GET)
+    @ResponseBody
+    public List<EdmCrawlJobStatus> getJobs() {
+        return edmCrawlJobManager.getJobs();
+    }
+
+    @RequestMapping(value = "/jobs/{id}", method = RequestMethod.GET)
+    public ResponseEntity<EdmCrawlJobStatus> getJob(@PathVariable String id) {
+        return ResponseEntity.of(edmCrawlJobManager.getJob(id));
+    }
 
-        return "OK";
+    /**
+     * The crawler stops looking for files, documents which were not seen are kept in the index
+     */
+    @RequestMapping(value = "/jobs/{id}/cancel", method = RequestMethod.POST)
+    public ResponseEntity<EdmCrawlJobStatus> cancelJob(@PathVariable String id) {
+        return ResponseEntity.of(edmCrawlJobManager.cancel(id));
     }
 
+    /**
+     * The document goes through the ingestion pipeline, the request thread is released meanwhile. The answer is 200
+     * once the document is indexed, 422 if its extraction or its indexing failed, and 202 if it is still in the
+     * pipeline after {@code edm.pipeline.reply_timeout_seconds}.
+     */
     @RequestMapping(value = "/document", method = RequestMethod.POST)
     @ResponseBody
-    public EdmDocumentFile create(@RequestBody EdmDocumentFile edmDocument) {
-        return edmCrawlingService.save(edmDocument);
+    public DeferredResult<ResponseEntity<EdmDocumentFile>> create(@RequestBody EdmDocumentFile edmDocument) {
+        return reply(edmCrawlingService.submit(edmDocument));
+    }
+
+    /**
+     * Same as {@link #create(EdmDocumentFile)}, but the file is streamed as a multipart part instead of
+     * being base64 encoded in the JSON body
+     */
+    @RequestMapping(value = "/document/stream", method = RequestMethod.POST, consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    @ResponseBody
+    public DeferredResult<ResponseEntity<EdmDocumentFile>> createFromStream(@RequestPart("document") EdmDocumentFile edmDocument, @RequestPart("file") MultipartFile file) throws IOException {
+        return reply(edmCrawlingService.submit(edmDocument, file));
+    }
+
+    private DeferredResult<ResponseEntity<EdmDocumentFile>> reply(CompletableFuture<EdmDocumentFile> indexed) {
+        DeferredResult<ResponseEntity<EdmDocumentFile>> reply = new DeferredResult<>(TimeUnit.SECONDS.toMillis(replyTimeoutSeconds),
+            ResponseEntity.accepted().build());
+        indexed.whenComplete((edmDocument, e) -> {
+            if (e != null) {
+                reply.setErrorResult(e instanceof CompletionException ? e.getCause() : e);
+            } else {
+                reply.setResult(ResponseEntity.ok(edmDocument));
+            }
+        });
+        return reply;
+    }
+
+    @RequestMapping(value = "/pipeline", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Integer> getPipelineStatus() {
+        return edmIngestionPipeline.getStatus();
+    }
+
+    /**
+     * Number of documents, failures and timeouts of tika, by MIME type
+     */
+    @RequestMapping(value = "/extraction", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Map<String, Long>> getExtractionStatistics() {
+        return edmExtractionExecutor.getStatistics();
+    }
+
+    /**
+     * Progress of the deferred OCR of PDF files ({@code edm.ocr.deferred})
+     */
+    @RequestMapping(value = "/ocr", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Long> getOcrStatus() {
+        return edmOcrEnrichmentService.getStatus();
+    }
+
+    /**
+     * Index many documents in one request, returns the result of each document so the failed ones can be sent again
+     */
+    @RequestMapping(value = "/documents", method = RequestMethod.POST)
+    @ResponseBody
+    public List<EdmDocumentIndexingResult> createAll(@RequestBody List<EdmDocumentFile> edmDocuments) {
+        return edmCrawlingService.saveAll(edmDocuments);
+    }
+
+    @RequestMapping(value = "/document/delete", method = RequestMethod.POST, params = {"sourceId"})
+    @ResponseStatus(value = HttpStatus.OK)
+    public void delete(@RequestParam(value = "sourceId") String sourceId, @RequestBody List<String> nodePaths) {
+        edmCrawlingService.deleteDocuments(sourceId, nodePaths);
+    }
+
+    /**
+     * The crawler has to slow down and send the document again later
+     */
+    @ExceptionHandler(EdmIngestionQueueFullException.class)
+    public ResponseEntity<String> handleIngestionQueueFull(EdmIngestionQueueFullException e) {
+        log.debug("Refusing document : {}", e.getMessage());
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+            .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+            .body(e.getMessage());
+    }
+
+    /**
+     * The document was accepted but not indexed, sending it again as is would fail the same way
+     */
+    @ExceptionHandler(EdmIndexingException.class)
+    public ResponseEntity<String> handleIndexingFailure(EdmIndexingException e) {
+        log.debug("Document not indexed : {}", e.getMessage());
+        return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(e.getMessage());
+    }
+
+    /**
+     * Documents are given directly to this webapp, unless the crawl is for another EDM server
+     */
+    private EdmDocumentSink getSink(String edmServerHttpAddress) {
+        if (StringUtils.isEmpty(edmServerHttpAddress)) {
+            return edmInProcessSink;
+        }
+        return new EdmHttpSink(edmConnector, edmServerHttpAddress);
+    }
+
+    private File getManifestFile(String sourceName) {
+        return new File(edmCrawlerManifestDirectory, sourceName.replaceAll("[^a-zA-Z0-9_.-]", "_") + ".manifest");
     }
 
 }
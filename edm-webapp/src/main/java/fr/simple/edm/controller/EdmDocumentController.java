@@ -3,6 +3,8 @@ package fr.simple.edm.controller;
 import fr.simple.edm.domain.*;
 import fr.simple.edm.service.EdmAggregationsService;
 import fr.simple.edm.service.EdmDocumentService;
+import fr.simple.edm.service.EdmSearchCache;
+import fr.simple.edm.service.EdmSearchFilters;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.http.HttpStatus;
@@ -13,6 +15,7 @@ import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletResponse;
@@ -35,11 +38,34 @@ public class EdmDocumentController {
     @Inject
     private EdmAggregationsService edmAggregationsService;
 
+    @Inject
+    private EdmSearchCache edmSearchCache;
+
+    /**
+     * Searched documents can be selected with {@link EdmSearchFilters}
+     */
     @RequestMapping(value = "/document", params = {"q"})
     @ResponseBody
-    public EdmDocumentSearchResultWrapper search(@RequestParam(value = "q") String pattern) {
-        log.debug("Searched pattern : '{}'", pattern);
-        return edmDocumentService.search(pattern);
+    public EdmDocumentSearchResultWrapper search(@RequestParam(value = "q") String pattern, EdmSearchFilters filters,
+                                                 @RequestParam(value = "size", defaultValue = "0") int size,
+                                                 @RequestParam(value = "cursor", required = false) String cursor) {
+        log.debug("Searched pattern : '{}' (filters {}, size {}, cursor {})", pattern, filters, size, cursor);
+        try {
+            return edmDocumentService.search(pattern, filters, size, cursor);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    /**
+     * Same as the first page of {@link #search(String, EdmSearchFilters, int, String)}, with the aggregations and top terms of the search page,
+     * in a single query
+     */
+    @RequestMapping(value = "/document/search")
+    @ResponseBody
+    public EdmSearchWithAggregationsWrapper searchWithAggregations(@RequestParam(value = "q", defaultValue = "") String pattern, EdmSearchFilters filters) {
+        log.debug("Searched pattern with aggregations : '{}' (filters {})", pattern, filters);
+        return edmAggregationsService.searchWithAggregations(pattern, filters);
     }
 
     @RequestMapping(value = "/document/suggest", params = {"q"})
@@ -51,16 +77,22 @@ public class EdmDocumentController {
 
     @RequestMapping(value = "/document/top_terms")
     @ResponseBody
-    public EdmAggregationsWrapper getTerms(@RequestParam(value = "q", defaultValue = "") String pattern) {
+    public EdmAggregationsWrapper getTerms(@RequestParam(value = "q", defaultValue = "") String pattern, EdmSearchFilters filters) {
         log.debug("Get relative terms for pattern : '{}'", pattern);
-        return edmAggregationsService.getTopTerms(pattern);
+        return edmAggregationsService.getTopTerms(pattern, filters);
     }
 
     @RequestMapping(value = "/document/aggregations")
     @ResponseBody
-    public Map<String, EdmAggregationsWrapper> getAggregations(@RequestParam(value = "q", defaultValue = "") String pattern) {
+    public Map<String, EdmAggregationsWrapper> getAggregations(@RequestParam(value = "q", defaultValue = "") String pattern, EdmSearchFilters filters) {
         log.debug("Get relative terms for pattern : '{}'", pattern);
-        return edmAggregationsService.getAggregations(pattern);
+        return edmAggregationsService.getAggregations(pattern, filters);
+    }
+
+    @RequestMapping(value = "/document/cache/statistics")
+    @ResponseBody
+    public Map<String, Long> getSearchCacheStatistics() {
+        return edmSearchCache.getStatistics();
     }
 
     @RequestMapping(value = "/files", params = {"docId"})
@@ -0,0 +1,60 @@
+package fr.simple.edm.controller;
+
+import fr.simple.edm.crawler.bridge.EdmPathFilter;
+import lombok.Data;
+import org.springframework.format.annotation.DateTimeFormat;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Optional request parameters selecting the crawled files, lists are comma separated.
+ *
+ * For example : {@code includeGlobs=*.pdf,*.odt&excludeGlobs=**&#47;.git/**&maxSize=10485760}
+ */
+@Data
+public class EdmPathFilterParameters {
+
+    private String exclusionRegex = "";
+
+    private List<String> includeRegexes = new ArrayList<>();
+
+    private List<String> includeGlobs = new ArrayList<>();
+
+    private List<String> excludeGlobs = new ArrayList<>();
+
+    private List<String> extensions = new ArrayList<>();
+
+    private List<String> excludedExtensions = new ArrayList<>();
+
+    // in bytes
+    private Long minSize;
+
+    // in bytes, 100 MB by default
+    private Long maxSize;
+
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+    private Date modifiedAfter;
+
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+    private Date modifiedBefore;
+
+    /**
+     * Build one filter per crawl, it counts the files it rejected
+     */
+    public EdmPathFilter toPathFilter() {
+        return EdmPathFilter.builder()
+            .excludeRegex(exclusionRegex)
+            .includeRegexes(includeRegexes)
+            .includeGlobs(includeGlobs)
+            .excludeGlobs(excludeGlobs)
+            .allowedExtensions(extensions)
+            .deniedExtensions(excludedExtensions)
+            .minSize(minSize)
+            .maxSize(maxSize)
+            .modifiedAfter(modifiedAfter)
+            .modifiedBefore(modifiedBefore)
+            .build();
+    }
+}
@@ -5,27 +5,43 @@ import fr.simple.edm.repository.EdmDocumentRepository;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.lucene.util.automaton.RegExp;
 import org.elasticsearch.action.search.SearchPhaseExecutionException;
+import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.Operator;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.global.Global;
 import org.elasticsearch.search.aggregations.bucket.range.DateRangeAggregationBuilder;
 import org.elasticsearch.search.aggregations.bucket.range.InternalDateRange;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.elasticsearch.search.aggregations.bucket.terms.IncludeExclude;
 
 import javax.inject.Inject;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-
-import static java.util.stream.Collectors.joining;
+import java.util.Set;
+
+import static fr.simple.edm.service.EdmDocumentService.CATEGORY_FILTER;
+import static fr.simple.edm.service.EdmDocumentService.FILE_DATE_FILTER;
+import static fr.simple.edm.service.EdmDocumentService.FILE_EXTENSION_FILTER;
+import static fr.simple.edm.service.EdmDocumentService.filtered;
+import static fr.simple.edm.service.EdmDocumentService.getAggregation;
+import static fr.simple.edm.service.EdmDocumentService.toFilterQuery;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 import static org.springframework.data.util.StreamUtils.createStreamFromIterator;
 
 @Service
@@ -34,6 +50,10 @@ public class EdmAggregationsService {
 
     private static final int TOP_TERMS_MAX_COUNT = 10;
     private static final int FILE_EXTENSIONS_MAX_COUNT = 20;
+    private static final String DOCUMENTS_COUNT_AGGREGATION = "agg_documentsCount";
+
+    // filters with an aggregation, which counts the documents of its other values when they are selected
+    private static final Set<String> FACET_FILTERS = new HashSet<>(Arrays.asList(CATEGORY_FILTER, FILE_EXTENSION_FILTER, FILE_DATE_FILTER));
 
     @Inject
     private EdmDocumentRepository edmDocumentRepository;
@@ -47,26 +67,86 @@ public class EdmAggregationsService {
     @Inject
     private Client elasticsearchClient;
 
+    @Inject
+    private EdmSearchCache edmSearchCache;
+
     @Value("${edm.top_terms.exlusion_regex}")
     private String edmTopTermsExlusionRegex;
 
 
     public Map<String, EdmAggregationsWrapper> getAggregations(String pattern) {
+        return getAggregations(pattern, new EdmSearchFilters());
+    }
+
+    public Map<String, EdmAggregationsWrapper> getAggregations(String pattern, EdmSearchFilters filters) {
+        SearchRequestBuilder request = elasticsearchClient.prepareSearch("document_file").setTypes("document_file")
+            .setQuery(edmDocumentService.getEdmQueryForPattern(pattern, filters, FACET_FILTERS))
+            .setSize(0);
+        addAggregations(request, getFacetClauses(filters));
+
+        try {
+            return edmSearchCache.get("aggregations?" + filters, pattern, () -> toAggregations(request.execute().actionGet()));
+        } catch (SearchPhaseExecutionException e) {
+            log.warn("Failed to submit getAggregations, empty result ; may failed to parse pattern ({}, more log to debug it !) : {}", e.getMessage(), pattern);
+        }
+
         Map<String, EdmAggregationsWrapper> aggregations = new HashMap<>();
-        aggregations.put("fileExtension", getAggregationExtensions(pattern));
-        aggregations.put("fileDate", getAggregationDate(pattern));
-        aggregations.put("fileCategory", getAggregationCategories(pattern));
+        aggregations.put("fileExtension", new EdmAggregationsWrapper());
+        aggregations.put("fileDate", new EdmAggregationsWrapper());
+        aggregations.put("fileCategory", new EdmAggregationsWrapper());
         return aggregations;
     }
 
     /**
-     * When you search a document, this query is executed
-     *
-     * @param pattern The searched pattern
-     * @return The adapted query
+     * Search documents, with every aggregation and the top terms, in a single query
+     */
+    public EdmSearchWithAggregationsWrapper searchWithAggregations(String pattern) {
+        return searchWithAggregations(pattern, new EdmSearchFilters());
+    }
+
+    /**
+     * Facet filters are post filters of the search : the hits and top terms are filtered, each aggregation is only filtered by
+     * the other facets
+     */
+    public EdmSearchWithAggregationsWrapper searchWithAggregations(String pattern, EdmSearchFilters filters) {
+        SearchRequestBuilder request = edmDocumentService.prepareSearch(pattern, filters, FACET_FILTERS);
+        Map<String, QueryBuilder> facetClauses = getFacetClauses(filters);
+        addAggregations(request, facetClauses);
+        addTopTermsAggregations(request, toFilterQuery(facetClauses, filter -> true));
+
+        try {
+            return edmSearchCache.get("searchWithAggregations?" + filters, pattern, () -> {
+                SearchResponse response = request.execute().actionGet();
+                return new EdmSearchWithAggregationsWrapper(edmDocumentService.toSearchResultWrapper(response), toAggregations(response), toTopTerms(response));
+            });
+        } catch (SearchPhaseExecutionException e) {
+            log.warn("Failed to submit searchWithAggregations, empty result ; may failed to parse pattern ({}, more log to debug it !) : {}", e.getMessage(), pattern);
+        }
+
+        return new EdmSearchWithAggregationsWrapper(new EdmDocumentSearchResultWrapper(), new HashMap<>(), new EdmAggregationsWrapper());
+    }
+
+    /**
+     * @param facetClauses The facet filters left out of the query
      */
-    private QueryBuilder getEdmQueryForPattern(String pattern) {
-        return edmDocumentService.getEdmQueryForPattern(pattern);
+    private void addAggregations(SearchRequestBuilder request, Map<String, QueryBuilder> facetClauses) {
+        request.addAggregation(filtered(getAggregationExtensionsBuilder(), toFilterQuery(facetClauses, filter -> !filter.equals(FILE_EXTENSION_FILTER))))
+            .addAggregation(filtered(getAggregationDateBuilder(), toFilterQuery(facetClauses, filter -> !filter.equals(FILE_DATE_FILTER))))
+            .addAggregation(filtered(getAggregationCategoriesBuilder(), toFilterQuery(facetClauses, filter -> !filter.equals(CATEGORY_FILTER))));
+    }
+
+    private Map<String, QueryBuilder> getFacetClauses(EdmSearchFilters filters) {
+        Map<String, QueryBuilder> clauses = edmDocumentService.getFilterClauses(filters);
+        clauses.keySet().retainAll(FACET_FILTERS);
+        return clauses;
+    }
+
+    private Map<String, EdmAggregationsWrapper> toAggregations(SearchResponse response) {
+        Map<String, EdmAggregationsWrapper> aggregations = new HashMap<>();
+        aggregations.put("fileExtension", getAggregationExtensions(response.getAggregations()));
+        aggregations.put("fileDate", getAggregationDate(response.getAggregations()));
+        aggregations.put("fileCategory", getAggregationCategories(response.getAggregations()));
+        return aggregations;
     }
 
     public EdmSuggestionsWrapper getSuggestions(String wordPrefix) {
@@ -78,34 +158,38 @@ public class EdmAggregationsService {
         return new EdmSuggestionsWrapper(createStreamFromIterator(edmDocumentRepository.search(qb).iterator()).collect(toList()));
     }
 
-    private EdmAggregationsWrapper getAggregationExtensions(String relativeWordSearch) {
-        QueryBuilder query = getEdmQueryForPattern(relativeWordSearch);
-        TermsAggregationBuilder aggregationBuilder = AggregationBuilders.terms("agg_fileExtension").field("fileExtension.keyword").size(FILE_EXTENSIONS_MAX_COUNT);
+    /**
+     * When passages are indexed, buckets count distinct documents instead of hits
+     */
+    private <T extends AbstractAggregationBuilder<T>> T countDocuments(T aggregationBuilder) {
+        if (edmDocumentService.isChunkingEnabled()) {
+            aggregationBuilder.subAggregation(AggregationBuilders.cardinality(DOCUMENTS_COUNT_AGGREGATION).field("parentId"));
+        }
+        return aggregationBuilder;
+    }
 
-        try {
-            SearchResponse response = elasticsearchClient.prepareSearch("document_file").setTypes("document_file")
-                .setQuery(query)
-                .addAggregation(aggregationBuilder)
-                .execute().actionGet();
-            Terms terms = response.getAggregations().get("agg_fileExtension");
-
-            return new EdmAggregationsWrapper(
-                terms.getBuckets().stream()
-                .map(
-                    bucket -> new EdmAggregationItem(bucket.getKeyAsString(), bucket.getDocCount())
-                )
-                .collect(toList())
-            );
+    private long getDocCount(MultiBucketsAggregation.Bucket bucket) {
+        Cardinality documentsCount = bucket.getAggregations().get(DOCUMENTS_COUNT_AGGREGATION);
+        return documentsCount != null ? documentsCount.getValue() : bucket.getDocCount();
+    }
 
-        } catch (SearchPhaseExecutionException e) {
-            log.warn("Failed to submit getAggregationExtensions, empty result ; may failed to parse relativeWordSearch ({}, more log to debug it !) : {}", e.getMessage(), relativeWordSearch);
-        }
+    private TermsAggregationBuilder getAggregationExtensionsBuilder() {
+        return countDocuments(AggregationBuilders.terms("agg_fileExtension").field("fileExtension.keyword").size(FILE_EXTENSIONS_MAX_COUNT));
+    }
 
-        return new EdmAggregationsWrapper();
+    private EdmAggregationsWrapper getAggregationExtensions(Aggregations aggregations) {
+        Terms terms = getAggregation(aggregations, "agg_fileExtension");
+
+        return new EdmAggregationsWrapper(
+            terms.getBuckets().stream()
+            .map(
+                bucket -> new EdmAggregationItem(bucket.getKeyAsString(), getDocCount(bucket))
+            )
+            .collect(toList())
+        );
     }
-  
-    private EdmAggregationsWrapper getAggregationDate(String relativeWordSearch) {
-        QueryBuilder query = getEdmQueryForPattern(relativeWordSearch);
+
+    private DateRangeAggregationBuilder getAggregationDateBuilder() {
         DateRangeAggregationBuilder aggregationBuilder = AggregationBuilders.dateRange("agg_date").field("fileDate");
 
         // last_25_years
@@ -121,66 +205,34 @@ public class EdmAggregationsService {
         // until now
         aggregationBuilder.addUnboundedTo("until_now", "now");
 
-        try {
-            SearchResponse response = elasticsearchClient.prepareSearch("document_file").setTypes("document_file")
-                .setQuery(query)
-                .addAggregation(aggregationBuilder)
-                .execute().actionGet();
-
-            InternalDateRange buckets = response.getAggregations().get("agg_date");
-
-            return new EdmAggregationsWrapper(
-                buckets.getBuckets().stream()
-                .map(
-                    bucket -> new EdmAggregationItem(bucket.getKeyAsString(), bucket.getDocCount())
-                )
-                .collect(toList())
-            );
+        return countDocuments(aggregationBuilder);
+    }
 
-        } catch (SearchPhaseExecutionException e) {
-            log.warn("Failed to submit getAggregationDate, empty result ; may failed to parse relativeWordSearch ({}, more log to debug it !) : {}", e.getMessage(), relativeWordSearch);
-        }
+    private EdmAggregationsWrapper getAggregationDate(Aggregations aggregations) {
+        InternalDateRange buckets = getAggregation(aggregations, "agg_date");
 
-        return new EdmAggregationsWrapper();
+        return new EdmAggregationsWrapper(
+            buckets.getBuckets().stream()
+            .map(
+                bucket -> new EdmAggregationItem(bucket.getKeyAsString(), getDocCount(bucket))
+            )
+            .collect(toList())
+        );
     }
 
 
     public EdmAggregationsWrapper getTopTerms(String relativeWordSearch) {
-        // the query
-        QueryBuilder query = getEdmQueryForPattern(relativeWordSearch);
-
-        String filesExtensions = getAggregationExtensions(null).getAggregates().stream()
-            .map(edmBasicAggregationItem -> edmBasicAggregationItem.getKey())
-            .collect(joining("|"));
+        return getTopTerms(relativeWordSearch, new EdmSearchFilters());
+    }
 
-			String myRegex = filesExtensions;
-			if(edmTopTermsExlusionRegex !=null && !edmTopTermsExlusionRegex.isEmpty()){
-				myRegex = edmTopTermsExlusionRegex + "|" + myRegex;
-			} else {
-				log.warn("####### myRegex NO terms  = ## " + myRegex);
-			}
+    public EdmAggregationsWrapper getTopTerms(String relativeWordSearch, EdmSearchFilters filters) {
+        SearchRequestBuilder request = elasticsearchClient.prepareSearch("document_file").setTypes("document_file")
+            .setQuery(edmDocumentService.getEdmQueryForPattern(relativeWordSearch, filters, Collections.emptySet()))
+            .setSize(0);
+        addTopTermsAggregations(request, null);
 
         try {
-			TermsAggregationBuilder aggregationBuilder = AggregationBuilders.terms("agg_nodePath")
-            .field("nodePath.simple")
-            .includeExclude(new IncludeExclude(null, new RegExp(myRegex)))
-            .size(TOP_TERMS_MAX_COUNT);
-            // execute
-            SearchResponse response = elasticsearchClient.prepareSearch("document_file").setTypes("document_file")
-                .setQuery(query)
-                .addAggregation(aggregationBuilder)
-                .execute().actionGet();
-
-            Terms terms = response.getAggregations().get("agg_nodePath");
-
-            return new EdmAggregationsWrapper(
-                terms.getBuckets().stream()
-                .map(
-                    bucket -> new EdmAggregationItem(bucket.getKeyAsString(), bucket.getDocCount())
-                )
-                .collect(toList())
-            );
-
+            return edmSearchCache.get("topTerms?" + filters, relativeWordSearch, () -> toTopTerms(request.execute().actionGet()));
         } catch (SearchPhaseExecutionException e) {
             log.warn("Failed to submit top terms, empty result ; may failed to parse relativeWordSearch ({}, more log to debug it !) : {}", e.getMessage(), relativeWordSearch);
         }
@@ -188,38 +240,65 @@ public class EdmAggregationsService {
         return new EdmAggregationsWrapper();
     }
 
+    /**
+     * Top terms of the node paths, without the file extensions indexed.
+     * Extensions of the whole index come from a global aggregation in the same query, so more terms are
+     * requested and extensions are removed from the response.
+     *
+     * @param hitsFilter The post filter of the search, null without
+     */
+    private void addTopTermsAggregations(SearchRequestBuilder request, QueryBuilder hitsFilter) {
+        TermsAggregationBuilder aggregationBuilder = AggregationBuilders.terms("agg_nodePath")
+            .field("nodePath.simple")
+            .size(TOP_TERMS_MAX_COUNT + FILE_EXTENSIONS_MAX_COUNT);
 
-    public EdmAggregationsWrapper getAggregationCategories(String relativeWordSearch) {
-        // the query
-        QueryBuilder query = getEdmQueryForPattern(relativeWordSearch);
+        if (edmTopTermsExlusionRegex != null && !edmTopTermsExlusionRegex.isEmpty()) {
+            aggregationBuilder.includeExclude(new IncludeExclude(null, new RegExp(edmTopTermsExlusionRegex)));
+        } else {
+            log.warn("No 'edm.top_terms.exlusion_regex', only file extensions are excluded from top terms");
+        }
 
-        TermsAggregationBuilder aggregationBuilder = AggregationBuilders.terms("agg_categoryId")
-            .field("categoryId.keyword");
+        request.addAggregation(filtered(countDocuments(aggregationBuilder), hitsFilter))
+            .addAggregation(AggregationBuilders.global("agg_global").subAggregation(getAggregationExtensionsBuilder()));
+    }
 
-        try {
-            // execute
-            SearchResponse response = elasticsearchClient.prepareSearch("document_file").setTypes("document_file")
-                .setQuery(query)
-                .addAggregation(aggregationBuilder)
-                .execute().actionGet();
-
-            Terms terms = response.getAggregations().get("agg_categoryId");
-
-            return new EdmAggregationsWrapper(
-                terms.getBuckets().stream()
-                    .map(
-                        bucket -> {
-                            EdmCategory edmCategory = edmCategoryService.findOne(bucket.getKeyAsString());
-                            return EdmCategoryAggregationItem.builder().key(edmCategory.getName()).docCount(bucket.getDocCount()).category(edmCategory).build();
-                        }
-                    )
-                    .collect(toList())
-            );
+    private EdmAggregationsWrapper toTopTerms(SearchResponse response) {
+        Global global = response.getAggregations().get("agg_global");
+        Set<String> filesExtensions = getAggregationExtensions(global.getAggregations()).getAggregates().stream()
+            .map(edmBasicAggregationItem -> edmBasicAggregationItem.getKey())
+            .collect(toSet());
+
+        Terms terms = getAggregation(response.getAggregations(), "agg_nodePath");
+
+        return new EdmAggregationsWrapper(
+            terms.getBuckets().stream()
+            .filter(bucket -> !filesExtensions.contains(bucket.getKeyAsString()))
+            .limit(TOP_TERMS_MAX_COUNT)
+            .map(
+                bucket -> new EdmAggregationItem(bucket.getKeyAsString(), getDocCount(bucket))
+            )
+            .collect(toList())
+        );
+    }
 
-        } catch (SearchPhaseExecutionException e) {
-            log.warn("Failed to submit top terms, empty result ; may failed to parse relativeWordSearch ({}, more log to debug it !) : {}", e.getMessage(), relativeWordSearch);
-        }
 
-        return new EdmAggregationsWrapper();
+    private TermsAggregationBuilder getAggregationCategoriesBuilder() {
+        return countDocuments(AggregationBuilders.terms("agg_categoryId")
+            .field("categoryId.keyword"));
+    }
+
+    private EdmAggregationsWrapper getAggregationCategories(Aggregations aggregations) {
+        Terms terms = getAggregation(aggregations, "agg_categoryId");
+
+        return new EdmAggregationsWrapper(
+            terms.getBuckets().stream()
+                .map(
+                    bucket -> {
+                        EdmCategory edmCategory = edmCategoryService.findOne(bucket.getKeyAsString());
+                        return EdmCategoryAggregationItem.builder().key(edmCategory.getName()).docCount(getDocCount(bucket)).category(edmCategory).build();
+                    }
+                )
+                .collect(toList())
+        );
     }
 }
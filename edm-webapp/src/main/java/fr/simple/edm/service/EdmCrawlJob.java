@@ -0,0 +1,242 @@
+package fr.simple.edm.service;
+
+import fr.simple.edm.crawler.bridge.EdmDocumentSink;
+import fr.simple.edm.domain.EdmCrawlJobStatus;
+import fr.simple.edm.domain.EdmCrawlJobStatus.State;
+import fr.simple.edm.domain.EdmDocumentFile;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A crawl running in background. It wraps the sink the crawler sends its documents to, so documents are counted,
+ * and the crawler stops once the job is cancelled.
+ */
+@Slf4j
+public class EdmCrawlJob implements EdmDocumentSink {
+
+    @FunctionalInterface
+    public interface Crawl {
+        void run(EdmDocumentSink sink) throws IOException;
+    }
+
+    @Getter
+    private final String id;
+
+    @Getter
+    private final String description;
+
+    private final EdmDocumentSink delegate;
+
+    private final Crawl crawl;
+
+    // files seen by the previous crawl with the same description, may be null
+    private final Long expectedFiles;
+
+    private final Date submissionDate = new Date();
+
+    private volatile Date startDate;
+
+    private volatile Date endDate;
+
+    @Getter
+    private volatile State state = State.QUEUED;
+
+    private volatile boolean cancelled = false;
+
+    private volatile String error;
+
+    private final AtomicLong filesSeen = new AtomicLong();
+
+    // confirmed by the sink, whose futures complete once the documents are indexed, and fail otherwise
+    private final AtomicLong filesIndexed = new AtomicLong();
+
+    private final AtomicLong filesSkipped = new AtomicLong();
+
+    private final AtomicLong filesFailed = new AtomicLong();
+
+    // bytes of the indexed files only
+    private final AtomicLong bytesProcessed = new AtomicLong();
+
+    EdmCrawlJob(String id, String description, EdmDocumentSink delegate, Crawl crawl, Long expectedFiles) {
+        this.id = id;
+        this.description = description;
+        this.delegate = delegate;
+        this.crawl = crawl;
+        this.expectedFiles = expectedFiles;
+    }
+
+    void run() {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            startDate = new Date();
+            state = State.RUNNING;
+        }
+        log.info("Crawl job {} started : {}", id, description);
+
+        try {
+            crawl.run(this);
+            state = cancelled ? State.CANCELLED : State.COMPLETED;
+        } catch (Exception e) {
+            log.error("Crawl job {} failed : {}", id, description, e);
+            error = e.getMessage();
+            state = cancelled ? State.CANCELLED : State.FAILED;
+        } finally {
+            endDate = new Date();
+        }
+        log.info("Crawl job {} is {} : {} file(s) indexed, {} skipped, {} failed", id, state, filesIndexed.get(), filesSkipped.get(), filesFailed.get());
+    }
+
+    /**
+     * A queued job will not start, a running crawl stops looking for files. Files being sent are not interrupted.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        if (state == State.QUEUED) {
+            state = State.CANCELLED;
+            endDate = new Date();
+        }
+    }
+
+    boolean isFinished() {
+        return state != State.QUEUED && state != State.RUNNING;
+    }
+
+    public EdmCrawlJobStatus getStatus() {
+        long processed = filesIndexed.get() + filesSkipped.get() + filesFailed.get();
+
+        double filesPerSecond = 0;
+        Long etaSeconds = null;
+        Date start = startDate;
+        if (start != null) {
+            Date end = endDate;
+            long elapsedMs = (end != null ? end.getTime() : System.currentTimeMillis()) - start.getTime();
+            if (elapsedMs > 0) {
+                filesPerSecond = processed * 1000d / elapsedMs;
+            }
+            if (state == State.RUNNING && filesPerSecond > 0) {
+                // the previous crawl is the best guess, files are still being listed
+                long expected = Math.max(filesSeen.get(), expectedFiles == null ? 0 : expectedFiles);
+                etaSeconds = Math.max(0, Math.round((expected - processed) / filesPerSecond));
+            }
+        }
+
+        return EdmCrawlJobStatus.builder()
+            .id(id)
+            .description(description)
+            .state(state)
+            .submissionDate(submissionDate)
+            .startDate(startDate)
+            .endDate(endDate)
+            .filesSeen(filesSeen.get())
+            .filesIndexed(filesIndexed.get())
+            .filesSkipped(filesSkipped.get())
+            .filesFailed(filesFailed.get())
+            .bytesProcessed(bytesProcessed.get())
+            .filesPerSecond(filesPerSecond)
+            .etaSeconds(etaSeconds)
+            .error(error)
+            .build();
+    }
+
+    @Override
+    public String getIdFromCategoryByCategoryName(String categoryName) {
+        return delegate.getIdFromCategoryByCategoryName(categoryName);
+    }
+
+    @Override
+    public String getIdFromSourceBySourceName(String sourceName, String categoryId) {
+        return delegate.getIdFromSourceBySourceName(sourceName, categoryId);
+    }
+
+    @Override
+    public void notifyStartCrawling(String sourceName) throws IOException {
+        delegate.notifyStartCrawling(sourceName);
+    }
+
+    @Override
+    public void notifyEndOfCrawling(String sourceName) throws IOException {
+        delegate.notifyEndOfCrawling(sourceName);
+    }
+
+    @Override
+    public void saveEdmDocument(EdmDocumentFile doc, File file) throws IOException {
+        long length = file.length();
+        try {
+            delegate.saveEdmDocument(doc, file);
+        } catch (IOException | RuntimeException e) {
+            filesFailed.incrementAndGet();
+            throw e;
+        }
+        filesIndexed.incrementAndGet();
+        bytesProcessed.addAndGet(length);
+    }
+
+    /**
+     * Streamed to the sink, which may keep it in memory
+     */
+    @Override
+    public void saveEdmDocumentStream(EdmDocumentFile doc, InputStream content, long contentLength) throws IOException {
+        CountingInputStream countingContent = new CountingInputStream(content);
+        try {
+            delegate.saveEdmDocumentStream(doc, countingContent, contentLength);
+        } catch (IOException | RuntimeException e) {
+            filesFailed.incrementAndGet();
+            throw e;
+        }
+        filesIndexed.incrementAndGet();
+        bytesProcessed.addAndGet(countingContent.getByteCount());
+    }
+
+    @Override
+    public CompletableFuture<Void> saveEdmDocumentAsync(EdmDocumentFile doc, File file) throws IOException {
+        long length = file.length();
+        CompletableFuture<Void> saved;
+        try {
+            saved = delegate.saveEdmDocumentAsync(doc, file);
+        } catch (IOException | RuntimeException e) {
+            filesFailed.incrementAndGet();
+            throw e;
+        }
+        return saved.whenComplete((result, e) -> {
+            if (e != null) {
+                filesFailed.incrementAndGet();
+            } else {
+                filesIndexed.incrementAndGet();
+                bytesProcessed.addAndGet(length);
+            }
+        });
+    }
+
+    @Override
+    public void deleteEdmDocuments(String sourceId, List<String> nodePaths) {
+        delegate.deleteEdmDocuments(sourceId, nodePaths);
+    }
+
+    @Override
+    public void onFileFound(String nodePath) {
+        filesSeen.incrementAndGet();
+        delegate.onFileFound(nodePath);
+    }
+
+    @Override
+    public void onFileSkipped(String nodePath) {
+        filesSkipped.incrementAndGet();
+        delegate.onFileSkipped(nodePath);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled || delegate.isCancelled();
+    }
+}
@@ -0,0 +1,128 @@
+package fr.simple.edm.service;
+
+import fr.simple.edm.crawler.bridge.EdmDocumentSink;
+import fr.simple.edm.domain.EdmCrawlJobStatus;
+import fr.simple.edm.domain.EdmCrawlJobStatus.State;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run crawls in background, so the HTTP request which starts a crawl returns at once with a job to follow.
+ *
+ * At most {@code edm.crawl_jobs.max_concurrent} crawls run at the same time, the next ones are queued.
+ * Only the last {@code edm.crawl_jobs.history_size} finished jobs are kept.
+ */
+@Service
+@Slf4j
+public class EdmCrawlJobManager {
+
+    @Value("${edm.crawl_jobs.max_concurrent:2}")
+    private int maxConcurrentJobs;
+
+    @Value("${edm.crawl_jobs.history_size:50}")
+    private int historySize;
+
+    private ExecutorService executor;
+
+    // by id, in submission order
+    private final Map<String, EdmCrawlJob> jobs = new LinkedHashMap<>();
+
+    // files seen by the last completed job, by description, to estimate the remaining time of the next one
+    private final Map<String, Long> lastFilesSeen = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxConcurrentJobs, maxConcurrentJobs, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "edm-crawl-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    @PreDestroy
+    public void stop() {
+        synchronized (jobs) {
+            jobs.values().forEach(EdmCrawlJob::cancel);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * @param description What is crawled, jobs with the same description are considered as the same crawl
+     * @param sink        Where the crawler sends documents
+     * @return The job, queued or already running
+     */
+    public EdmCrawlJobStatus submit(String description, EdmDocumentSink sink, EdmCrawlJob.Crawl crawl) {
+        EdmCrawlJob job = new EdmCrawlJob(UUID.randomUUID().toString(), description, sink, crawl, lastFilesSeen.get(description));
+        synchronized (jobs) {
+            jobs.put(job.getId(), job);
+            removeOldestFinishedJobs();
+        }
+
+        executor.execute(() -> {
+            job.run();
+            if (job.getState() == State.COMPLETED) {
+                lastFilesSeen.put(description, job.getStatus().getFilesSeen());
+            }
+        });
+        log.info("Crawl job {} submitted : {}", job.getId(), description);
+        return job.getStatus();
+    }
+
+    public Optional<EdmCrawlJobStatus> getJob(String id) {
+        synchronized (jobs) {
+            return Optional.ofNullable(jobs.get(id)).map(EdmCrawlJob::getStatus);
+        }
+    }
+
+    public List<EdmCrawlJobStatus> getJobs() {
+        List<EdmCrawlJobStatus> statuses = new ArrayList<>();
+        synchronized (jobs) {
+            jobs.values().forEach(job -> statuses.add(job.getStatus()));
+        }
+        return statuses;
+    }
+
+    public Optional<EdmCrawlJobStatus> cancel(String id) {
+        synchronized (jobs) {
+            EdmCrawlJob job = jobs.get(id);
+            if (job == null) {
+                return Optional.empty();
+            }
+            log.info("Cancelling crawl job {}", id);
+            job.cancel();
+            return Optional.of(job.getStatus());
+        }
+    }
+
+    private void removeOldestFinishedJobs() {
+        long finished = jobs.values().stream().filter(EdmCrawlJob::isFinished).count();
+        Iterator<EdmCrawlJob> iterator = jobs.values().iterator();
+        while (finished > historySize && iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+                finished--;
+            }
+        }
+    }
+}
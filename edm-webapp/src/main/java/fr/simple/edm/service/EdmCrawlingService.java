@@ -1,31 +1,46 @@
 package fr.simple.edm.service;
 
 import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmDocumentIndexingResult;
 import fr.simple.edm.domain.EdmSource;
 import fr.simple.edm.repository.EdmDocumentRepository;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
+import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 @Service
 @Slf4j
 public class EdmCrawlingService {
 
-    // Map<source, List<documentId>>, is used to delete removed document at re-indexation
-    private static Map<String, List<String>> sourceDocumentsIds;
+    // Map<sourceId, generation of the current crawl>, documents of older generations are deleted at the end of the crawl
+    private final Map<String, Long> sourceCrawlGenerations = new ConcurrentHashMap<>();
 
-    static {
-        sourceDocumentsIds = new HashMap<>();
-    }
+    // sweeps wait in background for the documents of their crawl still in the ingestion pipeline
+    private final ExecutorService sweepExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "edm-sweep");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Value("${edm.pipeline.sweep_timeout_seconds:3600}")
+    private long sweepTimeoutSeconds;
 
     @Inject
     private EdmDocumentService edmDocumentService;
@@ -33,74 +48,168 @@ public class EdmCrawlingService {
     private EdmDocumentRepository edmDocumentRepository;
     @Inject
     private EdmSourceService edmSourceService;
+    @Inject
+    private EdmIngestionPipeline edmIngestionPipeline;
+    @Inject
+    private EdmSearchCache edmSearchCache;
 
     public EdmDocumentFile save(EdmDocumentFile edmDocument) {
-        edmDocument = edmDocumentService.save(edmDocument);
-        if (sourceDocumentsIds.get(edmDocument.getSourceId()) != null) {
-            sourceDocumentsIds.get(edmDocument.getSourceId()).remove(edmDocument.getId());
-        } else {
-            log.warn("Indexing document without source (have you hit /crawl/start first ?");
-        }
-        return edmDocument;
+        stampCrawlGeneration(edmDocument);
+        return edmDocumentService.save(edmDocument);
     }
 
-    public void snapshotCurrentDocumentsForSource(String sourceName) {
+    /**
+     * Queue the document in the ingestion pipeline, it will be indexed asynchronously
+     *
+     * @return The document as indexed (without its content) once it is, failed with {@link EdmIndexingException} if
+     * its extraction or its indexing failed
+     * @throws EdmIngestionQueueFullException If the pipeline can not accept more documents
+     */
+    public CompletableFuture<EdmDocumentFile> submit(EdmDocumentFile edmDocument) {
+        return submit(edmDocument, edmDocument.getBinaryFileContent() == null ? null : new ByteArrayResource(edmDocument.getBinaryFileContent()), null);
+    }
 
-        EdmSource source = edmSourceService.findOneByName(sourceName);
-        if (StringUtils.isEmpty(source.getId())) {
-            return;
+    /**
+     * Same as {@link #submit(EdmDocumentFile)}, the uploaded file is moved to a temporary file
+     * which lives until the extraction is done
+     */
+    public CompletableFuture<EdmDocumentFile> submit(EdmDocumentFile edmDocument, MultipartFile file) throws IOException {
+        File tmpFile = File.createTempFile("edm-ingestion-", ".tmp");
+        try {
+            file.transferTo(tmpFile);
+            return submit(edmDocument, new FileSystemResource(tmpFile), tmpFile::delete);
+        } catch (IOException | RuntimeException e) {
+            tmpFile.delete();
+            throw e;
         }
-        String sourceId = source.getId();
+    }
 
-        List<String> edmDocumentsIds = new ArrayList<>();
+    /**
+     * Same as {@link #submit(EdmDocumentFile)}, the file is read from the disk by the extraction worker
+     *
+     * @param onExtracted Called once the file was read, it can be deleted from this moment, may be null
+     */
+    public CompletableFuture<EdmDocumentFile> submit(EdmDocumentFile edmDocument, File file, Runnable onExtracted) {
+        return submit(edmDocument, new FileSystemResource(file), onExtracted);
+    }
 
-        int pageSize = 10;
+    /**
+     * Same as {@link #submit(EdmDocumentFile)}, the content is read from memory by the extraction worker
+     *
+     * @param onExtracted Called once the content was read, may be null
+     */
+    public CompletableFuture<EdmDocumentFile> submit(EdmDocumentFile edmDocument, byte[] content, Runnable onExtracted) {
+        return submit(edmDocument, new ByteArrayResource(content), onExtracted);
+    }
 
-        Pageable pageRequest = PageRequest.of(0, pageSize);
-        Page<EdmDocumentFile> edmDocumentPage = edmDocumentRepository.findBySourceId(sourceId, pageRequest);
+    private CompletableFuture<EdmDocumentFile> submit(EdmDocumentFile edmDocument, InputStreamSource fileContent, Runnable onExtracted) {
+        stampCrawlGeneration(edmDocument);
+        EdmDocumentFile indexedDocument = EdmDocumentFile.builder()
+            .id(edmDocumentService.getDocumentId(edmDocument.getNodePath(), edmDocument.getSourceId()))
+            .sourceId(edmDocument.getSourceId())
+            .categoryId(edmDocument.getCategoryId())
+            .name(edmDocument.getName())
+            .nodePath(edmDocument.getNodePath())
+            .crawlGeneration(edmDocument.getCrawlGeneration())
+            .build();
+
+        return edmIngestionPipeline.submit(edmDocument, fileContent, onExtracted).thenApply(result -> indexedDocument);
+    }
 
-        while (edmDocumentPage.getSize() > 0) {
-            log.debug("EdmDocumentFile, findBySourceId page {} on {}", edmDocumentPage.getNumber() + 1, edmDocumentPage.getTotalPages());
+    /**
+     * Bulk version of {@link #save(EdmDocumentFile)}
+     */
+    public List<EdmDocumentIndexingResult> saveAll(List<EdmDocumentFile> edmDocuments) {
+        edmDocuments.forEach(this::stampCrawlGeneration);
+        return edmDocumentService.saveAll(edmDocuments);
+    }
 
-            for (EdmDocumentFile doc : edmDocumentPage.getContent()) {
-                edmDocumentsIds.add(doc.getId());
-            }
+    /**
+     * Documents indexed outside of a crawl get the current time, so they are older than the next crawl
+     */
+    private void stampCrawlGeneration(EdmDocumentFile edmDocument) {
+        Long crawlGeneration = sourceCrawlGenerations.get(edmDocument.getSourceId());
+        if (crawlGeneration == null) {
+            log.warn("Indexing document without source (have you hit /crawl/start first ?");
+            crawlGeneration = System.currentTimeMillis();
+        }
+        edmDocument.setCrawlGeneration(crawlGeneration);
+    }
 
-            if (!edmDocumentPage.hasNext()) {
-                break;
-            }
-            pageRequest = edmDocumentPage.nextPageable();
-            edmDocumentPage = edmDocumentRepository.findBySourceId(sourceId, pageRequest);
+    /**
+     * Begin a new crawl generation for the source, every document indexed until the end of the crawl is stamped with it
+     */
+    public void startCrawlGeneration(String sourceName) {
+        EdmSource source = edmSourceService.findOneByName(sourceName);
+        if (StringUtils.isEmpty(source.getId())) {
+            return;
         }
-        sourceDocumentsIds.put(sourceId, edmDocumentsIds);
 
-        log.info("The snapshot contains {} documents for source {}", edmDocumentsIds.size(), source);
+        long crawlGeneration = System.currentTimeMillis();
+        sourceCrawlGenerations.put(source.getId(), crawlGeneration);
+        log.info("Crawl generation {} started for source {}", crawlGeneration, source);
     }
 
-    public void deleteUnusedDocumentsBeforeSnapshotForSource(String sourceName) {
+    /**
+     * Delete the documents of the source which were not indexed again during the current crawl generation.
+     * The documents of the crawl still in the ingestion pipeline are indexed first, otherwise their previous version
+     * would be deleted and missing from the searches until then.
+     *
+     * @return The number of deleted documents, once they are
+     */
+    public CompletableFuture<Long> deleteDocumentsOfPreviousCrawlGenerations(String sourceName) {
         EdmSource source = edmSourceService.findOneByName(sourceName);
-        if (source == null) {
-            return;
+        if (StringUtils.isEmpty(source.getId())) {
+            return CompletableFuture.completedFuture(0L);
         }
         String sourceId = source.getId();
 
-        if (sourceDocumentsIds.get(sourceId) == null) {
-            return;
+        Long crawlGeneration = sourceCrawlGenerations.remove(sourceId);
+        if (crawlGeneration == null) {
+            log.warn("No crawl in progress for source '{}', nothing will be deleted", sourceId);
+            return CompletableFuture.completedFuture(0L);
         }
 
-        log.info("Will delete {} unused document(s) for source '{}'", sourceDocumentsIds.get(sourceId).size(), sourceId);
-        // loop on removed documents
-        for (String documentId : sourceDocumentsIds.get(sourceId)) {
-            EdmDocumentFile edmDocumentFile = edmDocumentRepository.findById(documentId).get();
-            log.debug("Delete document : {} ({})", edmDocumentFile.getNodePath(), edmDocumentFile.getId());
-            edmDocumentRepository.delete(edmDocumentFile);
+        return CompletableFuture.supplyAsync(() -> sweep(sourceId, crawlGeneration), sweepExecutor);
+    }
+
+    private long sweep(String sourceId, long crawlGeneration) {
+        try {
+            if (!edmIngestionPipeline.awaitSource(sourceId, TimeUnit.SECONDS.toMillis(sweepTimeoutSeconds))) {
+                log.warn("Documents of source '{}' are still in the ingestion pipeline after {}s, previous documents are deleted anyway", sourceId,
+                    sweepTimeoutSeconds);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted before deleting unused documents of source '{}'", sourceId);
+            return 0;
+        }
+
+        long deleted = edmDocumentService.deleteBySourceIdAndCrawlGenerationBefore(sourceId, crawlGeneration);
+        log.info("Deleted {} unused document(s) for source '{}'", deleted, sourceId);
+        return deleted;
+    }
+
+    @PreDestroy
+    public void stop() {
+        sweepExecutor.shutdownNow();
+    }
+
+    /**
+     * Delete documents which were removed from the source since the last crawl
+     * (incremental crawls)
+     */
+    public void deleteDocuments(String sourceId, List<String> nodePaths) {
+        log.info("Will delete {} removed document(s) for source '{}'", nodePaths.size(), sourceId);
+        for (String nodePath : nodePaths) {
+            log.debug("Delete document : {}", nodePath);
+            edmDocumentService.delete(edmDocumentService.getDocumentId(nodePath, sourceId));
         }
-        // reset map to be sur new ids won't be deleted
-        sourceDocumentsIds.put(sourceId, new ArrayList<String>());
     }
 
     public void deleteAllDocuments() {
         log.debug("Deleting All documents");
         edmDocumentRepository.deleteAll();
+        edmSearchCache.invalidateAll();
     }
 }
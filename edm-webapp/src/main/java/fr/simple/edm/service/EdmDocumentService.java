@@ -3,18 +3,32 @@ package fr.simple.edm.service;
 import fr.simple.edm.annotation.EdmSearchable;
 import fr.simple.edm.domain.EdmAutoTidySuggestion;
 import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmDocumentIndexingResult;
 import fr.simple.edm.domain.EdmDocumentSearchResult;
 import fr.simple.edm.domain.EdmDocumentSearchResultWrapper;
 import fr.simple.edm.repository.EdmDocumentRepository;
+import fr.simple.edm.tika.EdmExtractionException;
 import fr.simple.edm.tika.EdmOcrDocExtractor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.codec.digest.DigestUtils;
 import fr.simple.edm.util.AnonymizerUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchPhaseExecutionException;
+import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryAction;
+import org.elasticsearch.index.reindex.DeleteByQueryRequestBuilder;
 import org.elasticsearch.index.query.*;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.MoreLikeThisQueryBuilder;
@@ -22,18 +36,38 @@ import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.filter.Filter;
+import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
+import org.elasticsearch.search.collapse.CollapseBuilder;
 import org.elasticsearch.search.fetch.subphase.highlight.HighlightBuilder;
 import org.elasticsearch.search.fetch.subphase.highlight.HighlightField;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.data.elasticsearch.core.EntityMapper;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.stream.Collectors;
 import java.io.IOException;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
@@ -46,6 +80,18 @@ public class EdmDocumentService {
     // "...this is a <mark>simple</mark> demo..."
     private static final String SEARCH_MATCH_HIGHLIGHT_HTML_TAG = "mark";
 
+    // not sent with search results, the matching parts are highlighted instead
+    private static final String[] SEARCH_RESULT_EXCLUDED_FIELDS = {"fileContent", "binaryFileContent"};
+
+    // number of distinct documents matching a search, when passages are indexed
+    private static final String SEARCH_DOCUMENTS_COUNT_AGGREGATION = "agg_documentsCount";
+
+    // names of the search filters, the fields they filter
+    static final String CATEGORY_FILTER = "categoryId";
+    static final String SOURCE_FILTER = "sourceId";
+    static final String FILE_EXTENSION_FILTER = "fileExtension";
+    static final String FILE_DATE_FILTER = "fileDate";
+
     @Inject
     private EdmOcrDocExtractor edmOcrDocExtractor;
 
@@ -55,26 +101,363 @@ public class EdmDocumentService {
     @Inject
     private Client elasticsearchClient;
 
+    @Inject
+    private EntityMapper entityMapper;
+
+    @Inject
+    private EdmSearchCache edmSearchCache;
+
+    @Value("${edm.bulk.max_actions:500}")
+    private int bulkMaxActions;
+
+    @Value("${edm.bulk.max_size_mb:10}")
+    private int bulkMaxSizeMb;
+
+    @Value("${edm.chunking.enabled:false}")
+    private boolean chunkingEnabled;
+
+    @Value("${edm.chunking.chunk_size_chars:10000}")
+    private int chunkSizeChars;
+
+    @Value("${edm.chunking.max_chunks:1000}")
+    private int maxChunks;
+
+    @Value("${edm.search.page_size:10}")
+    private int defaultPageSize;
+
+    @Value("${edm.search.max_page_size:100}")
+    private int maxPageSize;
+
     public EdmDocumentFile findOne(String id) {
         return edmDocumentRepository.findById(id).get();
     }
 
+    /**
+     * Unique identifier of a document, so a new crawl updates it
+     */
+    public String getDocumentId(String nodePath, String sourceId) {
+        return DigestUtils.md5Hex(nodePath + "@" + sourceId);
+    }
+
     public EdmDocumentFile save(EdmDocumentFile edmDocument) {
+        return save(edmDocument, edmDocument.getBinaryFileContent() == null ? null : new ByteArrayResource(edmDocument.getBinaryFileContent()));
+    }
+
+    /**
+     * @param fileContent The binary content of the document, read as a stream by tika
+     */
+    public EdmDocumentFile save(EdmDocumentFile edmDocument, InputStreamSource fileContent) {
+        ChunkBulkIndexer chunkIndexer = new ChunkBulkIndexer();
+        edmDocument = prepare(edmDocument, fileContent, chunkIndexer);
+        chunkIndexer.flush();
+        edmDocument = edmDocumentRepository.save(edmDocument);
+        edmSearchCache.invalidateAll();
+        return edmDocument;
+    }
+
+    /**
+     * Set the document id and extract the file content, the document is then ready to be indexed
+     */
+    public EdmDocumentFile prepare(EdmDocumentFile edmDocument, InputStreamSource fileContent) {
+        return prepare(edmDocument, fileContent, null);
+    }
+
+    /**
+     * Same as {@link #prepare(EdmDocumentFile, InputStreamSource)}. When chunking is enabled, the text beyond the
+     * content of the document is split in passages, which are given to the consumer as they are extracted, ready to
+     * be indexed.
+     *
+     * @param chunkConsumer Indexes the passages, may be null
+     */
+    public EdmDocumentFile prepare(EdmDocumentFile edmDocument, InputStreamSource fileContent, Consumer<EdmDocumentFile> chunkConsumer) {
+        return prepare(edmDocument, fileContent, chunkConsumer, true);
+    }
+
+    /**
+     * Same as {@link #prepare(EdmDocumentFile, InputStreamSource, Consumer)}
+     *
+     * @param withOcr False to only read the text layer of PDF files, OCR being left to {@link #enrichWithOcr}
+     */
+    public EdmDocumentFile prepare(EdmDocumentFile edmDocument, InputStreamSource fileContent, Consumer<EdmDocumentFile> chunkConsumer, boolean withOcr) {
 
         // unique identifier for updating
-        String id = DigestUtils.md5Hex(edmDocument.getNodePath() + "@" + edmDocument.getSourceId());
+        String id = getDocumentId(edmDocument.getNodePath(), edmDocument.getSourceId());
         edmDocument.setId(id);
+        edmDocument.setParentId(id);
 
         // read the file content
-        edmOcrDocExtractor.extractFileContent(edmDocument);
+        boolean chunked = chunkingEnabled && chunkConsumer != null;
+        int chunkCount = edmOcrDocExtractor.extractFileContent(edmDocument, fileContent, withOcr, chunkSizeChars, maxChunks,
+            chunked ? (text, chunkIndex) -> chunkConsumer.accept(toChunk(edmDocument, text, chunkIndex)) : null);
+        if (chunkCount > 0) {
+            log.debug("{} passages extracted from '{}'", chunkCount, edmDocument.getNodePath());
+            // the previous version of the file may have had more passages
+            deleteChunks(id, chunkCount);
+        }
 
         // force not index of binary content
         edmDocument.setBinaryFileContent(null);
 
-        edmDocument = edmDocumentRepository.save(edmDocument);
         return edmDocument;
     }
 
+    /**
+     * A passage is indexed as a document of its own, with the fields of its parent used by filters and results
+     */
+    private EdmDocumentFile toChunk(EdmDocumentFile parent, String text, int chunkIndex) {
+        return EdmDocumentFile.builder()
+            .id(parent.getId() + "_" + chunkIndex)
+            .parentId(parent.getId())
+            .chunkIndex(chunkIndex)
+            .sourceId(parent.getSourceId())
+            .categoryId(parent.getCategoryId())
+            .name(parent.getName())
+            .nodePath(parent.getNodePath())
+            .fileExtension(parent.getFileExtension())
+            .fileContentType(parent.getFileContentType())
+            .fileDate(parent.getFileDate())
+            .crawlGeneration(parent.getCrawlGeneration())
+            .fileContent(text)
+            .build();
+    }
+
+    /**
+     * Delete the passages of a document, from the given position
+     */
+    private void deleteChunks(String parentId, int fromChunkIndex) {
+        QueryBuilder qb = QueryBuilders.boolQuery()
+            .filter(QueryBuilders.termQuery("parentId", parentId))
+            .filter(QueryBuilders.rangeQuery("chunkIndex").gte(fromChunkIndex));
+
+        new DeleteByQueryRequestBuilder(elasticsearchClient, DeleteByQueryAction.INSTANCE)
+            .source("document_file")
+            .filter(qb)
+            .abortOnVersionConflict(false)
+            .get();
+    }
+
+    /**
+     * Index passages by bulk requests as they are extracted, so at most one bulk request is kept in memory
+     */
+    private class ChunkBulkIndexer implements Consumer<EdmDocumentFile> {
+
+        private final List<EdmDocumentFile> chunks = new ArrayList<>();
+
+        @Override
+        public void accept(EdmDocumentFile chunk) {
+            chunks.add(chunk);
+            if (chunks.size() >= bulkMaxActions) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (chunks.isEmpty()) {
+                return;
+            }
+            for (EdmDocumentIndexingResult result : indexAll(chunks)) {
+                if (!result.isSuccess()) {
+                    log.warn("Failed to index passage '{}' of '{}' : {}", result.getId(), result.getNodePath(), result.getError());
+                }
+            }
+            chunks.clear();
+        }
+    }
+
+    /**
+     * Extract and index many documents at once, see {@link #indexAll(List)}. A document which could not be extracted
+     * is not indexed, its result is a failure.
+     *
+     * @return One result per document, in the same order
+     */
+    public List<EdmDocumentIndexingResult> saveAll(List<EdmDocumentFile> edmDocuments) {
+        EdmDocumentIndexingResult[] results = new EdmDocumentIndexingResult[edmDocuments.size()];
+        // position in edmDocuments of each extracted document
+        List<Integer> extractedPositions = new ArrayList<>();
+        List<EdmDocumentFile> extractedDocuments = new ArrayList<>();
+
+        ChunkBulkIndexer chunkIndexer = new ChunkBulkIndexer();
+        for (int i = 0; i < edmDocuments.size(); i++) {
+            EdmDocumentFile edmDocument = edmDocuments.get(i);
+            try {
+                prepare(edmDocument, edmDocument.getBinaryFileContent() == null ? null : new ByteArrayResource(edmDocument.getBinaryFileContent()), chunkIndexer);
+                extractedPositions.add(i);
+                extractedDocuments.add(edmDocument);
+            } catch (EdmExtractionException e) {
+                log.warn("Failed to extract document '{}' : {}", edmDocument.getNodePath(), e.getMessage());
+                results[i] = new EdmDocumentIndexingResult(edmDocument.getId(), edmDocument.getNodePath(), false, e.getMessage());
+            }
+        }
+        chunkIndexer.flush();
+
+        List<EdmDocumentIndexingResult> indexingResults = indexAll(extractedDocuments);
+        for (int i = 0; i < indexingResults.size(); i++) {
+            results[extractedPositions.get(i)] = indexingResults.get(i);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Index already prepared documents through the elasticsearch bulk API.
+     * The documents are split in bulk requests of at most {@code edm.bulk.max_actions} documents
+     * or {@code edm.bulk.max_size_mb} of indexed content.
+     *
+     * @return One result per document, in the same order
+     */
+    public List<EdmDocumentIndexingResult> indexAll(List<EdmDocumentFile> edmDocuments) {
+        EdmDocumentIndexingResult[] results = new EdmDocumentIndexingResult[edmDocuments.size()];
+
+        BulkRequestBuilder bulkRequest = elasticsearchClient.prepareBulk();
+        // position in edmDocuments of each document of the current bulk request
+        List<Integer> bulkPositions = new ArrayList<>();
+        long bulkSize = 0;
+
+        for (int i = 0; i < edmDocuments.size(); i++) {
+            EdmDocumentFile edmDocument = edmDocuments.get(i);
+            String source;
+            try {
+                source = entityMapper.mapToString(edmDocument);
+            } catch (IOException e) {
+                log.warn("Failed to prepare document '{}' for indexing : {}", edmDocument.getNodePath(), e.getMessage());
+                results[i] = new EdmDocumentIndexingResult(edmDocument.getId(), edmDocument.getNodePath(), false, e.getMessage());
+                continue;
+            }
+
+            bulkRequest.add(elasticsearchClient.prepareIndex("document_file", "document_file", edmDocument.getId()).setSource(source, XContentType.JSON));
+            bulkPositions.add(i);
+            bulkSize += source.length();
+
+            if (bulkPositions.size() >= bulkMaxActions || bulkSize >= bulkMaxSizeMb * 1024L * 1024L) {
+                executeBulk(bulkRequest, edmDocuments, bulkPositions, results);
+                bulkRequest = elasticsearchClient.prepareBulk();
+                bulkPositions = new ArrayList<>();
+                bulkSize = 0;
+            }
+        }
+        if (!bulkPositions.isEmpty()) {
+            executeBulk(bulkRequest, edmDocuments, bulkPositions, results);
+        }
+        edmSearchCache.invalidateAll();
+        return Arrays.asList(results);
+    }
+
+    private void executeBulk(BulkRequestBuilder bulkRequest, List<EdmDocumentFile> edmDocuments, List<Integer> bulkPositions, EdmDocumentIndexingResult[] results) {
+        try {
+            BulkResponse bulkResponse = bulkRequest.execute().actionGet();
+            log.debug("Indexed {} documents in {} ms", bulkPositions.size(), bulkResponse.getTook().millis());
+
+            // items are in the same order as the requests
+            BulkItemResponse[] items = bulkResponse.getItems();
+            for (int i = 0; i < items.length; i++) {
+                EdmDocumentFile edmDocument = edmDocuments.get(bulkPositions.get(i));
+                if (items[i].isFailed()) {
+                    log.warn("Failed to index document '{}' : {}", edmDocument.getNodePath(), items[i].getFailureMessage());
+                    results[bulkPositions.get(i)] = new EdmDocumentIndexingResult(edmDocument.getId(), edmDocument.getNodePath(), false, items[i].getFailureMessage());
+                } else {
+                    results[bulkPositions.get(i)] = new EdmDocumentIndexingResult(edmDocument.getId(), edmDocument.getNodePath(), true, null);
+                }
+            }
+        } catch (ElasticsearchException e) {
+            log.error("Failed to execute bulk request of {} documents", bulkPositions.size(), e);
+            for (Integer position : bulkPositions) {
+                EdmDocumentFile edmDocument = edmDocuments.get(position);
+                results[position] = new EdmDocumentIndexingResult(edmDocument.getId(), edmDocument.getNodePath(), false, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Extract again an indexed document, with OCR, and update it in place. The update is dropped if the document
+     * was deleted or indexed again meanwhile : by a new crawl (other crawl generation), or by a concurrent write
+     * (optimistic concurrency on the sequence number read).
+     *
+     * @param crawlGeneration The crawl generation of the document when its text was extracted without OCR
+     * @return True if the document was updated
+     */
+    public boolean enrichWithOcr(String id, Long crawlGeneration, InputStreamSource fileContent) {
+        GetResponse current = elasticsearchClient.prepareGet("document_file", "document_file", id).get();
+        if (!current.isExists()) {
+            log.debug("Document '{}' was deleted before its OCR", id);
+            return false;
+        }
+
+        EdmDocumentFile edmDocument;
+        try {
+            edmDocument = entityMapper.mapToObject(current.getSourceAsString(), EdmDocumentFile.class);
+        } catch (IOException e) {
+            log.warn("Failed to read document '{}' before its OCR : {}", id, e.getMessage());
+            return false;
+        }
+        if (!Objects.equals(crawlGeneration, edmDocument.getCrawlGeneration())) {
+            log.debug("Document '{}' was indexed again before its OCR", edmDocument.getNodePath());
+            return false;
+        }
+
+        ChunkBulkIndexer chunkIndexer = new ChunkBulkIndexer();
+        prepare(edmDocument, fileContent, chunkIndexer, true);
+        chunkIndexer.flush();
+
+        try {
+            elasticsearchClient.prepareIndex("document_file", "document_file", id)
+                .setSource(entityMapper.mapToString(edmDocument), XContentType.JSON)
+                .setIfSeqNo(current.getSeqNo())
+                .setIfPrimaryTerm(current.getPrimaryTerm())
+                .get();
+        } catch (ElasticsearchException e) {
+            // the transport client wraps the exception of the remote node
+            if (ExceptionsHelper.unwrapCause(e) instanceof VersionConflictEngineException) {
+                log.debug("Document '{}' was updated during its OCR", edmDocument.getNodePath());
+                return false;
+            }
+            throw e;
+        } catch (IOException e) {
+            log.warn("Failed to prepare document '{}' for indexing : {}", edmDocument.getNodePath(), e.getMessage());
+            return false;
+        }
+        edmSearchCache.invalidateAll();
+        return true;
+    }
+
+    public void delete(String id) {
+        edmDocumentRepository.deleteById(id);
+        if (chunkingEnabled) {
+            deleteChunks(id, 0);
+        }
+        edmSearchCache.invalidateAll();
+    }
+
+    public boolean isChunkingEnabled() {
+        return chunkingEnabled;
+    }
+
+    /**
+     * Delete, in a single query, the documents of a source stamped with an older crawl generation,
+     * or indexed before crawl generations existed
+     *
+     * @return The number of deleted documents
+     */
+    public long deleteBySourceIdAndCrawlGenerationBefore(String sourceId, long crawlGeneration) {
+        // documents indexed just before must be visible to the query
+        elasticsearchClient.admin().indices().prepareRefresh("document_file").execute().actionGet();
+
+        QueryBuilder qb = QueryBuilders.boolQuery()
+            .filter(QueryBuilders.termQuery("sourceId", sourceId))
+            .filter(QueryBuilders.boolQuery()
+                .should(QueryBuilders.rangeQuery("crawlGeneration").lt(crawlGeneration))
+                .should(QueryBuilders.boolQuery().mustNot(QueryBuilders.existsQuery("crawlGeneration")))
+                .minimumShouldMatch(1));
+
+        BulkByScrollResponse response = new DeleteByQueryRequestBuilder(elasticsearchClient, DeleteByQueryAction.INSTANCE)
+            .source("document_file")
+            .filter(qb)
+            // a document indexed again meanwhile has a new version and must be kept
+            .abortOnVersionConflict(false)
+            .refresh(true)
+            .get();
+        edmSearchCache.invalidateAll();
+        return response.getDeleted();
+    }
+
     /**
      * When you search a document, this query is executed
      *
@@ -82,6 +465,24 @@ public class EdmDocumentService {
      * @return The adapted query
      */
     QueryBuilder getEdmQueryForPattern(String pattern) {
+        return getEdmQueryForPattern(pattern, null, Collections.emptySet());
+    }
+
+    /**
+     * @param filters The selected documents, matched in filter context : not scored, and cached by elasticsearch
+     * @param postFilters Names of the filters left to a post filter of the search, so aggregations can ignore them
+     */
+    QueryBuilder getEdmQueryForPattern(String pattern, EdmSearchFilters filters, Collection<String> postFilters) {
+        BoolQueryBuilder qb = QueryBuilders.boolQuery().must(getPatternQuery(pattern));
+        getFilterClauses(filters).forEach((name, clause) -> {
+            if (!postFilters.contains(name)) {
+                qb.filter(clause);
+            }
+        });
+        return qb;
+    }
+
+    private QueryBuilder getPatternQuery(String pattern) {
         // in case of invalid query
         if (StringUtils.isBlank(pattern)) {
             return QueryBuilders.matchAllQuery();
@@ -99,9 +500,69 @@ public class EdmDocumentService {
             queryBuilder = queryBuilder.field(fieldName);
         }
 
-        // the real query
+        return queryBuilder;
+    }
+
+    /**
+     * One clause by selected filter, by filter name
+     */
+    Map<String, QueryBuilder> getFilterClauses(EdmSearchFilters filters) {
+        Map<String, QueryBuilder> clauses = new LinkedHashMap<>();
+        if (filters == null) {
+            return clauses;
+        }
+        if (!filters.getCategoryId().isEmpty()) {
+            clauses.put(CATEGORY_FILTER, QueryBuilders.termsQuery("categoryId.keyword", filters.getCategoryId()));
+        }
+        if (!filters.getSourceId().isEmpty()) {
+            clauses.put(SOURCE_FILTER, QueryBuilders.termsQuery("sourceId", filters.getSourceId()));
+        }
+        if (!filters.getFileExtension().isEmpty()) {
+            clauses.put(FILE_EXTENSION_FILTER, QueryBuilders.termsQuery("fileExtension.keyword", filters.getFileExtension()));
+        }
+        if (filters.getFileDateFrom() != null || filters.getFileDateTo() != null) {
+            RangeQueryBuilder range = QueryBuilders.rangeQuery("fileDate").format("yyyy-MM-dd");
+            if (filters.getFileDateFrom() != null) {
+                range.gte(filters.getFileDateFrom().toString());
+            }
+            if (filters.getFileDateTo() != null) {
+                range.lte(filters.getFileDateTo().toString());
+            }
+            clauses.put(FILE_DATE_FILTER, range);
+        }
+        return clauses;
+    }
+
+    /**
+     * The clauses whose name is selected, null when there is none
+     */
+    static QueryBuilder toFilterQuery(Map<String, QueryBuilder> clauses, Predicate<String> selected) {
         BoolQueryBuilder qb = QueryBuilders.boolQuery();
-        return qb.must(queryBuilder);
+        clauses.forEach((name, clause) -> {
+            if (selected.test(name)) {
+                qb.filter(clause);
+            }
+        });
+        return qb.filter().isEmpty() ? null : qb;
+    }
+
+    /**
+     * An aggregation restricted to the documents of a filter (of the same name, see {@link #getAggregation(Aggregations, String)})
+     */
+    static AggregationBuilder filtered(AggregationBuilder aggregationBuilder, QueryBuilder filter) {
+        return filter == null ? aggregationBuilder : AggregationBuilders.filter(aggregationBuilder.getName(), filter).subAggregation(aggregationBuilder);
+    }
+
+    /**
+     * An aggregation of the response, read through its filter when it was {@link #filtered(AggregationBuilder, QueryBuilder)}
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends Aggregation> T getAggregation(Aggregations aggregations, String name) {
+        Aggregation aggregation = aggregations.get(name);
+        if (aggregation instanceof Filter) {
+            aggregation = ((Filter) aggregation).getAggregations().get(name);
+        }
+        return (T) aggregation;
     }
 
     /**
@@ -109,9 +570,51 @@ public class EdmDocumentService {
      * Will color results
      */
     public EdmDocumentSearchResultWrapper search(String pattern) {
+        return search(pattern, new EdmSearchFilters(), defaultPageSize, null);
+    }
+
+    /**
+     * A page of {@link #search(String)}
+     *
+     * @param filters The selected documents
+     * @param size Results by page, capped to edm.search.max_page_size
+     * @param cursor The nextCursor of the previous page, null for the first one
+     * @throws IllegalArgumentException When the cursor was not given by a previous search
+     */
+    public EdmDocumentSearchResultWrapper search(String pattern, EdmSearchFilters filters, int size, String cursor) {
+        int pageSize = getPageSize(size);
+        EdmSearchCursor position = EdmSearchCursor.decode(cursor);
+        try {
+            return edmSearchCache.get("search?size=" + pageSize + "&cursor=" + Objects.toString(cursor, "") + "&" + filters, pattern,
+                () -> toSearchResultWrapper(prepareSearch(pattern, filters, Collections.emptySet(), pageSize, position).execute().actionGet(), pageSize, position));
+        } catch (SearchPhaseExecutionException e) {
+            log.warn("Failed to submit query, empty result ; may failed to parse query ({}, more log to debug it !) : {}", e.getMessage(), pattern);
+        }
+        return new EdmDocumentSearchResultWrapper();
+    }
+
+    int getPageSize(int size) {
+        return size <= 0 ? defaultPageSize : Math.min(size, maxPageSize);
+    }
+
+    /**
+     * The first page of {@link #search(String, EdmSearchFilters, int, String)}, other parts of the response (like aggregations) may be added
+     */
+    SearchRequestBuilder prepareSearch(String pattern, EdmSearchFilters filters, Collection<String> postFilters) {
+        return prepareSearch(pattern, filters, postFilters, defaultPageSize, null);
+    }
+
+    /**
+     * The search request of {@link #search(String, EdmSearchFilters, int, String)}
+     *
+     * @param postFilters Names of the filters applied to the hits only, aggregations added to the request have to apply them
+     *                    (with {@link #filtered(AggregationBuilder, QueryBuilder)}) where they should
+     */
+    SearchRequestBuilder prepareSearch(String pattern, EdmSearchFilters filters, Collection<String> postFilters, int size, EdmSearchCursor position) {
 
         // basic query
-        QueryBuilder qb = getEdmQueryForPattern(pattern);
+        QueryBuilder qb = getEdmQueryForPattern(pattern, filters, postFilters);
+        QueryBuilder postFilter = toFilterQuery(getFilterClauses(filters), postFilters::contains);
         log.debug("The search query for pattern '{}' is : {}", pattern, qb);
 
         HighlightBuilder highlightBuilder = new HighlightBuilder()
@@ -119,57 +622,104 @@ public class EdmDocumentService {
             .postTags("</" + SEARCH_MATCH_HIGHLIGHT_HTML_TAG + ">")
             .field("name").field("fileContent").field("nodePath");
 
+        SearchRequestBuilder request = elasticsearchClient.prepareSearch("document_file").setTypes("document_file")
+            .setQuery(qb)
+            .setFetchSource(null, SEARCH_RESULT_EXCLUDED_FIELDS)
+            .highlighter(highlightBuilder)
+            .setSize(size)
+            // the id breaks ties between equal scores, so pages neither overlap nor miss a hit ; it is read from the doc
+            // values of its keyword mapping (sorting on _id would load it in the fielddata cache)
+            .addSort(SortBuilders.scoreSort())
+            .addSort(SortBuilders.fieldSort("id").unmappedType("keyword").order(SortOrder.ASC));
+        if (postFilter != null) {
+            request.setPostFilter(postFilter);
+        }
 
-        final EdmDocumentSearchResultWrapper searchResult = new EdmDocumentSearchResultWrapper();
-
-        try {
-            SearchResponse searchResponse = elasticsearchClient.prepareSearch("document_file").setTypes("document_file")
-                .setQuery(qb)
-                .highlighter(highlightBuilder)
-                .execute().actionGet();
+        if (chunkingEnabled) {
+            // one result per document, its best passage is highlighted ; elasticsearch can't collapse with search_after
+            request.setCollapse(new CollapseBuilder("parentId"))
+                .addAggregation(filtered(AggregationBuilders.cardinality(SEARCH_DOCUMENTS_COUNT_AGGREGATION).field("parentId"), postFilter))
+                .setFrom(position == null ? 0 : position.getOffset());
+        } else if (position != null && position.getSearchAfter() != null) {
+            request.searchAfter(position.getSearchAfter());
+        }
+        return request;
+    }
 
-           // searchResult.setTookTime(searchResponse.getTookInMillis());
-            searchResult.setTotalHitsCount(searchResponse.getHits().getTotalHits());
+    /**
+     * Read the hits of a search prepared by {@link #prepareSearch(String, EdmSearchFilters, Collection)}
+     */
+    EdmDocumentSearchResultWrapper toSearchResultWrapper(SearchResponse searchResponse) {
+        return toSearchResultWrapper(searchResponse, defaultPageSize, null);
+    }
 
-            SearchHits hits = searchResponse.getHits();
-            for (SearchHit searchHit : hits.getHits()) {
-                EdmDocumentSearchResult edmDocumentSearchResult = new EdmDocumentSearchResult();
+    /**
+     * Read the hits of a search prepared by {@link #prepareSearch(String, EdmSearchFilters, Collection, int, EdmSearchCursor)}, with the cursor of the next page
+     */
+    EdmDocumentSearchResultWrapper toSearchResultWrapper(SearchResponse searchResponse, int size, EdmSearchCursor position) {
+        final EdmDocumentSearchResultWrapper searchResult = new EdmDocumentSearchResultWrapper();
 
-                // fill every fields
-                EdmDocumentFile doc = edmDocumentRepository.findById(searchHit.getId()).get();
-                edmDocumentSearchResult.setEdmDocument(doc);
+        searchResult.setTookTime(searchResponse.getTook().millis());
+        searchResult.setTotalHitsCount(searchResponse.getHits().getTotalHits());
+        // hits count passages, not documents
+        if (searchResponse.getAggregations() != null && searchResponse.getAggregations().get(SEARCH_DOCUMENTS_COUNT_AGGREGATION) != null) {
+            Cardinality documentsCount = getAggregation(searchResponse.getAggregations(), SEARCH_DOCUMENTS_COUNT_AGGREGATION);
+            searchResult.setTotalHitsCount(documentsCount.getValue());
+        }
 
-                // add custom highlighted fields
-                Map<String, HighlightField> highlightFields = searchHit.getHighlightFields();
+        SearchHits hits = searchResponse.getHits();
+        for (SearchHit searchHit : hits.getHits()) {
+            EdmDocumentSearchResult edmDocumentSearchResult = new EdmDocumentSearchResult();
+
+            // fill fields from the hit, large ones are only shown as highlights
+            EdmDocumentFile doc;
+            try {
+                doc = entityMapper.mapToObject(searchHit.getSourceAsString(), EdmDocumentFile.class);
+            } catch (IOException e) {
+                log.error("Failed to read search hit {}", searchHit.getId(), e);
+                continue;
+            }
+            // a passage stands for its parent document
+            doc.setId(doc.getParentId() != null ? doc.getParentId() : searchHit.getId());
+            edmDocumentSearchResult.setEdmDocument(doc);
+
+            // add custom highlighted fields
+            Map<String, HighlightField> highlightFields = searchHit.getHighlightFields();
+
+            if (highlightFields.get("name") != null) {
+                edmDocumentSearchResult.setHighlightedName(
+                    Arrays.stream(highlightFields.get("name").fragments())
+                        .map(t -> t.string().trim())
+                        .collect(Collectors.joining("\n<i>[...]</i>\n"))
+                );
+            }
 
-                if (highlightFields.get("name") != null) {
-                    edmDocumentSearchResult.setHighlightedName(
-                        Arrays.stream(highlightFields.get("name").fragments())
-                            .map(t -> t.string().trim())
-                            .collect(Collectors.joining("\n<i>[...]</i>\n"))
-                    );
-                }
+            if (highlightFields.get("fileContent") != null) {
+                edmDocumentSearchResult.setHighlightedFileContentMatching(
+                    Arrays.stream(highlightFields.get("fileContent").fragments())
+                        .map(t -> t.string().trim())
+                        .collect(Collectors.joining("\n<i>[...]</i>\n"))
+                );
+            }
 
-                if (highlightFields.get("fileContent") != null) {
-                    edmDocumentSearchResult.setHighlightedFileContentMatching(
-                        Arrays.stream(highlightFields.get("fileContent").fragments())
-                            .map(t -> t.string().trim())
-                            .collect(Collectors.joining("\n<i>[...]</i>\n"))
-                    );
-                }
+            if (highlightFields.get("nodePath") != null) {
+                edmDocumentSearchResult.setHighlightedNodePath(
+                    Arrays.stream(highlightFields.get("nodePath").fragments())
+                        .map(t -> t.string().trim())
+                        .collect(Collectors.joining("\n<i>[...]</i>\n"))
+                );
+            }
 
-                if (highlightFields.get("nodePath") != null) {
-                    edmDocumentSearchResult.setHighlightedNodePath(
-                        Arrays.stream(highlightFields.get("nodePath").fragments())
-                            .map(t -> t.string().trim())
-                            .collect(Collectors.joining("\n<i>[...]</i>\n"))
-                    );
-                }
+            searchResult.add(edmDocumentSearchResult);
+        }
 
-                searchResult.add(edmDocumentSearchResult);
-            }
-        } catch (SearchPhaseExecutionException e) {
-            log.warn("Failed to submit query, empty result ; may failed to parse query ({}, more log to debug it !) : {}", e.getMessage(), pattern);
+        // a full page may be followed by another one
+        SearchHit[] pageHits = hits.getHits();
+        if (pageHits.length > 0 && pageHits.length >= size) {
+            EdmSearchCursor next = chunkingEnabled
+                ? EdmSearchCursor.at((position == null ? 0 : position.getOffset()) + pageHits.length)
+                : EdmSearchCursor.after(pageHits[pageHits.length - 1].getSortValues());
+            searchResult.setNextCursor(next.encode());
         }
 
         // return modified result with highlighting
@@ -181,8 +731,7 @@ public class EdmDocumentService {
      */
     private String getFileContentAsString(MultipartFile file) throws IOException {
         EdmDocumentFile edmDocumentFile = new EdmDocumentFile();
-        edmDocumentFile.setBinaryFileContent(file.getBytes());
-        edmOcrDocExtractor.extractFileContent(edmDocumentFile);
+        edmOcrDocExtractor.extractFileContent(edmDocumentFile, file);
         return edmDocumentFile.getFileContent();
     }
 
@@ -226,7 +775,7 @@ public class EdmDocumentService {
 
             return new EdmAutoTidySuggestion(candidateDestinationDir, candidateDestinationFile, candidateDestinationExtension, bestEdmDocumentFileCandidate.get().getNodePath());
 
-        } catch (SearchPhaseExecutionException | IOException e) {
+        } catch (SearchPhaseExecutionException | EdmExtractionException | IOException e) {
             log.warn("Failed to submit getTidySuggestions, empty result ; may failed to parse file input ({}, more log to debug it !) : {}", e.getMessage(), file.getName());
         }
 
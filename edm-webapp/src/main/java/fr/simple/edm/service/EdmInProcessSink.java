@@ -0,0 +1,139 @@
+package fr.simple.edm.service;
+
+import fr.simple.edm.crawler.bridge.EdmDocumentSink;
+import fr.simple.edm.domain.EdmCategory;
+import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmSource;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Documents found by the embedded crawlers are given to the ingestion pipeline of this webapp, instead of being sent
+ * back to it over HTTP. Files are read from their location by the extraction workers.
+ */
+@Slf4j
+@Component
+public class EdmInProcessSink implements EdmDocumentSink {
+
+    // wait between two attempts when the ingestion pipeline is full
+    static final long QUEUE_FULL_WAIT_MS = 100;
+
+    @Inject
+    @Setter
+    private EdmCrawlingService edmCrawlingService;
+
+    @Inject
+    @Setter
+    private EdmSourceService edmSourceService;
+
+    @Inject
+    @Setter
+    private EdmCategoryService edmCategoryService;
+
+    @Value("${edm.crawler.max_buffered_bytes:16777216}")
+    @Setter
+    private long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+
+    @Override
+    public synchronized String getIdFromCategoryByCategoryName(String categoryName) {
+        EdmCategory category = edmCategoryService.findOneByName(categoryName);
+        if (StringUtils.isEmpty(category.getId())) {
+            // gray, the first color of the remote crawlers palette
+            category = edmCategoryService.save(EdmCategory.builder().name(categoryName).description("")
+                .color("#FFF").backgroundColor("#9E9E9E").build());
+        }
+        return category.getId();
+    }
+
+    @Override
+    public synchronized String getIdFromSourceBySourceName(String sourceName, String categoryId) {
+        EdmSource source = edmSourceService.findOneByName(sourceName);
+        if (StringUtils.isEmpty(source.getId())) {
+            source = edmSourceService.save(EdmSource.builder().name(sourceName).description("").build());
+        }
+        return source.getId();
+    }
+
+    @Override
+    public void notifyStartCrawling(String sourceName) {
+        edmCrawlingService.startCrawlGeneration(sourceName);
+    }
+
+    @Override
+    public void notifyEndOfCrawling(String sourceName) {
+        edmCrawlingService.deleteDocumentsOfPreviousCrawlGenerations(sourceName);
+    }
+
+    @Override
+    public void saveEdmDocument(EdmDocumentFile doc, File file) throws IOException {
+        await(saveEdmDocumentAsync(doc, file), doc);
+    }
+
+    private static void await(CompletableFuture<Void> indexed, EdmDocumentFile doc) throws IOException {
+        try {
+            indexed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the indexing of " + doc.getNodePath());
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to save " + doc.getNodePath(), e.getCause());
+        }
+    }
+
+    /**
+     * The future is complete once the document is indexed, failed if its extraction or its indexing failed. Waits
+     * while the ingestion pipeline is full, like remote crawlers do.
+     */
+    @Override
+    public CompletableFuture<Void> saveEdmDocumentAsync(EdmDocumentFile doc, File file) throws IOException {
+        return submit(doc, () -> edmCrawlingService.submit(doc, file, null));
+    }
+
+    /**
+     * Documents up to {@code edm.crawler.max_buffered_bytes} are read in memory and given to the pipeline as is, the
+     * bigger ones are copied to a temporary file first
+     */
+    @Override
+    public void saveEdmDocumentStream(EdmDocumentFile doc, InputStream content, long contentLength) throws IOException {
+        if (contentLength < 0 || contentLength > maxBufferedBytes) {
+            EdmDocumentSink.super.saveEdmDocumentStream(doc, content, contentLength);
+            return;
+        }
+        byte[] bytes = EdmDocumentSink.readContent(content, contentLength);
+        await(submit(doc, () -> edmCrawlingService.submit(doc, bytes, null)), doc);
+    }
+
+    private CompletableFuture<Void> submit(EdmDocumentFile doc, Supplier<CompletableFuture<EdmDocumentFile>> submission) throws IOException {
+        while (true) {
+            try {
+                return submission.get().thenApply(indexed -> null);
+            } catch (EdmIngestionQueueFullException e) {
+                log.debug("Ingestion pipeline is full, waiting before submitting {}", doc.getNodePath());
+                try {
+                    Thread.sleep(QUEUE_FULL_WAIT_MS);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the ingestion pipeline");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void deleteEdmDocuments(String sourceId, List<String> nodePaths) {
+        edmCrawlingService.deleteDocuments(sourceId, nodePaths);
+    }
+}
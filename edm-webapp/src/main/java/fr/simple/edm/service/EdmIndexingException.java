@@ -0,0 +1,16 @@
+package fr.simple.edm.service;
+
+/**
+ * Thrown when a document accepted by the ingestion pipeline could not be extracted or indexed, the crawler has to
+ * consider it as not saved
+ */
+public class EdmIndexingException extends RuntimeException {
+
+    public EdmIndexingException(String message) {
+        super(message);
+    }
+
+    public EdmIndexingException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
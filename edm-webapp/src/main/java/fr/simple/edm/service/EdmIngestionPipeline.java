@@ -0,0 +1,298 @@
+package fr.simple.edm.service;
+
+import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmDocumentIndexingResult;
+import lombok.AllArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous ingestion of crawled documents, in stages :
+ * <ul>
+ * <li>accept : the document is queued for extraction, or refused if the queue is full</li>
+ * <li>extract : tika runs on a dedicated pool of workers</li>
+ * <li>index : extracted documents are queued, then indexed by bulk requests</li>
+ * <li>enrich : when OCR is deferred, PDF files are indexed with their text layer first, see {@link EdmOcrEnrichmentService}</li>
+ * </ul>
+ * Queues are bounded : when indexing is late, extraction workers wait, then the extraction
+ * queue fills up and new documents are refused with {@link EdmIngestionQueueFullException}.
+ * <p>
+ * Each accepted document has a future, complete once it is indexed, or failed with {@link EdmIndexingException} when
+ * its extraction, the indexing of one of its passages or its own indexing failed.
+ */
+@Service
+@Slf4j
+public class EdmIngestionPipeline {
+
+    @Inject
+    @Setter
+    private EdmDocumentService edmDocumentService;
+
+    @Inject
+    @Setter
+    private EdmOcrEnrichmentService edmOcrEnrichmentService;
+
+    // 0 means one worker per available processor
+    @Value("${edm.pipeline.extraction_threads:0}")
+    private int extractionThreads;
+
+    @Value("${edm.pipeline.extraction_queue_size:100}")
+    private int extractionQueueSize;
+
+    @Value("${edm.pipeline.indexing_queue_size:1000}")
+    private int indexingQueueSize;
+
+    @Value("${edm.pipeline.retry_after_seconds:5}")
+    private int retryAfterSeconds;
+
+    @Value("${edm.bulk.max_actions:500}")
+    private int bulkMaxActions;
+
+    private ThreadPoolExecutor extractionExecutor;
+
+    private BlockingQueue<PendingDocument> indexingQueue;
+
+    private Thread indexingThread;
+
+    private final AtomicInteger indexingInProgress = new AtomicInteger();
+
+    // Map<sourceId, documents accepted and not indexed yet>, guarded by itself
+    private final Map<String, Integer> inFlightDocuments = new HashMap<>();
+
+    @PostConstruct
+    public void start() {
+        int threads = extractionThreads > 0 ? extractionThreads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        extractionExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(extractionQueueSize),
+            runnable -> {
+                Thread thread = new Thread(runnable, "edm-extraction-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+        indexingQueue = new ArrayBlockingQueue<>(indexingQueueSize);
+        indexingThread = new Thread(this::indexLoop, "edm-indexing");
+        indexingThread.setDaemon(true);
+        indexingThread.start();
+
+        log.info("Ingestion pipeline started with {} extraction workers", threads);
+    }
+
+    /**
+     * Documents still in the pipeline are failed, their crawler will send them again
+     */
+    @PreDestroy
+    public void stop() {
+        for (Runnable task : extractionExecutor.shutdownNow()) {
+            ((ExtractionTask) task).indexed.completeExceptionally(new EdmIndexingException("Ingestion pipeline stopped before the extraction"));
+        }
+        indexingThread.interrupt();
+        List<PendingDocument> pendingDocuments = new ArrayList<>();
+        indexingQueue.drainTo(pendingDocuments);
+        pendingDocuments.forEach(pendingDocument -> pendingDocument.indexed.completeExceptionally(
+            new EdmIndexingException("Ingestion pipeline stopped before the indexing of '" + pendingDocument.edmDocument.getNodePath() + "'")));
+    }
+
+    /**
+     * Queue a document for extraction and indexing
+     *
+     * @param fileContent The binary content of the document, must stay readable until the extraction is done
+     * @param onExtracted Called once the content was read, whether the extraction succeeded or not, may be null
+     * @return Complete once the document is indexed, failed with {@link EdmIndexingException} if it could not be
+     * @throws EdmIngestionQueueFullException If the extraction queue is full
+     */
+    public CompletableFuture<EdmDocumentIndexingResult> submit(EdmDocumentFile edmDocument, InputStreamSource fileContent, Runnable onExtracted) {
+        ExtractionTask task = new ExtractionTask(edmDocument, fileContent, onExtracted, new CompletableFuture<>());
+        acquire(edmDocument.getSourceId());
+        try {
+            extractionExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            release(edmDocument.getSourceId());
+            throw new EdmIngestionQueueFullException("Extraction queue is full (" + extractionQueueSize + " documents)", retryAfterSeconds);
+        }
+        return task.indexed;
+    }
+
+    /**
+     * Wait until the documents of the source accepted so far are indexed (or failed)
+     *
+     * @return false if some are still in the pipeline after the timeout
+     */
+    public boolean awaitSource(String sourceId, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (inFlightDocuments) {
+            while (inFlightDocuments.containsKey(sourceId)) {
+                long remainingMs = deadline - System.currentTimeMillis();
+                if (remainingMs <= 0) {
+                    return false;
+                }
+                inFlightDocuments.wait(remainingMs);
+            }
+        }
+        return true;
+    }
+
+    private void acquire(String sourceId) {
+        synchronized (inFlightDocuments) {
+            inFlightDocuments.merge(sourceId, 1, Integer::sum);
+        }
+    }
+
+    private void release(String sourceId) {
+        synchronized (inFlightDocuments) {
+            inFlightDocuments.computeIfPresent(sourceId, (id, count) -> count > 1 ? count - 1 : null);
+            inFlightDocuments.notifyAll();
+        }
+    }
+
+    /**
+     * Passages are queued before their document, which is the last one indexed
+     */
+    private static boolean isPassage(EdmDocumentFile edmDocument) {
+        return edmDocument.getChunkIndex() != null;
+    }
+
+    /**
+     * @return The depth of each queue, and the number of documents being processed by each stage
+     */
+    public Map<String, Integer> getStatus() {
+        Map<String, Integer> status = new LinkedHashMap<>();
+        status.put("extractionQueueDepth", extractionExecutor.getQueue().size());
+        status.put("extractionInProgress", extractionExecutor.getActiveCount());
+        status.put("indexingQueueDepth", indexingQueue.size());
+        status.put("indexingInProgress", indexingInProgress.get());
+        return status;
+    }
+
+    private void extract(ExtractionTask task) {
+        EdmDocumentFile edmDocument = task.edmDocument;
+        try {
+            boolean deferOcr = edmOcrEnrichmentService.isDeferred(edmDocument);
+            // passages of big documents are queued while they are extracted, their failure fails the document
+            edmDocumentService.prepare(edmDocument, task.fileContent, passage -> enqueue(new PendingDocument(passage, task.indexed)), !deferOcr);
+            if (deferOcr) {
+                edmOcrEnrichmentService.spool(edmDocument, task.fileContent);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to extract '{}' : {}", edmDocument.getNodePath(), e.getMessage());
+            release(edmDocument.getSourceId());
+            task.indexed.completeExceptionally(new EdmIndexingException("Failed to extract '" + edmDocument.getNodePath() + "' : " + e.getMessage(), e));
+            return;
+        } catch (Error e) {
+            release(edmDocument.getSourceId());
+            task.indexed.completeExceptionally(new EdmIndexingException("Failed to extract '" + edmDocument.getNodePath() + "' : " + e, e));
+            throw e;
+        } finally {
+            if (task.onExtracted != null) {
+                task.onExtracted.run();
+            }
+        }
+        enqueue(new PendingDocument(edmDocument, task.indexed));
+    }
+
+    private void enqueue(PendingDocument pendingDocument) {
+        try {
+            // wait for the indexing stage, so the extraction queue will be full if indexing is late
+            indexingQueue.put(pendingDocument);
+        } catch (InterruptedException e) {
+            log.warn("Interrupted before indexing '{}'", pendingDocument.edmDocument.getNodePath());
+            pendingDocument.indexed.completeExceptionally(new EdmIndexingException("Interrupted before indexing '" + pendingDocument.edmDocument.getNodePath() + "'"));
+            if (!isPassage(pendingDocument.edmDocument)) {
+                release(pendingDocument.edmDocument.getSourceId());
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void indexLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            List<PendingDocument> pendingDocuments = new ArrayList<>();
+            try {
+                pendingDocuments.add(indexingQueue.take());
+                indexingQueue.drainTo(pendingDocuments, bulkMaxActions - 1);
+
+                indexingInProgress.set(pendingDocuments.size());
+                List<EdmDocumentFile> edmDocuments = new ArrayList<>(pendingDocuments.size());
+                pendingDocuments.forEach(pendingDocument -> edmDocuments.add(pendingDocument.edmDocument));
+
+                // one result per document, in the same order
+                List<EdmDocumentIndexingResult> results = edmDocumentService.indexAll(edmDocuments);
+                for (int i = 0; i < results.size(); i++) {
+                    onIndexed(pendingDocuments.get(i), results.get(i));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                log.error("Failed to index a batch of documents", e);
+                pendingDocuments.forEach(pendingDocument -> pendingDocument.indexed.completeExceptionally(
+                    new EdmIndexingException("Failed to index '" + pendingDocument.edmDocument.getNodePath() + "'", e)));
+            } finally {
+                indexingInProgress.set(0);
+                pendingDocuments.stream().filter(pendingDocument -> !isPassage(pendingDocument.edmDocument))
+                    .forEach(pendingDocument -> release(pendingDocument.edmDocument.getSourceId()));
+            }
+        }
+    }
+
+    private void onIndexed(PendingDocument pendingDocument, EdmDocumentIndexingResult result) {
+        if (!result.isSuccess()) {
+            log.error("Failed to index '{}' : {}", result.getNodePath(), result.getError());
+            pendingDocument.indexed.completeExceptionally(new EdmIndexingException("Failed to index '" + result.getNodePath() + "' : " + result.getError()));
+        } else if (!isPassage(pendingDocument.edmDocument)) {
+            // no-op if one of its passages failed
+            pendingDocument.indexed.complete(result);
+        }
+        edmOcrEnrichmentService.onIndexed(pendingDocument.edmDocument, result);
+    }
+
+    /**
+     * A document to extract, the list of the extraction executor is given back as is on {@link #stop()}
+     */
+    @AllArgsConstructor
+    private class ExtractionTask implements Runnable {
+
+        private final EdmDocumentFile edmDocument;
+
+        private final InputStreamSource fileContent;
+
+        private final Runnable onExtracted;
+
+        private final CompletableFuture<EdmDocumentIndexingResult> indexed;
+
+        @Override
+        public void run() {
+            extract(this);
+        }
+    }
+
+    /**
+     * A document or a passage waiting to be indexed, passages share the future of their document
+     */
+    @AllArgsConstructor
+    private static class PendingDocument {
+
+        private final EdmDocumentFile edmDocument;
+
+        private final CompletableFuture<EdmDocumentIndexingResult> indexed;
+    }
+}
@@ -0,0 +1,18 @@
+package fr.simple.edm.service;
+
+import lombok.Getter;
+
+/**
+ * Thrown when the ingestion pipeline can not accept more documents, the crawler
+ * has to send the document again later
+ */
+@Getter
+public class EdmIngestionQueueFullException extends RuntimeException {
+
+    private final int retryAfterSeconds;
+
+    public EdmIngestionQueueFullException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
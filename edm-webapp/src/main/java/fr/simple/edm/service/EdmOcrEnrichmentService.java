@@ -0,0 +1,244 @@
+package fr.simple.edm.service;
+
+import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmDocumentIndexingResult;
+import fr.simple.edm.tika.TikaInstance;
+import lombok.AllArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Deferred OCR of PDF files : documents are first indexed with the text layer of the file, which is fast, then
+ * extracted again with OCR by low priority workers, and updated in place.
+ *
+ * Between both phases, the file content is spooled in {@code edm.ocr.spool_directory}, one file per submission
+ * named after the document id and crawl generation, so the spool survives a restart : files left by a previous
+ * run are enriched at startup, when their document is still the one indexed.
+ */
+@Service
+@Slf4j
+public class EdmOcrEnrichmentService {
+
+    @Inject
+    @Setter
+    private EdmDocumentService edmDocumentService;
+
+    @Inject
+    @Setter
+    private TikaInstance tikaInstance;
+
+    @Value("${edm.ocr.deferred:false}")
+    private boolean deferred;
+
+    @Value("${edm.ocr.enrichment_threads:1}")
+    private int enrichmentThreads;
+
+    @Value("${edm.ocr.spool_directory:ocr_spool}")
+    private String spoolDirectory;
+
+    // spool file name : id, crawl generation and a unique suffix
+    private static final String SEPARATOR = "_";
+
+    // written under this suffix, then renamed : only complete files are enriched after a restart
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    @AllArgsConstructor
+    private static class Pending {
+        private final String id;
+        private final Long crawlGeneration;
+        private final Path file;
+    }
+
+    // spooled documents until they are indexed, by submission (a document may be submitted again meanwhile)
+    private final Map<EdmDocumentFile, Pending> pendings = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    // last file spooled for each document id, older ones are not enriched
+    private final Map<String, Path> latestSpools = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor enrichmentExecutor;
+
+    private final AtomicLong enriched = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    @PostConstruct
+    public void start() throws IOException {
+        Path spool = Paths.get(spoolDirectory);
+        Files.createDirectories(spool);
+        // left by a previous run, their documents may have been indexed without being enriched
+        List<Pending> recovered;
+        try (Stream<Path> files = Files.list(spool)) {
+            recovered = files.sorted(Comparator.comparing(file -> file.toFile().lastModified()))
+                .map(EdmOcrEnrichmentService::recover)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        enrichmentExecutor = new ThreadPoolExecutor(enrichmentThreads, enrichmentThreads, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "edm-ocr-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                // OCR must not slow down the first indexing of other documents
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+
+        if (!recovered.isEmpty()) {
+            log.info("{} documents of the spool are scheduled for OCR", recovered.size());
+        }
+        recovered.forEach(pending -> latestSpools.put(pending.id, pending.file));
+        recovered.forEach(pending -> enrichmentExecutor.execute(() -> enrich(pending)));
+    }
+
+    /**
+     * @return The pending OCR of a spooled file, null if it is incomplete or was not named by this version
+     */
+    private static Pending recover(Path file) {
+        String name = file.getFileName().toString();
+        int suffixStart = name.lastIndexOf(SEPARATOR);
+        int generationStart = suffixStart > 0 ? name.lastIndexOf(SEPARATOR, suffixStart - 1) : -1;
+        if (name.endsWith(PARTIAL_SUFFIX) || generationStart <= 0) {
+            file.toFile().delete();
+            return null;
+        }
+        String generation = name.substring(generationStart + 1, suffixStart);
+        try {
+            return new Pending(name.substring(0, generationStart), generation.isEmpty() ? null : Long.valueOf(generation), file);
+        } catch (NumberFormatException e) {
+            file.toFile().delete();
+            return null;
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        enrichmentExecutor.shutdownNow();
+    }
+
+    /**
+     * @return True if the OCR of the document has to be deferred : OCR is enabled, and it is a PDF file
+     */
+    public boolean isDeferred(EdmDocumentFile edmDocument) {
+        if (!deferred || !Boolean.TRUE.equals(tikaInstance.getOcrPdf())) {
+            return false;
+        }
+        String extension = StringUtils.isNotBlank(edmDocument.getFileExtension())
+            ? edmDocument.getFileExtension()
+            : FilenameUtils.getExtension(edmDocument.getNodePath());
+        return "pdf".equalsIgnoreCase(extension);
+    }
+
+    /**
+     * Keep a copy of the content of a prepared document, its OCR is scheduled once it is indexed
+     *
+     * @param fileContent Read once, before returning
+     */
+    public void spool(EdmDocumentFile edmDocument, InputStreamSource fileContent) {
+        if (fileContent == null) {
+            return;
+        }
+        Long crawlGeneration = edmDocument.getCrawlGeneration();
+        Path file = Paths.get(spoolDirectory, edmDocument.getId() + SEPARATOR + (crawlGeneration == null ? "" : crawlGeneration)
+            + SEPARATOR + UUID.randomUUID());
+        Path partial = Paths.get(file + PARTIAL_SUFFIX);
+        try (InputStream inputStream = fileContent.getInputStream()) {
+            Files.copy(inputStream, partial);
+            Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE);
+            latestSpools.put(edmDocument.getId(), file);
+            pendings.put(edmDocument, new Pending(edmDocument.getId(), crawlGeneration, file));
+        } catch (IOException e) {
+            log.warn("Failed to spool '{}', it will not be enriched with OCR : {}", edmDocument.getNodePath(), e.getMessage());
+            partial.toFile().delete();
+            file.toFile().delete();
+        }
+    }
+
+    /**
+     * Schedule the OCR of a spooled document once its text layer is indexed ; other documents are ignored
+     *
+     * @param edmDocument The document given to {@link #spool(EdmDocumentFile, InputStreamSource)}
+     */
+    public void onIndexed(EdmDocumentFile edmDocument, EdmDocumentIndexingResult result) {
+        Pending pending = pendings.remove(edmDocument);
+        if (pending == null) {
+            return;
+        }
+        if (!result.isSuccess()) {
+            release(pending);
+            return;
+        }
+        enrichmentExecutor.execute(() -> enrich(pending));
+    }
+
+    /**
+     * @return The number of documents waiting for OCR, being processed, and processed by outcome
+     */
+    public Map<String, Long> getStatus() {
+        Map<String, Long> status = new LinkedHashMap<>();
+        status.put("queued", (long) enrichmentExecutor.getQueue().size());
+        status.put("inProgress", (long) enrichmentExecutor.getActiveCount());
+        status.put("enriched", enriched.get());
+        status.put("skipped", skipped.get());
+        status.put("failed", failed.get());
+        return status;
+    }
+
+    private void enrich(Pending pending) {
+        try {
+            if (!pending.file.equals(latestSpools.get(pending.id))) {
+                log.debug("Document '{}' was submitted again before its OCR", pending.id);
+                skipped.incrementAndGet();
+            } else if (edmDocumentService.enrichWithOcr(pending.id, pending.crawlGeneration, new FileSystemResource(pending.file.toFile()))) {
+                enriched.incrementAndGet();
+            } else {
+                skipped.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to enrich document '{}' with OCR", pending.id, e);
+            failed.incrementAndGet();
+        } finally {
+            release(pending);
+        }
+    }
+
+    private void release(Pending pending) {
+        latestSpools.remove(pending.id, pending.file);
+        pending.file.toFile().delete();
+    }
+}
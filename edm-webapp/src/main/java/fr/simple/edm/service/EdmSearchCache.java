@@ -0,0 +1,121 @@
+package fr.simple.edm.service;
+
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cache of search and aggregation results, by query type and normalized pattern.
+ *
+ * The least recently used entries are evicted above {@code edm.search_cache.max_entries}, and entries
+ * expire after {@code edm.search_cache.ttl_seconds}. Every write to the index invalidates the whole cache ;
+ * results computed shortly after a write may not see it yet (index refresh), so they are not cached.
+ */
+@Slf4j
+@Component
+public class EdmSearchCache {
+
+    @AllArgsConstructor
+    private static class Entry {
+        private final Object value;
+        private final long creationTime;
+    }
+
+    @Value("${edm.search_cache.max_entries:500}")
+    private int maxEntries;
+
+    @Value("${edm.search_cache.ttl_seconds:60}")
+    private int ttlSeconds;
+
+    // elasticsearch default refresh interval
+    @Value("${edm.search_cache.refresh_interval_ms:1000}")
+    private long refreshIntervalMs;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    // incremented on every invalidation
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile long lastInvalidationTime = 0;
+
+    /**
+     * @param type    The kind of result (search, aggregations...)
+     * @param pattern The searched pattern, may be null
+     * @param loader  Computes the result on a miss, nothing is cached if it throws
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String type, String pattern, Supplier<T> loader) {
+        String key = type + ":" + normalize(pattern);
+        long now = System.currentTimeMillis();
+
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && now - entry.creationTime < ttlSeconds * 1000L) {
+                hits.incrementAndGet();
+                return (T) entry.value;
+            }
+        }
+
+        misses.incrementAndGet();
+        long loadGeneration = generation.get();
+        T value = loader.get();
+
+        // the index was written meanwhile, or may not be refreshed yet
+        if (value != null && generation.get() == loadGeneration && now - lastInvalidationTime >= refreshIntervalMs) {
+            synchronized (entries) {
+                entries.put(key, new Entry(value, now));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Called on every write to the documents index
+     */
+    public void invalidateAll() {
+        lastInvalidationTime = System.currentTimeMillis();
+        generation.incrementAndGet();
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("hits", hits.get());
+        statistics.put("misses", misses.get());
+        statistics.put("evictions", evictions.get());
+        synchronized (entries) {
+            statistics.put("size", (long) entries.size());
+        }
+        return statistics;
+    }
+
+    /**
+     * Extra spaces do not change the query
+     */
+    static String normalize(String pattern) {
+        return pattern == null ? "" : pattern.trim().replaceAll("\\s+", " ");
+    }
+}
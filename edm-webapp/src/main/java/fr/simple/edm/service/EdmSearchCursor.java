@@ -0,0 +1,73 @@
+package fr.simple.edm.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position of a search page, given to the client as an opaque string.
+ * It holds the sort values of the last hit of the previous page (for search_after), or an offset when the search can't use
+ * search_after (collapsed searches).
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+class EdmSearchCursor {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final char SEARCH_AFTER_PREFIX = 'a';
+
+    private static final char OFFSET_PREFIX = 'o';
+
+    private final Object[] searchAfter;
+
+    private final int offset;
+
+    static EdmSearchCursor after(Object[] sortValues) {
+        return new EdmSearchCursor(sortValues, 0);
+    }
+
+    static EdmSearchCursor at(int offset) {
+        return new EdmSearchCursor(null, offset);
+    }
+
+    String encode() {
+        String value;
+        try {
+            value = searchAfter != null ? SEARCH_AFTER_PREFIX + OBJECT_MAPPER.writeValueAsString(searchAfter) : OFFSET_PREFIX + Integer.toString(offset);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write search cursor", e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return null for the first page
+     * @throws IllegalArgumentException When the cursor was not given by a search
+     */
+    static EdmSearchCursor decode(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            if (value.charAt(0) == SEARCH_AFTER_PREFIX) {
+                return after(OBJECT_MAPPER.readValue(value.substring(1), Object[].class));
+            }
+            if (value.charAt(0) == OFFSET_PREFIX) {
+                int offset = Integer.parseInt(value.substring(1));
+                if (offset >= 0) {
+                    return at(offset);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalArgumentException("Invalid search cursor : " + cursor, e);
+        }
+        throw new IllegalArgumentException("Invalid search cursor : " + cursor);
+    }
+}
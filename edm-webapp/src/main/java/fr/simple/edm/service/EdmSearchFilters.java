@@ -0,0 +1,35 @@
+package fr.simple.edm.service;
+
+import lombok.Data;
+import org.springframework.format.annotation.DateTimeFormat;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Optional request parameters selecting the searched documents, lists are comma separated and their values are or-ed.
+ *
+ * For example : {@code categoryId=invoices,taxes&fileExtension=pdf&fileDateFrom=2019-01-01}
+ */
+@Data
+public class EdmSearchFilters {
+
+    private List<String> categoryId = new ArrayList<>();
+
+    private List<String> sourceId = new ArrayList<>();
+
+    private List<String> fileExtension = new ArrayList<>();
+
+    // inclusive
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+    private LocalDate fileDateFrom;
+
+    // inclusive
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+    private LocalDate fileDateTo;
+
+    public boolean isEmpty() {
+        return categoryId.isEmpty() && sourceId.isEmpty() && fileExtension.isEmpty() && fileDateFrom == null && fileDateTo == null;
+    }
+}
@@ -0,0 +1,148 @@
+package fr.simple.edm.tika;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Split the text extracted by tika : the first characters are kept as the content of the document, the next
+ * ones are given to a consumer by passages, as soon as they are extracted, so memory does not depend on the
+ * size of the document.
+ *
+ * A passage ends with a page (when the parser gives pages, like the PDF one) once it is at least half of the
+ * passage size, or at the last blank before the passage size. Parsing stops after the max number of passages.
+ */
+public class EdmChunkingContentHandler extends DefaultHandler {
+
+    private final int headLength;
+
+    private final int chunkSize;
+
+    private final int maxChunks;
+
+    private final ObjIntConsumer<String> chunkConsumer;
+
+    private final StringBuilder head = new StringBuilder();
+
+    private final StringBuilder chunk = new StringBuilder();
+
+    private int chunkCount = 0;
+
+    // for each opened div, is it a page
+    private final Deque<Boolean> divs = new ArrayDeque<>();
+
+    /**
+     * Thrown to stop the parser once the max number of passages is reached
+     */
+    private static class ChunkLimitReachedException extends SAXException {
+        ChunkLimitReachedException(int maxChunks) {
+            super("Max number of passages reached (" + maxChunks + ")");
+        }
+    }
+
+    /**
+     * @param headLength    Characters kept as the document content, negative means the whole text
+     * @param chunkSize     Max characters of a passage
+     * @param maxChunks     Text after this number of passages is ignored
+     * @param chunkConsumer Receives each passage and its index, starting at 0
+     */
+    public EdmChunkingContentHandler(int headLength, int chunkSize, int maxChunks, ObjIntConsumer<String> chunkConsumer) {
+        this.headLength = headLength;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.maxChunks = maxChunks;
+        this.chunkConsumer = chunkConsumer;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        if ("div".equals(localName)) {
+            divs.push("page".equals(attributes.getValue("class")));
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if ("div".equals(localName) && !divs.isEmpty() && divs.pop() && chunk.length() >= chunkSize / 2) {
+            flush(chunk.length());
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (headLength < 0 || head.length() < headLength) {
+            int headPart = headLength < 0 ? length : Math.min(length, headLength - head.length());
+            head.append(ch, start, headPart);
+            start += headPart;
+            length -= headPart;
+        }
+
+        while (length > 0) {
+            int part = Math.min(length, chunkSize - chunk.length());
+            chunk.append(ch, start, part);
+            start += part;
+            length -= part;
+            if (chunk.length() >= chunkSize) {
+                flush(getCutPosition());
+            }
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        characters(ch, start, length);
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        flush(chunk.length());
+    }
+
+    /**
+     * @return The content of the document, without the passages
+     */
+    public String getHead() {
+        return head.toString();
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return True if the exception was thrown by this handler to stop the parser
+     */
+    public boolean isChunkLimitReached(Throwable e) {
+        return e instanceof ChunkLimitReachedException;
+    }
+
+    /**
+     * After the last blank of the second half, so words are not split
+     */
+    private int getCutPosition() {
+        for (int i = chunk.length() - 1; i >= chunk.length() / 2; i--) {
+            if (Character.isWhitespace(chunk.charAt(i))) {
+                return i + 1;
+            }
+        }
+        return chunk.length();
+    }
+
+    /**
+     * Send the first characters of the current passage, the next ones begin the next passage
+     */
+    private void flush(int length) throws SAXException {
+        String text = chunk.substring(0, length);
+        chunk.delete(0, length);
+        if (text.trim().isEmpty()) {
+            return;
+        }
+        if (chunkCount >= maxChunks) {
+            throw new ChunkLimitReachedException(maxChunks);
+        }
+        chunkConsumer.accept(text.trim(), chunkCount++);
+    }
+}
@@ -0,0 +1,189 @@
+package fr.simple.edm.tika;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keep the result of tika extractions on disk, so a file is parsed (and OCRed) only once,
+ * whatever the number of re-crawls or copies of this file.
+ *
+ * Entries are keyed by the hash of the file content and of the tika configuration, and are
+ * evicted by last access time when the cache is bigger than {@code edm.tika.cache.maxSizeMb}.
+ */
+@Slf4j
+@Component
+@ConfigurationProperties(prefix = "edm.tika.cache")
+public class EdmExtractionCache {
+
+    @Getter
+    @Setter
+    private Boolean enabled = true;
+
+    @Getter
+    @Setter
+    private String directory = "tika_cache";
+
+    @Getter
+    @Setter
+    private Integer maxSizeMb = 1024;
+
+    @Inject
+    @Setter
+    private TikaInstance tikaInstance;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final AtomicLong currentSize = new AtomicLong();
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry {
+        private String fileContent;
+        private String fileTitle;
+        private String fileKeywords;
+        private String fileAuthor;
+        // number of passages indexed apart from the content, null if they were not extracted
+        private Integer chunkCount;
+
+        public Entry(String fileContent, String fileTitle, String fileKeywords, String fileAuthor) {
+            this(fileContent, fileTitle, fileKeywords, fileAuthor, null);
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            log.info("Extraction cache is disabled");
+            return;
+        }
+        currentSize.set(listEntries().mapToLong(File::length).sum());
+        log.info("Extraction cache '{}' contains {} MB", directory, currentSize.get() / 1024 / 1024);
+    }
+
+    /**
+     * @return The cache key of this content with the current tika configuration
+     */
+    public String getKey(InputStreamSource content) throws IOException {
+        return getKey(content, tikaInstance.getOcrPdf());
+    }
+
+    /**
+     * @param ocr Whether the extraction runs tesseract, see {@link TikaInstance#extractFileContent(InputStream, org.apache.tika.metadata.Metadata, boolean)}
+     */
+    public String getKey(InputStreamSource content, boolean ocr) throws IOException {
+        String contentHash;
+        try (InputStream inputStream = content.getInputStream()) {
+            contentHash = DigestUtils.sha256Hex(inputStream);
+        }
+        return DigestUtils.sha256Hex(contentHash
+            + "|" + tikaInstance.getOcrLanguage()
+            + "|" + ocr
+            + "|" + tikaInstance.getOcrIndexedChar());
+    }
+
+    /**
+     * @return The cached extraction, or null
+     */
+    public Entry get(String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            Entry entry = objectMapper.readValue(file, Entry.class);
+            // last access time, used for eviction
+            file.setLastModified(System.currentTimeMillis());
+            return entry;
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable cache entry '{}' : {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    public void put(String key, Entry entry) {
+        File file = getFile(key);
+        try {
+            file.getParentFile().mkdirs();
+            // write in a temporary file first, another thread may read the entry
+            File tmpFile = File.createTempFile(key, ".tmp", file.getParentFile());
+            objectMapper.writeValue(tmpFile, entry);
+            long previousLength = file.length();
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            currentSize.addAndGet(file.length() - previousLength);
+        } catch (IOException e) {
+            log.warn("Failed to write cache entry '{}' : {}", file, e.getMessage());
+            return;
+        }
+
+        if (currentSize.get() > maxSizeMb * 1024L * 1024L) {
+            evict();
+        }
+    }
+
+    /**
+     * Remove the least recently used entries, until the cache is back to 90% of its max size
+     */
+    private synchronized void evict() {
+        long targetSize = maxSizeMb * 1024L * 1024L * 9 / 10;
+        if (currentSize.get() <= targetSize) {
+            return;
+        }
+
+        List<File> entries = listEntries()
+            .sorted(Comparator.comparingLong(File::lastModified))
+            .collect(Collectors.toList());
+
+        int evicted = 0;
+        for (File entry : entries) {
+            if (currentSize.get() <= targetSize) {
+                break;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                currentSize.addAndGet(-length);
+                evicted++;
+            }
+        }
+        log.info("Evicted {} entries from the extraction cache", evicted);
+    }
+
+    private Stream<File> listEntries() {
+        File[] subDirectories = new File(directory).listFiles(File::isDirectory);
+        if (subDirectories == null) {
+            return Stream.empty();
+        }
+        return Arrays.stream(subDirectories)
+            .map(subDirectory -> subDirectory.listFiles((dir, name) -> name.endsWith(".json")))
+            .filter(files -> files != null)
+            .flatMap(Arrays::stream);
+    }
+
+    private File getFile(String key) {
+        // spread entries in sub directories, to keep directories small
+        return new File(new File(directory, key.substring(0, 2)), key + ".json");
+    }
+}
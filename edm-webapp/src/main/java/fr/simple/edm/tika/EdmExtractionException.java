@@ -0,0 +1,12 @@
+package fr.simple.edm.tika;
+
+/**
+ * Thrown when tika could not read the text of a document (unreadable file, timeout...), the document is not indexed
+ * without its content
+ */
+public class EdmExtractionException extends RuntimeException {
+
+    public EdmExtractionException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
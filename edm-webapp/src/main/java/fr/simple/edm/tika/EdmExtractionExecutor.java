@@ -0,0 +1,255 @@
+package fr.simple.edm.tika;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.tika.detect.DefaultDetector;
+import org.apache.tika.detect.Detector;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run tika parsers on a fixed pool of workers, each document having at most {@code edm.tika.executor.timeoutSeconds}
+ * to be parsed, queueing included. The caller gets a {@link TikaException} on timeout, the worker is interrupted.
+ *
+ * With {@code edm.tika.executor.fork}, parsers run in child JVMs of at most {@code forkMaxHeapMb} of heap, see
+ * {@link EdmForkedExtractor}, so a file blowing up the parser does not blow up the webapp. A child JVM is killed on
+ * timeout or failure, and replaced after {@code forkMaxDocuments} documents, to free what parsers may leak.
+ * Without it, which is the default, parsers share the heap of the webapp and nothing bounds their memory.
+ *
+ * Outcomes are counted by MIME type, see {@link #getStatistics()}.
+ */
+@Slf4j
+@Component
+@ConfigurationProperties(prefix = "edm.tika.executor")
+public class EdmExtractionExecutor {
+
+    // 0 means one worker per available processor
+    @Getter
+    @Setter
+    private Integer workers = 0;
+
+    @Getter
+    @Setter
+    private Integer timeoutSeconds = 300;
+
+    @Getter
+    @Setter
+    private Boolean fork = false;
+
+    @Getter
+    @Setter
+    private Integer forkMaxDocuments = 100;
+
+    @Getter
+    @Setter
+    private Integer forkMaxHeapMb = 512;
+
+    private static class MimeTypeStatistics {
+        private final AtomicLong documents = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+    }
+
+    private final Map<String, MimeTypeStatistics> statistics = new ConcurrentHashMap<>();
+
+    /**
+     * A child JVM, parsing one document at a time
+     */
+    private static class ChildJvm {
+        private final Process process;
+        private final DataOutputStream input;
+        private final DataInputStream output;
+        private int parsedDocuments = 0;
+
+        ChildJvm(List<String> command) throws IOException {
+            process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            input = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            output = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        void parse(Parser parser, InputStream stream, ContentHandler handler, Metadata metadata) throws IOException, SAXException, TikaException {
+            parsedDocuments++;
+            EdmForkedExtractor.writeRequest(input, parser, metadata, stream);
+            EdmForkedExtractor.readResponse(output, handler, metadata);
+        }
+    }
+
+    private final Detector detector = new DefaultDetector();
+
+    private ExecutorService executor;
+
+    private final Deque<ChildJvm> idleChildJvms = new ArrayDeque<>();
+
+    @PostConstruct
+    public void start() {
+        int threads = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "edm-tika-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("Tika runs on {} workers{}", threads, fork ? ", in child JVMs of " + forkMaxHeapMb + " MB" : "");
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+        synchronized (idleChildJvms) {
+            idleChildJvms.forEach(childJvm -> childJvm.process.destroyForcibly());
+            idleChildJvms.clear();
+        }
+    }
+
+    /**
+     * Parse a document on a worker, waiting for at most {@code timeoutSeconds}
+     *
+     * @throws SAXException Thrown by the handler, to stop the parser once it has enough text
+     */
+    public void parse(Parser parser, InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context) throws IOException, SAXException, TikaException {
+        TikaInputStream tikaStream = TikaInputStream.get(stream);
+        String mimeType = detector.detect(tikaStream, metadata).getBaseType().toString();
+        MimeTypeStatistics mimeTypeStatistics = statistics.computeIfAbsent(mimeType, type -> new MimeTypeStatistics());
+        mimeTypeStatistics.documents.incrementAndGet();
+
+        ChildJvm childJvm = fork ? acquireChildJvm() : null;
+        boolean reusable = false;
+        long start = System.currentTimeMillis();
+        Future<?> future = executor.submit(() -> {
+            if (childJvm != null) {
+                childJvm.parse(parser, tikaStream, handler, metadata);
+            } else {
+                parser.parse(tikaStream, handler, metadata, context);
+            }
+            return null;
+        });
+        try {
+            future.get(timeoutSeconds, TimeUnit.SECONDS);
+            reusable = true;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            mimeTypeStatistics.timeouts.incrementAndGet();
+            log.warn("Extraction of [{}] ({}) timed out after {} seconds", metadata.get(Metadata.RESOURCE_NAME_KEY), mimeType, timeoutSeconds);
+            throw new TikaException("Extraction timed out after " + timeoutSeconds + " seconds");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new TikaException("Interrupted while waiting for the extraction", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SAXException) {
+                throw (SAXException) cause;
+            }
+            mimeTypeStatistics.failures.incrementAndGet();
+            log.debug("Extraction of [{}] ({}) failed", metadata.get(Metadata.RESOURCE_NAME_KEY), mimeType, cause);
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof TikaException) {
+                throw (TikaException) cause;
+            }
+            // out of memory... is not a failure of the document only
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new TikaException("Extraction failed : " + cause, cause);
+        } finally {
+            mimeTypeStatistics.totalMillis.addAndGet(System.currentTimeMillis() - start);
+            if (childJvm != null) {
+                releaseChildJvm(childJvm, reusable);
+            }
+        }
+    }
+
+    /**
+     * @return By MIME type : the number of documents, failures, timeouts, and the total extraction time
+     */
+    public Map<String, Map<String, Long>> getStatistics() {
+        Map<String, Map<String, Long>> result = new TreeMap<>();
+        statistics.forEach((mimeType, mimeTypeStatistics) -> {
+            Map<String, Long> values = new LinkedHashMap<>();
+            values.put("documents", mimeTypeStatistics.documents.get());
+            values.put("failures", mimeTypeStatistics.failures.get());
+            values.put("timeouts", mimeTypeStatistics.timeouts.get());
+            values.put("totalMillis", mimeTypeStatistics.totalMillis.get());
+            result.put(mimeType, values);
+        });
+        return result;
+    }
+
+    private ChildJvm acquireChildJvm() throws IOException {
+        synchronized (idleChildJvms) {
+            ChildJvm childJvm = idleChildJvms.poll();
+            if (childJvm != null) {
+                return childJvm;
+            }
+        }
+        return new ChildJvm(getChildJvmCommand());
+    }
+
+    /**
+     * @param reusable False if the child JVM may be in the middle of a document : it timed out, or the parser or
+     *                 the handler failed
+     */
+    private void releaseChildJvm(ChildJvm childJvm, boolean reusable) {
+        if (reusable && childJvm.parsedDocuments < forkMaxDocuments && childJvm.process.isAlive()) {
+            synchronized (idleChildJvms) {
+                idleChildJvms.push(childJvm);
+            }
+            return;
+        }
+        log.debug("Stopping tika child JVM after {} documents", childJvm.parsedDocuments);
+        childJvm.process.destroyForcibly();
+    }
+
+    private List<String> getChildJvmCommand() {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-Xmx" + forkMaxHeapMb + "m");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        if (EdmExtractionExecutor.class.getClassLoader().getClass().getName().startsWith("org.springframework.boot.loader")) {
+            // executable jar : libraries are nested in the jar, spring boot launcher loads them
+            command.add("-Dloader.main=" + EdmForkedExtractor.class.getName());
+            command.add("org.springframework.boot.loader.PropertiesLauncher");
+        } else {
+            command.add(EdmForkedExtractor.class.getName());
+        }
+        return command;
+    }
+}
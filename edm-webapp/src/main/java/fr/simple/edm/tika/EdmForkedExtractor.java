@@ -0,0 +1,291 @@
+package fr.simple.edm.tika;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Tika in a child JVM, see {@link EdmExtractionExecutor}. Documents are read one after the other on the standard
+ * input, the SAX events and metadata of the parser are written back on the standard output.
+ *
+ * A request is the serialized parser and metadata, then the content by blocks, an empty block ending it. The child
+ * reads the whole content before parsing, so the parent can write it without reading the events at the same time.
+ */
+public class EdmForkedExtractor {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    // characters are written by pieces, writeUTF is limited to 64 KB
+    private static final int MAX_CHARACTERS = 16 * 1024;
+
+    private static final byte START_DOCUMENT = 'D';
+    private static final byte END_DOCUMENT = 'd';
+    private static final byte START_ELEMENT = 'E';
+    private static final byte END_ELEMENT = 'e';
+    private static final byte CHARACTERS = 'C';
+    private static final byte IGNORABLE_WHITESPACE = 'W';
+    private static final byte METADATA = 'M';
+    private static final byte SUCCESS = 'K';
+    private static final byte FAILURE = 'X';
+
+    public static void main(String[] args) throws IOException {
+        // parsers writing on the standard output must not break the protocol
+        OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stdout));
+        while (true) {
+            int headerLength;
+            try {
+                headerLength = input.readInt();
+            } catch (EOFException e) {
+                // the parent closed the pipe
+                return;
+            }
+            processRequest(input, output, headerLength);
+        }
+    }
+
+    private static void processRequest(DataInputStream input, DataOutputStream output, int headerLength) throws IOException {
+        byte[] header = new byte[headerLength];
+        input.readFully(header);
+
+        Path content = Files.createTempFile("edm-tika-", null);
+        try {
+            try (OutputStream contentOutput = Files.newOutputStream(content)) {
+                byte[] block = new byte[BLOCK_SIZE];
+                for (int length = input.readInt(); length > 0; length = input.readInt()) {
+                    input.readFully(block, 0, length);
+                    contentOutput.write(block, 0, length);
+                }
+            }
+
+            Parser parser;
+            Metadata metadata;
+            try (ObjectInputStream headerInput = new ObjectInputStream(new ByteArrayInputStream(header))) {
+                parser = (Parser) headerInput.readObject();
+                metadata = (Metadata) headerInput.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+
+            try (TikaInputStream stream = TikaInputStream.get(content)) {
+                parser.parse(stream, new EventWriter(output), metadata, new ParseContext());
+                writeMetadata(output, metadata);
+                output.writeByte(SUCCESS);
+            } catch (Exception e) {
+                output.writeByte(FAILURE);
+                output.writeUTF(String.valueOf(e));
+            } catch (Error e) {
+                // the JVM may be unusable, the parent starts another one
+                output.writeByte(FAILURE);
+                output.writeUTF(String.valueOf(e));
+                output.flush();
+                System.exit(1);
+            }
+            output.flush();
+        } finally {
+            Files.deleteIfExists(content);
+        }
+    }
+
+    /**
+     * Send a request to a child JVM
+     */
+    static void writeRequest(DataOutputStream input, Parser parser, Metadata metadata, InputStream stream) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try (ObjectOutputStream headerOutput = new ObjectOutputStream(header)) {
+            headerOutput.writeObject(parser);
+            headerOutput.writeObject(metadata);
+        }
+        input.writeInt(header.size());
+        header.writeTo(input);
+
+        byte[] block = new byte[BLOCK_SIZE];
+        for (int length = stream.read(block); length >= 0; length = stream.read(block)) {
+            if (length > 0) {
+                input.writeInt(length);
+                input.write(block, 0, length);
+            }
+        }
+        input.writeInt(0);
+        input.flush();
+    }
+
+    /**
+     * Read the response of a child JVM : events are given to the handler, metadata are copied
+     *
+     * @throws SAXException Thrown by the handler
+     * @throws TikaException If the parser failed in the child JVM
+     */
+    static void readResponse(DataInputStream output, ContentHandler handler, Metadata metadata) throws IOException, SAXException, TikaException {
+        while (true) {
+            byte event = output.readByte();
+            switch (event) {
+                case START_DOCUMENT:
+                    handler.startDocument();
+                    break;
+                case END_DOCUMENT:
+                    handler.endDocument();
+                    break;
+                case START_ELEMENT:
+                    String uri = output.readUTF();
+                    String localName = output.readUTF();
+                    String qName = output.readUTF();
+                    AttributesImpl attributes = new AttributesImpl();
+                    for (int i = output.readInt(); i > 0; i--) {
+                        attributes.addAttribute(output.readUTF(), output.readUTF(), output.readUTF(), output.readUTF(), output.readUTF());
+                    }
+                    handler.startElement(uri, localName, qName, attributes);
+                    break;
+                case END_ELEMENT:
+                    handler.endElement(output.readUTF(), output.readUTF(), output.readUTF());
+                    break;
+                case CHARACTERS:
+                    char[] characters = output.readUTF().toCharArray();
+                    handler.characters(characters, 0, characters.length);
+                    break;
+                case IGNORABLE_WHITESPACE:
+                    char[] whitespace = output.readUTF().toCharArray();
+                    handler.ignorableWhitespace(whitespace, 0, whitespace.length);
+                    break;
+                case METADATA:
+                    String name = output.readUTF();
+                    metadata.remove(name);
+                    for (int i = output.readInt(); i > 0; i--) {
+                        metadata.add(name, output.readUTF());
+                    }
+                    break;
+                case SUCCESS:
+                    return;
+                case FAILURE:
+                    throw new TikaException("Extraction failed in child JVM : " + output.readUTF());
+                default:
+                    throw new IOException("Unexpected event from child JVM : " + event);
+            }
+        }
+    }
+
+    private static void writeMetadata(DataOutputStream output, Metadata metadata) throws IOException {
+        for (String name : metadata.names()) {
+            output.writeByte(METADATA);
+            output.writeUTF(name);
+            String[] values = metadata.getValues(name);
+            output.writeInt(values.length);
+            for (String value : values) {
+                output.writeUTF(value);
+            }
+        }
+    }
+
+    private static String nonNull(String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * Write the events of the parser on the standard output
+     */
+    private static class EventWriter extends DefaultHandler {
+
+        private final DataOutputStream output;
+
+        EventWriter(DataOutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            write(() -> output.writeByte(START_DOCUMENT));
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            write(() -> output.writeByte(END_DOCUMENT));
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            write(() -> {
+                output.writeByte(START_ELEMENT);
+                output.writeUTF(nonNull(uri));
+                output.writeUTF(nonNull(localName));
+                output.writeUTF(nonNull(qName));
+                output.writeInt(attributes.getLength());
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    output.writeUTF(nonNull(attributes.getURI(i)));
+                    output.writeUTF(nonNull(attributes.getLocalName(i)));
+                    output.writeUTF(nonNull(attributes.getQName(i)));
+                    output.writeUTF(nonNull(attributes.getType(i)));
+                    output.writeUTF(nonNull(attributes.getValue(i)));
+                }
+            });
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            write(() -> {
+                output.writeByte(END_ELEMENT);
+                output.writeUTF(nonNull(uri));
+                output.writeUTF(nonNull(localName));
+                output.writeUTF(nonNull(qName));
+            });
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            writeCharacters(CHARACTERS, ch, start, length);
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            writeCharacters(IGNORABLE_WHITESPACE, ch, start, length);
+        }
+
+        private void writeCharacters(byte event, char[] ch, int start, int length) throws SAXException {
+            write(() -> {
+                for (int offset = 0; offset < length; offset += MAX_CHARACTERS) {
+                    output.writeByte(event);
+                    output.writeUTF(new String(ch, start + offset, Math.min(MAX_CHARACTERS, length - offset)));
+                }
+            });
+        }
+
+        private interface Write {
+            void run() throws IOException;
+        }
+
+        private void write(Write write) throws SAXException {
+            try {
+                write.run();
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+        }
+    }
+}
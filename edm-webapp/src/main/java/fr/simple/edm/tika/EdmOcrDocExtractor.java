@@ -2,12 +2,16 @@ package fr.simple.edm.tika;
 
 import fr.simple.edm.domain.EdmDocumentFile;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.tika.exception.TikaException;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.metadata.TikaCoreProperties;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.stereotype.Component;
 
 import javax.inject.Inject;
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.function.ObjIntConsumer;
 
 @Slf4j
 @Component
@@ -16,20 +20,74 @@ public class EdmOcrDocExtractor {
     @Inject
     private TikaInstance tikaInstance;
 
+    @Inject
+    private EdmExtractionCache edmExtractionCache;
+
     public void extractFileContent(EdmDocumentFile edmDocumentFile) {
+        extractFileContent(edmDocumentFile, edmDocumentFile.getBinaryFileContent() == null ? null : new ByteArrayResource(edmDocumentFile.getBinaryFileContent()));
+    }
+
+    /**
+     * @param binaryFileContent The document content, may be a stream on an uploaded file
+     */
+    public void extractFileContent(EdmDocumentFile edmDocumentFile, InputStreamSource binaryFileContent) {
+        extractFileContent(edmDocumentFile, binaryFileContent, true, 0, 0, null);
+    }
+
+    /**
+     * Same as {@link #extractFileContent(EdmDocumentFile, InputStreamSource)}, the text beyond the content of the
+     * document is given to the consumer by passages. Passages are not cached, only documents without passages
+     * are read from the cache.
+     *
+     * @param withOcr       False to only read the text layer of PDF files, even if {@code edm.tika.ocrPdf} is set
+     * @param chunkSize     Max characters of a passage
+     * @param maxChunks     Text after this number of passages is ignored
+     * @param chunkConsumer Receives each passage and its index, null to drop the text beyond the content
+     * @return The number of passages
+     * @throws EdmExtractionException If the file could not be read or parsed, or its extraction timed out
+     */
+    public int extractFileContent(EdmDocumentFile edmDocumentFile, InputStreamSource binaryFileContent, boolean withOcr, int chunkSize, int maxChunks, ObjIntConsumer<String> chunkConsumer) {
         log.trace("Generating document [{}]", edmDocumentFile.getName());
 
-        if (edmDocumentFile.getBinaryFileContent() == null) {
+        if (binaryFileContent == null) {
             log.trace("Binary content is null for [{}]", edmDocumentFile.getName());
-            return;
+            return 0;
+        }
+
+        boolean ocr = withOcr && tikaInstance.getOcrPdf();
+        String cacheKey = null;
+        if (edmExtractionCache.getEnabled()) {
+            try {
+                cacheKey = edmExtractionCache.getKey(binaryFileContent, ocr);
+                EdmExtractionCache.Entry cached = edmExtractionCache.get(cacheKey);
+                // an entry written without passages may have dropped some text
+                if (cached != null && (chunkConsumer == null || Integer.valueOf(0).equals(cached.getChunkCount()))) {
+                    log.debug("Extraction of [{}] found in cache", edmDocumentFile.getName());
+                    edmDocumentFile.setFileContent(cached.getFileContent());
+                    edmDocumentFile.setFileTitle(cached.getFileTitle());
+                    edmDocumentFile.setFileKeywords(cached.getFileKeywords());
+                    edmDocumentFile.setFileAuthor(cached.getFileAuthor());
+                    return 0;
+                }
+            } catch (IOException e) {
+                log.warn("Failed to compute cache key for [{}] : {}", edmDocumentFile.getName(), e.getMessage());
+            }
         }
 
+        int chunkCount = 0;
         try {
             Metadata metadata = new Metadata();
             metadata.set(Metadata.RESOURCE_NAME_KEY, edmDocumentFile.getNodePath());
 
             // fill content
-            String fileContent = tikaInstance.extractFileContent(new ByteArrayInputStream(edmDocumentFile.getBinaryFileContent()), metadata);
+            String fileContent;
+            if (chunkConsumer == null) {
+                fileContent = tikaInstance.extractFileContent(binaryFileContent.getInputStream(), metadata, ocr);
+            } else {
+                EdmChunkingContentHandler handler = tikaInstance.extractFileContent(binaryFileContent.getInputStream(), metadata, ocr, chunkSize, maxChunks, chunkConsumer);
+                fileContent = handler.getHead();
+                chunkCount = handler.getChunkCount();
+            }
             edmDocumentFile.setFileContent(fileContent);
 
             // fill metadata
@@ -38,10 +96,18 @@ public class EdmOcrDocExtractor {
             edmDocumentFile.setFileAuthor(metadata.get(TikaCoreProperties.CREATOR));
 
             log.debug("Tika extracted the following content : {}", fileContent);
-        } catch (Throwable e) {
-            log.debug("Failed to extract [{}] characters of text for [{}]", edmDocumentFile.getName(), e);
+
+            if (cacheKey != null) {
+                edmExtractionCache.put(cacheKey, new EdmExtractionCache.Entry(fileContent,
+                    edmDocumentFile.getFileTitle(), edmDocumentFile.getFileKeywords(), edmDocumentFile.getFileAuthor(),
+                    chunkConsumer == null ? null : chunkCount));
+            }
+        } catch (IOException | TikaException e) {
+            // timeouts of the extraction executor are tika exceptions too
+            throw new EdmExtractionException("Failed to extract the text of [" + edmDocumentFile.getNodePath() + "] : " + e.getMessage(), e);
         }
         log.trace("End of generation for document [{}]", edmDocumentFile.getName());
+        return chunkCount;
     }
 }
 
@@ -0,0 +1,86 @@
+package fr.simple.edm.tika;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.AbstractParser;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.DefaultParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.parser.external.ExternalParser;
+import org.apache.tika.parser.ocr.TesseractOCRConfig;
+import org.apache.tika.parser.pdf.PDFParser;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * The parser used by {@link TikaInstance}, with or without OCR of PDF files.
+ *
+ * The tika parsers and their context are built on first use and never serialized : this parser can be sent as is
+ * to a child JVM by {@link org.apache.tika.fork.ForkParser}, the whole parsers graph can not.
+ */
+public class EdmTikaParser extends AbstractParser {
+
+    private final boolean ocr;
+
+    private final String ocrLanguage;
+
+    private transient Parser parser;
+
+    private transient ParseContext context;
+
+    public EdmTikaParser(boolean ocr, String ocrLanguage) {
+        this.ocr = ocr;
+        this.ocrLanguage = ocrLanguage;
+    }
+
+    @Override
+    public Set<MediaType> getSupportedTypes(ParseContext ignored) {
+        init();
+        return parser.getSupportedTypes(context);
+    }
+
+    /**
+     * @param ignored The context of this parser is used instead
+     */
+    @Override
+    public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext ignored) throws IOException, SAXException, TikaException {
+        init();
+        parser.parse(stream, handler, metadata, context);
+    }
+
+    /**
+     * @return True if tesseract is installed, otherwise OCR does not run
+     */
+    public static boolean isTesseractInstalled() {
+        return ExternalParser.check("tesseract");
+    }
+
+    private synchronized void init() {
+        if (parser != null) {
+            return;
+        }
+        DefaultParser defaultParser = new DefaultParser();
+        context = new ParseContext();
+
+        if (ocr) {
+            PDFParser pdfParser = new PDFParser();
+            if (isTesseractInstalled()) {
+                pdfParser.setOcrStrategy("ocr_and_text");
+            }
+            parser = new AutoDetectParser(defaultParser, pdfParser);
+
+            TesseractOCRConfig config = new TesseractOCRConfig();
+            config.setLanguage(ocrLanguage);
+            context.set(TesseractOCRConfig.class, config);
+        } else {
+            parser = new AutoDetectParser(defaultParser);
+        }
+        context.set(Parser.class, parser);
+    }
+}
@@ -5,23 +5,21 @@ import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.tika.exception.TikaException;
 import org.apache.tika.metadata.Metadata;
-import org.apache.tika.parser.AutoDetectParser;
-import org.apache.tika.parser.DefaultParser;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
-import org.apache.tika.parser.external.ExternalParser;
-import org.apache.tika.parser.ocr.TesseractOCRConfig;
-import org.apache.tika.parser.pdf.PDFParser;
 import org.apache.tika.sax.BodyContentHandler;
 import org.apache.tika.sax.WriteOutContentHandler;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 
 import javax.annotation.PostConstruct;
+import javax.inject.Inject;
 import javax.validation.constraints.NotNull;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.function.ObjIntConsumer;
 
 // please also take a look at https://github.com/dadoonet/fscrawler/blob/master/src/main/java/fr/pilato/elasticsearch/crawler/fs/tika/TikaInstance.java
 
@@ -45,61 +43,35 @@ public class TikaInstance {
     @Setter
     private Integer ocrIndexedChar;
 
+    @Inject
+    @Setter
+    private EdmExtractionExecutor edmExtractionExecutor;
+
     private Parser standardParser;
     private Parser ocrParser;
-    private ParseContext standardContext;
-    private ParseContext ocrContext;
 
     @PostConstruct
     private void initTika() {
-        initParser();
-        initContext();
-    }
-
-    private void initParser() {
         if (standardParser == null) {
-            PDFParser pdfParser = new PDFParser();
-            DefaultParser defaultParser = new DefaultParser();
-
-            if (ExternalParser.check("tesseract")) {
-                pdfParser.setOcrStrategy("ocr_and_text");
-            } else {
+            if (!EdmTikaParser.isTesseractInstalled()) {
                 log.debug("Tesseract is not installed, so won't run OCR.");
             }
-
-            Parser standardParsers[] = new Parser[1];
-            standardParsers[0] = defaultParser;
-            standardParser = new AutoDetectParser(standardParsers);
-
-            Parser ocrParsers[] = new Parser[2];
-            ocrParsers[0] = defaultParser;
-            ocrParsers[1] = pdfParser;
-            ocrParser = new AutoDetectParser(ocrParsers);
+            standardParser = new EdmTikaParser(false, ocrLanguage);
+            ocrParser = new EdmTikaParser(true, ocrLanguage);
         }
-
     }
 
-    private void initContext() {
-        if (standardContext == null) {
-            standardContext = new ParseContext();
-            standardContext.set(Parser.class, standardParser);
-
-            ocrContext = new ParseContext();
-            ocrContext.set(Parser.class, ocrParser);
-            TesseractOCRConfig config = new TesseractOCRConfig();
-            config.setLanguage(ocrLanguage);
-            ocrContext.set(TesseractOCRConfig.class, config);
-        }
+    public String extractFileContent(InputStream stream, Metadata metadata) throws IOException, TikaException {
+        return extractFileContent(stream, metadata, ocrPdf);
     }
 
-    public String extractFileContent(InputStream stream, Metadata metadata) throws IOException, TikaException {
+    /**
+     * @param ocr Run tesseract on PDF files, whatever {@code ocrPdf}
+     */
+    public String extractFileContent(InputStream stream, Metadata metadata, boolean ocr) throws IOException, TikaException {
         WriteOutContentHandler handler = new WriteOutContentHandler(ocrIndexedChar);
         try {
-            if (!ocrPdf) {
-                standardParser.parse(stream, new BodyContentHandler(handler), metadata, standardContext);
-            } else {
-                ocrParser.parse(stream, new BodyContentHandler(handler), metadata, ocrContext);
-            }
+            parse(stream, new BodyContentHandler(handler), metadata, ocr);
         } catch (SAXException e) {
             if (!handler.isWriteLimitReached(e)) {
                 // This should never happen with BodyContentHandler...
@@ -111,4 +83,37 @@ public class TikaInstance {
         return handler.toString();
     }
 
+    /**
+     * Same as {@link #extractFileContent(InputStream, Metadata, boolean)}, the text after the first
+     * {@code ocrIndexedChar} characters is not dropped but given to the consumer by passages, as it is extracted
+     *
+     * @param ocr           Run tesseract on PDF files, whatever {@code ocrPdf}
+     * @param chunkSize     Max characters of a passage
+     * @param maxChunks     Text after this number of passages is ignored
+     * @param chunkConsumer Receives each passage and its index
+     * @return The handler, with the first characters and the number of passages
+     */
+    public EdmChunkingContentHandler extractFileContent(InputStream stream, Metadata metadata, boolean ocr, int chunkSize, int maxChunks, ObjIntConsumer<String> chunkConsumer) throws IOException, TikaException {
+        EdmChunkingContentHandler handler = new EdmChunkingContentHandler(ocrIndexedChar, chunkSize, maxChunks, chunkConsumer);
+        try {
+            parse(stream, new BodyContentHandler(handler), metadata, ocr);
+        } catch (SAXException e) {
+            if (!handler.isChunkLimitReached(e)) {
+                throw new TikaException("Unexpected SAX processing failure", e);
+            }
+            log.warn("Only the first {} passages of [{}] are indexed", maxChunks, metadata.get(Metadata.RESOURCE_NAME_KEY));
+        } finally {
+            stream.close();
+        }
+        return handler;
+    }
+
+    private void parse(InputStream stream, ContentHandler handler, Metadata metadata, boolean ocr) throws IOException, SAXException, TikaException {
+        if (!ocr) {
+            edmExtractionExecutor.parse(standardParser, stream, handler, metadata, new ParseContext());
+        } else {
+            edmExtractionExecutor.parse(ocrParser, stream, handler, metadata, new ParseContext());
+        }
+    }
+
 }
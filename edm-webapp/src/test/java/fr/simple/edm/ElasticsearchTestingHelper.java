@@ -3,6 +3,7 @@ package fr.simple.edm;
 import fr.simple.edm.repository.EdmCategoryRepository;
 import fr.simple.edm.repository.EdmDocumentRepository;
 import fr.simple.edm.repository.EdmSourceRepository;
+import fr.simple.edm.service.EdmSearchCache;
 import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
 import org.elasticsearch.client.Client;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -28,9 +29,13 @@ public class ElasticsearchTestingHelper {
     @Autowired
     private EdmCategoryRepository edmCategoryRepository;
 
+    @Autowired
+    private EdmSearchCache edmSearchCache;
+
     private void deleteAllDocumentsForIndex(String index) throws Exception {
         if (ES_INDEX_DOCUMENT_FILE.equals(index)) {
             edmDocumentRepository.deleteAll();
+            edmSearchCache.invalidateAll();
         } else if (ES_INDEX_SOURCE.equals(index)) {
             edmSourceRepository.deleteAll();
         } else if (ES_INDEX_CATEGORY.equals(index)) {
@@ -0,0 +1,216 @@
+package fr.simple.edm.controller;
+
+import fr.simple.edm.service.EdmCrawlingService;
+import fr.simple.edm.service.EdmDocumentService;
+import fr.simple.edm.service.EdmIngestionPipeline;
+import fr.simple.edm.service.EdmOcrEnrichmentService;
+import fr.simple.edm.service.EdmSearchCache;
+import fr.simple.edm.tika.EdmExtractionCache;
+import fr.simple.edm.tika.EdmExtractionExecutor;
+import fr.simple.edm.tika.EdmOcrDocExtractor;
+import fr.simple.edm.tika.TikaInstance;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.elasticsearch.core.DefaultEntityMapper;
+import org.springframework.data.elasticsearch.core.mapping.SimpleElasticsearchMappingContext;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
+
+/**
+ * The uploaded file goes through the real ingestion pipeline and tika, only elasticsearch is mocked
+ */
+public class EdmCrawlingControllerTest {
+
+    private MockMvc mockMvc;
+
+    private EdmIngestionPipeline edmIngestionPipeline;
+
+    private EdmExtractionExecutor edmExtractionExecutor;
+
+    private EdmCrawlingService edmCrawlingService;
+
+    // documents sent to elasticsearch
+    private final BlockingQueue<IndexRequest> indexRequests = new LinkedBlockingQueue<>();
+
+    // elasticsearch refuses the documents
+    private volatile boolean refuseDocuments;
+
+    @Before
+    public void setup() {
+        Client client = mock(Client.class);
+        when(client.prepareBulk()).thenAnswer(invocation -> new BulkRequestBuilder(client, BulkAction.INSTANCE));
+        when(client.prepareIndex(anyString(), anyString(), anyString())).thenAnswer(invocation -> new IndexRequestBuilder(client, IndexAction.INSTANCE,
+            (String) invocation.getArguments()[0]).setType((String) invocation.getArguments()[1]).setId((String) invocation.getArguments()[2]));
+        doAnswer(invocation -> bulk((BulkRequest) invocation.getArguments()[1])).when(client).execute(any(BulkAction.class), any(BulkRequest.class));
+
+        edmExtractionExecutor = new EdmExtractionExecutor();
+        edmExtractionExecutor.setWorkers(1);
+        edmExtractionExecutor.start();
+
+        TikaInstance tikaInstance = new TikaInstance();
+        tikaInstance.setOcrLanguage("fra");
+        tikaInstance.setOcrPdf(false);
+        tikaInstance.setOcrIndexedChar(-1);
+        tikaInstance.setEdmExtractionExecutor(edmExtractionExecutor);
+        ReflectionTestUtils.invokeMethod(tikaInstance, "initTika");
+
+        EdmOcrDocExtractor edmOcrDocExtractor = new EdmOcrDocExtractor();
+        ReflectionTestUtils.setField(edmOcrDocExtractor, "tikaInstance", tikaInstance);
+        ReflectionTestUtils.setField(edmOcrDocExtractor, "edmExtractionCache", mock(EdmExtractionCache.class));
+
+        EdmDocumentService edmDocumentService = new EdmDocumentService();
+        ReflectionTestUtils.setField(edmDocumentService, "elasticsearchClient", client);
+        ReflectionTestUtils.setField(edmDocumentService, "entityMapper", new DefaultEntityMapper(new SimpleElasticsearchMappingContext()));
+        ReflectionTestUtils.setField(edmDocumentService, "edmSearchCache", mock(EdmSearchCache.class));
+        ReflectionTestUtils.setField(edmDocumentService, "edmOcrDocExtractor", edmOcrDocExtractor);
+        ReflectionTestUtils.setField(edmDocumentService, "bulkMaxActions", 500);
+        ReflectionTestUtils.setField(edmDocumentService, "bulkMaxSizeMb", 10);
+
+        edmIngestionPipeline = new EdmIngestionPipeline();
+        edmIngestionPipeline.setEdmDocumentService(edmDocumentService);
+        edmIngestionPipeline.setEdmOcrEnrichmentService(mock(EdmOcrEnrichmentService.class));
+        ReflectionTestUtils.setField(edmIngestionPipeline, "extractionThreads", 1);
+        ReflectionTestUtils.setField(edmIngestionPipeline, "extractionQueueSize", 10);
+        ReflectionTestUtils.setField(edmIngestionPipeline, "indexingQueueSize", 10);
+        ReflectionTestUtils.setField(edmIngestionPipeline, "bulkMaxActions", 10);
+        edmIngestionPipeline.start();
+
+        edmCrawlingService = new EdmCrawlingService();
+        ReflectionTestUtils.setField(edmCrawlingService, "edmDocumentService", edmDocumentService);
+        ReflectionTestUtils.setField(edmCrawlingService, "edmIngestionPipeline", edmIngestionPipeline);
+
+        EdmCrawlingController edmCrawlingController = new EdmCrawlingController();
+        ReflectionTestUtils.setField(edmCrawlingController, "edmCrawlingService", edmCrawlingService);
+        ReflectionTestUtils.setField(edmCrawlingController, "edmIngestionPipeline", edmIngestionPipeline);
+        mockMvc = standaloneSetup(edmCrawlingController).build();
+    }
+
+    @After
+    public void tearDown() {
+        edmIngestionPipeline.stop();
+        edmExtractionExecutor.stop();
+        edmCrawlingService.stop();
+    }
+
+    private PlainActionFuture<BulkResponse> bulk(BulkRequest request) {
+        BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+        for (int i = 0; i < items.length; i++) {
+            DocWriteRequest<?> action = request.requests().get(i);
+            indexRequests.add((IndexRequest) action);
+            items[i] = refuseDocuments
+                ? new BulkItemResponse(i, DocWriteRequest.OpType.INDEX, new BulkItemResponse.Failure(action.index(), action.type(), action.id(),
+                    new IllegalArgumentException("mapper_parsing_exception")))
+                : new BulkItemResponse(i, DocWriteRequest.OpType.INDEX,
+                    new IndexResponse(new ShardId(action.index(), "uuid", 0), action.type(), action.id(), 1, 1, 1, true));
+        }
+        PlainActionFuture<BulkResponse> future = PlainActionFuture.newFuture();
+        future.onResponse(new BulkResponse(items, 1));
+        return future;
+    }
+
+    private MvcResult upload() throws Exception {
+        return upload(Files.readAllBytes(Paths.get(getClass().getResource("/documents/demo_1/demo_pdf.pdf").toURI())));
+    }
+
+    private MvcResult upload(byte[] content) throws Exception {
+        String document = "{\"name\":\"demo_pdf\",\"nodePath\":\"/documents/demo_pdf.pdf\",\"fileExtension\":\"pdf\","
+            + "\"sourceId\":\"source_id\",\"categoryId\":\"category_id\"}";
+
+        MvcResult result = mockMvc.perform(multipart("/crawl/document/stream")
+            .file(new MockMultipartFile("document", "", MediaType.APPLICATION_JSON_VALUE, document.getBytes(StandardCharsets.UTF_8)))
+            .file(new MockMultipartFile("file", "demo_pdf.pdf", MediaType.APPLICATION_OCTET_STREAM_VALUE, content)))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+        // the answer is sent once the document went through the pipeline
+        result.getAsyncResult(10000);
+        return result;
+    }
+
+    @Test
+    public void uploadedDocumentShouldBeIndexedWithItsContentAndMetadata() throws Exception {
+        // when
+        mockMvc.perform(asyncDispatch(upload()))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.nodePath").value("/documents/demo_pdf.pdf"))
+            .andExpect(jsonPath("$.id").isNotEmpty());
+
+        // then
+        IndexRequest indexRequest = indexRequests.poll();
+        assertThat(indexRequest).isNotNull();
+        assertThat(indexRequest.index()).isEqualTo("document_file");
+        Map<String, Object> indexed = indexRequest.sourceAsMap();
+        assertThat(indexed.get("id")).isEqualTo(indexRequest.id());
+        assertThat(indexed.get("name")).isEqualTo("demo_pdf");
+        assertThat(indexed.get("nodePath")).isEqualTo("/documents/demo_pdf.pdf");
+        assertThat(indexed.get("fileExtension")).isEqualTo("pdf");
+        assertThat(indexed.get("sourceId")).isEqualTo("source_id");
+        assertThat(indexed.get("categoryId")).isEqualTo("category_id");
+        assertThat(indexed.get("crawlGeneration")).isNotNull();
+        assertThat((String) indexed.get("fileContent")).contains("XAVIER MICHEL");
+        assertThat(indexed.get("fileTitle")).isEqualTo("Le titre");
+        assertThat(indexed.get("fileAuthor")).isEqualTo("Titouan");
+        assertThat(indexed.get("binaryFileContent")).isNull();
+    }
+
+    @Test
+    public void refusedDocumentShouldBeAnsweredAsUnprocessable() throws Exception {
+        // given
+        refuseDocuments = true;
+
+        // when
+        mockMvc.perform(asyncDispatch(upload()))
+            .andExpect(status().isUnprocessableEntity());
+
+        // then
+        assertThat(indexRequests).hasSize(1);
+    }
+
+    @Test
+    public void unreadableDocumentShouldNotBeIndexed() throws Exception {
+        // given
+        byte[] content = "%PDF-1.4 truncated".getBytes(StandardCharsets.UTF_8);
+
+        // when
+        mockMvc.perform(asyncDispatch(upload(content)))
+            .andExpect(status().isUnprocessableEntity());
+
+        // then
+        assertThat(indexRequests).isEmpty();
+    }
+}
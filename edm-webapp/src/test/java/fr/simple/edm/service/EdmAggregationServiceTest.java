@@ -7,6 +7,7 @@ import fr.simple.edm.domain.EdmAggregationsWrapper;
 import fr.simple.edm.domain.EdmAggregationItem;
 import fr.simple.edm.domain.EdmCategoryAggregationItem;
 import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmSearchWithAggregationsWrapper;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -152,4 +153,17 @@ public class EdmAggregationServiceTest {
         assertThat(aggregates.size()).isEqualTo(attemptedResult.size());
         assertThat(aggregates).containsAll(attemptedResult);
     }
+
+    @Test
+    public void searchWithAggregationsShouldReturnHitsAndAggregationsOfTheSameQuery() {
+        EdmSearchWithAggregationsWrapper result = edmAggregationsService.searchWithAggregations("paye");
+
+        List<String> extensions = extractAggregationValueFromAggregationWrapper(result.getAggregations().get("fileExtension"));
+
+        assertThat(result.getSearchResult().getTotalHitsCount()).isEqualTo(result.getSearchResult().getSearchResults().size());
+        assertThat(result.getSearchResult().getSearchResults()).isNotEmpty();
+        assertThat(extensions).containsOnly("pdf");
+        assertThat(result.getAggregations()).hasSize(3);
+        assertThat(result.getTopTerms()).isNotNull();
+    }
 }
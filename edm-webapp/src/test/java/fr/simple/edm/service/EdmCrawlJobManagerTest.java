@@ -0,0 +1,223 @@
+package fr.simple.edm.service;
+
+import com.sun.net.httpserver.HttpServer;
+import fr.simple.edm.crawler.bridge.EdmDocumentSink;
+import fr.simple.edm.crawler.bridge.EdmPathFilter;
+import fr.simple.edm.crawler.url.UrlCrawler;
+import fr.simple.edm.domain.EdmCrawlJobStatus;
+import fr.simple.edm.domain.EdmCrawlJobStatus.State;
+import fr.simple.edm.domain.EdmDocumentFile;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.*;
+
+public class EdmCrawlJobManagerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private EdmCrawlJobManager sut;
+
+    private EdmDocumentSink sink;
+
+    @Before
+    public void setup() {
+        sink = mock(EdmDocumentSink.class);
+
+        sut = new EdmCrawlJobManager();
+        ReflectionTestUtils.setField(sut, "maxConcurrentJobs", 1);
+        ReflectionTestUtils.setField(sut, "historySize", 10);
+        sut.start();
+    }
+
+    @After
+    public void tearDown() {
+        sut.stop();
+    }
+
+    private EdmCrawlJobStatus waitForEnd(String id) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            EdmCrawlJobStatus status = sut.getJob(id).get();
+            if (status.getEndDate() != null) {
+                return status;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("job " + id + " did not end");
+    }
+
+    @Test
+    public void jobShouldCountFilesSentByTheCrawler() throws Exception {
+        // given
+        File file = temporaryFolder.newFile("doc.txt");
+        Files.write(file.toPath(), "some content".getBytes());
+
+        // when
+        EdmCrawlJobStatus submitted = sut.submit("test crawl", sink, jobSink -> {
+            jobSink.onFileFound("/doc.txt");
+            jobSink.saveEdmDocument(EdmDocumentFile.builder().nodePath("/doc.txt").build(), file);
+            jobSink.onFileFound("/unchanged.txt");
+            jobSink.onFileSkipped("/unchanged.txt");
+        });
+
+        // then
+        EdmCrawlJobStatus status = waitForEnd(submitted.getId());
+        assertThat(status.getState()).isEqualTo(State.COMPLETED);
+        assertThat(status.getFilesSeen()).isEqualTo(2);
+        assertThat(status.getFilesIndexed()).isEqualTo(1);
+        assertThat(status.getFilesSkipped()).isEqualTo(1);
+        assertThat(status.getFilesFailed()).isEqualTo(0);
+        assertThat(status.getBytesProcessed()).isEqualTo(12);
+    }
+
+    @Test
+    public void jobShouldCountFilesByTheirIndexingOutcome() throws Exception {
+        // given : the in process sink, one document is refused by the ingestion pipeline
+        File indexedFile = temporaryFolder.newFile("indexed.txt");
+        Files.write(indexedFile.toPath(), "some content".getBytes());
+        File refusedFile = temporaryFolder.newFile("refused.txt");
+        Files.write(refusedFile.toPath(), "broken content".getBytes());
+
+        EdmCrawlingService edmCrawlingService = mock(EdmCrawlingService.class);
+        CompletableFuture<EdmDocumentFile> refused = new CompletableFuture<>();
+        refused.completeExceptionally(new EdmIndexingException("Failed to extract '/refused.txt'"));
+        when(edmCrawlingService.submit(any(EdmDocumentFile.class), eq(indexedFile), isNull(Runnable.class))).thenReturn(CompletableFuture.completedFuture(new EdmDocumentFile()));
+        when(edmCrawlingService.submit(any(EdmDocumentFile.class), eq(refusedFile), isNull(Runnable.class))).thenReturn(refused);
+        EdmInProcessSink edmInProcessSink = new EdmInProcessSink();
+        edmInProcessSink.setEdmCrawlingService(edmCrawlingService);
+
+        // when
+        EdmCrawlJobStatus submitted = sut.submit("test crawl", edmInProcessSink, jobSink -> {
+            CompletableFuture<Void> indexed = jobSink.saveEdmDocumentAsync(EdmDocumentFile.builder().nodePath("/indexed.txt").build(), indexedFile);
+            CompletableFuture<Void> failed = jobSink.saveEdmDocumentAsync(EdmDocumentFile.builder().nodePath("/refused.txt").build(), refusedFile);
+            CompletableFuture.allOf(indexed, failed).exceptionally(e -> null).join();
+        });
+
+        // then
+        EdmCrawlJobStatus status = waitForEnd(submitted.getId());
+        assertThat(status.getFilesIndexed()).isEqualTo(1);
+        assertThat(status.getFilesFailed()).isEqualTo(1);
+        assertThat(status.getBytesProcessed()).isEqualTo(12);
+    }
+
+    @Test
+    public void urlCrawlShouldStreamDocumentsToTheSink() throws Exception {
+        // given
+        byte[] body = "some content".getBytes(StandardCharsets.UTF_8);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        server.start();
+
+        File tmpDirectory = new File(System.getProperty("java.io.tmpdir"));
+        List<String> temporaryFilesWhileSaving = new ArrayList<>();
+        doAnswer(invocation -> {
+            String[] temporaryFiles = tmpDirectory.list((directory, name) -> name.startsWith("edm-stream-"));
+            temporaryFilesWhileSaving.addAll(Arrays.asList(temporaryFiles));
+            assertThat(IOUtils.toByteArray((InputStream) invocation.getArguments()[1])).isEqualTo(body);
+            return null;
+        }).when(sink).saveEdmDocumentStream(any(EdmDocumentFile.class), any(InputStream.class), anyLong());
+
+        // when
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/doc.txt";
+        EdmCrawlJobStatus status;
+        try {
+            EdmCrawlJobStatus submitted = sut.submit("url crawl", sink, jobSink -> UrlCrawler.importFilesAtUrls(Collections.singletonList(url), jobSink,
+                "source", "category", EdmPathFilter.builder().build(), 1, null));
+            status = waitForEnd(submitted.getId());
+        } finally {
+            server.stop(0);
+        }
+
+        // then
+        assertThat(status.getState()).isEqualTo(State.COMPLETED);
+        assertThat(status.getFilesIndexed()).isEqualTo(1);
+        assertThat(status.getBytesProcessed()).isEqualTo(body.length);
+        verify(sink).saveEdmDocumentStream(any(EdmDocumentFile.class), any(InputStream.class), eq((long) body.length));
+        verify(sink, never()).saveEdmDocument(any(EdmDocumentFile.class), any(File.class));
+        assertThat(temporaryFilesWhileSaving).isEmpty();
+    }
+
+    @Test
+    public void jobsAboveTheLimitShouldBeQueued() throws Exception {
+        // given
+        CountDownLatch releaseFirstJob = new CountDownLatch(1);
+        EdmCrawlJobStatus first = sut.submit("first", sink, jobSink -> {
+            try {
+                releaseFirstJob.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // when
+        EdmCrawlJobStatus second = sut.submit("second", sink, jobSink -> { });
+
+        // then
+        assertThat(second.getState()).isEqualTo(State.QUEUED);
+        releaseFirstJob.countDown();
+        assertThat(waitForEnd(first.getId()).getState()).isEqualTo(State.COMPLETED);
+        assertThat(waitForEnd(second.getId()).getState()).isEqualTo(State.COMPLETED);
+    }
+
+    @Test
+    public void cancelledJobShouldStopTheCrawler() throws Exception {
+        // given
+        CountDownLatch started = new CountDownLatch(1);
+        EdmCrawlJobStatus submitted = sut.submit("runaway crawl", sink, jobSink -> {
+            started.countDown();
+            while (!jobSink.isCancelled()) {
+                jobSink.onFileFound("/doc.txt");
+            }
+        });
+        started.await(5, TimeUnit.SECONDS);
+
+        // when
+        sut.cancel(submitted.getId());
+
+        // then
+        assertThat(waitForEnd(submitted.getId()).getState()).isEqualTo(State.CANCELLED);
+    }
+
+    @Test
+    public void failedCrawlShouldBeReported() throws Exception {
+        EdmCrawlJobStatus submitted = sut.submit("broken crawl", sink, jobSink -> {
+            throw new IOException("no such directory");
+        });
+
+        EdmCrawlJobStatus status = waitForEnd(submitted.getId());
+        assertThat(status.getState()).isEqualTo(State.FAILED);
+        assertThat(status.getError()).isEqualTo("no such directory");
+    }
+}
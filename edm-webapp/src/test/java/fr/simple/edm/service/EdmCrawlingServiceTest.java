@@ -0,0 +1,93 @@
+package fr.simple.edm.service;
+
+import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmDocumentIndexingResult;
+import fr.simple.edm.domain.EdmSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class EdmCrawlingServiceTest {
+
+    private EdmCrawlingService sut;
+
+    private EdmIngestionPipeline edmIngestionPipeline;
+
+    private EdmDocumentService edmDocumentService;
+
+    @Before
+    public void setup() {
+        edmDocumentService = mock(EdmDocumentService.class);
+        EdmSourceService edmSourceService = mock(EdmSourceService.class);
+        when(edmSourceService.findOneByName("my source")).thenReturn(EdmSource.builder().id("source_id").name("my source").build());
+
+        edmIngestionPipeline = new EdmIngestionPipeline();
+        edmIngestionPipeline.setEdmDocumentService(edmDocumentService);
+        edmIngestionPipeline.setEdmOcrEnrichmentService(mock(EdmOcrEnrichmentService.class));
+        ReflectionTestUtils.setField(edmIngestionPipeline, "extractionThreads", 1);
+        ReflectionTestUtils.setField(edmIngestionPipeline, "extractionQueueSize", 10);
+        ReflectionTestUtils.setField(edmIngestionPipeline, "indexingQueueSize", 10);
+        ReflectionTestUtils.setField(edmIngestionPipeline, "bulkMaxActions", 10);
+        edmIngestionPipeline.start();
+
+        sut = new EdmCrawlingService();
+        ReflectionTestUtils.setField(sut, "edmDocumentService", edmDocumentService);
+        ReflectionTestUtils.setField(sut, "edmSourceService", edmSourceService);
+        ReflectionTestUtils.setField(sut, "edmIngestionPipeline", edmIngestionPipeline);
+        ReflectionTestUtils.setField(sut, "sweepTimeoutSeconds", 60L);
+    }
+
+    @After
+    public void tearDown() {
+        edmIngestionPipeline.stop();
+        sut.stop();
+    }
+
+    @Test
+    public void previousDocumentsShouldBeDeletedOnceQueuedDocumentsAreIndexed() throws Exception {
+        // given : the indexing of the crawled document is late
+        CountDownLatch releaseIndexing = new CountDownLatch(1);
+        when(edmDocumentService.indexAll(anyListOf(EdmDocumentFile.class))).thenAnswer(invocation -> {
+            releaseIndexing.await();
+            return Collections.singletonList(new EdmDocumentIndexingResult("id", "/doc.txt", true, null));
+        });
+        when(edmDocumentService.deleteBySourceIdAndCrawlGenerationBefore(eq("source_id"), anyLong())).thenReturn(3L);
+
+        sut.startCrawlGeneration("my source");
+        sut.submit(EdmDocumentFile.builder().nodePath("/doc.txt").sourceId("source_id").build(), new byte[0], null);
+
+        // when
+        CompletableFuture<Long> deleted = sut.deleteDocumentsOfPreviousCrawlGenerations("my source");
+
+        // then
+        Thread.sleep(200);
+        assertThat(deleted.isDone()).isFalse();
+        verify(edmDocumentService, never()).deleteBySourceIdAndCrawlGenerationBefore(anyString(), anyLong());
+
+        releaseIndexing.countDown();
+        assertThat(deleted.get(5, TimeUnit.SECONDS)).isEqualTo(3L);
+        InOrder inOrder = inOrder(edmDocumentService);
+        inOrder.verify(edmDocumentService).indexAll(anyListOf(EdmDocumentFile.class));
+        inOrder.verify(edmDocumentService).deleteBySourceIdAndCrawlGenerationBefore(eq("source_id"), anyLong());
+    }
+
+    @Test
+    public void nothingShouldBeDeletedWithoutCrawl() throws Exception {
+        assertThat(sut.deleteDocumentsOfPreviousCrawlGenerations("my source").get()).isEqualTo(0L);
+        verify(edmDocumentService, never()).deleteBySourceIdAndCrawlGenerationBefore(anyString(), anyLong());
+    }
+}
@@ -0,0 +1,178 @@
+package fr.simple.edm.service;
+
+import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmDocumentIndexingResult;
+import fr.simple.edm.tika.EdmExtractionException;
+import fr.simple.edm.tika.EdmOcrDocExtractor;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.elasticsearch.core.EntityMapper;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.*;
+
+public class EdmDocumentBulkIndexingTest {
+
+    private EdmDocumentService sut;
+
+    private Client client;
+
+    // number of documents of each bulk request sent
+    private final List<Integer> bulkSizes = new ArrayList<>();
+
+    // documents refused by elasticsearch
+    private final Set<String> failingIds = new HashSet<>();
+
+    private ElasticsearchException clusterFailure;
+
+    private EdmOcrDocExtractor edmOcrDocExtractor;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        client = mock(Client.class);
+        when(client.prepareBulk()).thenAnswer(invocation -> new BulkRequestBuilder(client, BulkAction.INSTANCE));
+        when(client.prepareIndex(anyString(), anyString(), anyString())).thenAnswer(invocation -> new IndexRequestBuilder(client, IndexAction.INSTANCE,
+            (String) invocation.getArguments()[0]).setType((String) invocation.getArguments()[1]).setId((String) invocation.getArguments()[2]));
+        doAnswer(invocation -> bulk((BulkRequest) invocation.getArguments()[1])).when(client).execute(any(BulkAction.class), any(BulkRequest.class));
+
+        EntityMapper entityMapper = mock(EntityMapper.class);
+        when(entityMapper.mapToString(any())).thenAnswer(invocation ->
+            "{\"fileContent\":\"" + ((EdmDocumentFile) invocation.getArguments()[0]).getFileContent() + "\"}");
+
+        sut = new EdmDocumentService();
+        ReflectionTestUtils.setField(sut, "elasticsearchClient", client);
+        ReflectionTestUtils.setField(sut, "entityMapper", entityMapper);
+        ReflectionTestUtils.setField(sut, "edmSearchCache", mock(EdmSearchCache.class));
+        edmOcrDocExtractor = mock(EdmOcrDocExtractor.class);
+        ReflectionTestUtils.setField(sut, "edmOcrDocExtractor", edmOcrDocExtractor);
+        ReflectionTestUtils.setField(sut, "bulkMaxActions", 2);
+        ReflectionTestUtils.setField(sut, "bulkMaxSizeMb", 1);
+    }
+
+    private PlainActionFuture<BulkResponse> bulk(BulkRequest request) {
+        bulkSizes.add(request.numberOfActions());
+        PlainActionFuture<BulkResponse> future = PlainActionFuture.newFuture();
+        if (clusterFailure != null) {
+            future.onFailure(clusterFailure);
+            return future;
+        }
+
+        BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+        for (int i = 0; i < items.length; i++) {
+            DocWriteRequest<?> action = request.requests().get(i);
+            items[i] = failingIds.contains(action.id())
+                ? new BulkItemResponse(i, DocWriteRequest.OpType.INDEX,
+                    new BulkItemResponse.Failure(action.index(), action.type(), action.id(), new IllegalArgumentException("mapper_parsing_exception")))
+                : new BulkItemResponse(i, DocWriteRequest.OpType.INDEX,
+                    new IndexResponse(new ShardId(action.index(), "uuid", 0), action.type(), action.id(), 1, 1, 1, true));
+        }
+        future.onResponse(new BulkResponse(items, 1));
+        return future;
+    }
+
+    private static EdmDocumentFile document(String id, String content) {
+        return EdmDocumentFile.builder().id(id).nodePath("/" + id + ".txt").fileContent(content).build();
+    }
+
+    @Test
+    public void bulkRequestsShouldBeLimitedByActions() {
+        List<EdmDocumentIndexingResult> results = sut.indexAll(Arrays.asList(document("a", "a"), document("b", "b"), document("c", "c"),
+            document("d", "d"), document("e", "e")));
+
+        assertThat(bulkSizes).containsExactly(2, 2, 1);
+        assertThat(results).hasSize(5);
+        assertThat(results.stream().allMatch(EdmDocumentIndexingResult::isSuccess)).isTrue();
+    }
+
+    @Test
+    public void documentWhichCouldNotBeExtractedShouldNotBeIndexed() {
+        // given
+        when(edmOcrDocExtractor.extractFileContent(argThat((EdmDocumentFile edmDocument) -> edmDocument != null && "/b.txt".equals(edmDocument.getNodePath())), any(), anyBoolean(), anyInt(), anyInt(), any()))
+            .thenThrow(new EdmExtractionException("Failed to extract the text of [/b.txt] : Extraction timed out after 300 seconds", null));
+
+        // when
+        List<EdmDocumentIndexingResult> results = sut.saveAll(Arrays.asList(document("a", "a"), document("b", "b"), document("c", "c")));
+
+        // then
+        assertThat(results.stream().map(EdmDocumentIndexingResult::getNodePath).collect(Collectors.toList())).containsExactly("/a.txt", "/b.txt", "/c.txt");
+        assertThat(results.stream().map(EdmDocumentIndexingResult::isSuccess).collect(Collectors.toList())).containsExactly(true, false, true);
+        assertThat(results.get(1).getError()).contains("timed out");
+        assertThat(bulkSizes).containsExactly(2);
+    }
+
+    @Test
+    public void bulkRequestsShouldBeLimitedBySize() {
+        ReflectionTestUtils.setField(sut, "bulkMaxActions", 500);
+        char[] bigContent = new char[700 * 1024];
+        Arrays.fill(bigContent, 'x');
+
+        sut.indexAll(Arrays.asList(document("a", new String(bigContent)), document("b", new String(bigContent)), document("c", "c")));
+
+        assertThat(bulkSizes).containsExactly(2, 1);
+    }
+
+    @Test
+    public void refusedDocumentsShouldBeReportedInOrder() {
+        failingIds.add("b");
+        failingIds.add("c");
+
+        List<EdmDocumentIndexingResult> results = sut.indexAll(Arrays.asList(document("a", "a"), document("b", "b"), document("c", "c")));
+
+        assertThat(results.stream().map(EdmDocumentIndexingResult::getNodePath).collect(Collectors.toList())).containsExactly("/a.txt", "/b.txt", "/c.txt");
+        assertThat(results.stream().map(EdmDocumentIndexingResult::isSuccess).collect(Collectors.toList())).containsExactly(true, false, false);
+        assertThat(results.get(1).getError()).contains("mapper_parsing_exception");
+    }
+
+    @Test
+    public void failedBulkRequestShouldFailItsDocumentsOnly() {
+        List<EdmDocumentIndexingResult> results = sut.indexAll(Arrays.asList(document("a", "a"), document("b", "b")));
+        clusterFailure = new ElasticsearchException("cluster unavailable");
+        results = new ArrayList<>(results);
+        results.addAll(sut.indexAll(Arrays.asList(document("c", "c"), document("d", "d"), document("e", "e"))));
+
+        assertThat(results.stream().map(EdmDocumentIndexingResult::isSuccess).collect(Collectors.toList())).containsExactly(true, true, false, false, false);
+        assertThat(results.get(2).getError()).isEqualTo("cluster unavailable");
+    }
+
+    @Test
+    public void savedDocumentsShouldBeExtractedThenIndexed() {
+        failingIds.add(sut.getDocumentId("/b.txt", "source_id"));
+        EdmDocumentFile first = EdmDocumentFile.builder().nodePath("/a.txt").sourceId("source_id").binaryFileContent("a".getBytes()).build();
+        EdmDocumentFile second = EdmDocumentFile.builder().nodePath("/b.txt").sourceId("source_id").binaryFileContent("b".getBytes()).build();
+
+        List<EdmDocumentIndexingResult> results = sut.saveAll(Arrays.asList(first, second));
+
+        assertThat(results.get(0).isSuccess()).isTrue();
+        assertThat(results.get(0).getId()).isEqualTo(sut.getDocumentId("/a.txt", "source_id"));
+        assertThat(results.get(1).isSuccess()).isFalse();
+        // the binary content is not indexed
+        assertThat(first.getBinaryFileContent()).isNull();
+    }
+}
@@ -23,6 +23,7 @@ import org.springframework.test.context.web.WebAppConfiguration;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -234,6 +235,46 @@ public class EdmDocumentServiceTest {
         assertThat(docs).containsAll(attemptedResult);
     }
 
+    /**
+     * Results are read from the hits : they have every field shown by the UI, but neither the content nor the binary
+     */
+    @Test
+    public void searchResultShouldHaveDisplayedFieldsOnly() throws Exception {
+        EdmDocumentFile document = new EdmDocumentFile();
+        document.setName("Style latex");
+        document.setNodePath("/latex/demo_pdf.pdf");
+        document.setSourceId("source_id");
+        document.setCategoryId(edmTestHelper.getCategory1().getId());
+        document.setFileExtension("pdf");
+        document.setFileContentType("application/pdf");
+        document.setFileDate(new Date());
+        document.setBinaryFileContent(Files.readAllBytes(Paths.get(this.getClass().getResource("/documents/demo_1/demo_pdf.pdf").toURI())));
+        document = edmDocumentService.save(document);
+
+        elasticsearchTestingHelper.flushIndexes();
+
+        EdmDocumentSearchResultWrapper searchResult = edmDocumentService.search("style latex");
+        EdmDocumentSearchResult result = searchResult.getSearchResults().stream()
+            .filter(r -> r.getEdmDocument().getNodePath().equals("/latex/demo_pdf.pdf"))
+            .findFirst().get();
+        EdmDocumentFile doc = result.getEdmDocument();
+
+        assertThat(searchResult.getTotalHitsCount()).isGreaterThanOrEqualTo(1);
+        assertThat(searchResult.getTookTime()).isGreaterThanOrEqualTo(0);
+        assertThat(doc.getId()).isEqualTo(document.getId());
+        assertThat(doc.getName()).isEqualTo("Style latex");
+        assertThat(doc.getSourceId()).isEqualTo("source_id");
+        assertThat(doc.getCategoryId()).isEqualTo(edmTestHelper.getCategory1().getId());
+        assertThat(doc.getFileExtension()).isEqualTo("pdf");
+        assertThat(doc.getFileContentType()).isEqualTo("application/pdf");
+        assertThat(doc.getFileDate()).isNotNull();
+        assertThat(doc.getFileAuthor()).isEqualTo("Titouan");
+        assertThat(result.getHighlightedName()).contains("<mark>");
+        assertThat(result.getHighlightedFileContentMatching()).contains("<mark>");
+        assertThat(doc.getFileContent()).isNull();
+        assertThat(doc.getBinaryFileContent()).isNull();
+    }
+
     /**
      * Search on doc content, with OCR (text in image)
      */
@@ -0,0 +1,153 @@
+package fr.simple.edm.service;
+
+import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmSource;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.*;
+
+public class EdmInProcessSinkTest {
+
+    private EdmInProcessSink sut;
+
+    private EdmCrawlingService edmCrawlingService;
+
+    private EdmSourceService edmSourceService;
+
+    private EdmDocumentFile document;
+
+    private File file = new File("/tmp/doc.txt");
+
+    @Before
+    public void setup() {
+        edmCrawlingService = mock(EdmCrawlingService.class);
+        edmSourceService = mock(EdmSourceService.class);
+
+        sut = new EdmInProcessSink();
+        sut.setEdmCrawlingService(edmCrawlingService);
+        sut.setEdmSourceService(edmSourceService);
+        sut.setEdmCategoryService(mock(EdmCategoryService.class));
+
+        document = EdmDocumentFile.builder().nodePath("/tmp/doc.txt").sourceId("source_id").build();
+    }
+
+    @Test
+    public void savedDocumentShouldBeCompleteOnceIndexed() throws Exception {
+        // given
+        CompletableFuture<EdmDocumentFile> indexed = new CompletableFuture<>();
+        when(edmCrawlingService.submit(eq(document), eq(file), isNull(Runnable.class))).thenReturn(indexed);
+
+        // when
+        CompletableFuture<Void> saved = sut.saveEdmDocumentAsync(document, file);
+
+        // then
+        assertThat(saved.isDone()).isFalse();
+        indexed.complete(document);
+        assertThat(saved.isDone()).isTrue();
+        assertThat(saved.isCompletedExceptionally()).isFalse();
+    }
+
+    @Test
+    public void failedIndexingShouldFailTheSavedDocument() throws Exception {
+        // given
+        CompletableFuture<EdmDocumentFile> indexed = new CompletableFuture<>();
+        when(edmCrawlingService.submit(eq(document), eq(file), isNull(Runnable.class))).thenReturn(indexed);
+
+        // when
+        CompletableFuture<Void> saved = sut.saveEdmDocumentAsync(document, file);
+        indexed.completeExceptionally(new EdmIndexingException("Failed to index '/tmp/doc.txt'"));
+
+        // then
+        assertThat(saved.isCompletedExceptionally()).isTrue();
+    }
+
+    @Test
+    public void saveShouldWaitWhileIngestionPipelineIsFull() throws Exception {
+        // given
+        when(edmCrawlingService.submit(eq(document), eq(file), isNull(Runnable.class)))
+            .thenThrow(new EdmIngestionQueueFullException("full", 5))
+            .thenReturn(CompletableFuture.completedFuture(document));
+
+        // when
+        sut.saveEdmDocumentAsync(document, file);
+
+        // then
+        verify(edmCrawlingService, times(2)).submit(eq(document), eq(file), isNull(Runnable.class));
+    }
+
+    @Test
+    public void smallStreamedDocumentShouldBeSubmittedFromMemory() throws Exception {
+        // given
+        byte[] content = "content".getBytes(StandardCharsets.UTF_8);
+        when(edmCrawlingService.submit(eq(document), any(byte[].class), isNull(Runnable.class))).thenReturn(CompletableFuture.completedFuture(document));
+
+        // when
+        sut.saveEdmDocumentStream(document, new ByteArrayInputStream(content), content.length);
+
+        // then
+        verify(edmCrawlingService).submit(eq(document), eq(content), isNull(Runnable.class));
+        verify(edmCrawlingService, never()).submit(eq(document), any(File.class), any(Runnable.class));
+    }
+
+    @Test
+    public void failedStreamedDocumentShouldBeThrown() throws Exception {
+        // given
+        byte[] content = "content".getBytes(StandardCharsets.UTF_8);
+        CompletableFuture<EdmDocumentFile> indexed = new CompletableFuture<>();
+        indexed.completeExceptionally(new EdmIndexingException("Failed to extract '/tmp/doc.txt'"));
+        when(edmCrawlingService.submit(eq(document), any(byte[].class), isNull(Runnable.class))).thenReturn(indexed);
+
+        // when
+        try {
+            sut.saveEdmDocumentStream(document, new ByteArrayInputStream(content), content.length);
+            fail("the save should have failed");
+        } catch (IOException e) {
+            // then
+            assertThat(e.getCause()).isInstanceOf(EdmIndexingException.class);
+        }
+    }
+
+    @Test
+    public void bigStreamedDocumentShouldBeSubmittedFromTemporaryFile() throws Exception {
+        // given
+        sut.setMaxBufferedBytes(4);
+        byte[] content = "content".getBytes(StandardCharsets.UTF_8);
+        when(edmCrawlingService.submit(eq(document), any(File.class), isNull(Runnable.class))).thenAnswer(invocation -> {
+            assertThat((File) invocation.getArguments()[1]).hasContent("content");
+            return CompletableFuture.completedFuture(document);
+        });
+
+        // when
+        sut.saveEdmDocumentStream(document, new ByteArrayInputStream(content), content.length);
+
+        // then
+        verify(edmCrawlingService).submit(eq(document), any(File.class), isNull(Runnable.class));
+        verify(edmCrawlingService, never()).submit(eq(document), any(byte[].class), any(Runnable.class));
+    }
+
+    @Test
+    public void missingSourceShouldBeCreated() {
+        // given
+        when(edmSourceService.findOneByName("my source")).thenReturn(new EdmSource());
+        when(edmSourceService.save(any(EdmSource.class))).thenReturn(EdmSource.builder().id("source_id").name("my source").build());
+
+        // when
+        String sourceId = sut.getIdFromSourceBySourceName("my source", "category_id");
+
+        // then
+        assertThat(sourceId).isEqualTo("source_id");
+        verify(edmSourceService).save(any(EdmSource.class));
+    }
+}
@@ -0,0 +1,249 @@
+package fr.simple.edm.service;
+
+import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmDocumentIndexingResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.*;
+
+public class EdmIngestionPipelineTest {
+
+    private EdmIngestionPipeline sut;
+
+    private EdmDocumentService edmDocumentService;
+
+    private EdmOcrEnrichmentService edmOcrEnrichmentService;
+
+    private EdmDocumentFile document;
+
+    @Before
+    public void setup() {
+        edmDocumentService = mock(EdmDocumentService.class);
+        edmOcrEnrichmentService = mock(EdmOcrEnrichmentService.class);
+
+        sut = new EdmIngestionPipeline();
+        sut.setEdmDocumentService(edmDocumentService);
+        sut.setEdmOcrEnrichmentService(edmOcrEnrichmentService);
+        ReflectionTestUtils.setField(sut, "extractionThreads", 1);
+        ReflectionTestUtils.setField(sut, "extractionQueueSize", 1);
+        ReflectionTestUtils.setField(sut, "indexingQueueSize", 10);
+        ReflectionTestUtils.setField(sut, "retryAfterSeconds", 3);
+        ReflectionTestUtils.setField(sut, "bulkMaxActions", 10);
+        sut.start();
+
+        document = EdmDocumentFile.builder().nodePath("/doc.txt").sourceId("source_id").build();
+    }
+
+    @After
+    public void tearDown() {
+        sut.stop();
+    }
+
+    @Test
+    public void submittedDocumentShouldBeExtractedThenIndexed() {
+        // given
+        when(edmDocumentService.indexAll(anyListOf(EdmDocumentFile.class)))
+            .thenReturn(Collections.singletonList(new EdmDocumentIndexingResult("id", "/doc.txt", true, null)));
+        Runnable onExtracted = mock(Runnable.class);
+
+        // when
+        sut.submit(document, null, onExtracted);
+
+        // then
+        verify(edmDocumentService, timeout(5000)).prepare(eq(document), isNull(InputStreamSource.class), any(), eq(true));
+        verify(onExtracted, timeout(5000)).run();
+        verify(edmDocumentService, timeout(5000)).indexAll(Collections.singletonList(document));
+    }
+
+    @Test
+    public void deferredOcrDocumentShouldBeExtractedWithoutOcrThenSpooled() {
+        // given
+        EdmDocumentIndexingResult result = new EdmDocumentIndexingResult("id", "/doc.txt", true, null);
+        when(edmOcrEnrichmentService.isDeferred(document)).thenReturn(true);
+        when(edmDocumentService.indexAll(anyListOf(EdmDocumentFile.class))).thenReturn(Collections.singletonList(result));
+
+        // when
+        sut.submit(document, null, null);
+
+        // then
+        verify(edmDocumentService, timeout(5000)).prepare(eq(document), isNull(InputStreamSource.class), any(), eq(false));
+        verify(edmOcrEnrichmentService, timeout(5000)).spool(eq(document), isNull(InputStreamSource.class));
+        verify(edmOcrEnrichmentService, timeout(5000)).onIndexed(same(document), eq(result));
+    }
+
+    @Test
+    public void submitShouldBeRefusedWhenExtractionQueueIsFull() throws Exception {
+        // given : the only worker is busy, and one document is waiting
+        CountDownLatch extractionStarted = new CountDownLatch(1);
+        CountDownLatch releaseExtraction = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            extractionStarted.countDown();
+            releaseExtraction.await();
+            return invocation.getArguments()[0];
+        }).when(edmDocumentService).prepare(any(EdmDocumentFile.class), any(), any(), anyBoolean());
+
+        sut.submit(document, null, null);
+        extractionStarted.await();
+        sut.submit(document, null, null);
+
+        // when
+        try {
+            sut.submit(document, null, null);
+            fail("the pipeline should be full");
+        } catch (EdmIngestionQueueFullException e) {
+            // then
+            assertThat(e.getRetryAfterSeconds()).isEqualTo(3);
+        } finally {
+            releaseExtraction.countDown();
+        }
+    }
+
+    @Test
+    public void awaitSourceShouldWaitUntilItsDocumentsAreIndexed() throws Exception {
+        // given
+        CountDownLatch releaseIndexing = new CountDownLatch(1);
+        when(edmDocumentService.indexAll(anyListOf(EdmDocumentFile.class))).thenAnswer(invocation -> {
+            releaseIndexing.await();
+            return Collections.singletonList(new EdmDocumentIndexingResult("id", "/doc.txt", true, null));
+        });
+
+        // when
+        sut.submit(document, null, null);
+
+        // then
+        assertThat(sut.awaitSource("source_id", 200)).isFalse();
+        assertThat(sut.awaitSource("other_source_id", 0)).isTrue();
+        releaseIndexing.countDown();
+        assertThat(sut.awaitSource("source_id", 5000)).isTrue();
+    }
+
+    @Test
+    public void failedExtractionShouldNotBeAwaited() throws Exception {
+        // given
+        doThrow(new IllegalStateException("broken file")).when(edmDocumentService).prepare(any(EdmDocumentFile.class), any(), any(), anyBoolean());
+
+        // when
+        sut.submit(document, null, null);
+
+        // then
+        assertThat(sut.awaitSource("source_id", 5000)).isTrue();
+        verify(edmDocumentService, never()).indexAll(anyListOf(EdmDocumentFile.class));
+    }
+
+    @Test
+    public void indexedDocumentShouldCompleteItsFuture() throws Exception {
+        // given
+        EdmDocumentIndexingResult result = new EdmDocumentIndexingResult("id", "/doc.txt", true, null);
+        when(edmDocumentService.indexAll(anyListOf(EdmDocumentFile.class))).thenReturn(Collections.singletonList(result));
+
+        // when
+        CompletableFuture<EdmDocumentIndexingResult> indexed = sut.submit(document, null, null);
+
+        // then
+        assertThat(indexed.get(5, TimeUnit.SECONDS)).isEqualTo(result);
+    }
+
+    @Test
+    public void failedExtractionShouldFailItsFuture() throws Exception {
+        // given
+        doThrow(new IllegalStateException("broken file")).when(edmDocumentService).prepare(any(EdmDocumentFile.class), any(), any(), anyBoolean());
+        Runnable onExtracted = mock(Runnable.class);
+
+        // when
+        CompletableFuture<EdmDocumentIndexingResult> indexed = sut.submit(document, null, onExtracted);
+
+        // then
+        assertFailed(indexed);
+        verify(onExtracted, timeout(5000)).run();
+    }
+
+    @Test
+    public void failedIndexingShouldFailItsFuture() throws Exception {
+        // given
+        when(edmDocumentService.indexAll(anyListOf(EdmDocumentFile.class)))
+            .thenReturn(Collections.singletonList(new EdmDocumentIndexingResult("id", "/doc.txt", false, "mapper_parsing_exception")));
+
+        // when
+        CompletableFuture<EdmDocumentIndexingResult> indexed = sut.submit(document, null, null);
+
+        // then
+        assertThat(assertFailed(indexed).getMessage()).contains("mapper_parsing_exception");
+    }
+
+    @Test
+    public void failedBulkRequestShouldFailItsFutures() throws Exception {
+        // given
+        when(edmDocumentService.indexAll(anyListOf(EdmDocumentFile.class))).thenThrow(new IllegalStateException("cluster unavailable"));
+
+        // when
+        CompletableFuture<EdmDocumentIndexingResult> indexed = sut.submit(document, null, null);
+
+        // then
+        assertFailed(indexed);
+        assertThat(sut.awaitSource("source_id", 5000)).isTrue();
+    }
+
+    @Test
+    public void failedPassageShouldFailItsDocument() throws Exception {
+        // given : the document has one passage, which is refused by elasticsearch
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Consumer<EdmDocumentFile> passageConsumer = (Consumer<EdmDocumentFile>) invocation.getArguments()[2];
+            passageConsumer.accept(EdmDocumentFile.builder().nodePath("/doc.txt").sourceId("source_id").chunkIndex(0).build());
+            return invocation.getArguments()[0];
+        }).when(edmDocumentService).prepare(any(EdmDocumentFile.class), any(), any(), anyBoolean());
+        when(edmDocumentService.indexAll(anyListOf(EdmDocumentFile.class))).thenAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            List<EdmDocumentFile> edmDocuments = (List<EdmDocumentFile>) invocation.getArguments()[0];
+            return edmDocuments.stream()
+                .map(edmDocument -> new EdmDocumentIndexingResult("id", "/doc.txt", edmDocument.getChunkIndex() == null, "refused passage"))
+                .collect(Collectors.toList());
+        });
+
+        // when
+        CompletableFuture<EdmDocumentIndexingResult> indexed = sut.submit(document, null, null);
+
+        // then
+        assertFailed(indexed);
+    }
+
+    private static EdmIndexingException assertFailed(CompletableFuture<EdmDocumentIndexingResult> indexed) throws Exception {
+        try {
+            indexed.get(5, TimeUnit.SECONDS);
+            fail("the indexing should have failed");
+            return null;
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(EdmIndexingException.class);
+            return (EdmIndexingException) e.getCause();
+        }
+    }
+
+    @Test
+    public void statusShouldExposeQueueDepths() {
+        List<String> stages = new ArrayList<>(sut.getStatus().keySet());
+
+        assertThat(stages).containsExactly("extractionQueueDepth", "extractionInProgress", "indexingQueueDepth", "indexingInProgress");
+        assertThat(sut.getStatus().get("extractionQueueDepth")).isEqualTo(0);
+    }
+}
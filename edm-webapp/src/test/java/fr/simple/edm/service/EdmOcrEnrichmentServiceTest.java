@@ -0,0 +1,166 @@
+package fr.simple.edm.service;
+
+import fr.simple.edm.domain.EdmDocumentFile;
+import fr.simple.edm.domain.EdmDocumentIndexingResult;
+import fr.simple.edm.tika.TikaInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class EdmOcrEnrichmentServiceTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private EdmOcrEnrichmentService sut;
+
+    private EdmDocumentService edmDocumentService;
+
+    private TikaInstance tikaInstance;
+
+    private File spool;
+
+    @Before
+    public void setup() throws Exception {
+        edmDocumentService = mock(EdmDocumentService.class);
+        tikaInstance = new TikaInstance();
+        tikaInstance.setOcrPdf(true);
+        spool = temporaryFolder.newFolder("spool");
+
+        sut = new EdmOcrEnrichmentService();
+        sut.setEdmDocumentService(edmDocumentService);
+        sut.setTikaInstance(tikaInstance);
+        ReflectionTestUtils.setField(sut, "deferred", true);
+        ReflectionTestUtils.setField(sut, "enrichmentThreads", 1);
+        ReflectionTestUtils.setField(sut, "spoolDirectory", spool.getPath());
+        sut.start();
+    }
+
+    @After
+    public void tearDown() {
+        sut.stop();
+    }
+
+    private EdmDocumentFile spooledDocument() {
+        EdmDocumentFile document = EdmDocumentFile.builder().id("id").nodePath("/doc.pdf").crawlGeneration(42L).build();
+        sut.spool(document, new ByteArrayResource("content".getBytes()));
+        return document;
+    }
+
+    private void awaitEmptySpool() throws InterruptedException {
+        for (int i = 0; i < 100 && spool.list().length > 0; i++) {
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void onlyPdfFilesShouldBeDeferred() {
+        assertThat(sut.isDeferred(EdmDocumentFile.builder().nodePath("/doc.pdf").build())).isTrue();
+        assertThat(sut.isDeferred(EdmDocumentFile.builder().nodePath("/doc").fileExtension("PDF").build())).isTrue();
+        assertThat(sut.isDeferred(EdmDocumentFile.builder().nodePath("/doc.txt").build())).isFalse();
+    }
+
+    @Test
+    public void nothingShouldBeDeferredWhenOcrIsDisabled() {
+        tikaInstance.setOcrPdf(false);
+
+        assertThat(sut.isDeferred(EdmDocumentFile.builder().nodePath("/doc.pdf").build())).isFalse();
+    }
+
+    @Test
+    public void indexedDocumentShouldBeEnrichedFromItsSpooledContent() throws Exception {
+        // given
+        when(edmDocumentService.enrichWithOcr(eq("id"), eq(42L), any(InputStreamSource.class))).thenReturn(true);
+        EdmDocumentFile document = spooledDocument();
+        assertThat(spool.list()).hasSize(1);
+
+        // when
+        sut.onIndexed(document, new EdmDocumentIndexingResult("id", "/doc.pdf", true, null));
+
+        // then
+        verify(edmDocumentService, timeout(5000)).enrichWithOcr(eq("id"), eq(42L), any(InputStreamSource.class));
+        // the spooled file is deleted once the document is enriched
+        awaitEmptySpool();
+        assertThat(spool.list()).isEmpty();
+        assertThat(sut.getStatus().get("enriched")).isEqualTo(1L);
+    }
+
+    @Test
+    public void documentFailedToIndexShouldNotBeEnriched() {
+        // given
+        EdmDocumentFile document = spooledDocument();
+
+        // when
+        sut.onIndexed(document, new EdmDocumentIndexingResult("id", "/doc.pdf", false, "failure"));
+
+        // then
+        verify(edmDocumentService, after(200).never()).enrichWithOcr(anyString(), anyLong(), any(InputStreamSource.class));
+        assertThat(spool.list()).isEmpty();
+    }
+
+    @Test
+    public void documentNotSpooledShouldBeIgnored() {
+        sut.onIndexed(EdmDocumentFile.builder().id("id_0").build(), new EdmDocumentIndexingResult("id_0", "/doc.pdf", true, null));
+
+        verify(edmDocumentService, after(200).never()).enrichWithOcr(anyString(), anyLong(), any(InputStreamSource.class));
+        assertThat(sut.getStatus().get("queued")).isEqualTo(0L);
+    }
+
+    @Test
+    public void documentSubmittedAgainShouldOnlyBeEnrichedFromItsLastContent() throws Exception {
+        // given
+        when(edmDocumentService.enrichWithOcr(eq("id"), eq(42L), any(InputStreamSource.class))).thenReturn(true);
+        EdmDocumentFile first = spooledDocument();
+        EdmDocumentFile second = spooledDocument();
+        assertThat(spool.list()).hasSize(2);
+
+        // when
+        sut.onIndexed(first, new EdmDocumentIndexingResult("id", "/doc.pdf", true, null));
+        sut.onIndexed(second, new EdmDocumentIndexingResult("id", "/doc.pdf", true, null));
+
+        // then
+        verify(edmDocumentService, timeout(5000)).enrichWithOcr(eq("id"), eq(42L), any(InputStreamSource.class));
+        awaitEmptySpool();
+        assertThat(spool.list()).isEmpty();
+        assertThat(sut.getStatus().get("skipped")).isEqualTo(1L);
+        assertThat(sut.getStatus().get("enriched")).isEqualTo(1L);
+    }
+
+    @Test
+    public void spoolShouldBeEnrichedAfterARestart() throws Exception {
+        // given : stopped before the document was indexed, and a file left half written
+        spooledDocument();
+        assertThat(new File(spool, "other_42_suffix.part").createNewFile()).isTrue();
+        sut.stop();
+        when(edmDocumentService.enrichWithOcr(eq("id"), eq(42L), any(InputStreamSource.class))).thenReturn(true);
+
+        // when
+        sut = new EdmOcrEnrichmentService();
+        sut.setEdmDocumentService(edmDocumentService);
+        sut.setTikaInstance(tikaInstance);
+        ReflectionTestUtils.setField(sut, "deferred", true);
+        ReflectionTestUtils.setField(sut, "enrichmentThreads", 1);
+        ReflectionTestUtils.setField(sut, "spoolDirectory", spool.getPath());
+        sut.start();
+
+        // then
+        verify(edmDocumentService, timeout(5000)).enrichWithOcr(eq("id"), eq(42L), any(InputStreamSource.class));
+        verify(edmDocumentService, never()).enrichWithOcr(eq("other"), anyLong(), any(InputStreamSource.class));
+        awaitEmptySpool();
+        assertThat(spool.list()).isEmpty();
+    }
+}
@@ -0,0 +1,83 @@
+package fr.simple.edm.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class EdmSearchCacheTest {
+
+    private EdmSearchCache sut;
+
+    private AtomicInteger loads;
+
+    @Before
+    public void setup() {
+        sut = new EdmSearchCache();
+        ReflectionTestUtils.setField(sut, "maxEntries", 2);
+        ReflectionTestUtils.setField(sut, "ttlSeconds", 60);
+        ReflectionTestUtils.setField(sut, "refreshIntervalMs", 0L);
+
+        loads = new AtomicInteger();
+    }
+
+    private String load(String value) {
+        loads.incrementAndGet();
+        return value;
+    }
+
+    @Test
+    public void sameQueryShouldBeLoadedOnce() {
+        assertThat(sut.get("search", "bac", () -> load("result"))).isEqualTo("result");
+        assertThat(sut.get("search", "  bac ", () -> load("other result"))).isEqualTo("result");
+
+        assertThat(loads.get()).isEqualTo(1);
+        assertThat(sut.getStatistics().get("hits")).isEqualTo(1L);
+        assertThat(sut.getStatistics().get("misses")).isEqualTo(1L);
+    }
+
+    @Test
+    public void queryTypesShouldNotShareResults() {
+        sut.get("search", "bac", () -> load("result"));
+
+        assertThat(sut.get("aggregations", "bac", () -> load("aggregations"))).isEqualTo("aggregations");
+    }
+
+    @Test
+    public void invalidationShouldClearResults() {
+        sut.get("search", "bac", () -> load("result"));
+
+        sut.invalidateAll();
+
+        assertThat(sut.get("search", "bac", () -> load("new result"))).isEqualTo("new result");
+        assertThat(loads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void resultsShouldNotBeCachedRightAfterAWrite() {
+        ReflectionTestUtils.setField(sut, "refreshIntervalMs", 60000L);
+        sut.invalidateAll();
+
+        sut.get("search", "bac", () -> load("result"));
+        sut.get("search", "bac", () -> load("result"));
+
+        assertThat(loads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void leastRecentlyUsedResultShouldBeEvicted() {
+        sut.get("search", "first", () -> load("first"));
+        sut.get("search", "second", () -> load("second"));
+        sut.get("search", "first", () -> load("first"));
+        sut.get("search", "third", () -> load("third"));
+
+        sut.get("search", "first", () -> load("first"));
+        sut.get("search", "second", () -> load("second"));
+
+        assertThat(loads.get()).isEqualTo(4);
+        assertThat(sut.getStatistics().get("evictions")).isEqualTo(2L);
+    }
+}
@@ -0,0 +1,83 @@
+package fr.simple.edm.service;
+
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EdmSearchCursorTest {
+
+    private EdmDocumentService edmDocumentService;
+
+    @Before
+    public void setup() {
+        Client client = mock(Client.class);
+        when(client.prepareSearch("document_file")).thenAnswer(invocation -> new SearchRequestBuilder(client, SearchAction.INSTANCE).setIndices("document_file"));
+
+        edmDocumentService = new EdmDocumentService();
+        ReflectionTestUtils.setField(edmDocumentService, "elasticsearchClient", client);
+        ReflectionTestUtils.setField(edmDocumentService, "defaultPageSize", 10);
+        ReflectionTestUtils.setField(edmDocumentService, "maxPageSize", 100);
+    }
+
+    @Test
+    public void cursorShouldBeReadBack() {
+        EdmSearchCursor cursor = EdmSearchCursor.decode(EdmSearchCursor.after(new Object[] { 1.2345678f, "doc_id" }).encode());
+
+        assertThat(((Number) cursor.getSearchAfter()[0]).floatValue()).isEqualTo(1.2345678f);
+        assertThat(cursor.getSearchAfter()[1]).isEqualTo("doc_id");
+        assertThat(EdmSearchCursor.decode(EdmSearchCursor.at(30).encode()).getOffset()).isEqualTo(30);
+        assertThat(EdmSearchCursor.decode(null)).isNull();
+    }
+
+    @Test
+    public void invalidCursorShouldBeRejected() {
+        for (String cursor : new String[] { "not a cursor", "eA", "YXt9", "by0x" }) {
+            try {
+                EdmSearchCursor.decode(cursor);
+                fail("cursor " + cursor + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                assertThat(e.getMessage()).contains(cursor);
+            }
+        }
+    }
+
+    @Test
+    public void nextPageShouldStartAfterTheCursor() {
+        SearchSourceBuilder source = edmDocumentService.prepareSearch("bac", null, Collections.emptySet(), 20, EdmSearchCursor.after(new Object[] { 1.5f, "doc_id" })).request().source();
+
+        assertThat(source.size()).isEqualTo(20);
+        assertThat(source.from()).isEqualTo(-1);
+        assertThat(source.searchAfter()).containsOnly(1.5f, "doc_id");
+        assertThat(source.sorts()).hasSize(2);
+        assertThat(source.sorts().get(1).toString()).contains("\"id\"").doesNotContain("\"_id\"");
+    }
+
+    @Test
+    public void collapsedSearchShouldBePagedByOffset() {
+        ReflectionTestUtils.setField(edmDocumentService, "chunkingEnabled", true);
+
+        SearchSourceBuilder source = edmDocumentService.prepareSearch("bac", null, Collections.emptySet(), 10, EdmSearchCursor.at(30)).request().source();
+
+        assertThat(source.from()).isEqualTo(30);
+        assertThat(source.searchAfter()).isNull();
+        assertThat(source.collapse()).isNotNull();
+    }
+
+    @Test
+    public void pageSizeShouldBeCapped() {
+        assertThat(edmDocumentService.getPageSize(0)).isEqualTo(10);
+        assertThat(edmDocumentService.getPageSize(25)).isEqualTo(25);
+        assertThat(edmDocumentService.getPageSize(1000)).isEqualTo(100);
+    }
+}
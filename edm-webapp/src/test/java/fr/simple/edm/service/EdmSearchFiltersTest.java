@@ -0,0 +1,86 @@
+package fr.simple.edm.service;
+
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.filter.FilterAggregationBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EdmSearchFiltersTest {
+
+    private EdmDocumentService edmDocumentService;
+
+    private EdmSearchFilters filters;
+
+    @Before
+    public void setup() {
+        Client client = mock(Client.class);
+        when(client.prepareSearch("document_file")).thenAnswer(invocation -> new SearchRequestBuilder(client, SearchAction.INSTANCE).setIndices("document_file"));
+
+        edmDocumentService = new EdmDocumentService();
+        ReflectionTestUtils.setField(edmDocumentService, "elasticsearchClient", client);
+        ReflectionTestUtils.setField(edmDocumentService, "defaultPageSize", 10);
+        ReflectionTestUtils.setField(edmDocumentService, "maxPageSize", 100);
+
+        filters = new EdmSearchFilters();
+        filters.setCategoryId(Arrays.asList("invoices", "taxes"));
+        filters.setSourceId(Collections.singletonList("source_id"));
+        filters.setFileExtension(Collections.singletonList("pdf"));
+        filters.setFileDateFrom(LocalDate.of(2019, 1, 1));
+    }
+
+    @Test
+    public void filtersShouldBeInFilterContext() {
+        BoolQueryBuilder query = (BoolQueryBuilder) edmDocumentService.getEdmQueryForPattern("bac", filters, Collections.emptySet());
+
+        assertThat(query.must()).hasSize(1);
+        assertThat(query.filter()).hasSize(4);
+        assertThat(query.filter().get(0).toString()).contains("categoryId.keyword").contains("invoices").contains("taxes");
+        assertThat(query.filter().get(3).toString()).contains("fileDate").contains("2019-01-01");
+    }
+
+    @Test
+    public void noFilterShouldOnlyMatchThePattern() {
+        BoolQueryBuilder query = (BoolQueryBuilder) edmDocumentService.getEdmQueryForPattern("", new EdmSearchFilters(), Collections.emptySet());
+
+        assertThat(query.filter()).isEmpty();
+        assertThat(query.must().get(0).getName()).isEqualTo("match_all");
+    }
+
+    @Test
+    public void postFiltersShouldOnlyFilterTheHits() {
+        SearchSourceBuilder source = edmDocumentService.prepareSearch("bac", filters,
+            Arrays.asList(EdmDocumentService.CATEGORY_FILTER, EdmDocumentService.FILE_EXTENSION_FILTER)).request().source();
+
+        assertThat(((BoolQueryBuilder) source.query()).filter()).hasSize(2);
+        assertThat(source.query().toString()).contains("sourceId").contains("fileDate").doesNotContain("categoryId").doesNotContain("fileExtension");
+        assertThat(((BoolQueryBuilder) source.postFilter()).filter()).hasSize(2);
+        assertThat(source.postFilter().toString()).contains("categoryId").contains("fileExtension");
+    }
+
+    @Test
+    public void documentsCountShouldApplyThePostFilters() {
+        ReflectionTestUtils.setField(edmDocumentService, "chunkingEnabled", true);
+
+        SearchSourceBuilder source = edmDocumentService.prepareSearch("bac", filters, Collections.singleton(EdmDocumentService.CATEGORY_FILTER))
+            .request().source();
+
+        assertThat(source.aggregations().getAggregatorFactories()).hasSize(1);
+        AggregationBuilder documentsCount = source.aggregations().getAggregatorFactories().iterator().next();
+        assertThat(documentsCount).isInstanceOf(FilterAggregationBuilder.class);
+        assertThat(documentsCount.getName()).isEqualTo("agg_documentsCount");
+    }
+}
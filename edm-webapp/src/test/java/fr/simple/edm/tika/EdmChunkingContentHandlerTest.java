@@ -0,0 +1,86 @@
+package fr.simple.edm.tika;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.sax.BodyContentHandler;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class EdmChunkingContentHandlerTest {
+
+    private final List<String> chunks = new ArrayList<>();
+
+    private void write(EdmChunkingContentHandler handler, String text) throws SAXException {
+        handler.characters(text.toCharArray(), 0, text.length());
+    }
+
+    @Test
+    public void textBeyondHeadShouldBeSplitWithoutCuttingWords() throws Exception {
+        EdmChunkingContentHandler sut = new EdmChunkingContentHandler(5, 10, 100, (text, index) -> chunks.add(index + ":" + text));
+
+        write(sut, "head aaaa bbbb cccc dddd");
+        sut.endDocument();
+
+        assertThat(sut.getHead()).isEqualTo("head ");
+        assertThat(chunks).containsExactly("0:aaaa bbbb", "1:cccc dddd");
+        assertThat(sut.getChunkCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void pageShouldEndPassage() throws Exception {
+        EdmChunkingContentHandler sut = new EdmChunkingContentHandler(0, 10, 100, (text, index) -> chunks.add(text));
+        AttributesImpl page = new AttributesImpl();
+        page.addAttribute("", "class", "class", "CDATA", "page");
+
+        sut.startElement("", "div", "div", page);
+        write(sut, "page one");
+        sut.endElement("", "div", "div");
+        sut.startElement("", "div", "div", page);
+        write(sut, "two");
+        sut.endElement("", "div", "div");
+        sut.endDocument();
+
+        // the second page is too short to be a passage of its own
+        assertThat(chunks).containsExactly("page one", "two");
+    }
+
+    @Test
+    public void parsingShouldStopAfterMaxChunks() throws Exception {
+        EdmChunkingContentHandler sut = new EdmChunkingContentHandler(0, 4, 2, (text, index) -> chunks.add(text));
+
+        try {
+            write(sut, "aaa bbb ccc ddd eee");
+            fail("the handler should stop the parser");
+        } catch (SAXException e) {
+            assertThat(sut.isChunkLimitReached(e)).isTrue();
+        }
+        assertThat(chunks).containsExactly("aaa", "bbb");
+    }
+
+    @Test
+    public void tikaTextShouldBeStreamedToPassages() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.append("word").append(i).append(' ');
+        }
+        EdmChunkingContentHandler sut = new EdmChunkingContentHandler(100, 1000, 100, (text, index) -> chunks.add(text));
+
+        new AutoDetectParser().parse(new ByteArrayInputStream(content.toString().getBytes(StandardCharsets.UTF_8)),
+            new BodyContentHandler(sut), new Metadata(), new ParseContext());
+
+        assertThat(sut.getHead()).startsWith("word0 word1");
+        assertThat(sut.getHead().length()).isEqualTo(100);
+        assertThat(chunks.size()).isGreaterThan(5);
+        assertThat(String.join(" ", chunks)).contains("word999");
+    }
+}
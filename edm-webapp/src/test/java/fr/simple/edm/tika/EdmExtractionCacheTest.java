@@ -0,0 +1,84 @@
+package fr.simple.edm.tika;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.ByteArrayResource;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EdmExtractionCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private EdmExtractionCache sut;
+
+    private TikaInstance tikaInstance;
+
+    @Before
+    public void setup() {
+        tikaInstance = mock(TikaInstance.class);
+        when(tikaInstance.getOcrLanguage()).thenReturn("fra");
+        when(tikaInstance.getOcrPdf()).thenReturn(false);
+        when(tikaInstance.getOcrIndexedChar()).thenReturn(-1);
+
+        sut = new EdmExtractionCache();
+        sut.setTikaInstance(tikaInstance);
+        sut.setDirectory(temporaryFolder.getRoot().getPath());
+        sut.init();
+    }
+
+    private ByteArrayResource content(String content) {
+        return new ByteArrayResource(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void sameContentShouldHaveSameKey() throws Exception {
+        assertThat(sut.getKey(content("some content"))).isEqualTo(sut.getKey(content("some content")));
+        assertThat(sut.getKey(content("some content"))).isNotEqualTo(sut.getKey(content("another content")));
+    }
+
+    @Test
+    public void keyShouldDependOnTikaConfiguration() throws Exception {
+        String keyWithoutOcr = sut.getKey(content("some content"));
+
+        when(tikaInstance.getOcrPdf()).thenReturn(true);
+
+        assertThat(sut.getKey(content("some content"))).isNotEqualTo(keyWithoutOcr);
+    }
+
+    @Test
+    public void storedEntryShouldBeReturned() throws Exception {
+        String key = sut.getKey(content("some content"));
+        assertThat(sut.get(key)).isNull();
+
+        sut.put(key, new EdmExtractionCache.Entry("extracted content", "title", "keywords", "author"));
+
+        assertThat(sut.get(key)).isEqualTo(new EdmExtractionCache.Entry("extracted content", "title", "keywords", "author"));
+    }
+
+    @Test
+    public void oldestEntriesShouldBeEvictedWhenCacheIsFull() throws Exception {
+        sut.setMaxSizeMb(1);
+        String bigContent = new String(new char[400 * 1024]).replace('\0', 'a');
+
+        String firstKey = sut.getKey(content("first"));
+        sut.put(firstKey, new EdmExtractionCache.Entry(bigContent, null, null, null));
+        new File(temporaryFolder.getRoot(), firstKey.substring(0, 2) + "/" + firstKey + ".json").setLastModified(0);
+        String secondKey = sut.getKey(content("second"));
+        sut.put(secondKey, new EdmExtractionCache.Entry(bigContent, null, null, null));
+        String thirdKey = sut.getKey(content("third"));
+        sut.put(thirdKey, new EdmExtractionCache.Entry(bigContent, null, null, null));
+
+        assertThat(sut.get(firstKey)).isNull();
+        assertThat(sut.get(secondKey)).isNotNull();
+        assertThat(sut.get(thirdKey)).isNotNull();
+    }
+}
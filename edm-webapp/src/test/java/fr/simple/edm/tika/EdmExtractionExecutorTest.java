@@ -0,0 +1,159 @@
+package fr.simple.edm.tika;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.AbstractParser;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.ContentHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class EdmExtractionExecutorTest {
+
+    private EdmExtractionExecutor sut;
+
+    private BodyContentHandler handler;
+
+    @Before
+    public void setup() {
+        sut = new EdmExtractionExecutor();
+        sut.setWorkers(1);
+        sut.setTimeoutSeconds(1);
+        handler = new BodyContentHandler();
+    }
+
+    @After
+    public void tearDown() {
+        sut.stop();
+    }
+
+    /**
+     * Stands for a parser looping on a malformed file
+     */
+    private static class SleepingParser extends AbstractParser {
+        @Override
+        public Set<MediaType> getSupportedTypes(ParseContext context) {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context) throws TikaException {
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                throw new TikaException("interrupted");
+            }
+        }
+    }
+
+    private InputStream text(String text) {
+        return new ByteArrayInputStream(text.getBytes());
+    }
+
+    @Test
+    public void documentShouldBeParsedByAWorker() throws Exception {
+        sut.start();
+
+        sut.parse(new AutoDetectParser(), text("hello world"), handler, new Metadata(), new ParseContext());
+
+        assertThat(handler.toString().trim()).isEqualTo("hello world");
+        assertThat(sut.getStatistics().get("text/plain").get("documents")).isEqualTo(1L);
+        assertThat(sut.getStatistics().get("text/plain").get("failures")).isEqualTo(0L);
+    }
+
+    @Test
+    public void slowParserShouldTimeOut() throws Exception {
+        sut.start();
+        long start = System.currentTimeMillis();
+
+        try {
+            sut.parse(new SleepingParser(), text("hello world"), handler, new Metadata(), new ParseContext());
+            fail("the extraction should have timed out");
+        } catch (TikaException e) {
+            assertThat(System.currentTimeMillis() - start).isLessThan(5000);
+        }
+
+        Map<String, Long> statistics = sut.getStatistics().get("text/plain");
+        assertThat(statistics.get("timeouts")).isEqualTo(1L);
+        assertThat(statistics.get("failures")).isEqualTo(0L);
+    }
+
+    @Test
+    public void parserErrorShouldBeCountedAsFailureAndRethrown() throws Exception {
+        sut.start();
+        Parser failingParser = new AbstractParser() {
+            @Override
+            public Set<MediaType> getSupportedTypes(ParseContext context) {
+                return Collections.emptySet();
+            }
+
+            @Override
+            public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context) {
+                throw new OutOfMemoryError("too big");
+            }
+        };
+
+        try {
+            sut.parse(failingParser, text("hello world"), handler, new Metadata(), new ParseContext());
+            fail("the extraction should have failed");
+        } catch (OutOfMemoryError e) {
+            assertThat(e.getMessage()).isEqualTo("too big");
+            assertThat(sut.getStatistics().get("text/plain").get("failures")).isEqualTo(1L);
+        }
+
+        // the worker is still usable
+        sut.parse(new AutoDetectParser(), text("hello again"), handler, new Metadata(), new ParseContext());
+        assertThat(handler.toString().trim()).isEqualTo("hello again");
+    }
+
+    @Test
+    public void forkedParserShouldBeRecycled() throws Exception {
+        sut.setFork(true);
+        sut.setForkMaxDocuments(1);
+        sut.setTimeoutSeconds(60);
+        sut.start();
+        Parser parser = new EdmTikaParser(false, "eng");
+
+        for (String text : new String[]{"first", "second"}) {
+            BodyContentHandler forkHandler = new BodyContentHandler();
+            Metadata metadata = new Metadata();
+            sut.parse(parser, text(text), forkHandler, metadata, new ParseContext());
+            assertThat(forkHandler.toString().trim()).isEqualTo(text);
+            // metadata are sent back by the child JVM
+            assertThat(metadata.get(Metadata.CONTENT_TYPE)).startsWith("text/plain");
+        }
+        assertThat(sut.getStatistics().get("text/plain").get("documents")).isEqualTo(2L);
+    }
+
+    @Test
+    public void forkedParserShouldBeKilledOnTimeout() throws Exception {
+        sut.setFork(true);
+        sut.setTimeoutSeconds(5);
+        sut.start();
+
+        try {
+            sut.parse(new SleepingParser(), text("hello world"), handler, new Metadata(), new ParseContext());
+            fail("the extraction should have timed out");
+        } catch (TikaException e) {
+            assertThat(sut.getStatistics().get("text/plain").get("timeouts")).isEqualTo(1L);
+        }
+
+        // a new child JVM is started
+        sut.parse(new EdmTikaParser(false, "eng"), text("hello again"), handler, new Metadata(), new ParseContext());
+        assertThat(handler.toString().trim()).isEqualTo("hello again");
+    }
+}